@@ -2,21 +2,40 @@ package cache;
 
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.util.TreeSet;
-
-import javax.imageio.ImageIO;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
 
 import image.ImageTile;
 
 /**
- * Singleton class used to read from and write to the cache.
+ * Singleton class used to read from and write to the cache. Reading and writing tiles does not
+ * require a global lock: the configuration is held in an immutable snapshot, and the manifest and
+ * tile atlas for each image folder and tile size are opened once and shared by all threads, so
+ * independent tiles can be read and written in parallel. The configuration should not be changed
+ * and the cache should not be cleared while tiles are being read or written.
+ * 
+ * Each image folder is cached in its own namespace, which is assigned by a Registry from the
+ * folder's canonical path. The image folder of a tile is the parent of its source file, so tiles
+ * of several image folders can be read and written at the same time.
+ * 
+ * Each cached tile records the size and modification time of its source file, read before the file
+ * was decoded. A cached tile is only used if the source file still has the same size and
+ * modification time, so unchanged files are trusted without being opened and changed files are
+ * read and cached again, reusing the slots of their old tiles in the tile atlas. If checksums are
+ * enabled, a CRC-32 of each source file is also recorded, and a file whose modification time
+ * changed but whose contents did not is recognized by its checksum instead of being decoded again.
  */
 public class CacheManager {
-	private static final CacheManager instance = new CacheManager();
 	public static final String CACHE = "." + File.separator + "PhotomosaicCache";
-	private boolean cacheEnabled = false;
-	private String directory;
-	private TreeSet<String> filenames;
+	private static final CacheManager instance = new CacheManager();
+	private volatile Config config = new Config(false, false);
+	private final Registry registry = new Registry(new File(CACHE));
+	private final ConcurrentMap<File, String> namespaces = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Store> stores = new ConcurrentHashMap<>();
+	private volatile Store recent;
 
 	/**
 	 * Initialize the CacheManager.
@@ -34,166 +53,177 @@ public class CacheManager {
 	}
 
 	/**
-	 * Clear the filenames set to save heap space.
-	 */
-	public synchronized void clearFilenames() {
-		filenames = null;
-	}
-
-	/**
-	 * This methods attempts to enable or disable the cache. Enabling the cache will fail if the
-	 * cache directory does not exist and cannot be created. Disabling the cache will always
-	 * succeed.
-	 * 
-	 * @param cacheEnabled true to attempt to enable the cache or false to disable the cache
+	 * Close all open manifests and tile atlases and release their contents to save heap space.
 	 */
-	public synchronized void setCacheEnabled(boolean cacheEnabled) {
-		if (!cacheEnabled) {
-			this.cacheEnabled = false;
-			return;
-		}
-		File cacheDirectory = new File(CACHE);
-		if (!cacheDirectory.exists()) {
-			this.cacheEnabled = cacheDirectory.mkdir();
-		} else if (!cacheDirectory.isDirectory()) {
-			this.cacheEnabled = false;
-		} else {
-			this.cacheEnabled = true;
+	public synchronized void clearManifest() {
+		recent = null;
+		for (Store store : stores.values()) {
+			store.close();
 		}
+		stores.clear();
 	}
 
 	/**
-	 * Set the directory to use.
+	 * Close the open manifests and tile atlases of the specified image folder and release their
+	 * contents to save heap space. The stores of other image folders remain open.
 	 * 
-	 * @param directory the directory to use
+	 * @param directory the image folder
 	 */
-	public synchronized void setDirectory(String directory) {
-		if (!cacheEnabled)
-			return;
-		directory = directory.substring(directory.lastIndexOf(File.separator) + 1);
-		File cacheDirectory = new File(CACHE + File.separator + directory);
-		if (!cacheDirectory.exists()) {
-			this.directory = cacheDirectory.mkdir() ? directory : null;
-		} else if (!cacheDirectory.isDirectory()) {
-			this.directory = null;
-		} else {
-			this.directory = directory;
-		}
-		filenames = null;
+	public synchronized void clearManifest(File directory) {
+		recent = null;
+		stores.values().removeIf(store -> {
+			if (!store.directory.equals(directory))
+				return false;
+			store.close();
+			return true;
+		});
 	}
 
 	/**
-	 * Get the beginning of the filenames of cached files related to the given file.
+	 * This methods attempts to enable or disable the cache. Enabling the cache will fail if the
+	 * cache directory does not exist and cannot be created. Disabling the cache will always
+	 * succeed.
 	 * 
-	 * @param filename the original filename
-	 * @param width    the image tile width
-	 * @param height   the image tile height
-	 * @return the String to use as the beginning of the filename for all cached files related to
-	 *         the given file
+	 * @param cacheEnabled true to attempt to enable the cache or false to disable the cache
 	 */
-	private String getFileRoot(String filename, int width, int height) {
-		String cacheDirectory = CACHE;
-		if (directory != null)
-			cacheDirectory += (File.separator + directory);
-		return cacheDirectory + File.separator + filename + "_" + width + "_" + height;
+	public synchronized void setCacheEnabled(boolean cacheEnabled) {
+		if (cacheEnabled) {
+			File cacheDirectory = new File(CACHE);
+			if (!cacheDirectory.exists()) {
+				cacheEnabled = cacheDirectory.mkdir();
+			} else if (!cacheDirectory.isDirectory()) {
+				cacheEnabled = false;
+			}
+		}
+		config = new Config(cacheEnabled, config.checksumEnabled);
 	}
 
 	/**
-	 * Get the File used to cache the given image.
+	 * Enable or disable checksums. If checksums are enabled, the contents of each source file are
+	 * read to compute a checksum when it is cached, and a cached tile whose source file has the
+	 * same size but a different modification time is still used if its checksum matches.
+	 * Checksums are disabled by default.
 	 * 
-	 * @param filename the original filename
-	 * @param width    the image tile width
-	 * @param height   the image tile height
-	 * @return the File used to cache the given image
+	 * @param checksumEnabled true to enable checksums or false to disable checksums
 	 */
-	private File getFile(String filename, int width, int height) {
-		return new File(getFileRoot(filename, width, height) + ".jpg");
+	public synchronized void setChecksumEnabled(boolean checksumEnabled) {
+		config = new Config(config.cacheEnabled, checksumEnabled);
 	}
 
 	/**
-	 * Get the FIle used to cache color information for the given image.
+	 * Get the manifest and tile atlas for the specified image folder and tile size, opening them if
+	 * necessary. The most recently used store is checked first, since nearly every call uses the
+	 * same folder and tile size.
 	 * 
-	 * @param filename the original filename
-	 * @param width    the image tile width
-	 * @param height   the image tile height
-	 * @param red      the red value of the image tile's average color
-	 * @param green    the green value of the image tile's average color
-	 * @param blue     the blue value of the image tile's average color
-	 * @return the File used to cache the given image
+	 * @param config    the configuration to use
+	 * @param directory the image folder
+	 * @param width     the image tile width
+	 * @param height    the image tile height
+	 * @return the manifest and tile atlas, or null if the cache is disabled or they cannot be
+	 *         opened
 	 */
-	private File getLogFile(String filename, int width, int height, int red, int green, int blue) {
-		return new File(
-				getFileRoot(filename, width, height) + "." + red + "_" + green + "_" + blue);
-	}
-
-	/**
-	 * Assemble a TreeSet of all filenames in the specified directory within the cache that do not
-	 * end in .jpg.
-	 */
-	private synchronized void assembleFilenames() {
-		filenames = new TreeSet<>();
-		String cacheDirectory = CACHE;
-		if (directory != null)
-			cacheDirectory += (File.separator + directory);
-		File root = new File(cacheDirectory);
-		for (String file : root.list()) {
-			if (!file.endsWith("jpg")) {
-				filenames.add(file);
+	private Store getStore(Config config, File directory, int width, int height) {
+		if (!config.cacheEnabled || (directory == null))
+			return null;
+		Store store = recent;
+		if ((store != null) && (store.width == width) && (store.height == height)
+				&& store.directory.equals(directory))
+			return store;
+		try {
+			String namespace = namespaces.get(directory);
+			if (namespace == null) {
+				namespace = registry.getNamespace(directory);
+				namespaces.put(directory, namespace);
 			}
+			String root = CACHE + File.separator + namespace + File.separator;
+			store = stores.computeIfAbsent(root + width + "_" + height, key -> {
+				try {
+					return new Store(directory, root, width, height);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (IOException | UncheckedIOException e) {
+			return null;
 		}
+		recent = store;
+		return store;
 	}
 
 	/**
 	 * If cached data exists for the specified file, this method returns a 3-element int array
 	 * representing the red, green, and blue values of the file's average color. If the data cannot
-	 * be found, this method returns null
+	 * be found, this method returns null. This method does not check whether the file has changed,
+	 * so it should only be called after getCached() has returned an image for the same file.
 	 * 
-	 * @param filename the filename to check
-	 * @param width    the width to check
-	 * @param height   the height to check
+	 * @param file   the file to check
+	 * @param width  the width to check
+	 * @param height the height to check
 	 * @return a 3-element int[] with the elements representing red, green, and blue in that order,
 	 *         or null if the cached data does not exist
 	 */
-	public synchronized int[] getColor(String filename, int width, int height) {
-		if (!cacheEnabled)
+	public int[] getColor(File file, int width, int height) {
+		Store store = getStore(config, file.getParentFile(), width, height);
+		if (store == null)
 			return null;
-		if (filenames == null) {
-			assembleFilenames();
-		}
-		String file = filenames.ceiling(filename + "_" + width + "_" + height);
-		if ((file == null) || (!file.startsWith(filename + "_" + width + "_" + height))) {
+		Manifest.Record record = store.manifest.get(file.getName());
+		if (record == null)
+			return null;
+		int rgb = record.rgb;
+		return new int[] { (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF };
+	}
+
+	/**
+	 * This method returns the current size and modification time of the specified file, along with
+	 * its checksum if checksums are enabled, which should be read before the file is decoded and
+	 * passed to cache() with the decoded tile. If the file changes while it is being decoded, the
+	 * tile is then cached with the attributes of the file it was decoded from rather than those of
+	 * the changed file, so the change is still detected the next time the tile is read.
+	 * 
+	 * @param file the original image file
+	 * @return the state of the file, or null if the cache is disabled or the file cannot be read
+	 */
+	public FileState getFileState(File file) {
+		Config config = this.config;
+		if (!config.cacheEnabled)
 			return null;
-		}
-		file = file.substring(file.lastIndexOf('.') + 1);
-		int[] color = new int[3];
 		try {
-			color[0] = Integer.parseInt(file.substring(0, file.indexOf('_')));
-			color[1] = Integer
-					.parseInt(file.substring(file.indexOf('_') + 1, file.lastIndexOf('_')));
-			color[2] = Integer.parseInt(file.substring(file.lastIndexOf('_') + 1));
-			return color;
-		} catch (Exception e) {
+			BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+					BasicFileAttributes.class);
+			long checksum = config.checksumEnabled ? getChecksum(file)
+					: Manifest.Record.NO_CHECKSUM;
+			return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis(),
+					checksum);
+		} catch (IOException e) {
 			return null;
 		}
 	}
 
 	/**
-	 * This method adds the file to the cache with the specified parameters.
+	 * This method adds the file to the cache with the specified parameters, along with the state
+	 * of the file before it was decoded. If the file was cached before, its tile is replaced in the
+	 * tile atlas, so re-caching a changed file does not make the atlas grow.
 	 * 
-	 * @param filename the original name of the image file
-	 * @param tile     the image tile to cache
-	 * @param width    the width of the image
-	 * @param height   the height of the image
+	 * @param file   the original image file
+	 * @param tile   the image tile to cache
+	 * @param width  the width of the image
+	 * @param height the height of the image
+	 * @param state  the state of the file returned by getFileState() before the file was decoded,
+	 *               or null to not cache the file
 	 */
-	public synchronized void cache(String filename, ImageTile tile, int width, int height) {
-		if (!cacheEnabled)
+	public void cache(File file, ImageTile tile, int width, int height, FileState state) {
+		if (state == null)
+			return;
+		Store store = getStore(config, file.getParentFile(), width, height);
+		if (store == null)
 			return;
-		File output = getFile(filename, width, height);
-		File log = getLogFile(filename, width, height, tile.getRed(), tile.getGreen(),
-				tile.getBlue());
 		try {
-			ImageIO.write(tile.getImage(), "jpg", output);
-			log.createNewFile();
+			int rgb = (tile.getRed() << 16) | (tile.getGreen() << 8) | tile.getBlue();
+			Manifest.Record previous = store.manifest.get(file.getName());
+			long offset = (previous == null) ? store.atlas.add(tile)
+					: store.atlas.replace(previous.offset, tile);
+			store.manifest.add(file.getName(), new Manifest.Record(rgb, offset, state.size,
+					state.modified, state.checksum));
 		} catch (IOException e) {
 			// do nothing
 		}
@@ -201,65 +231,220 @@ public class CacheManager {
 
 	/**
 	 * This method returns the cached image matching the specified parameters if it exists. If there
-	 * is no matching cached image, or if caching is disabled, null is returned.
+	 * is no matching cached image, if the file has changed since it was cached, or if caching is
+	 * disabled, null is returned. An image is only considered cached if it is listed in the
+	 * manifest.
 	 * 
-	 * @param filename the file to look for
-	 * @param width    the width to look for
-	 * @param height   the height to look for
+	 * @param file   the file to look for
+	 * @param width  the width to look for
+	 * @param height the height to look for
 	 * @return the matching cached image, or null if there is no match or if caching is disabled
 	 */
-	public synchronized BufferedImage getCached(String filename, int width, int height) {
-		if (!cacheEnabled)
+	public BufferedImage getCached(File file, int width, int height) {
+		Config config = this.config;
+		Store store = getStore(config, file.getParentFile(), width, height);
+		if (store == null)
+			return null;
+		Manifest.Record record = store.manifest.get(file.getName());
+		if (record == null)
 			return null;
 		try {
-			return ImageIO.read(getFile(filename, width, height));
+			if (!isCurrent(config, store, file, record))
+				return null;
+			return store.atlas.read(record.offset);
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
 	/**
-	 * This method deletes all cached files and returns true if successful.
+	 * This method checks whether the given record still describes the specified file. The record
+	 * is current if the file's size and modification time are unchanged. Otherwise, if checksums
+	 * are enabled and the file's size is unchanged, the file's checksum is compared with the
+	 * record's, and if they match a new record with the file's modification time is appended so
+	 * the file does not have to be read again.
+	 * 
+	 * @param config the configuration to use
+	 * @param store  the store containing the record
+	 * @param file   the file described by the record
+	 * @param record the record to check
+	 * @return true if the record is current and false otherwise
+	 * @throws IOException if the file cannot be read
+	 */
+	private boolean isCurrent(Config config, Store store, File file, Manifest.Record record)
+			throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+				BasicFileAttributes.class);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		if ((record.size == size) && (record.modified == modified))
+			return true;
+		if (!config.checksumEnabled || (record.checksum == Manifest.Record.NO_CHECKSUM)
+				|| (record.size != size) || (getChecksum(file) != record.checksum))
+			return false;
+		store.manifest.add(file.getName(),
+				new Manifest.Record(record.rgb, record.offset, size, modified, record.checksum));
+		return true;
+	}
+
+	/**
+	 * This method computes the CRC-32 checksum of the contents of the specified file.
+	 * 
+	 * @param file the file to read
+	 * @return the checksum of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long getChecksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(file)) {
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, count);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * This method deletes all cached files and the registry and returns true if successful.
 	 * 
 	 * @return true if successful and false otherwise
 	 */
 	public synchronized boolean clearCache() {
+		clearManifest();
+		namespaces.clear();
+		registry.clear();
+		File[] files = new File(CACHE).listFiles();
+		if (files == null)
+			return true;
 		boolean result = true;
-		File root = new File("." + File.separator + CACHE);
-		for (String dir : root.list()) {
-			result &= deleteDir(dir);
+		for (File file : files) {
+			result &= delete(file);
 		}
 		return result;
 	}
 
 	/**
-	 * This method deletes all cached files in the specified directory and returns true if
-	 * successful.
+	 * This method deletes all cached files of the specified image folder and returns true if
+	 * successful. The image folder keeps its namespace.
 	 * 
-	 * @param directory the directory to delete
+	 * @param directory the image folder whose cached files should be deleted
 	 * @return true if successful and false otherwise
 	 */
 	public synchronized boolean clearCache(String directory) {
-		return deleteDir(directory);
+		File folder = new File(directory);
+		clearManifest(folder);
+		try {
+			String namespace = registry.findNamespace(folder);
+			return (namespace == null) || delete(new File(CACHE, namespace));
+		} catch (IOException e) {
+			return false;
+		}
 	}
 
 	/**
 	 * This method deletes the specified directory in the cache and all of its contents. If the
 	 * argument is a file rather than a directory, this method deletes the file.
 	 * 
-	 * @param directory the directory to delete
+	 * @param file the directory or file to delete
 	 * @return true if successful and false otherwise
 	 */
-	private boolean deleteDir(String directory) {
-		directory = directory.substring(directory.lastIndexOf(File.separator) + 1);
-		File dir = new File(CACHE + File.separator + directory);
-		if (!dir.exists())
+	private boolean delete(File file) {
+		if (!file.exists())
 			return true;
-		for (File file : dir.listFiles()) {
-			if (!file.delete()) {
-				return false;
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				if (!child.delete()) {
+					return false;
+				}
 			}
 		}
-		return dir.delete();
+		return file.delete();
+	}
+
+	/**
+	 * An immutable snapshot of the size, modification time, and checksum of a source file.
+	 */
+	public static final class FileState {
+		private final long size, modified, checksum;
+
+		/**
+		 * Constructs a FileState.
+		 * 
+		 * @param size     the size of the file in bytes
+		 * @param modified the last modification time of the file in milliseconds
+		 * @param checksum the checksum of the file's contents, or NO_CHECKSUM if it was not
+		 *                 computed
+		 */
+		private FileState(long size, long modified, long checksum) {
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the cache settings.
+	 */
+	private static class Config {
+		final boolean cacheEnabled, checksumEnabled;
+
+		/**
+		 * Constructs a Config.
+		 * 
+		 * @param cacheEnabled    true if the cache is enabled
+		 * @param checksumEnabled true if checksums are enabled
+		 */
+		Config(boolean cacheEnabled, boolean checksumEnabled) {
+			this.cacheEnabled = cacheEnabled;
+			this.checksumEnabled = checksumEnabled;
+		}
+	}
+
+	/**
+	 * The manifest and tile atlas for one image folder and tile size.
+	 */
+	private static class Store {
+		final File directory;
+		final int width, height;
+		final Manifest manifest;
+		final TileAtlas atlas;
+
+		/**
+		 * Opens the manifest and tile atlas of the specified image folder and tile size.
+		 * 
+		 * @param directory the image folder
+		 * @param root      the path of the image folder's namespace within the cache, ending with
+		 *                  a separator
+		 * @param width     the image tile width
+		 * @param height    the image tile height
+		 * @throws IOException if either file cannot be opened
+		 */
+		Store(File directory, String root, int width, int height) throws IOException {
+			this.directory = directory;
+			this.width = width;
+			this.height = height;
+			String suffix = "_" + width + "_" + height + ".bin";
+			atlas = new TileAtlas(new File(root + "tiles" + suffix), width, height);
+			try {
+				manifest = new Manifest(new File(root + "manifest" + suffix));
+				// tiles which are not listed in a new or reset manifest can never be read
+				if (manifest.isEmpty())
+					atlas.clear();
+			} catch (IOException e) {
+				atlas.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Closes the manifest and tile atlas.
+		 */
+		void close() {
+			manifest.close();
+			atlas.close();
+		}
 	}
 }
@@ -0,0 +1,137 @@
+package cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import image.ImageTile;
+
+class CacheManagerTest {
+	static final int TILE_SIZE = 20;
+	static final long MODIFIED = 1_500_000_000_000L;
+
+	/**
+	 * Tests that a cached tile is only used while its source file is unchanged, including when the
+	 * file changes while it is being decoded, that re-caching a changed file reuses its slot in
+	 * the tile atlas, and that with checksums a file whose modification time changed but whose
+	 * contents did not is still recognized. The cache is created in the working directory and
+	 * removed afterwards if it did not exist before.
+	 */
+	@Test
+	void testInvalidation() throws IOException {
+		CacheManager manager = CacheManager.getInstance();
+		File cacheDirectory = new File(CacheManager.CACHE);
+		boolean existed = cacheDirectory.exists();
+		File folder = Files.createTempDirectory("library").toFile();
+		File file = new File(folder, "tile.png");
+		try {
+			manager.setCacheEnabled(true);
+			assertNull(manager.getCached(file, TILE_SIZE, TILE_SIZE));
+			writeImage(file, 0xFF0000, MODIFIED);
+			cacheTile(manager, file, manager.getFileState(file));
+			assertEquals(0xFF0000, getColor(manager.getCached(file, TILE_SIZE, TILE_SIZE)));
+			File atlas = getAtlas(folder);
+			long atlasSize = atlas.length();
+			assertTrue(atlasSize > 0);
+
+			// a tile decoded from a file which changed after its state was read must not be used
+			CacheManager.FileState state = manager.getFileState(file);
+			writeImage(file, 0x0000FF, MODIFIED + 1_000);
+			assertNull(manager.getCached(file, TILE_SIZE, TILE_SIZE));
+			cacheTile(manager, file, state);
+			assertNull(manager.getCached(file, TILE_SIZE, TILE_SIZE));
+
+			// caching the file with its current state replaces the tile in the same slot
+			cacheTile(manager, file, manager.getFileState(file));
+			assertEquals(0x0000FF, getColor(manager.getCached(file, TILE_SIZE, TILE_SIZE)));
+			assertEquals(atlasSize, atlas.length());
+
+			// with checksums, touching the file keeps the tile but changing the file does not
+			manager.setChecksumEnabled(true);
+			cacheTile(manager, file, manager.getFileState(file));
+			assertTrue(file.setLastModified(MODIFIED + 2_000));
+			assertEquals(0x0000FF, getColor(manager.getCached(file, TILE_SIZE, TILE_SIZE)));
+			writeImage(file, 0x00FF00, MODIFIED + 3_000);
+			assertNull(manager.getCached(file, TILE_SIZE, TILE_SIZE));
+			assertEquals(atlasSize, atlas.length());
+		} finally {
+			manager.setChecksumEnabled(false);
+			manager.clearCache(folder.getPath());
+			manager.setCacheEnabled(false);
+			if (!existed)
+				manager.clearCache();
+			file.delete();
+			folder.delete();
+			if (!existed)
+				cacheDirectory.delete();
+		}
+	}
+
+	/**
+	 * This method writes an image of a single color to the given file and sets the file's
+	 * modification time.
+	 * 
+	 * @param file     the file to write
+	 * @param rgb      the color of the image packed into an int as 0xRRGGBB
+	 * @param modified the modification time of the file in milliseconds
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void writeImage(File file, int rgb, long modified) throws IOException {
+		BufferedImage image = new BufferedImage(2 * TILE_SIZE, 2 * TILE_SIZE,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics g = image.getGraphics();
+		g.setColor(new Color(rgb));
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.dispose();
+		assertTrue(ImageIO.write(image, "png", file));
+		assertTrue(file.setLastModified(modified));
+	}
+
+	/**
+	 * This method decodes the given file into an image tile and caches it with the given state.
+	 * 
+	 * @param manager the CacheManager
+	 * @param file    the file to decode
+	 * @param state   the state of the file to cache the tile with
+	 * @throws IOException if the file cannot be read
+	 */
+	private static void cacheTile(CacheManager manager, File file, CacheManager.FileState state)
+			throws IOException {
+		ImageTile tile = new ImageTile(ImageIO.read(file), TILE_SIZE, TILE_SIZE, file, false);
+		manager.cache(file, tile, TILE_SIZE, TILE_SIZE, state);
+	}
+
+	/**
+	 * This method returns the color of the center of a cached tile.
+	 * 
+	 * @param image the cached tile, which must not be null
+	 * @return the color packed into an int as 0xRRGGBB
+	 */
+	private static int getColor(BufferedImage image) {
+		assertNotNull(image);
+		return image.getRGB(TILE_SIZE / 2, TILE_SIZE / 2) & 0xFFFFFF;
+	}
+
+	/**
+	 * This method returns the tile atlas file of the given image folder.
+	 * 
+	 * @param folder the image folder
+	 * @return the tile atlas file
+	 * @throws IOException if the registry cannot be read
+	 */
+	private static File getAtlas(File folder) throws IOException {
+		String namespace = new Registry(new File(CacheManager.CACHE)).findNamespace(folder);
+		assertNotNull(namespace);
+		return new File(new File(CacheManager.CACHE, namespace),
+				"tiles_" + TILE_SIZE + "_" + TILE_SIZE + ".bin");
+	}
+}
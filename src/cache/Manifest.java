@@ -0,0 +1,181 @@
+package cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A binary manifest listing the cached tiles of one image folder at one tile size. The manifest is
+ * a single file consisting of a short header followed by one record per cached tile. Each record
+ * holds the source filename, the tile's average color, the offset of the tile's pixels in the
+ * corresponding TileAtlas, and the size, modification time, and optional checksum of the source
+ * file when it was cached. The whole file is read in one pass through a memory mapping, and new
+ * records are appended to the end of the file. If the same filename appears more than once, the
+ * last record wins, so a changed file is re-cached by simply appending a new record.
+ * 
+ * This class is thread-safe. Lookups read a concurrent map without locking, and appends only hold
+ * the manifest's lock while the record is written to the end of the file and put in the map, so
+ * the map always holds the record which the file lists last for each filename.
+ */
+class Manifest {
+	private static final int MAGIC = 0x504D4346;
+	private static final short VERSION = 3;
+	private static final int HEADER_SIZE = 6;
+	private static final int RECORD_SIZE = Integer.BYTES + 4 * Long.BYTES;
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
+	private final FileChannel channel;
+	private long end;
+
+	/**
+	 * Opens the manifest stored in the given file, creating the file if it does not exist. If the
+	 * file has an unknown format it is emptied, and if its last record is incomplete that record is
+	 * discarded.
+	 * 
+	 * @param file the manifest file
+	 * @throws IOException if the file cannot be read or written
+	 */
+	public Manifest(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		end = read();
+		if (end != channel.size())
+			channel.truncate(end);
+		if (end == 0) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putShort(VERSION).flip();
+			write(header, 0);
+			end = HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * This method reads all records in the manifest file.
+	 * 
+	 * @return the position after the last complete record, or 0 if the file is empty or has an
+	 *         unknown format
+	 * @throws IOException if the file cannot be read
+	 */
+	private long read() throws IOException {
+		long size = channel.size();
+		if (size < HEADER_SIZE)
+			return 0;
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if ((buffer.getInt() != MAGIC) || (buffer.getShort() != VERSION))
+			return 0;
+		byte[] name = new byte[0];
+		while (buffer.remaining() >= Short.BYTES) {
+			int start = buffer.position();
+			int length = Short.toUnsignedInt(buffer.getShort());
+			if (buffer.remaining() < length + RECORD_SIZE) {
+				buffer.position(start);
+				break;
+			}
+			if (name.length < length)
+				name = new byte[length];
+			buffer.get(name, 0, length);
+			records.put(new String(name, 0, length, StandardCharsets.UTF_8), new Record(
+					buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+					buffer.getLong()));
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Get the record for the specified tile.
+	 * 
+	 * @param filename the original filename of the tile
+	 * @return the record for the tile, or null if the tile is not in the manifest
+	 */
+	public Record get(String filename) {
+		return records.get(filename);
+	}
+
+	/**
+	 * Check whether the manifest has no records.
+	 * 
+	 * @return true if the manifest is empty and false otherwise
+	 */
+	public boolean isEmpty() {
+		return records.isEmpty();
+	}
+
+	/**
+	 * Append the given record for the specified tile to the manifest, replacing any previous record
+	 * for the same filename. If several threads add records for the same filename, the record
+	 * appended last is the one kept, both in the file and in memory.
+	 * 
+	 * @param filename the original filename of the tile
+	 * @param record   the record to append
+	 * @throws IOException if the record cannot be written
+	 */
+	public void add(String filename, Record record) throws IOException {
+		byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF)
+			throw new IOException("The filename is too long to be cached.");
+		ByteBuffer buffer = ByteBuffer.allocate(Short.BYTES + name.length + RECORD_SIZE);
+		buffer.putShort((short) name.length).put(name).putInt(record.rgb).putLong(record.offset)
+				.putLong(record.size).putLong(record.modified).putLong(record.checksum).flip();
+		synchronized (this) {
+			write(buffer, end);
+			end += buffer.limit();
+			records.put(filename, record);
+		}
+	}
+
+	/**
+	 * This method writes the entire buffer to the manifest file at the given position.
+	 * 
+	 * @param buffer   the buffer to write
+	 * @param position the position in the file at which to write
+	 * @throws IOException if the buffer cannot be written
+	 */
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Closes the manifest file. The manifest cannot be used after it is closed.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+
+	/**
+	 * An immutable record describing one cached tile.
+	 */
+	static class Record {
+		static final long NO_CHECKSUM = -1;
+		final int rgb;
+		final long offset, size, modified, checksum;
+
+		/**
+		 * Constructs a Record.
+		 * 
+		 * @param rgb      the average color of the tile packed into an int as 0xRRGGBB
+		 * @param offset   the offset of the tile's pixels in the TileAtlas
+		 * @param size     the size of the source file in bytes
+		 * @param modified the last modification time of the source file in milliseconds
+		 * @param checksum the checksum of the source file's contents, or NO_CHECKSUM if it was not
+		 *                 computed
+		 */
+		Record(int rgb, long offset, long size, long modified, long checksum) {
+			this.rgb = rgb;
+			this.offset = offset;
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+	}
+}
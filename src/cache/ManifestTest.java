@@ -0,0 +1,62 @@
+package cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class ManifestTest {
+	static final int THREADS = 8;
+	static final int FILENAMES = 5000;
+
+	/**
+	 * Tests that when many threads add records for the same filenames at the same time, the
+	 * records a manifest keeps in memory are the ones its file lists last, so reading the file
+	 * again gives the same records.
+	 */
+	@Test
+	void testConcurrentAdds() throws IOException, InterruptedException, ExecutionException {
+		File file = File.createTempFile("manifest", ".bin");
+		ExecutorService service = Executors.newFixedThreadPool(THREADS);
+		Manifest manifest = new Manifest(file);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				int thread = i;
+				futures.add(service.submit(() -> {
+					for (int j = 0; j < FILENAMES; j++) {
+						manifest.add("tile" + j + ".png", new Manifest.Record(0, thread, 0, 0,
+								Manifest.Record.NO_CHECKSUM));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			manifest.close();
+
+			Manifest reread = new Manifest(file);
+			try {
+				for (int i = 0; i < FILENAMES; i++) {
+					String filename = "tile" + i + ".png";
+					assertEquals(manifest.get(filename).offset, reread.get(filename).offset);
+				}
+			} finally {
+				reread.close();
+			}
+		} finally {
+			service.shutdownNow();
+			manifest.close();
+			file.delete();
+		}
+	}
+}
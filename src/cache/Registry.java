@@ -0,0 +1,170 @@
+package cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry assigning each image folder its own namespace, which is the name of the folder within
+ * the cache holding that image folder's manifests and tile atlases. Image folders are identified by
+ * their canonical absolute path, so folders with the same name in different locations never share a
+ * namespace. The registry is a small UTF-8 text file with one line per image folder, consisting of
+ * the namespace, a tab, and the canonical path. Known namespaces are kept in memory, so the file is
+ * only read and locked when an image folder is not yet known to this process; the file lock keeps
+ * several processes from assigning the same namespace twice.
+ * 
+ * This class is thread-safe.
+ */
+class Registry {
+	public static final String FILENAME = "registry.txt";
+	private static final int MAX_NAME_LENGTH = 64;
+	private final File root, file;
+	private final Map<String, String> namespaces = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a Registry stored in the given cache directory.
+	 * 
+	 * @param root the cache directory
+	 */
+	public Registry(File root) {
+		this.root = root;
+		file = new File(root, FILENAME);
+	}
+
+	/**
+	 * Get the namespace of the specified image folder, registering the folder and creating its
+	 * directory within the cache if it is not registered yet.
+	 * 
+	 * @param directory the image folder
+	 * @return the namespace of the image folder
+	 * @throws IOException if the registry cannot be read or written or the folder's directory
+	 *                     cannot be created
+	 */
+	public String getNamespace(File directory) throws IOException {
+		String path = directory.getCanonicalPath();
+		String namespace = namespaces.get(path);
+		if (namespace == null) {
+			if (path.indexOf('\n') >= 0)
+				throw new IOException("The path " + path + " cannot be registered.");
+			synchronized (this) {
+				try (FileChannel channel = open()) {
+					// the lock is released when the channel is closed
+					channel.lock();
+					load(channel);
+					namespace = namespaces.get(path);
+					if (namespace == null) {
+						namespace = createNamespace(directory.getName());
+						ByteBuffer line = ByteBuffer.wrap((namespace + '\t' + path + '\n')
+								.getBytes(StandardCharsets.UTF_8));
+						long position = channel.size();
+						while (line.hasRemaining()) {
+							position += channel.write(line, position);
+						}
+						namespaces.put(path, namespace);
+					}
+				}
+			}
+		}
+		File namespaceDirectory = new File(root, namespace);
+		if (!namespaceDirectory.isDirectory() && !namespaceDirectory.mkdir())
+			throw new IOException("Unable to create " + namespaceDirectory + ".");
+		return namespace;
+	}
+
+	/**
+	 * Find the namespace of the specified image folder without registering it.
+	 * 
+	 * @param directory the image folder
+	 * @return the namespace of the image folder, or null if it is not registered
+	 * @throws IOException if the registry cannot be read
+	 */
+	public String findNamespace(File directory) throws IOException {
+		String path = directory.getCanonicalPath();
+		String namespace = namespaces.get(path);
+		if ((namespace == null) && file.isFile()) {
+			synchronized (this) {
+				try (FileChannel channel = open()) {
+					channel.lock();
+					load(channel);
+				}
+			}
+			namespace = namespaces.get(path);
+		}
+		return namespace;
+	}
+
+	/**
+	 * Forget all registered image folders. The registry file itself is not deleted.
+	 */
+	public void clear() {
+		namespaces.clear();
+	}
+
+	/**
+	 * This method opens the registry file, creating it if it does not exist.
+	 * 
+	 * @return the open registry file
+	 * @throws IOException if the file cannot be opened
+	 */
+	private FileChannel open() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * This method reads every complete line of the registry file, including lines added by other
+	 * processes.
+	 * 
+	 * @param channel the open registry file
+	 * @throws IOException if the file cannot be read
+	 */
+	private void load(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+		long position = 0;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if (count < 0)
+				break;
+			position += count;
+		}
+		String contents = new String(buffer.array(), 0, buffer.position(),
+				StandardCharsets.UTF_8);
+		int start = 0;
+		int end;
+		while ((end = contents.indexOf('\n', start)) >= 0) {
+			int separator = contents.indexOf('\t', start);
+			if ((separator > start) && (separator < end))
+				namespaces.put(contents.substring(separator + 1, end),
+						contents.substring(start, separator));
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * This method creates a namespace based on the name of an image folder which is neither
+	 * registered nor used by an existing directory within the cache. Characters which may not be
+	 * valid in filenames are replaced, and a number is appended if necessary to make the namespace
+	 * unique.
+	 * 
+	 * @param name the name of the image folder
+	 * @return the new namespace
+	 */
+	private String createNamespace(String name) {
+		String base = name.replaceAll("[^A-Za-z0-9._-]", "_");
+		if (base.length() > MAX_NAME_LENGTH)
+			base = base.substring(0, MAX_NAME_LENGTH);
+		if (base.isEmpty() || base.startsWith("."))
+			base = "library" + base;
+		String namespace = base;
+		for (int i = 2; namespaces.containsValue(namespace)
+				|| new File(root, namespace).exists(); i++) {
+			namespace = base + "-" + i;
+		}
+		return namespace;
+	}
+}
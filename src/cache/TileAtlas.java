@@ -0,0 +1,191 @@
+package cache;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import image.ImageTile;
+
+/**
+ * A single file holding the raw pixels of every cached tile of one image folder at one tile size.
+ * Each tile is stored as width * height * 3 bytes in BGR order, so all tiles have the same stride
+ * and a tile can be copied straight from the file into the DataBuffer of a TYPE_3BYTE_BGR image.
+ * The file is read through memory mappings of up to MAX_SEGMENT bytes each, which are created on
+ * demand and sliced per tile.
+ * 
+ * This class is thread-safe. Appending a tile atomically reserves its offset and then writes the
+ * pixels without holding a lock, so tiles can be written concurrently. Reads only take the atlas's
+ * lock when a segment has to be mapped or remapped to cover tiles appended since it was mapped.
+ */
+class TileAtlas {
+	private static final int MAX_SEGMENT = 1 << 30;
+	private final FileChannel channel;
+	private final int width, height, stride;
+	private final long segmentSize;
+	private final AtomicLong end;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	/**
+	 * Opens the atlas stored in the given file, creating the file if it does not exist. If the file
+	 * ends with an incomplete tile, that tile is discarded.
+	 * 
+	 * @param file   the atlas file
+	 * @param width  the tile width
+	 * @param height the tile height
+	 * @throws IOException if the file cannot be opened
+	 */
+	public TileAtlas(File file, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		stride = width * height * 3;
+		segmentSize = (long) Math.max(1, MAX_SEGMENT / stride) * stride;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size() - (channel.size() % stride);
+		if (size != channel.size())
+			channel.truncate(size);
+		end = new AtomicLong(size);
+	}
+
+	/**
+	 * Read the tile stored at the specified offset. The offset must have been returned by add()
+	 * before this method is called.
+	 * 
+	 * @param offset the offset of the tile within the file
+	 * @return the tile's image, or null if the offset is not the start of a stored tile
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public BufferedImage read(long offset) throws IOException {
+		if ((offset < 0) || (offset % stride != 0) || (offset + stride > end.get()))
+			return null;
+		int index = (int) (offset / segmentSize);
+		int start = (int) (offset - index * segmentSize);
+		ByteBuffer slice = getSegment(index, start + stride).duplicate();
+		slice.position(start);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		slice.get(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+		return image;
+	}
+
+	/**
+	 * Get the specified segment, mapping it if it is not mapped or is shorter than the given
+	 * length. Mapped segments are published by replacing the whole array, so the common case of
+	 * an already mapped segment does not take a lock.
+	 * 
+	 * @param index  the index of the segment
+	 * @param length the minimum length of the segment
+	 * @return the mapped segment
+	 * @throws IOException if the segment cannot be mapped
+	 */
+	private MappedByteBuffer getSegment(int index, int length) throws IOException {
+		MappedByteBuffer[] current = segments;
+		if ((index < current.length) && (current[index] != null)
+				&& (current[index].capacity() >= length))
+			return current[index];
+		synchronized (this) {
+			current = segments;
+			MappedByteBuffer segment = (index < current.length) ? current[index] : null;
+			if ((segment == null) || (segment.capacity() < length)) {
+				long start = index * segmentSize;
+				segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(segmentSize, channel.size() - start));
+				MappedByteBuffer[] copy = new MappedByteBuffer[Math.max(index + 1,
+						current.length)];
+				System.arraycopy(current, 0, copy, 0, current.length);
+				copy[index] = segment;
+				segments = copy;
+			}
+			return segment;
+		}
+	}
+
+	/**
+	 * Append the given tile to the atlas.
+	 * 
+	 * @param tile the tile to store; its dimensions must match the atlas
+	 * @return the offset at which the tile was stored
+	 * @throws IOException if the tile cannot be written
+	 */
+	public long add(ImageTile tile) throws IOException {
+		ByteBuffer buffer = getPixels(tile);
+		long offset = end.getAndAdd(stride);
+		write(buffer, offset);
+		return offset;
+	}
+
+	/**
+	 * Store the given tile in place of the tile at the specified offset, so the slot of a tile
+	 * which is no longer used is reused instead of growing the atlas. If the offset is not the
+	 * start of a stored tile, the tile is appended instead. The tile being replaced must not be
+	 * read while this method runs.
+	 * 
+	 * @param offset the offset of the tile to replace
+	 * @param tile   the tile to store; its dimensions must match the atlas
+	 * @return the offset at which the tile was stored
+	 * @throws IOException if the tile cannot be written
+	 */
+	public long replace(long offset, ImageTile tile) throws IOException {
+		if ((offset < 0) || (offset % stride != 0) || (offset + stride > end.get()))
+			return add(tile);
+		write(getPixels(tile), offset);
+		return offset;
+	}
+
+	/**
+	 * This method returns the pixels of the given tile in the format stored in the atlas.
+	 * 
+	 * @param tile the tile; its dimensions must match the atlas
+	 * @return the pixels of the tile
+	 */
+	private ByteBuffer getPixels(ImageTile tile) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics g = image.getGraphics();
+		tile.draw(g, 0, 0);
+		g.dispose();
+		return ByteBuffer.wrap(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+	}
+
+	/**
+	 * This method writes the entire buffer to the atlas file at the given position.
+	 * 
+	 * @param buffer   the buffer to write
+	 * @param position the position in the file at which to write
+	 * @throws IOException if the buffer cannot be written
+	 */
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Discard every tile in the atlas. This method must not be called while tiles are being read
+	 * or written.
+	 * 
+	 * @throws IOException if the file cannot be truncated
+	 */
+	public synchronized void clear() throws IOException {
+		segments = new MappedByteBuffer[0];
+		channel.truncate(0);
+		end.set(0);
+	}
+
+	/**
+	 * Closes the atlas file. The atlas cannot be used after it is closed.
+	 */
+	public void close() {
+		segments = new MappedByteBuffer[0];
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+}
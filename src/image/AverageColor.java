@@ -0,0 +1,305 @@
+package image;
+
+import java.awt.image.*;
+
+/**
+ * Utility class used to compute the average color of a region of an image. For the most common
+ * image types the pixels are read directly from the image's DataBuffer, so no objects are
+ * allocated per pixel; other image types fall back to BufferedImage.getRGB() one row at a time.
+ */
+public final class AverageColor {
+	/**
+	 * This class should not be instantiated.
+	 */
+	private AverageColor() {
+	}
+
+	/**
+	 * Get the average color of the specified region of the given image. The alpha channel, if any,
+	 * is ignored.
+	 * 
+	 * @param image  the image to read
+	 * @param x      the x coordinate of the upper-left corner of the region
+	 * @param y      the y coordinate of the upper-left corner of the region
+	 * @param width  the width of the region
+	 * @param height the height of the region
+	 * @return the average color packed into an int as 0xRRGGBB
+	 */
+	public static int getAverageColor(BufferedImage image, int x, int y, int width, int height) {
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+			return averageIntRGB(image.getRaster(), x, y, width, height);
+		case BufferedImage.TYPE_3BYTE_BGR:
+			return average3ByteBGR(image.getRaster(), x, y, width, height);
+		case BufferedImage.TYPE_BYTE_GRAY:
+			return averageByteGray(image, x, y, width, height);
+		default:
+			return averageRGB(image, x, y, width, height);
+		}
+	}
+
+	/**
+	 * Get the average colors of a grid of blocks of the specified region of the given image, which
+	 * describe its colors in more detail than a single average color, along with the average color
+	 * of the whole region, in a single pass over the region. The region is divided into grid
+	 * columns and grid rows, where column i spans from x + i * width / grid to
+	 * x + (i + 1) * width / grid, and rows likewise, and the average color of the block in column i
+	 * and row j is stored at index j * grid + i of signature. The alpha channel, if any, is
+	 * ignored.
+	 * 
+	 * @param image     the image to read
+	 * @param x         the x coordinate of the upper-left corner of the region
+	 * @param y         the y coordinate of the upper-left corner of the region
+	 * @param width     the width of the region, which must be at least grid
+	 * @param height    the height of the region, which must be at least grid
+	 * @param grid      the number of columns and rows of blocks
+	 * @param signature the array to store the average colors of the blocks in, packed into ints as
+	 *                  0xRRGGBB, whose length must be at least grid * grid
+	 * @return the average color of the region packed into an int as 0xRRGGBB
+	 * @throws IllegalArgumentException if grid is less than 1 or greater than width or height
+	 */
+	public static int getSignature(BufferedImage image, int x, int y, int width, int height,
+			int grid, int[] signature) {
+		if ((grid < 1) || (grid > width) || (grid > height))
+			throw new IllegalArgumentException(
+					"The grid must be at least 1 and at most the width and height.");
+		int[] columns = getBlocks(width, grid);
+		long[] totals = new long[3 * grid * grid];
+		int[] row = new int[width];
+		for (int j = 0, i = 0; j < grid; j++) {
+			for (int end = (j + 1) * height / grid; i < end; i++) {
+				image.getRGB(x, y + i, width, 1, row, 0, width);
+				for (int k = 0; k < width; k++) {
+					int block = 3 * (j * grid + columns[k]);
+					totals[block] += (row[k] >> 16) & 0xFF;
+					totals[block + 1] += (row[k] >> 8) & 0xFF;
+					totals[block + 2] += row[k] & 0xFF;
+				}
+			}
+		}
+		long rTotal = 0;
+		long gTotal = 0;
+		long bTotal = 0;
+		for (int j = 0; j < grid; j++) {
+			int blockHeight = (j + 1) * height / grid - j * height / grid;
+			for (int i = 0; i < grid; i++) {
+				int block = j * grid + i;
+				int blockWidth = (i + 1) * width / grid - i * width / grid;
+				signature[block] = pack(totals[3 * block], totals[3 * block + 1],
+						totals[3 * block + 2], blockWidth * blockHeight);
+				rTotal += totals[3 * block];
+				gTotal += totals[3 * block + 1];
+				bTotal += totals[3 * block + 2];
+			}
+		}
+		return pack(rTotal, gTotal, bTotal, width * height);
+	}
+
+	/**
+	 * This method returns the column of blocks of each pixel of a row, when a row of the given
+	 * width is divided into the given number of blocks as in getSignature().
+	 * 
+	 * @param width the width of the row
+	 * @param grid  the number of blocks
+	 * @return the block of each pixel
+	 */
+	private static int[] getBlocks(int width, int grid) {
+		int[] blocks = new int[width];
+		for (int i = 0, k = 0; i < grid; i++) {
+			for (int end = (i + 1) * width / grid; k < end; k++) {
+				blocks[k] = i;
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * Get the red value of a packed color.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the red value of the color
+	 */
+	public static int getRed(int rgb) {
+		return (rgb >> 16) & 0xFF;
+	}
+
+	/**
+	 * Get the green value of a packed color.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the green value of the color
+	 */
+	public static int getGreen(int rgb) {
+		return (rgb >> 8) & 0xFF;
+	}
+
+	/**
+	 * Get the blue value of a packed color.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the blue value of the color
+	 */
+	public static int getBlue(int rgb) {
+		return rgb & 0xFF;
+	}
+
+	/**
+	 * Pack the averages of the given totals into an int as 0xRRGGBB.
+	 * 
+	 * @param rTotal the total of the red values
+	 * @param gTotal the total of the green values
+	 * @param bTotal the total of the blue values
+	 * @param count  the number of pixels
+	 * @return the average color packed into an int
+	 */
+	private static int pack(long rTotal, long gTotal, long bTotal, int count) {
+		return ((int) (rTotal / count) << 16) | ((int) (gTotal / count) << 8)
+				| (int) (bTotal / count);
+	}
+
+	/**
+	 * Get the average color of a region of an image with one packed int per pixel.
+	 * 
+	 * @param raster the raster of the image
+	 * @param x      the x coordinate of the upper-left corner of the region
+	 * @param y      the y coordinate of the upper-left corner of the region
+	 * @param width  the width of the region
+	 * @param height the height of the region
+	 * @return the average color packed into an int as 0xRRGGBB
+	 */
+	private static int averageIntRGB(WritableRaster raster, int x, int y, int width,
+			int height) {
+		DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+		SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster
+				.getSampleModel();
+		int[] data = buffer.getData();
+		int stride = model.getScanlineStride();
+		int start = buffer.getOffset() + (y - raster.getSampleModelTranslateY()) * stride
+				+ (x - raster.getSampleModelTranslateX());
+		long rTotal = 0;
+		long gTotal = 0;
+		long bTotal = 0;
+		for (int row = 0; row < height; row++) {
+			int index = start + row * stride;
+			int end = index + width;
+			for (; index < end; index++) {
+				int rgb = data[index];
+				rTotal += (rgb >> 16) & 0xFF;
+				gTotal += (rgb >> 8) & 0xFF;
+				bTotal += rgb & 0xFF;
+			}
+		}
+		return pack(rTotal, gTotal, bTotal, width * height);
+	}
+
+	/**
+	 * Get the average color of a region of an image with three interleaved bytes per pixel.
+	 * 
+	 * @param raster the raster of the image
+	 * @param x      the x coordinate of the upper-left corner of the region
+	 * @param y      the y coordinate of the upper-left corner of the region
+	 * @param width  the width of the region
+	 * @param height the height of the region
+	 * @return the average color packed into an int as 0xRRGGBB
+	 */
+	private static int average3ByteBGR(WritableRaster raster, int x, int y, int width,
+			int height) {
+		DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+		ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+		byte[] data = buffer.getData();
+		int stride = model.getScanlineStride();
+		int pixelStride = model.getPixelStride();
+		int[] bandOffsets = model.getBandOffsets();
+		int rOffset = bandOffsets[0];
+		int gOffset = bandOffsets[1];
+		int bOffset = bandOffsets[2];
+		int start = buffer.getOffset() + (y - raster.getSampleModelTranslateY()) * stride
+				+ (x - raster.getSampleModelTranslateX()) * pixelStride;
+		long rTotal = 0;
+		long gTotal = 0;
+		long bTotal = 0;
+		for (int row = 0; row < height; row++) {
+			int index = start + row * stride;
+			int end = index + width * pixelStride;
+			for (; index < end; index += pixelStride) {
+				rTotal += data[index + rOffset] & 0xFF;
+				gTotal += data[index + gOffset] & 0xFF;
+				bTotal += data[index + bOffset] & 0xFF;
+			}
+		}
+		return pack(rTotal, gTotal, bTotal, width * height);
+	}
+
+	/**
+	 * Get the average color of a region of a grayscale image. Gray values are converted to sRGB
+	 * using a lookup table built from the image's ColorModel, so the result matches getRGB().
+	 * 
+	 * @param image  the image to read
+	 * @param x      the x coordinate of the upper-left corner of the region
+	 * @param y      the y coordinate of the upper-left corner of the region
+	 * @param width  the width of the region
+	 * @param height the height of the region
+	 * @return the average color packed into an int as 0xRRGGBB
+	 */
+	private static int averageByteGray(BufferedImage image, int x, int y, int width,
+			int height) {
+		ColorModel colorModel = image.getColorModel();
+		int[] lookup = new int[256];
+		byte[] pixel = new byte[1];
+		for (int i = 0; i < lookup.length; i++) {
+			pixel[0] = (byte) i;
+			lookup[i] = colorModel.getRGB(pixel);
+		}
+		WritableRaster raster = image.getRaster();
+		DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+		ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+		byte[] data = buffer.getData();
+		int stride = model.getScanlineStride();
+		int pixelStride = model.getPixelStride();
+		int start = buffer.getOffset() + model.getBandOffsets()[0]
+				+ (y - raster.getSampleModelTranslateY()) * stride
+				+ (x - raster.getSampleModelTranslateX()) * pixelStride;
+		long rTotal = 0;
+		long gTotal = 0;
+		long bTotal = 0;
+		for (int row = 0; row < height; row++) {
+			int index = start + row * stride;
+			int end = index + width * pixelStride;
+			for (; index < end; index += pixelStride) {
+				int rgb = lookup[data[index] & 0xFF];
+				rTotal += (rgb >> 16) & 0xFF;
+				gTotal += (rgb >> 8) & 0xFF;
+				bTotal += rgb & 0xFF;
+			}
+		}
+		return pack(rTotal, gTotal, bTotal, width * height);
+	}
+
+	/**
+	 * Get the average color of a region of an image of any type using getRGB(), reading one row
+	 * at a time into a reused buffer.
+	 * 
+	 * @param image  the image to read
+	 * @param x      the x coordinate of the upper-left corner of the region
+	 * @param y      the y coordinate of the upper-left corner of the region
+	 * @param width  the width of the region
+	 * @param height the height of the region
+	 * @return the average color packed into an int as 0xRRGGBB
+	 */
+	private static int averageRGB(BufferedImage image, int x, int y, int width, int height) {
+		int[] row = new int[width];
+		long rTotal = 0;
+		long gTotal = 0;
+		long bTotal = 0;
+		for (int i = 0; i < height; i++) {
+			image.getRGB(x, y + i, width, 1, row, 0, width);
+			for (int rgb : row) {
+				rTotal += (rgb >> 16) & 0xFF;
+				gTotal += (rgb >> 8) & 0xFF;
+				bTotal += rgb & 0xFF;
+			}
+		}
+		return pack(rTotal, gTotal, bTotal, width * height);
+	}
+}
@@ -0,0 +1,115 @@
+package image;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of the cells of a photomosaic, each stored as the position of its upper-left
+ * corner and its level, where cells of level k are 2^k times smaller in each dimension than the
+ * cells of level 0. Cells are added by split(), which divides a cell into quadrants for as long as
+ * its color variance is above a threshold, so flat regions are covered by a few large cells and
+ * detailed regions by many small ones.
+ */
+final class CellList {
+	private int[] xs, ys, levels;
+	private int size = 0;
+
+	/**
+	 * Constructs an empty CellList.
+	 * 
+	 * @param capacity the initial capacity
+	 */
+	public CellList(int capacity) {
+		capacity = Math.max(1, capacity);
+		xs = new int[capacity];
+		ys = new int[capacity];
+		levels = new int[capacity];
+	}
+
+	/**
+	 * Add the given cell to the end of this list.
+	 * 
+	 * @param x     the x coordinate of the upper-left corner of the cell
+	 * @param y     the y coordinate of the upper-left corner of the cell
+	 * @param level the level of the cell
+	 */
+	public void add(int x, int y, int level) {
+		if (size == xs.length) {
+			xs = Arrays.copyOf(xs, 2 * size);
+			ys = Arrays.copyOf(ys, 2 * size);
+			levels = Arrays.copyOf(levels, 2 * size);
+		}
+		xs[size] = x;
+		ys[size] = y;
+		levels[size++] = level;
+	}
+
+	/**
+	 * Add the given cell to this list, or, if it is not at the last level and its color variance
+	 * is above splitVariance, split it into four quadrants at the next level and add each of them
+	 * in the same way. The width and height of the cell must be even unless it is at the last
+	 * level.
+	 * 
+	 * @param sums          the SummedAreaTable of the image, with variances if levelCount is
+	 *                      greater than 1
+	 * @param x             the x coordinate of the upper-left corner of the cell
+	 * @param y             the y coordinate of the upper-left corner of the cell
+	 * @param width         the width of the cell
+	 * @param height        the height of the cell
+	 * @param level         the level of the cell
+	 * @param levelCount    the number of levels
+	 * @param splitVariance the color variance above which cells are split
+	 */
+	public void split(SummedAreaTable sums, int x, int y, int width, int height, int level,
+			int levelCount, double splitVariance) {
+		if ((level + 1 >= levelCount) || !(sums.getVariance(x, y, width, height) > splitVariance)) {
+			add(x, y, level);
+			return;
+		}
+		int halfWidth = width / 2, halfHeight = height / 2;
+		for (int dy = 0; dy < height; dy += halfHeight) {
+			for (int dx = 0; dx < width; dx += halfWidth) {
+				split(sums, x + dx, y + dy, halfWidth, halfHeight, level + 1, levelCount,
+						splitVariance);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of cells in this list.
+	 * 
+	 * @return the number of cells
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the x coordinate of the upper-left corner of the cell at the given index.
+	 * 
+	 * @param index the index of the cell
+	 * @return the x coordinate of the cell
+	 */
+	public int getX(int index) {
+		return xs[index];
+	}
+
+	/**
+	 * Get the y coordinate of the upper-left corner of the cell at the given index.
+	 * 
+	 * @param index the index of the cell
+	 * @return the y coordinate of the cell
+	 */
+	public int getY(int index) {
+		return ys[index];
+	}
+
+	/**
+	 * Get the level of the cell at the given index.
+	 * 
+	 * @param index the index of the cell
+	 * @return the level of the cell
+	 */
+	public int getLevel(int index) {
+		return levels[index];
+	}
+}
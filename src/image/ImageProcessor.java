@@ -1,30 +1,273 @@
 package image;
 
-import java.awt.AlphaComposite;
-import java.awt.Color;
-import java.awt.Desktop;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.function.IntConsumer;
 
 import javax.imageio.ImageIO;
-import javax.swing.SwingUtilities;
 
 import cache.CacheManager;
+import octree.ColorLookupTable;
+import octree.CompactOctree;
 import octree.Octree;
-import ui.ProgressWindow;
 
 /**
- * Class used to process images and create the photomosaic.
+ * Class used to process images and create the photomosaic. This class does not depend on Swing, so
+ * it can be used in headless mode; progress is reported to an optional listener instead.
  */
 public class ImageProcessor {
+	public static final String DEFAULT_OUTPUT = "." + File.separator + "temp.jpg";
+	public static final int DEFAULT_MIN_TILE_SIZE = 8;
+	public static final int MAX_SIGNATURE_GRID = 4;
+	public static final int MAX_SIGNATURE_TILES = 10_000;
+	private static final String DEFAULT_FORMAT = "jpg";
 	private int fileCount = 0, fileTotal = 1;
 	private static final int COUNT_TICK = 50;
-	private static ProgressWindow progress = ProgressWindow.getInstance();
+	private final IntConsumer progressListener;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private Octree.DistFunction distFunction = Octree.DistFunction.EUCLIDEAN;
+	private double epsilon = 0;
+	private boolean lookupTableEnabled = false;
+	private double splitVariance = Double.POSITIVE_INFINITY;
+	private int minTileSize = DEFAULT_MIN_TILE_SIZE;
+	private int signatureGrid = 1;
+	private long matchCacheHits = 0, matchCacheMisses = 0;
+	private int cellCount = 0;
+	private boolean signatureLimited = false;
+
+	/**
+	 * Constructs an ImageProcessor which does not report progress.
+	 */
+	public ImageProcessor() {
+		this(value -> {
+		});
+	}
+
+	/**
+	 * Constructs an ImageProcessor which reports progress to the given listener. The listener is
+	 * called from worker threads with a percentage between 0 and 100.
+	 * 
+	 * @param progressListener the listener to notify of progress
+	 */
+	public ImageProcessor(IntConsumer progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Set the number of threads used to process images.
+	 * 
+	 * @param threadCount the number of threads to use
+	 * @throws IllegalArgumentException if threadCount is less than 1
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("The thread count must be at least 1.");
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Set the function used to calculate the distance between the average colors of the image
+	 * and the image tiles. The built-in DistFunctions are faster than custom ones.
+	 * 
+	 * @param distFunction the function used to calculate color distances
+	 * @throws NullPointerException if distFunction is null
+	 */
+	public void setDistFunction(Octree.DistFunction distFunction) {
+		this.distFunction = Objects.requireNonNull(distFunction);
+	}
+
+	/**
+	 * Set how far the image tile matched to each cell may be from the nearest one. Each cell is
+	 * matched to an image tile whose color distance is at most (1 + epsilon) times the distance of
+	 * the nearest image tile, so an epsilon of 0 matches the nearest image tile exactly, and larger
+	 * values trade accuracy for faster matching.
+	 * 
+	 * @param epsilon the maximum relative error of the color distances
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public void setEpsilon(double epsilon) {
+		if (!(epsilon >= 0))
+			throw new IllegalArgumentException("The epsilon must be at least 0.");
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * Set whether cells are matched to image tiles with a ColorLookupTable instead of searching
+	 * the tree. Building the table takes a fraction of a second, after which every cell is matched
+	 * in nearly constant time, so it is faster for large images with many cells. Cells are always
+	 * matched to the nearest image tile when the table is used, so epsilon is ignored.
+	 * 
+	 * @param lookupTableEnabled true to use a ColorLookupTable and false to search the tree
+	 */
+	public void setLookupTableEnabled(boolean lookupTableEnabled) {
+		this.lookupTableEnabled = lookupTableEnabled;
+	}
+
+	/**
+	 * Set the color variance above which cells are split, for adaptive tiling. Each cell whose
+	 * color variance, the mean squared distance of its pixels from its average color, is above
+	 * splitVariance is split into four cells of half the width and height, matched to image tiles
+	 * of that size, and these are split in the same way down to the minimum tile size. Flat
+	 * regions are then covered by few large image tiles, and detailed regions by many small ones.
+	 * The default, positive infinity, never splits cells, so every image tile has the same size.
+	 * 
+	 * @param splitVariance the color variance above which cells are split
+	 * @throws IllegalArgumentException if splitVariance is negative or NaN
+	 */
+	public void setSplitVariance(double splitVariance) {
+		if (!(splitVariance >= 0))
+			throw new IllegalArgumentException("The split variance must be at least 0.");
+		this.splitVariance = splitVariance;
+	}
+
+	/**
+	 * Set the minimum width and height of the image tiles of adaptive tiling. Cells are only split
+	 * while their width and height are even and their halves are at least minTileSize, so the
+	 * image tiles are built at the tile size and each of these halved sizes, all from a single
+	 * read of each image. This has no effect unless a split variance is set.
+	 * 
+	 * @param minTileSize the minimum width and height of the image tiles
+	 * @throws IllegalArgumentException if minTileSize is less than 1
+	 */
+	public void setMinTileSize(int minTileSize) {
+		if (minTileSize < 1)
+			throw new IllegalArgumentException("The minimum tile size must be at least 1.");
+		this.minTileSize = minTileSize;
+	}
+
+	/**
+	 * Set the number of columns and rows of blocks of the signatures which cells are matched by.
+	 * With a grid of 1, the default, cells are matched to the image tiles with the nearest average
+	 * colors. With a larger grid, the average colors of grid * grid blocks of each cell are
+	 * matched to those of the image tiles, so image tiles are chosen for the layout of their
+	 * colors and not only their average. The signatures, of 3 * grid * grid dimensions, are
+	 * searched in a KdTree with the squared Euclidean distance and the epsilon, so the
+	 * DistFunction and the ColorLookupTable are not used. Tiles smaller than the grid use a grid
+	 * of their size.
+	 * 
+	 * Searching signatures gets much slower than searching average colors as the library grows,
+	 * since most of the tree is close enough to each signature that it must be searched, so the
+	 * grid is only used for tile sizes with at most MAX_SIGNATURE_TILES image tiles which could be
+	 * read, and cells of sizes with more image tiles are matched by average colors, which
+	 * isSignatureLimited() reports. A positive epsilon makes the search of signatures faster.
+	 * 
+	 * @param signatureGrid the number of columns and rows of blocks of the signatures
+	 * @throws IllegalArgumentException if signatureGrid is not between 1 and MAX_SIGNATURE_GRID
+	 */
+	public void setSignatureGrid(int signatureGrid) {
+		if ((signatureGrid < 1) || (signatureGrid > MAX_SIGNATURE_GRID))
+			throw new IllegalArgumentException(
+					"The signature grid must be between 1 and " + MAX_SIGNATURE_GRID + ".");
+		this.signatureGrid = signatureGrid;
+	}
+
+	/**
+	 * Get the number of cells of the last photomosaic, which is the number of image tiles drawn.
+	 * 
+	 * @return the number of cells
+	 */
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Get the number of cells a photomosaic of the given image would have with the current split
+	 * variance and minimum tile size. Only the image is read, so this can be used to estimate the
+	 * rendering time before creating the photomosaic.
+	 * 
+	 * @param image      the main image
+	 * @param tileWidth  the width of the largest image tiles
+	 * @param tileHeight the height of the largest image tiles
+	 * @return the number of cells
+	 */
+	public int countCells(BufferedImage image, int tileWidth, int tileHeight) {
+		int width = image.getWidth() - image.getWidth() % tileWidth;
+		int height = image.getHeight() - image.getHeight() % tileHeight;
+		int levelCount = getLevelCount(tileWidth, tileHeight);
+		if (levelCount == 1)
+			return (width / tileWidth) * (height / tileHeight);
+		SummedAreaTable sums = new SummedAreaTable(image, true);
+		CellList cells = new CellList((width / tileWidth) * (height / tileHeight));
+		for (int x = 0; x < width; x += tileWidth) {
+			for (int y = 0; y < height; y += tileHeight) {
+				cells.split(sums, x, y, tileWidth, tileHeight, 0, levelCount, splitVariance);
+			}
+		}
+		return cells.size();
+	}
+
+	/**
+	 * This method returns the number of columns and rows of blocks of the signatures of image
+	 * tiles of the given size, which is the signature grid unless the tiles are smaller.
+	 * 
+	 * @param tileWidth  the width of the image tiles
+	 * @param tileHeight the height of the image tiles
+	 * @return the number of columns and rows of blocks
+	 */
+	private int getSignatureGrid(int tileWidth, int tileHeight) {
+		return Math.min(signatureGrid, Math.min(tileWidth, tileHeight));
+	}
+
+	/**
+	 * This method returns the number of tile sizes used for the given largest tile size. Each
+	 * size after the first is half the previous one, which must have an even width and height,
+	 * and no size is smaller than minTileSize. Only one size is used if cells are never split.
+	 * 
+	 * @param tileWidth  the width of the largest image tiles
+	 * @param tileHeight the height of the largest image tiles
+	 * @return the number of tile sizes
+	 */
+	private int getLevelCount(int tileWidth, int tileHeight) {
+		if (splitVariance == Double.POSITIVE_INFINITY)
+			return 1;
+		int levelCount = 1;
+		int width = tileWidth, height = tileHeight;
+		while ((width % 2 == 0) && (height % 2 == 0) && (width / 2 >= minTileSize)
+				&& (height / 2 >= minTileSize)) {
+			width /= 2;
+			height /= 2;
+			levelCount++;
+		}
+		return levelCount;
+	}
+
+	/**
+	 * Get the number of cells of the last photomosaic whose image tiles were found in the cache of
+	 * tiles already matched to the same color, instead of searching for them.
+	 * 
+	 * @return the number of match cache hits
+	 */
+	public long getMatchCacheHits() {
+		return matchCacheHits;
+	}
+
+	/**
+	 * Get the number of cells of the last photomosaic whose image tiles were not in the cache of
+	 * matched tiles, so they had to be searched for. This is 0 if a ColorLookupTable or a positive
+	 * epsilon was used, since their matches are not cached.
+	 * 
+	 * @return the number of match cache misses
+	 */
+	public long getMatchCacheMisses() {
+		return matchCacheMisses;
+	}
+
+	/**
+	 * Check whether the cells of some tile size of the last photomosaic were matched by their
+	 * average colors instead of their signatures, because more than MAX_SIGNATURE_TILES image
+	 * tiles of that size could be read.
+	 * 
+	 * @return true if signatures were set but not used for some tile size and false otherwise
+	 */
+	public boolean isSignatureLimited() {
+		return signatureLimited;
+	}
 
 	/**
 	 * This method increments fileCount by 1 and then checks whether the value of fileCount is a
@@ -50,81 +293,113 @@ public class ImageProcessor {
 	 * @param directory           the path to the directory containing the images to use for the
 	 *                            image tiles
 	 * @param cacheEnabled        true if the cache should be used and false otherwise
+	 * @param outputPath          the path of the file to write the photomosaic to; the format is
+	 *                            determined by the file extension, defaulting to JPEG
 	 * @return true if successful and false if unsuccessful
 	 */
 	public boolean createPhotomosaic(int tileWidth, int tileHeight, int transparencyPercent,
-			String imagePath, String directory, boolean cacheEnabled) {
+			String imagePath, String directory, boolean cacheEnabled, String outputPath) {
 		fileCount = 0;
-		Octree<ImageTile> tree = new Octree<>(0, 255);
+		matchCacheHits = matchCacheMisses = 0;
+		cellCount = 0;
+		signatureLimited = false;
+		int levelCount = getLevelCount(tileWidth, tileHeight);
 		CacheManager manager = CacheManager.getInstance();
 		manager.setCacheEnabled(cacheEnabled);
 		ExecutorService service = null;
+		ForkJoinPool renderPool = null;
 		try {
 			// construct image tiles
 			File imageFolder = new File(directory);
-			manager.setDirectory(directory);
 
 			// read image
-			service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			service = Executors.newFixedThreadPool(threadCount);
 			Future<BufferedImage> imageFuture = service
 					.submit(() -> ImageIO.read(new File(imagePath)));
 
-			// iterate over all images in the source folder
-			List<Callable<ImageTile>> tasks = new ArrayList<>();
+			// iterate over all images in the source folder, in order of their names so that the
+			// tiles are always added to the trees in the same order
+			List<Callable<ImageTile[]>> tasks = new ArrayList<>();
 			String[] fileList = imageFolder.list();
 			if (fileList == null)
 				fileList = new String[0];
+			Arrays.sort(fileList);
 			fileTotal = fileList.length + 1;
 			for (String file : fileList) {
 				tasks.add(() -> {
 					try {
-						// check for a matching cached image
-						BufferedImage tileImage = manager.getCached(file, tileWidth, tileHeight);
-						boolean isCached = (tileImage != null);
-
-						// if there is no matching cached image, read the image file from the source
-						// folder
-						if (!isCached) {
-							tileImage = ImageIO.read(new File(directory + File.separator + file));
-						}
+						File source = new File(imageFolder, file);
+						ImageTile[] tiles = new ImageTile[levelCount];
+						BufferedImage sourceImage = null;
+						CacheManager.FileState state = null;
+						for (int level = 0; level < levelCount; level++) {
+							// check for a matching cached image which is not older than the file
+							int width = tileWidth >> level, height = tileHeight >> level;
+							BufferedImage tileImage = manager.getCached(source, width, height);
+							boolean isCached = (tileImage != null);
 
-						// if an image has been read from either the cache or the source folder,
-						// create
-						// an image tile using that image, otherwise set the tile to null
-						ImageTile tile = null;
-						if (tileImage != null) {
-							tile = new ImageTile(tileImage, tileWidth, tileHeight, file, isCached);
+							// if there is no matching cached image, read the image file from the
+							// source folder, only once for all tile sizes, taking the state of
+							// the file to cache along with it before it is decoded
+							if (!isCached) {
+								if (sourceImage == null) {
+									state = manager.getFileState(source);
+									sourceImage = ImageTile.read(source, tileWidth, tileHeight);
+								}
+								tileImage = sourceImage;
+							}
+
+							// if an image has been read from either the cache or the source
+							// folder, create an image tile of this size using that image,
+							// otherwise stop with the tiles of the larger sizes
+							if (tileImage == null)
+								break;
+							tiles[level] = new ImageTile(tileImage, width, height, source,
+									isCached, getSignatureGrid(width, height));
+
+							// cache the image tile if it was not already cached
+							if (!isCached)
+								manager.cache(source, tiles[level], width, height, state);
 						}
 
 						// update progress
 						if (incrementCount()) {
-							SwingUtilities.invokeLater(
-									() -> progress.update((100 * fileCount) / fileTotal));
+							progressListener.accept((100 * fileCount) / fileTotal);
 						}
 
-						// return the tile
-						return tile;
+						// return the tiles
+						return tiles;
 					} catch (Exception e) {
 						return null;
 					}
 				});
 			}
-			List<Future<ImageTile>> results = new ArrayList<>();
-			for (Callable<ImageTile> task : tasks) {
+			List<Future<ImageTile[]>> results = new ArrayList<>();
+			for (Callable<ImageTile[]> task : tasks) {
 				results.add(service.submit(task));
 			}
-			for (Future<ImageTile> future : results) {
+
+			// collect the tiles of each size in the order in which the files were submitted, so
+			// the trees do not depend on the order in which the workers finish
+			List<List<ImageTile>> levelTiles = new ArrayList<>();
+			for (int level = 0; level < levelCount; level++) {
+				levelTiles.add(new ArrayList<>(results.size()));
+			}
+			for (Future<ImageTile[]> future : results) {
 				try {
-					ImageTile tile = future.get(10L, TimeUnit.SECONDS);
-					if (tile != null)
-						tree.put(tile.getRed(), tile.getGreen(), tile.getBlue(), tile);
+					// a worker returns null if its file could not be read, so skip that file
+					ImageTile[] tiles = future.get(10L, TimeUnit.SECONDS);
+					if (tiles == null)
+						continue;
+					for (int level = 0; level < levelCount; level++) {
+						if (tiles[level] != null)
+							levelTiles.get(level).add(tiles[level]);
+					}
 				} catch (ExecutionException | InterruptedException | TimeoutException e) {
 					// skip this tile;
 				}
 			}
-			if (tree.size() == 0) {
-				return false;
-			}
+
 			// unpack the Future with the main image
 			BufferedImage image;
 			try {
@@ -133,12 +408,22 @@ public class ImageProcessor {
 				// if an error occurred with the main image, read it again
 				image = ImageIO.read(new File(imagePath));
 			}
+
+			// stop any workers which timed out, so none of them is still writing to the cache
+			// once its manifest is cleared
+			service.shutdownNow();
+			service.awaitTermination(10L, TimeUnit.SECONDS);
+			for (List<ImageTile> tiles : levelTiles) {
+				if (tiles.isEmpty()) {
+					return false;
+				}
+			}
 			if (image == null) {
 				return false;
 			}
 
-			// clear CacheManager's filenames tree to save heap space
-			manager.clearFilenames();
+			// clear CacheManager's manifest to save heap space
+			manager.clearManifest(imageFolder);
 
 			fileCount = fileTotal;
 
@@ -150,42 +435,99 @@ public class ImageProcessor {
 			image = image.getSubimage(0, 0, width, height);
 
 			// for each tile of the image, update the tile to the image tile closest to its
-			// average pixel color
-			Graphics2D g = image.createGraphics();
-			g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
-					transparencyPercent / 100.0f));
-			int[] rgbColors = new int[tileWidth * tileHeight];
-			Color[] colors = new Color[tileWidth * tileHeight];
-			for (int x = 0; x < width; x += tileWidth) {
-				for (int y = 0; y < height; y += tileHeight) {
-					image.getRGB(x, y, tileWidth, tileHeight, rgbColors, 0, tileWidth);
-					int rTotal = 0;
-					int gTotal = 0;
-					int bTotal = 0;
-					for (int i = 0; i < rgbColors.length; i++) {
-						colors[i] = new Color(rgbColors[i]);
-						rTotal += colors[i].getRed();
-						gTotal += colors[i].getGreen();
-						bTotal += colors[i].getBlue();
-					}
-					Color avgColor = new Color(rTotal / colors.length, gTotal / colors.length,
-							bTotal / colors.length);
-					ImageTile nearby = tree.getNearestEntry(avgColor.getRed(), avgColor.getGreen(),
-							avgColor.getBlue()).getValue();
-					g.drawImage(nearby.getImage(), x, y, null);
+			// average pixel color, rendering blocks of tiles in parallel and searching a compact,
+			// immutable copy of the tree of each tile size or a lookup table built from it; the
+			// trees are built in one pass, keeping every tile even if several have the same
+			// average color, and the average colors and variances come from a summed-area table
+			// built before any tile is drawn
+			renderPool = new ForkJoinPool(threadCount);
+			BufferedImage source = image;
+			SummedAreaTable sums = renderPool.invoke(
+					ForkJoinTask.adapt(() -> new SummedAreaTable(source, levelCount > 1)));
+			TileLevel[] levels = new TileLevel[levelCount];
+			for (int level = 0; level < levelCount; level++) {
+				int levelWidth = tileWidth >> level, levelHeight = tileHeight >> level;
+				List<ImageTile> tiles = levelTiles.get(level);
+				CompactOctree<ImageTile> compact = renderPool
+						.invoke(ForkJoinTask.adapt(() -> buildTree(tiles).freeze()));
+				int grid = getSignatureGrid(levelWidth, levelHeight);
+				if ((grid > 1) && (tiles.size() > MAX_SIGNATURE_TILES)) {
+					// too many image tiles to search their signatures quickly, so match the
+					// average colors of this size's cells instead
+					grid = 1;
+					signatureLimited = true;
+				}
+				if (grid > 1) {
+					levels[level] = new TileLevel(levelWidth, levelHeight, compact.values(), grid);
+					continue;
 				}
+				ColorLookupTable<ImageTile> table = lookupTableEnabled
+						? renderPool.invoke(ForkJoinTask.adapt(compact::createLookupTable))
+						: null;
+				// approximate matches depend on the batch they are found in, so only exact
+				// matches are cached
+				MatchCache cache = (lookupTableEnabled || (epsilon > 0)) ? null
+						: new MatchCache((width / levelWidth) * (height / levelHeight));
+				levels[level] = new TileLevel(levelWidth, levelHeight, compact, table, cache);
+			}
+			cellCount = renderPool.invoke(new RenderTask(image, sums, levels, splitVariance,
+					transparencyPercent / 100.0f, epsilon));
+			for (TileLevel level : levels) {
+				matchCacheHits += level.getMatchCacheHits();
+				matchCacheMisses += level.getMatchCacheMisses();
 			}
 
-			File output = new File("." + File.separator + "temp.jpg");
-			ImageIO.write(image, "jpg", output);
-			Desktop.getDesktop().open(output);
-		} catch (IOException | NullPointerException e) {
+			File output = new File(outputPath);
+			if (!ImageIO.write(image, getFormat(output), output)) {
+				return false;
+			}
+		} catch (IOException | InterruptedException e) {
 			return false;
 		} finally {
 			if (service != null) {
 				service.shutdownNow();
 			}
+			if (renderPool != null) {
+				renderPool.shutdownNow();
+			}
 		}
 		return true;
 	}
+
+	/**
+	 * This method builds a tree of the given image tiles by their average colors in one pass,
+	 * keeping every tile even if several have the same average color. Tiles with the same average
+	 * color keep their order in the list.
+	 * 
+	 * @param tiles the image tiles
+	 * @return the tree
+	 */
+	private Octree<ImageTile> buildTree(List<ImageTile> tiles) {
+		int tileCount = tiles.size();
+		double[] reds = new double[tileCount];
+		double[] greens = new double[tileCount];
+		double[] blues = new double[tileCount];
+		for (int i = 0; i < tileCount; i++) {
+			ImageTile tile = tiles.get(i);
+			reds[i] = tile.getRed();
+			greens[i] = tile.getGreen();
+			blues[i] = tile.getBlue();
+		}
+		Octree<ImageTile> tree = new Octree<>(0, 255, distFunction);
+		tree.bulkLoad(reds, greens, blues, tiles.toArray(new ImageTile[tileCount]));
+		return tree;
+	}
+
+	/**
+	 * Get the image format to use for the given output file based on its extension. If no writer is
+	 * available for the extension, JPEG is used.
+	 * 
+	 * @param output the output file
+	 * @return the informal name of the format to write
+	 */
+	private static String getFormat(File output) {
+		String name = output.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+		return ImageIO.getImageWritersBySuffix(extension).hasNext() ? extension : DEFAULT_FORMAT;
+	}
 }
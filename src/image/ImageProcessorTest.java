@@ -0,0 +1,171 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+class ImageProcessorTest {
+	static Random random = new Random();
+	static final int TILE_SIZE = 4;
+	static final int THREADS = 16;
+
+	/**
+	 * Tests that rendering the same image several times with many threads gives identical pixels,
+	 * with exact and approximate searches. The image tiles have colors on a coarse grid and the
+	 * cells have colors halfway between them, so many cells are equally near to several image
+	 * tiles with different colors.
+	 */
+	@Test
+	void testDeterministicRender() throws IOException {
+		File folder = Files.createTempDirectory("render").toFile();
+		File library = new File(folder, "library");
+		assertTrue(library.mkdir());
+		try {
+			for (int red = 0; red < 256; red += 64) {
+				for (int green = 0; green < 256; green += 64) {
+					for (int blue = 0; blue < 256; blue += 64) {
+						int rgb = (red << 16) | (green << 8) | blue;
+						writeImage(new File(library, String.format("%06x.png", rgb)), rgb,
+								TILE_SIZE);
+					}
+				}
+			}
+			BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < image.getHeight(); y++) {
+				for (int x = 0; x < image.getWidth(); x++) {
+					image.setRGB(x, y, (32 * random.nextInt(8) << 16)
+							| (32 * random.nextInt(8) << 8) | (32 * random.nextInt(8)));
+				}
+			}
+			File main = new File(folder, "main.png");
+			assertTrue(ImageIO.write(image, "png", main));
+
+			for (double epsilon : new double[] { 0, 1 }) {
+				BufferedImage expected = render(main, library, new File(folder, "a.png"), epsilon);
+				for (int i = 0; i < 3; i++) {
+					BufferedImage actual = render(main, library, new File(folder, "b.png"),
+							epsilon);
+					assertArrayEquals(getPixels(expected), getPixels(actual));
+				}
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	/**
+	 * Tests that a library file which cannot be decoded is skipped instead of failing the whole
+	 * photomosaic, and that the other image tiles are still used.
+	 */
+	@Test
+	void testUnreadableFile() throws IOException {
+		File folder = Files.createTempDirectory("render").toFile();
+		File library = new File(folder, "library");
+		assertTrue(library.mkdir());
+		try {
+			writeImage(new File(library, "a.png"), 0xFF0000, TILE_SIZE);
+			writeImage(new File(library, "c.png"), 0x0000FF, TILE_SIZE);
+
+			// a JPEG whose header is followed by garbage, which the decoder throws on
+			BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			assertTrue(ImageIO.write(image, "jpg", bytes));
+			byte[] data = bytes.toByteArray();
+			Arrays.fill(data, 20, data.length, (byte) 0xFF);
+			Files.write(new File(library, "b.jpg").toPath(), data);
+			assertThrows(IOException.class,
+					() -> ImageTile.read(new File(library, "b.jpg"), TILE_SIZE, TILE_SIZE));
+
+			// the left half is red and the right half is blue
+			BufferedImage main = new BufferedImage(8 * TILE_SIZE, 8 * TILE_SIZE,
+					BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < main.getHeight(); y++) {
+				for (int x = 0; x < main.getWidth(); x++) {
+					main.setRGB(x, y, (x < main.getWidth() / 2) ? 0xF00000 : 0x0000F0);
+				}
+			}
+			File mainFile = new File(folder, "main.png");
+			assertTrue(ImageIO.write(main, "png", mainFile));
+			BufferedImage result = render(mainFile, library, new File(folder, "out.png"), 0);
+			assertEquals(0xFF0000, result.getRGB(0, 0) & 0xFFFFFF);
+			assertEquals(0x0000FF, result.getRGB(result.getWidth() - 1, 0) & 0xFFFFFF);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	/**
+	 * This method deletes a folder and the files and folders it contains.
+	 * 
+	 * @param folder the folder to delete
+	 */
+	private static void delete(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				delete(file);
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * This method renders a photomosaic of the given image with THREADS threads and the cache
+	 * disabled, and returns it.
+	 * 
+	 * @param main    the main image
+	 * @param library the folder of the images of the image tiles
+	 * @param output  the file to write the photomosaic to
+	 * @param epsilon the maximum relative error of the color distances
+	 * @return the photomosaic
+	 * @throws IOException if the photomosaic cannot be read
+	 */
+	private static BufferedImage render(File main, File library, File output, double epsilon)
+			throws IOException {
+		ImageProcessor processor = new ImageProcessor();
+		processor.setThreadCount(THREADS);
+		processor.setEpsilon(epsilon);
+		assertTrue(processor.createPhotomosaic(TILE_SIZE, TILE_SIZE, 100, main.getPath(),
+				library.getPath(), false, output.getPath()));
+		return ImageIO.read(output);
+	}
+
+	/**
+	 * This method writes a square image of a single color to the given file.
+	 * 
+	 * @param file the file to write
+	 * @param rgb  the color of the image packed into an int as 0xRRGGBB
+	 * @param size the width and height of the image
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void writeImage(File file, int rgb, int size) throws IOException {
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+		assertTrue(ImageIO.write(image, "png", file));
+	}
+
+	/**
+	 * This method returns the pixels of an image packed into ints as 0xAARRGGBB.
+	 * 
+	 * @param image the image
+	 * @return the pixels of the image, row by row
+	 */
+	private static int[] getPixels(BufferedImage image) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+				image.getWidth());
+	}
+}
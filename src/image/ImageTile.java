@@ -2,6 +2,14 @@ package image;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import cache.CacheManager;
 
@@ -12,73 +20,130 @@ import cache.CacheManager;
 public final class ImageTile {
 	private final BufferedImage image;
 	private final Color avgColor;
+	private final int signatureGrid;
+	private final int[] signature;
 
 	/**
-	 * Constructs an ImageTile.
+	 * Constructs an ImageTile whose signature is its average color.
 	 * 
 	 * @param img      the image to use
 	 * @param width    the width of the tile
 	 * @param height   the height of the tile
-	 * @param filename the original filename of the image
+	 * @param file     the original image file
 	 * @param isCached true if the image was loaded from the cache
 	 */
-	public ImageTile(BufferedImage img, int width, int height, String filename, boolean isCached) {
+	public ImageTile(BufferedImage img, int width, int height, File file, boolean isCached) {
+		this(img, width, height, file, isCached, 1);
+	}
+
+	/**
+	 * Constructs an ImageTile whose signature is the average colors of a grid of blocks of the
+	 * tile, found in the same pass over the tile as its average color.
+	 * 
+	 * @param img           the image to use
+	 * @param width         the width of the tile
+	 * @param height        the height of the tile
+	 * @param file          the original image file
+	 * @param isCached      true if the image was loaded from the cache
+	 * @param signatureGrid the number of columns and rows of blocks of the signature
+	 * @throws IllegalArgumentException if signatureGrid is less than 1 or greater than width or
+	 *                                  height
+	 */
+	public ImageTile(BufferedImage img, int width, int height, File file, boolean isCached,
+			int signatureGrid) {
+		if ((signatureGrid < 1) || (signatureGrid > width) || (signatureGrid > height))
+			throw new IllegalArgumentException(
+					"The signature grid must be at least 1 and at most the width and height.");
+		this.signatureGrid = signatureGrid;
+		signature = new int[signatureGrid * signatureGrid];
 		if (isCached) {
 			image = img;
 		} else {
 			// crop image to be proportional to specified dimensions
-			int w = img.getWidth();
-			int h = img.getHeight();
-			double ratio = width / (double) height;
-			int x, y, scaledW, scaledH;
-			if ((h * ratio) > w) {
-				scaledW = w;
-				scaledH = (int) (w / ratio);
-				x = 0;
-				y = (h - scaledH) / 2;
-			} else {
-				scaledW = (int) (h * ratio);
-				scaledH = h;
-				x = (w - scaledW) / 2;
-				y = 0;
-			}
-			img = img.getSubimage(x, y, scaledW, scaledH);
+			Rectangle crop = getCrop(img.getWidth(), img.getHeight(), width, height);
+			img = img.getSubimage(crop.x, crop.y, crop.width, crop.height);
 
 			// scale image to specified size
 			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 			Graphics g = image.getGraphics();
-			g.drawImage(img, 0, 0, width, height, 0, 0, scaledW, scaledH, null);
+			g.drawImage(img, 0, 0, width, height, 0, 0, crop.width, crop.height, null);
 			g.dispose();
 		}
 
-		// determine average color
+		// determine signature, which is not cached, and average color
+		int rgb = (signatureGrid == 1) ? 0
+				: AverageColor.getSignature(image, 0, 0, width, height, signatureGrid, signature);
 		int[] cacheColor;
-		if (isCached && ((cacheColor = CacheManager.getInstance().getColor(filename, width,
+		if (isCached && ((cacheColor = CacheManager.getInstance().getColor(file, width,
 				height)) != null)) {
 			avgColor = new Color(cacheColor[0], cacheColor[1], cacheColor[2]);
 		} else {
-			int[] rgbColors = image.getRGB(0, 0, width, height, null, 0, width);
-			Color[] colors = new Color[width * height];
-			int rTotal = 0;
-			int gTotal = 0;
-			int bTotal = 0;
-			for (int i = 0; i < rgbColors.length; i++) {
-				colors[i] = new Color(rgbColors[i]);
-				rTotal += colors[i].getRed();
-				gTotal += colors[i].getGreen();
-				bTotal += colors[i].getBlue();
-			}
-			avgColor = new Color(rTotal / colors.length, gTotal / colors.length,
-					bTotal / colors.length);
+			if (signatureGrid == 1)
+				rgb = AverageColor.getAverageColor(image, 0, 0, width, height);
+			avgColor = new Color(rgb);
+		}
+		if (signatureGrid == 1)
+			signature[0] = avgColor.getRGB() & 0xFFFFFF;
+	}
+
+	/**
+	 * Get the largest region centered in an image of the given size which is proportional to the
+	 * specified tile dimensions.
+	 * 
+	 * @param w      the width of the image
+	 * @param h      the height of the image
+	 * @param width  the width of the tile
+	 * @param height the height of the tile
+	 * @return the region of the image to use for the tile
+	 */
+	private static Rectangle getCrop(int w, int h, int width, int height) {
+		double ratio = width / (double) height;
+		if ((h * ratio) > w) {
+			int scaledH = (int) (w / ratio);
+			return new Rectangle(0, (h - scaledH) / 2, w, scaledH);
+		} else {
+			int scaledW = (int) (h * ratio);
+			return new Rectangle((w - scaledW) / 2, 0, scaledW, h);
 		}
+	}
 
-		// cache image if not already cached
-		if (!isCached)
-			CacheManager.getInstance().cache(filename, this, width, height);
+	/**
+	 * Read an image file for use as a tile with the specified dimensions. Only the region which
+	 * the constructor would keep after cropping is decoded, and it is subsampled during decoding
+	 * so that the result is roughly two to four times the tile size rather than full resolution.
+	 * 
+	 * @param file   the image file to read
+	 * @param width  the width of the tile
+	 * @param height the height of the tile
+	 * @return the decoded image, or null if no reader is available for the file
+	 * @throws IOException if an error occurs during reading
+	 */
+	public static BufferedImage read(File file, int width, int height) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if (input == null)
+				return null;
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				Rectangle crop = getCrop(reader.getWidth(0), reader.getHeight(0), width, height);
+				int subsampling = Math.max(1,
+						Math.min(crop.width / (2 * width), crop.height / (2 * height)));
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(crop);
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
 	}
 
 	/**
-	 * Get a copy of this tile's image.
+	 * Get a copy of this tile's image. Drawing the tile does not require a copy, so draw() should
+	 * be used instead where possible.
 	 * 
 	 * @return a copy of the image
 	 */
@@ -91,6 +156,37 @@ public final class ImageTile {
 		return copy;
 	}
 
+	/**
+	 * Draw this tile's image with its upper-left corner at the specified location. The image is
+	 * drawn directly from this tile without being copied.
+	 * 
+	 * @param g the graphics context to draw with
+	 * @param x the x coordinate at which to draw the image
+	 * @param y the y coordinate at which to draw the image
+	 */
+	public void draw(Graphics g, int x, int y) {
+		g.drawImage(image, x, y, null);
+	}
+
+	/**
+	 * Get the number of columns and rows of blocks of this tile's signature.
+	 * 
+	 * @return the number of columns and rows of blocks
+	 */
+	public int getSignatureGrid() {
+		return signatureGrid;
+	}
+
+	/**
+	 * Get this tile's signature, which is the average colors of a grid of blocks of the tile,
+	 * row by row, or only its average color if the grid has a single block.
+	 * 
+	 * @return a copy of the signature, with each color packed into an int as 0xRRGGBB
+	 */
+	public int[] getSignature() {
+		return signature.clone();
+	}
+
 	/**
 	 * Get the red value of this tile's average color.
 	 * 
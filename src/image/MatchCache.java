@@ -0,0 +1,123 @@
+package image;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free cache of the image tiles matched to cell colors during one photomosaic, shared by every
+ * render task so that a color matched by one task is a hit for all the others. Large flat regions
+ * of an image, such as skies, produce the same average color many times, and each of them would
+ * otherwise repeat a nearest neighbor search.
+ * 
+ * The cache is an open addressing hash table with linear probing. Colors packed as 0xRRGGBB are
+ * stored in an int array with an extra bit set, so 0 marks an empty slot, and the tiles are stored
+ * in a parallel array. A slot is claimed with a compare-and-set of its key and its tile is set
+ * afterwards, so a reader which finds the key before the tile has been set treats it as a miss.
+ * The table never grows: it has room for at most MAX_COLORS colors, and a color is not cached if no
+ * free slot is found within MAX_PROBES slots of its hash, which only happens once the table is
+ * nearly full.
+ */
+final class MatchCache {
+	private static final int MAX_PROBES = 16;
+	private static final int MAX_COLORS = 1 << 20;
+	private static final int OCCUPIED = 1 << 24;
+	private final AtomicIntegerArray keys;
+	private final AtomicReferenceArray<ImageTile> tiles;
+	private final int mask;
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+	/**
+	 * Constructs an empty MatchCache large enough for the given number of colors, up to
+	 * MAX_COLORS.
+	 * 
+	 * @param colors the maximum number of distinct colors to cache
+	 */
+	public MatchCache(int colors) {
+		// use a power of 2 at least twice the number of colors, so the table is at most half full
+		int size = Math.max(1, Math.min(colors, MAX_COLORS));
+		int capacity = Integer.highestOneBit(2 * size - 1) * 2;
+		keys = new AtomicIntegerArray(capacity);
+		tiles = new AtomicReferenceArray<>(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Get the image tile matched to the given color, or null if it is not in the cache. Every call
+	 * counts as either a hit or a miss.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the image tile matched to the color, or null
+	 */
+	public ImageTile get(int rgb) {
+		int key = rgb | OCCUPIED;
+		for (int i = 0, slot = hash(rgb); i < MAX_PROBES; i++, slot = (slot + 1) & mask) {
+			int current = keys.get(slot);
+			if (current == key) {
+				ImageTile tile = tiles.get(slot);
+				if (tile != null) {
+					hits.increment();
+					return tile;
+				}
+				break;
+			}
+			if (current == 0)
+				break;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Add the image tile matched to the given color to the cache, unless the color is already in
+	 * the cache or there is no free slot near its hash.
+	 * 
+	 * @param rgb  the color packed into an int as 0xRRGGBB
+	 * @param tile the image tile matched to the color
+	 */
+	public void put(int rgb, ImageTile tile) {
+		int key = rgb | OCCUPIED;
+		for (int i = 0, slot = hash(rgb); i < MAX_PROBES; i++, slot = (slot + 1) & mask) {
+			int current = keys.get(slot);
+			if ((current == 0) && keys.compareAndSet(slot, 0, key)) {
+				tiles.set(slot, tile);
+				return;
+			}
+
+			// another thread may have claimed this slot for the same color first
+			if (keys.get(slot) == key)
+				return;
+		}
+	}
+
+	/**
+	 * Get the number of calls to get() which found a tile.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of calls to get() which did not find a tile.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * This method returns the first slot to probe for the given color. The bits of the color are
+	 * mixed so that similar colors, which differ only in their low bits, are spread over the
+	 * table.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the first slot to probe
+	 */
+	private int hash(int rgb) {
+		int h = rgb * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
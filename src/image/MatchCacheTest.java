@@ -0,0 +1,150 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+class MatchCacheTest {
+	static Random random = new Random();
+	static final int NUM_COLORS = 5_000;
+	static final int NUM_OPERATIONS = 200_000;
+
+	/**
+	 * Tests a MatchCache used by several threads at once which put and get overlapping colors,
+	 * with a cache large enough for every color and with one too small for most of them. Each
+	 * tile has the color it is cached for, so a tile returned for another color would be detected,
+	 * and every call to get() must count as exactly one hit or miss.
+	 */
+	@Test
+	void testConcurrentAccess() throws InterruptedException {
+		ImageTile[] tiles = new ImageTile[NUM_COLORS];
+		int[] colors = new int[NUM_COLORS];
+		for (int i = 0; i < NUM_COLORS; i++) {
+			colors[i] = random.nextInt(1 << 24);
+			tiles[i] = getTile(colors[i]);
+		}
+		for (int size : new int[] { NUM_COLORS, 100 }) {
+			MatchCache cache = new MatchCache(size);
+			LongAdder gets = new LongAdder(), found = new LongAdder();
+			int threads = 8;
+			run(threads, thread -> {
+				Random threadRandom = new Random(random.nextLong());
+				for (int i = 0; i < NUM_OPERATIONS; i++) {
+					// the threads share a sliding window of colors, so they mostly overlap
+					int index = (i / 64 + threadRandom.nextInt(64)) % NUM_COLORS;
+					int rgb = getColor(tiles[index]);
+					if (threadRandom.nextBoolean()) {
+						cache.put(rgb, tiles[index]);
+					} else {
+						ImageTile tile = cache.get(rgb);
+						gets.increment();
+						if (tile != null) {
+							found.increment();
+							assertEquals(rgb, getColor(tile));
+						}
+					}
+				}
+			});
+			assertEquals(gets.sum(), cache.getHits() + cache.getMisses());
+			assertEquals(found.sum(), cache.getHits());
+			assertTrue(cache.getHits() > 0);
+		}
+	}
+
+	/**
+	 * Tests that a MatchCache keeps the first tile put for a color and misses colors which were
+	 * never put.
+	 */
+	@Test
+	void testGetAndPut() {
+		MatchCache cache = new MatchCache(10);
+		ImageTile black = getTile(0);
+		ImageTile white = getTile(0xFFFFFF);
+		assertNull(cache.get(0));
+		cache.put(0, black);
+		cache.put(0, white);
+		cache.put(0xFFFFFF, white);
+		assertSame(black, cache.get(0));
+		assertSame(white, cache.get(0xFFFFFF));
+		assertNull(cache.get(0x808080));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	/**
+	 * This method returns a 1x1 image tile of the given color.
+	 * 
+	 * @param rgb the color packed into an int as 0xRRGGBB
+	 * @return the image tile
+	 */
+	private static ImageTile getTile(int rgb) {
+		BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, rgb);
+		return new ImageTile(image, 1, 1, new File("tile.png"), true);
+	}
+
+	/**
+	 * This method returns the average color of an image tile packed into an int as 0xRRGGBB.
+	 * 
+	 * @param tile the image tile
+	 * @return the color of the image tile
+	 */
+	private static int getColor(ImageTile tile) {
+		return (tile.getRed() << 16) | (tile.getGreen() << 8) | tile.getBlue();
+	}
+
+	/**
+	 * This method runs a task on the specified number of threads at once and waits until all of
+	 * them finished.
+	 * 
+	 * @param threads the number of threads
+	 * @param task    the task to run, which is passed the index of its thread
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static void run(int threads, ThreadTask task) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		List<Thread> list = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			int thread = i;
+			list.add(new Thread(() -> {
+				try {
+					start.await();
+					task.run(thread);
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread thread : list) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : list) {
+			thread.join();
+		}
+		assertTrue(errors.isEmpty(), () -> errors.peek().toString());
+	}
+
+	/**
+	 * A task run by one of several threads.
+	 */
+	private interface ThreadTask {
+		/**
+		 * Runs the task.
+		 * 
+		 * @param thread the index of the thread running the task
+		 * @throws Exception if the task fails
+		 */
+		void run(int thread) throws Exception;
+	}
+}
@@ -0,0 +1,162 @@
+package image;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join task which renders a rectangular block of cells of the photomosaic, replacing each
+ * cell with the image tile closest to its average color or signature, and returns the number of
+ * cells rendered. Blocks are split in half along their longer side until they are small enough,
+ * and each block draws into its own sub-image, so tasks only ever write to disjoint regions of the
+ * output image. The average colors are taken from a SummedAreaTable built from the image before
+ * any cell is drawn, so the result is identical to rendering the cells one at a time.
+ * 
+ * The block is made of cells of the first TileLevel. If there are several TileLevels, each cell
+ * whose color variance is above splitVariance is split into quadrants, which are matched to the
+ * image tiles of the next TileLevel and may be split in turn, down to the last TileLevel.
+ */
+class RenderTask extends RecursiveTask<Integer> {
+	private static final long serialVersionUID = 1L;
+	private static final int MAX_CELLS = 64;
+	private final BufferedImage image;
+	private final SummedAreaTable sums;
+	private final TileLevel[] levels;
+	private final double splitVariance;
+	private final float alpha;
+	private final double epsilon;
+	private final int colStart, colEnd, rowStart, rowEnd;
+
+	/**
+	 * Constructs a RenderTask for all cells of the given image.
+	 * 
+	 * @param image         the image to render into; its width and height must be multiples of
+	 *                      the tile width and height of the first TileLevel
+	 * @param sums          the SummedAreaTable of the image before it is rendered into, with
+	 *                      variances if there are several TileLevels
+	 * @param levels        the TileLevels, from the largest image tiles to the smallest, each half
+	 *                      the width and height of the one before
+	 * @param splitVariance the color variance above which cells are split
+	 * @param alpha         the alpha value used to draw the image tiles over the image
+	 * @param epsilon       the maximum relative error of the color distances of the image tiles
+	 */
+	public RenderTask(BufferedImage image, SummedAreaTable sums, TileLevel[] levels,
+			double splitVariance, float alpha, double epsilon) {
+		this(image, sums, levels, splitVariance, alpha, epsilon, 0,
+				image.getWidth() / levels[0].getTileWidth(), 0,
+				image.getHeight() / levels[0].getTileHeight());
+	}
+
+	/**
+	 * Constructs a RenderTask for the specified block of cells.
+	 * 
+	 * @param image         the image to render into
+	 * @param sums          the SummedAreaTable of the image before it is rendered into
+	 * @param levels        the TileLevels, from the largest image tiles to the smallest
+	 * @param splitVariance the color variance above which cells are split
+	 * @param alpha         the alpha value used to draw the image tiles over the image
+	 * @param epsilon       the maximum relative error of the color distances of the image tiles
+	 * @param colStart      the first column of cells to render
+	 * @param colEnd        the column after the last column of cells to render
+	 * @param rowStart      the first row of cells to render
+	 * @param rowEnd        the row after the last row of cells to render
+	 */
+	private RenderTask(BufferedImage image, SummedAreaTable sums, TileLevel[] levels,
+			double splitVariance, float alpha, double epsilon, int colStart, int colEnd,
+			int rowStart, int rowEnd) {
+		this.image = image;
+		this.sums = sums;
+		this.levels = levels;
+		this.splitVariance = splitVariance;
+		this.alpha = alpha;
+		this.epsilon = epsilon;
+		this.colStart = colStart;
+		this.colEnd = colEnd;
+		this.rowStart = rowStart;
+		this.rowEnd = rowEnd;
+	}
+
+	@Override
+	protected Integer compute() {
+		int cols = colEnd - colStart;
+		int rows = rowEnd - rowStart;
+		if ((cols == 0) || (rows == 0))
+			return 0;
+
+		// render the block directly if it is small enough
+		if (cols * rows <= MAX_CELLS)
+			return render();
+
+		// otherwise split the block in half along its longer side
+		RenderTask first, second;
+		if (cols >= rows) {
+			int mid = colStart + cols / 2;
+			first = new RenderTask(image, sums, levels, splitVariance, alpha, epsilon, colStart,
+					mid, rowStart, rowEnd);
+			second = new RenderTask(image, sums, levels, splitVariance, alpha, epsilon, mid,
+					colEnd, rowStart, rowEnd);
+		} else {
+			int mid = rowStart + rows / 2;
+			first = new RenderTask(image, sums, levels, splitVariance, alpha, epsilon, colStart,
+					colEnd, rowStart, mid);
+			second = new RenderTask(image, sums, levels, splitVariance, alpha, epsilon, colStart,
+					colEnd, mid, rowEnd);
+		}
+		invokeAll(first, second);
+		return first.join() + second.join();
+	}
+
+	/**
+	 * This method renders every cell in this task's block and returns the number of cells. The
+	 * cells are found first, splitting them where there are several TileLevels. The cells of each
+	 * TileLevel are then matched to its image tiles together, from their average colors or
+	 * signatures in the SummedAreaTable, which is faster than matching them one at a time since
+	 * neighboring cells usually have similar colors.
+	 * 
+	 * @return the number of cells rendered
+	 */
+	private int render() {
+		int tileWidth = levels[0].getTileWidth();
+		int tileHeight = levels[0].getTileHeight();
+		int left = colStart * tileWidth;
+		int top = rowStart * tileHeight;
+		int width = (colEnd - colStart) * tileWidth;
+		int height = (rowEnd - rowStart) * tileHeight;
+		CellList cells = new CellList((colEnd - colStart) * (rowEnd - rowStart));
+		for (int x = left; x < left + width; x += tileWidth) {
+			for (int y = top; y < top + height; y += tileHeight) {
+				cells.split(sums, x, y, tileWidth, tileHeight, 0, levels.length, splitVariance);
+			}
+		}
+
+		// match the cells of each level, keeping the indexes of the cells in the list
+		int count = cells.size();
+		ImageTile[] tiles = new ImageTile[count];
+		int[] indexes = new int[count];
+		ImageTile[] found = (levels.length == 1) ? tiles : new ImageTile[count];
+		for (int level = 0; level < levels.length; level++) {
+			int matches = 0;
+			for (int i = 0; i < count; i++) {
+				if (cells.getLevel(i) == level)
+					indexes[matches++] = i;
+			}
+			if (matches == 0)
+				continue;
+			levels[level].findTiles(sums, cells, indexes, matches, found, epsilon);
+			if (found != tiles) {
+				for (int i = 0; i < matches; i++)
+					tiles[indexes[i]] = found[i];
+			}
+		}
+
+		BufferedImage block = image.getSubimage(left, top, width, height);
+		Graphics2D g = block.createGraphics();
+		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+		for (int i = 0; i < count; i++) {
+			tiles[i].draw(g, cells.getX(i) - left, cells.getY(i) - top);
+		}
+		g.dispose();
+		return count;
+	}
+}
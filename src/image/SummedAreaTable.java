@@ -0,0 +1,331 @@
+package image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Summed-area table (integral image) of the red, green, and blue channels of an image, from which
+ * the average color of any rectangle of the image is found in constant time. The table is built
+ * with one pass over the image, so the colors of cells of any size or position, including
+ * overlapping and nested ones, can be found without reading the image again. If it is created
+ * with variances, the table also sums the squares of the channels, so the color variance of any
+ * rectangle is found in constant time as well.
+ * 
+ * Each channel is kept in an int array with one more row and column than the image, where the
+ * element for (x, y) is the sum of the channel over the pixels above and to the left of (x, y).
+ * The sums wrap around when they overflow, but the sum of a rectangle is calculated with the same
+ * wrapping arithmetic, so it is exact as long as it fits in an unsigned int, which is true for any
+ * rectangle of at most 2^24 pixels. This uses half as much memory as long sums. The sums of
+ * squares do not fit in an int, so they are kept in a single long array for all three channels.
+ * 
+ * The rows are summed in parallel and then the columns are summed in parallel, by fork/join tasks
+ * which run in the current ForkJoinPool if the table is created from one. The average colors match
+ * AverageColor.getAverageColor() exactly. This class is thread-safe, since it cannot be modified
+ * after it is created.
+ */
+public final class SummedAreaTable {
+	private static final int MAX_AREA = 1 << 24;
+	private static final int TASK_SIZE = 1 << 16;
+	private final int width, height, stride;
+	private final int[] reds, greens, blues;
+	private final long[] squares;
+
+	/**
+	 * Constructs a SummedAreaTable for the given image without variances. The alpha channel, if
+	 * any, is ignored.
+	 * 
+	 * @param image the image
+	 */
+	public SummedAreaTable(BufferedImage image) {
+		this(image, false);
+	}
+
+	/**
+	 * Constructs a SummedAreaTable for the given image. The alpha channel, if any, is ignored.
+	 * 
+	 * @param image           the image
+	 * @param varianceEnabled true to also sum the squares of the channels so that getVariance()
+	 *                        can be used, which takes two thirds more memory, and false otherwise
+	 */
+	public SummedAreaTable(BufferedImage image, boolean varianceEnabled) {
+		width = image.getWidth();
+		height = image.getHeight();
+		stride = width + 1;
+		int length = stride * (height + 1);
+		reds = new int[length];
+		greens = new int[length];
+		blues = new int[length];
+		squares = varianceEnabled ? new long[length] : null;
+		new RowTask(image, 0, height).invoke();
+		new ColumnTask(1, stride).invoke();
+	}
+
+	/**
+	 * Get the width of the image.
+	 * 
+	 * @return the width of the image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the height of the image.
+	 * 
+	 * @return the height of the image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the average color of the specified rectangle of the image.
+	 * 
+	 * @param x      the x coordinate of the upper-left corner of the rectangle
+	 * @param y      the y coordinate of the upper-left corner of the rectangle
+	 * @param width  the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return the average color packed into an int as 0xRRGGBB
+	 * @throws IllegalArgumentException if the rectangle is empty, is not inside the image, or has
+	 *                                  more than 2^24 pixels
+	 */
+	public int getAverageColor(int x, int y, int width, int height) {
+		checkRectangle(x, y, width, height);
+		int topLeft = y * stride + x;
+		int topRight = topLeft + width;
+		int bottomLeft = topLeft + height * stride;
+		int bottomRight = bottomLeft + width;
+		int count = width * height;
+		long red = getSum(reds, topLeft, topRight, bottomLeft, bottomRight);
+		long green = getSum(greens, topLeft, topRight, bottomLeft, bottomRight);
+		long blue = getSum(blues, topLeft, topRight, bottomLeft, bottomRight);
+		return ((int) (red / count) << 16) | ((int) (green / count) << 8) | (int) (blue / count);
+	}
+
+	/**
+	 * Get the average colors of a grid of blocks of the specified rectangle of the image, along
+	 * with the average color of the whole rectangle. The blocks are the same as those of
+	 * AverageColor.getSignature(), and so are the results.
+	 * 
+	 * @param x         the x coordinate of the upper-left corner of the rectangle
+	 * @param y         the y coordinate of the upper-left corner of the rectangle
+	 * @param width     the width of the rectangle, which must be at least grid
+	 * @param height    the height of the rectangle, which must be at least grid
+	 * @param grid      the number of columns and rows of blocks
+	 * @param signature the array to store the average colors of the blocks in, packed into ints as
+	 *                  0xRRGGBB, whose length must be at least grid * grid
+	 * @return the average color of the rectangle packed into an int as 0xRRGGBB
+	 * @throws IllegalArgumentException if the rectangle is empty, is not inside the image, or has
+	 *                                  more than 2^24 pixels, or if grid is less than 1 or greater
+	 *                                  than width or height
+	 */
+	public int getSignature(int x, int y, int width, int height, int grid, int[] signature) {
+		if ((grid < 1) || (grid > width) || (grid > height))
+			throw new IllegalArgumentException(
+					"The grid must be at least 1 and at most the width and height.");
+		for (int j = 0; j < grid; j++) {
+			int top = y + j * height / grid;
+			int bottom = y + (j + 1) * height / grid;
+			for (int i = 0; i < grid; i++) {
+				int left = x + i * width / grid;
+				int right = x + (i + 1) * width / grid;
+				signature[j * grid + i] = getAverageColor(left, top, right - left, bottom - top);
+			}
+		}
+		return getAverageColor(x, y, width, height);
+	}
+
+	/**
+	 * Get the color variance of the specified rectangle of the image, which is the mean squared
+	 * distance of its pixels from its average color, summed over the red, green, and blue
+	 * channels. It is 0 for a rectangle of a single color and at most 3 * 127.5^2.
+	 * 
+	 * @param x      the x coordinate of the upper-left corner of the rectangle
+	 * @param y      the y coordinate of the upper-left corner of the rectangle
+	 * @param width  the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return the color variance of the rectangle
+	 * @throws IllegalArgumentException if the rectangle is empty, is not inside the image, or has
+	 *                                  more than 2^24 pixels
+	 * @throws IllegalStateException    if this table was created without variances
+	 */
+	public double getVariance(int x, int y, int width, int height) {
+		if (squares == null)
+			throw new IllegalStateException("The table was created without variances.");
+		checkRectangle(x, y, width, height);
+		int topLeft = y * stride + x;
+		int topRight = topLeft + width;
+		int bottomLeft = topLeft + height * stride;
+		int bottomRight = bottomLeft + width;
+		double count = (double) width * height;
+		double red = getSum(reds, topLeft, topRight, bottomLeft, bottomRight);
+		double green = getSum(greens, topLeft, topRight, bottomLeft, bottomRight);
+		double blue = getSum(blues, topLeft, topRight, bottomLeft, bottomRight);
+		long square = squares[bottomRight] - squares[bottomLeft] - squares[topRight]
+				+ squares[topLeft];
+		double variance = (square - (red * red + green * green + blue * blue) / count) / count;
+		return Math.max(0, variance);
+	}
+
+	/**
+	 * This method checks that the specified rectangle is a non-empty part of the image small
+	 * enough for its sums to be exact.
+	 * 
+	 * @param x      the x coordinate of the upper-left corner of the rectangle
+	 * @param y      the y coordinate of the upper-left corner of the rectangle
+	 * @param width  the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @throws IllegalArgumentException if the rectangle is empty, is not inside the image, or has
+	 *                                  more than 2^24 pixels
+	 */
+	private void checkRectangle(int x, int y, int width, int height) {
+		if ((width <= 0) || (height <= 0) || (x < 0) || (y < 0) || (x > this.width - width)
+				|| (y > this.height - height))
+			throw new IllegalArgumentException(
+					"The rectangle must be a non-empty part of the image.");
+		if ((long) width * height > MAX_AREA)
+			throw new IllegalArgumentException("The rectangle must have at most 2^24 pixels.");
+	}
+
+	/**
+	 * This method returns the sum of a channel over a rectangle, given the indexes of its corners
+	 * in the channel's table.
+	 * 
+	 * @param sums        the table of the channel
+	 * @param topLeft     the index of the upper-left corner
+	 * @param topRight    the index of the upper-right corner
+	 * @param bottomLeft  the index of the lower-left corner
+	 * @param bottomRight the index of the lower-right corner
+	 * @return the sum of the channel over the rectangle
+	 */
+	private static long getSum(int[] sums, int topLeft, int topRight, int bottomLeft,
+			int bottomRight) {
+		return Integer.toUnsignedLong(
+				sums[bottomRight] - sums[bottomLeft] - sums[topRight] + sums[topLeft]);
+	}
+
+	/**
+	 * This method reads the pixels of a row of the given image, packed into ints as 0xRRGGBB with
+	 * any alpha in the highest byte. Images with one packed int per pixel are read directly from
+	 * their DataBuffer, and other images with getRGB().
+	 * 
+	 * @param image the image
+	 * @param y     the y coordinate of the row
+	 * @param row   the array to store the pixels in
+	 */
+	private static void readRow(BufferedImage image, int y, int[] row) {
+		int type = image.getType();
+		if ((type == BufferedImage.TYPE_INT_RGB) || (type == BufferedImage.TYPE_INT_ARGB)) {
+			WritableRaster raster = image.getRaster();
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster
+					.getSampleModel();
+			int start = buffer.getOffset()
+					+ (y - raster.getSampleModelTranslateY()) * model.getScanlineStride()
+					- raster.getSampleModelTranslateX();
+			System.arraycopy(buffer.getData(), start, row, 0, row.length);
+		} else {
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+		}
+	}
+
+	/**
+	 * Fork/join task which reads a range of rows of the image and stores the sums of each row up to
+	 * each pixel. Ranges covering more than TASK_SIZE pixels are split in half.
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final BufferedImage image;
+		private final int start, end;
+
+		/**
+		 * Constructs a RowTask for the specified range of rows.
+		 * 
+		 * @param image the image
+		 * @param start the first row of the range
+		 * @param end   the row after the last row of the range
+		 */
+		public RowTask(BufferedImage image, int start, int end) {
+			this.image = image;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// split large ranges in half
+			if ((end - start > 1) && ((long) (end - start) * width > TASK_SIZE)) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new RowTask(image, start, mid), new RowTask(image, mid, end));
+				return;
+			}
+			int[] row = new int[width];
+			for (int y = start; y < end; y++) {
+				readRow(image, y, row);
+				int index = (y + 1) * stride;
+				int red = 0, green = 0, blue = 0;
+				long square = 0;
+				for (int rgb : row) {
+					int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+					red += r;
+					green += g;
+					blue += b;
+					reds[++index] = red;
+					greens[index] = green;
+					blues[index] = blue;
+					if (squares != null) {
+						square += r * r + g * g + b * b;
+						squares[index] = square;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fork/join task which adds the sums of the rows above each element to a range of columns of
+	 * the table, going down the rows so that each row of the range is read contiguously. Ranges
+	 * covering more than TASK_SIZE elements are split in half.
+	 */
+	private class ColumnTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+
+		/**
+		 * Constructs a ColumnTask for the specified range of columns.
+		 * 
+		 * @param start the first column of the range
+		 * @param end   the column after the last column of the range
+		 */
+		public ColumnTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// split large ranges in half
+			if ((end - start > 1) && ((long) (end - start) * height > TASK_SIZE)) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new ColumnTask(start, mid), new ColumnTask(mid, end));
+				return;
+			}
+			for (int y = 2; y <= height; y++) {
+				int first = y * stride + start;
+				int last = first + (end - start);
+				for (int index = first; index < last; index++) {
+					reds[index] += reds[index - stride];
+					greens[index] += greens[index - stride];
+					blues[index] += blues[index - stride];
+				}
+				if (squares != null) {
+					for (int index = first; index < last; index++)
+						squares[index] += squares[index - stride];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class SummedAreaTableTest {
+	static Random random = new Random();
+	static final int NUM_QUERIES = 2_000;
+
+	/**
+	 * Tests that the average colors of a SummedAreaTable match AverageColor.getAverageColor()
+	 * exactly for random rectangles of sub-images of each image type which AverageColor reads
+	 * differently, so the table is built from images whose rasters do not start at the beginning
+	 * of their DataBuffers.
+	 */
+	@Test
+	void testGetAverageColor() {
+		int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_BYTE_GRAY };
+		for (int type : types) {
+			BufferedImage parent = getRandomImage(type, 300, 200);
+			BufferedImage image = parent.getSubimage(17, 9, 251, 173);
+			SummedAreaTable sums = new SummedAreaTable(image);
+			assertEquals(251, sums.getWidth());
+			assertEquals(173, sums.getHeight());
+			for (int i = 0; i < NUM_QUERIES; i++) {
+				int width = 1 + random.nextInt(image.getWidth());
+				int height = 1 + random.nextInt(image.getHeight());
+				int x = random.nextInt(image.getWidth() - width + 1);
+				int y = random.nextInt(image.getHeight() - height + 1);
+				assertEquals(AverageColor.getAverageColor(image, x, y, width, height),
+						sums.getAverageColor(x, y, width, height));
+			}
+			assertEquals(AverageColor.getAverageColor(image, 0, 0, 251, 173),
+					sums.getAverageColor(0, 0, 251, 173));
+		}
+	}
+
+	/**
+	 * Tests the average color of a rectangle of 2^24 bright pixels, whose channel sums do not fit
+	 * in an int, in an image large enough that the sums stored in the table wrap around as well.
+	 */
+	@Test
+	void testLargeRectangle() {
+		BufferedImage image = new BufferedImage(4200, 4100, BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(data, 0xFFFFFF);
+		for (int i = 0; i < 100_000; i++) {
+			data[random.nextInt(data.length)] = random.nextInt(1 << 24);
+		}
+		SummedAreaTable sums = new SummedAreaTable(image);
+		int[][] rectangles = { { 104, 4, 4096, 4096 }, { 0, 0, 4096, 4096 },
+				{ 100, 0, 4100, 4092 }, { 4199, 4099, 1, 1 } };
+		for (int[] r : rectangles) {
+			assertEquals(AverageColor.getAverageColor(image, r[0], r[1], r[2], r[3]),
+					sums.getAverageColor(r[0], r[1], r[2], r[3]));
+		}
+		assertThrows(IllegalArgumentException.class, () -> sums.getAverageColor(0, 0, 4097, 4096));
+	}
+
+	/**
+	 * Tests that the signatures of a SummedAreaTable match AverageColor.getSignature() for random
+	 * rectangles and grid sizes, including rectangles whose sizes are not multiples of the grid.
+	 */
+	@Test
+	void testGetSignature() {
+		BufferedImage image = getRandomImage(BufferedImage.TYPE_INT_RGB, 200, 150);
+		SummedAreaTable sums = new SummedAreaTable(image);
+		for (int i = 0; i < NUM_QUERIES; i++) {
+			int grid = 1 + random.nextInt(4);
+			int width = grid + random.nextInt(image.getWidth() - grid + 1);
+			int height = grid + random.nextInt(image.getHeight() - grid + 1);
+			int x = random.nextInt(image.getWidth() - width + 1);
+			int y = random.nextInt(image.getHeight() - height + 1);
+			int[] expected = new int[grid * grid];
+			int[] signature = new int[grid * grid];
+			assertEquals(AverageColor.getSignature(image, x, y, width, height, grid, expected),
+					sums.getSignature(x, y, width, height, grid, signature));
+			assertArrayEquals(expected, signature);
+		}
+		assertThrows(IllegalArgumentException.class,
+				() -> sums.getSignature(0, 0, 3, 8, 4, new int[16]));
+		assertThrows(IllegalArgumentException.class,
+				() -> sums.getSignature(0, 0, 8, 8, 0, new int[1]));
+	}
+
+	/**
+	 * Tests that the variances of a SummedAreaTable match variances calculated from the pixels of
+	 * random rectangles, and are 0 for rectangles of a single color.
+	 */
+	@Test
+	void testGetVariance() {
+		BufferedImage image = getRandomImage(BufferedImage.TYPE_3BYTE_BGR, 120, 90);
+		SummedAreaTable sums = new SummedAreaTable(image, true);
+		for (int i = 0; i < NUM_QUERIES; i++) {
+			int width = 1 + random.nextInt(image.getWidth());
+			int height = 1 + random.nextInt(image.getHeight());
+			int x = random.nextInt(image.getWidth() - width + 1);
+			int y = random.nextInt(image.getHeight() - height + 1);
+			assertEquals(getVariance(image, x, y, width, height),
+					sums.getVariance(x, y, width, height), 1e-6);
+		}
+
+		BufferedImage plain = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 64; y++) {
+			for (int x = 0; x < 64; x++) {
+				plain.setRGB(x, y, (x < 32) ? 0x123456 : 0xFFFFFF);
+			}
+		}
+		SummedAreaTable plainSums = new SummedAreaTable(plain, true);
+		assertEquals(0, plainSums.getVariance(0, 0, 32, 64));
+		assertEquals(0, plainSums.getVariance(32, 5, 32, 50));
+		assertEquals(getVariance(plain, 0, 0, 64, 64), plainSums.getVariance(0, 0, 64, 64), 1e-6);
+
+		assertThrows(IllegalStateException.class,
+				() -> new SummedAreaTable(plain).getVariance(0, 0, 1, 1));
+	}
+
+	/**
+	 * Tests that a SummedAreaTable throws exceptions for rectangles which are empty or not inside
+	 * the image.
+	 */
+	@Test
+	void testEdgeCases() {
+		SummedAreaTable sums = new SummedAreaTable(
+				getRandomImage(BufferedImage.TYPE_INT_RGB, 10, 10), true);
+		int[][] rectangles = { { 0, 0, 0, 1 }, { 0, 0, 1, 0 }, { -1, 0, 2, 2 }, { 0, -1, 2, 2 },
+				{ 5, 0, 6, 2 }, { 0, 5, 2, 6 }, { 10, 0, 1, 1 } };
+		for (int[] r : rectangles) {
+			assertThrows(IllegalArgumentException.class,
+					() -> sums.getAverageColor(r[0], r[1], r[2], r[3]));
+			assertThrows(IllegalArgumentException.class,
+					() -> sums.getVariance(r[0], r[1], r[2], r[3]));
+		}
+	}
+
+	/**
+	 * This method returns an image of the given type and size with random colors, which are
+	 * spread over a few gradients so that rectangles have different average colors.
+	 * 
+	 * @param type   the type of the image
+	 * @param width  the width of the image
+	 * @param height the height of the image
+	 * @return the image
+	 */
+	private static BufferedImage getRandomImage(int type, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int red = Math.min(255, x + random.nextInt(64));
+				int green = Math.min(255, y + random.nextInt(64));
+				int blue = random.nextInt(256);
+				image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * This method returns the color variance of the specified rectangle of the given image,
+	 * calculated from each of its pixels.
+	 * 
+	 * @param image  the image
+	 * @param x      the x coordinate of the upper-left corner of the rectangle
+	 * @param y      the y coordinate of the upper-left corner of the rectangle
+	 * @param width  the width of the rectangle
+	 * @param height the height of the rectangle
+	 * @return the color variance
+	 */
+	private static double getVariance(BufferedImage image, int x, int y, int width, int height) {
+		double[] means = new double[3];
+		for (int j = y; j < y + height; j++) {
+			for (int i = x; i < x + width; i++) {
+				int rgb = image.getRGB(i, j);
+				means[0] += (rgb >> 16) & 0xFF;
+				means[1] += (rgb >> 8) & 0xFF;
+				means[2] += rgb & 0xFF;
+			}
+		}
+		int count = width * height;
+		for (int k = 0; k < 3; k++) {
+			means[k] /= count;
+		}
+		double variance = 0;
+		for (int j = y; j < y + height; j++) {
+			for (int i = x; i < x + width; i++) {
+				int rgb = image.getRGB(i, j);
+				for (int k = 0; k < 3; k++) {
+					double diff = ((rgb >> (16 - 8 * k)) & 0xFF) - means[k];
+					variance += diff * diff;
+				}
+			}
+		}
+		return variance / count;
+	}
+}
@@ -0,0 +1,327 @@
+package image;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import octree.ColorLookupTable;
+import octree.CompactOctree;
+import octree.KdTree;
+
+/**
+ * The image tiles of one size used in a photomosaic, with the structures used to match cells of
+ * that size to them. Adaptive tiling uses a TileLevel for each tile size, so cells are only matched
+ * to image tiles of their own size, whose average colors were found at that size.
+ * 
+ * Cells are matched by looking up their average colors in a ColorLookupTable if one is given.
+ * Otherwise the tiles found for each color are kept in a MatchCache shared by all render tasks, so
+ * colors which repeat in several blocks are only searched for once. This is only done for exact
+ * searches, which find the same tile for a color whichever task searches for it first; an
+ * approximate search may find a different tile depending on the other colors searched with it,
+ * so its results are not cached. If the image tiles have
+ * signatures of several blocks, cells are instead matched by searching a KdTree of the signatures
+ * for the signatures of the cells, which are only rarely equal, so they are not cached.
+ * 
+ * Several image tiles may have the same average color or signature. The structures above find one
+ * of them for each cell, and the tile drawn is then chosen among all of them by rotating through
+ * them by the cell's position, so every one of them is used and neighboring cells of the same
+ * color get different image tiles. The tile found for each cell only depends on the cell and on the
+ * block of cells it is rendered with, which does not depend on the number of threads, so every
+ * render of the same image draws the same tiles.
+ * 
+ * Signatures are not stored in the KdTree as they are, but transformed with an orthonormal 2D
+ * discrete cosine transform of each channel, with the coefficients ordered from the lowest
+ * frequency to the highest. The transform does not change any distance, so the same image tiles
+ * are matched, but the first three coordinates become the average color, times the grid size, and
+ * the other coordinates the smaller differences between the blocks. Most of the distance between
+ * two signatures is then in their first coordinates, so the KdTree splits on them first and
+ * stops calculating distances after a few coordinates, which makes searches several times faster.
+ */
+final class TileLevel {
+	private final int tileWidth, tileHeight;
+	private final CompactOctree<ImageTile> tree;
+	private final ColorLookupTable<ImageTile> table;
+	private final MatchCache cache;
+	private final KdTree<ImageTile> signatures;
+	private final int signatureGrid;
+	private final double[][] transform;
+	private final Map<ImageTile, ImageTile[]> duplicates;
+
+	/**
+	 * Constructs a TileLevel which matches cells by their average colors.
+	 * 
+	 * @param tileWidth  the width of the image tiles
+	 * @param tileHeight the height of the image tiles
+	 * @param tree       the CompactOctree containing the image tiles, keyed by average color
+	 * @param table      the ColorLookupTable of the tree, or null to search the tree
+	 * @param cache      the cache of tiles found by searching the tree, or null to search the tree
+	 *                   for every cell, which must be the case for approximate searches
+	 */
+	public TileLevel(int tileWidth, int tileHeight, CompactOctree<ImageTile> tree,
+			ColorLookupTable<ImageTile> table, MatchCache cache) {
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.tree = tree;
+		this.table = table;
+		this.cache = cache;
+		signatures = null;
+		signatureGrid = 1;
+		transform = null;
+		duplicates = getDuplicates(tree.values(), false);
+	}
+
+	/**
+	 * Constructs a TileLevel which matches cells by their signatures, building a KdTree of the
+	 * signatures of the given image tiles.
+	 * 
+	 * @param tileWidth     the width of the image tiles
+	 * @param tileHeight    the height of the image tiles
+	 * @param tiles         the image tiles
+	 * @param signatureGrid the number of columns and rows of blocks of the signatures of the image
+	 *                      tiles
+	 */
+	public TileLevel(int tileWidth, int tileHeight, Collection<ImageTile> tiles,
+			int signatureGrid) {
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		tree = null;
+		table = null;
+		cache = null;
+		this.signatureGrid = signatureGrid;
+		transform = getTransform(signatureGrid);
+		int dimensions = 3 * signatureGrid * signatureGrid;
+		List<double[]> points = new ArrayList<>();
+		List<ImageTile> values = new ArrayList<>(tiles);
+		for (ImageTile tile : values) {
+			double[] point = new double[dimensions];
+			getPoint(tile.getSignature(), point, 0);
+			points.add(point);
+		}
+		signatures = new KdTree<>(dimensions, points, values);
+		duplicates = getDuplicates(values, true);
+	}
+
+	/**
+	 * This method groups the given image tiles which have the same signature or the same average
+	 * color, whichever cells are matched by, and maps each tile of a group of several tiles to the
+	 * whole group. Tiles without duplicates are not included.
+	 * 
+	 * @param tiles       the image tiles
+	 * @param bySignature true to group the tiles by signature and false by average color
+	 * @return the group of each image tile which has duplicates
+	 */
+	private static Map<ImageTile, ImageTile[]> getDuplicates(Collection<ImageTile> tiles,
+			boolean bySignature) {
+		// IntBuffers are equal if their contents are
+		Map<IntBuffer, List<ImageTile>> groups = new HashMap<>();
+		for (ImageTile tile : tiles) {
+			int[] key = bySignature ? tile.getSignature()
+					: new int[] { (tile.getRed() << 16) | (tile.getGreen() << 8) | tile.getBlue() };
+			groups.computeIfAbsent(IntBuffer.wrap(key), group -> new ArrayList<>(1)).add(tile);
+		}
+		Map<ImageTile, ImageTile[]> duplicates = new IdentityHashMap<>();
+		for (List<ImageTile> group : groups.values()) {
+			if (group.size() > 1) {
+				ImageTile[] array = group.toArray(new ImageTile[group.size()]);
+				for (ImageTile tile : array) {
+					duplicates.put(tile, array);
+				}
+			}
+		}
+		return duplicates;
+	}
+
+	/**
+	 * This method returns the matrix of the orthonormal 2D discrete cosine transform of a grid of
+	 * the given size, whose rows are ordered from the lowest frequency to the highest, so the
+	 * first row gives the average times the grid size. Each row has a coefficient for each block
+	 * of the grid, in the same order as a signature.
+	 * 
+	 * @param grid the number of columns and rows of the grid
+	 * @return the matrix of the transform
+	 */
+	private static double[][] getTransform(int grid) {
+		double[][] cosines = new double[grid][grid];
+		for (int k = 0; k < grid; k++) {
+			double scale = Math.sqrt(((k == 0) ? 1.0 : 2.0) / grid);
+			for (int n = 0; n < grid; n++) {
+				cosines[k][n] = scale * Math.cos(Math.PI * (2 * n + 1) * k / (2.0 * grid));
+			}
+		}
+		double[][] transform = new double[grid * grid][grid * grid];
+		int row = 0;
+		for (int frequency = 0; frequency <= 2 * (grid - 1); frequency++) {
+			int last = Math.min(frequency, grid - 1);
+			for (int v = Math.max(0, frequency - grid + 1); v <= last; v++) {
+				int u = frequency - v;
+				for (int y = 0; y < grid; y++) {
+					for (int x = 0; x < grid; x++) {
+						transform[row][y * grid + x] = cosines[v][y] * cosines[u][x];
+					}
+				}
+				row++;
+			}
+		}
+		return transform;
+	}
+
+	/**
+	 * This method stores the point of the KdTree for the given signature, which has the red,
+	 * green, and blue values of each coefficient of the transform of the signature in turn.
+	 * 
+	 * @param signature the signature, with each color packed into an int as 0xRRGGBB
+	 * @param point     the array to store the point in
+	 * @param offset    the index of the point's first coordinate in the array
+	 */
+	private void getPoint(int[] signature, double[] point, int offset) {
+		for (double[] coefficients : transform) {
+			double red = 0, green = 0, blue = 0;
+			for (int i = 0; i < signature.length; i++) {
+				red += coefficients[i] * AverageColor.getRed(signature[i]);
+				green += coefficients[i] * AverageColor.getGreen(signature[i]);
+				blue += coefficients[i] * AverageColor.getBlue(signature[i]);
+			}
+			point[offset++] = red;
+			point[offset++] = green;
+			point[offset++] = blue;
+		}
+	}
+
+	/**
+	 * Get the width of the image tiles.
+	 * 
+	 * @return the width of the image tiles
+	 */
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	/**
+	 * Get the height of the image tiles.
+	 * 
+	 * @return the height of the image tiles
+	 */
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	/**
+	 * Get the number of cells whose image tiles were found in the cache, or 0 if there is no
+	 * cache.
+	 * 
+	 * @return the number of match cache hits
+	 */
+	public long getMatchCacheHits() {
+		return (cache == null) ? 0 : cache.getHits();
+	}
+
+	/**
+	 * Get the number of cells whose image tiles were not in the cache, or 0 if there is no cache.
+	 * 
+	 * @return the number of match cache misses
+	 */
+	public long getMatchCacheMisses() {
+		return (cache == null) ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * This method finds the image tile for each of the given cells of this level, from their
+	 * average colors or their signatures, which are found in the SummedAreaTable of the image. If
+	 * several image tiles match a cell equally well, one of them is chosen by the cell's position.
+	 * 
+	 * @param sums    the SummedAreaTable of the image
+	 * @param cells   the cells of the image
+	 * @param indexes the indexes of the cells to match in the list
+	 * @param count   the number of cells to match, from the start of indexes
+	 * @param tiles   the array to store the image tiles in
+	 * @param epsilon the maximum relative error of the color or signature distances of the image
+	 *                tiles
+	 */
+	public void findTiles(SummedAreaTable sums, CellList cells, int[] indexes, int count,
+			ImageTile[] tiles, double epsilon) {
+		if (signatures != null) {
+			// find the signatures of the cells and search for them in a single batch
+			int[] signature = new int[signatureGrid * signatureGrid];
+			int dimensions = signatures.getDimensions();
+			double[] points = new double[count * dimensions];
+			for (int i = 0; i < count; i++) {
+				sums.getSignature(cells.getX(indexes[i]), cells.getY(indexes[i]), tileWidth,
+						tileHeight, signatureGrid, signature);
+				getPoint(signature, points, i * dimensions);
+			}
+			ImageTile[] found = new ImageTile[count];
+			signatures.getNearestValues(points, found, epsilon);
+			System.arraycopy(found, 0, tiles, 0, count);
+		} else {
+			int[] colors = new int[count];
+			for (int i = 0; i < count; i++) {
+				colors[i] = sums.getAverageColor(cells.getX(indexes[i]), cells.getY(indexes[i]),
+						tileWidth, tileHeight);
+			}
+			findTiles(colors, tiles, epsilon);
+		}
+
+		// rotate through image tiles with the same key by the column and row of the cell
+		if (duplicates.isEmpty())
+			return;
+		for (int i = 0; i < count; i++) {
+			ImageTile[] group = duplicates.get(tiles[i]);
+			if (group != null) {
+				int column = cells.getX(indexes[i]) / tileWidth;
+				int row = cells.getY(indexes[i]) / tileHeight;
+				tiles[i] = group[(column + row) % group.length];
+			}
+		}
+	}
+
+	/**
+	 * This method finds the image tile for each of the given colors. If there is a
+	 * ColorLookupTable, each color is looked up in it. Otherwise the tiles of colors which have
+	 * already been matched are taken from the cache, if there is one, the tree is searched for the
+	 * others in a single batch, and the tiles found are added to the cache.
+	 * 
+	 * @param colors  the colors packed into ints as 0xRRGGBB
+	 * @param tiles   the array to store the image tiles in
+	 * @param epsilon the maximum relative error of the color distances of the image tiles
+	 */
+	private void findTiles(int[] colors, ImageTile[] tiles, double epsilon) {
+		int count = colors.length;
+		if (table != null) {
+			for (int i = 0; i < count; i++) {
+				tiles[i] = table.getNearestValue(AverageColor.getRed(colors[i]),
+						AverageColor.getGreen(colors[i]), AverageColor.getBlue(colors[i]));
+			}
+			return;
+		}
+
+		int[] missed = new int[count];
+		int misses = 0;
+		for (int i = 0; i < count; i++) {
+			if ((cache == null) || ((tiles[i] = cache.get(colors[i])) == null))
+				missed[misses++] = i;
+		}
+		if (misses == 0)
+			return;
+
+		double[] reds = new double[misses];
+		double[] greens = new double[misses];
+		double[] blues = new double[misses];
+		for (int i = 0; i < misses; i++) {
+			int color = colors[missed[i]];
+			reds[i] = AverageColor.getRed(color);
+			greens[i] = AverageColor.getGreen(color);
+			blues[i] = AverageColor.getBlue(color);
+		}
+		ImageTile[] found = new ImageTile[misses];
+		tree.getNearestValues(reds, greens, blues, found, epsilon);
+		for (int i = 0; i < misses; i++) {
+			tiles[missed[i]] = found[i];
+			if (cache != null)
+				cache.put(colors[missed[i]], found[i]);
+		}
+	}
+}
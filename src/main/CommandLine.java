@@ -0,0 +1,291 @@
+package main;
+
+import java.io.File;
+
+import cache.CacheManager;
+import image.ImageProcessor;
+import octree.Octree;
+
+/**
+ * Command-line interface used to create a photomosaic without starting the user interface. This
+ * class runs in headless mode and never loads Swing, so it can be used on machines without a
+ * display.
+ */
+public class CommandLine {
+	public static final int SUCCESS = 0;
+	public static final int FAILURE = 1;
+	public static final int USAGE_ERROR = 2;
+
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: java -jar Photomosaic.jar --image <file> --library <folder> [options]",
+			"Options:",
+			"  --image <file>              the main image",
+			"  --library <folder>          the folder containing the images to use for the tiles",
+			"  --tile <width>[x<height>]   the tile size in pixels (default 50x50)",
+			"  --transparency <percent>    the transparency of the main image (default 100)",
+			"  --out <file>                the output file (default " + ImageProcessor.DEFAULT_OUTPUT
+					+ ")",
+			"  --threads <count>           the number of threads to use (default: all processors)",
+			"  --no-cache                  do not read from or write to the cache",
+			"  --checksum                  record checksums so touched but unchanged images are",
+			"                              recognized without being decoded again",
+			"  --metric <name>             the color distance used to match tiles: euclidean,",
+			"                              weighted-rgb, manhattan, or chebyshev (default euclidean)",
+			"  --epsilon <value>           match tiles up to 1 + value times farther than the nearest",
+			"                              tile, for faster previews (default 0: exact matches)",
+			"  --lookup-table              match tiles with a precomputed color lookup table,",
+			"                              which is faster for images with very many tiles",
+			"  --split-variance <value>    split cells whose color variance is above the value into",
+			"                              four smaller tiles, for adaptive tiling (e.g. 500)",
+			"  --min-tile <size>           the minimum tile size when cells are split (default "
+					+ ImageProcessor.DEFAULT_MIN_TILE_SIZE + ")",
+			"  --signature <grid>          match the average colors of grid x grid blocks of each",
+			"                              cell instead of its average color, for grids up to "
+					+ ImageProcessor.MAX_SIGNATURE_GRID,
+			"                              (default 1) and libraries of up to "
+					+ ImageProcessor.MAX_SIGNATURE_TILES + " images",
+			"  --help                      print this message",
+			"Exit codes: " + SUCCESS + " on success, " + FAILURE
+					+ " if the photomosaic could not be created, " + USAGE_ERROR
+					+ " if the arguments are invalid");
+
+	private String imagePath, directory;
+	private String outputPath = ImageProcessor.DEFAULT_OUTPUT;
+	private int tileWidth = 50, tileHeight = 50, transparencyPercent = 100;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private boolean cacheEnabled = true, checksumEnabled = false;
+	private Octree.DistFunction distFunction = Octree.DistFunction.EUCLIDEAN;
+	private double epsilon = 0;
+	private boolean lookupTableEnabled = false;
+	private double splitVariance = Double.POSITIVE_INFINITY;
+	private int minTileSize = ImageProcessor.DEFAULT_MIN_TILE_SIZE;
+	private int signatureGrid = 1;
+
+	/**
+	 * Constructs a CommandLine with the default options.
+	 */
+	private CommandLine() {
+	}
+
+	/**
+	 * This method parses the given arguments, creates the photomosaic, and returns the exit code.
+	 * 
+	 * @param args the command-line arguments
+	 * @return SUCCESS if the photomosaic was created, FAILURE if it could not be created, or
+	 *         USAGE_ERROR if the arguments are invalid
+	 */
+	public static int run(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		CommandLine commandLine = new CommandLine();
+		try {
+			if (!commandLine.parse(args)) {
+				System.out.println(USAGE);
+				return SUCCESS;
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.println(USAGE);
+			return USAGE_ERROR;
+		}
+		return commandLine.createPhotomosaic() ? SUCCESS : FAILURE;
+	}
+
+	/**
+	 * This method parses the given arguments and stores the options.
+	 * 
+	 * @param args the command-line arguments
+	 * @return false if the usage message was requested and true otherwise
+	 * @throws IllegalArgumentException if the arguments are invalid
+	 */
+	private boolean parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--image":
+				imagePath = getValue(args, ++i);
+				break;
+			case "--library":
+				directory = getValue(args, ++i);
+				break;
+			case "--tile":
+				String tile = getValue(args, ++i);
+				int separator = tile.toLowerCase().indexOf('x');
+				String width = (separator < 0) ? tile : tile.substring(0, separator);
+				tileWidth = parseInt("--tile", width, 1, Integer.MAX_VALUE);
+				tileHeight = (separator < 0) ? tileWidth
+						: parseInt("--tile", tile.substring(separator + 1), 1, Integer.MAX_VALUE);
+				break;
+			case "--transparency":
+				transparencyPercent = parseInt("--transparency", getValue(args, ++i), 0, 100);
+				break;
+			case "--out":
+				outputPath = getValue(args, ++i);
+				break;
+			case "--threads":
+				threadCount = parseInt("--threads", getValue(args, ++i), 1, Integer.MAX_VALUE);
+				break;
+			case "--no-cache":
+				cacheEnabled = false;
+				break;
+			case "--checksum":
+				checksumEnabled = true;
+				break;
+			case "--metric":
+				distFunction = parseMetric(getValue(args, ++i));
+				break;
+			case "--epsilon":
+				epsilon = parseDouble("--epsilon", getValue(args, ++i));
+				break;
+			case "--lookup-table":
+				lookupTableEnabled = true;
+				break;
+			case "--split-variance":
+				splitVariance = parseDouble("--split-variance", getValue(args, ++i));
+				break;
+			case "--min-tile":
+				minTileSize = parseInt("--min-tile", getValue(args, ++i), 1, Integer.MAX_VALUE);
+				break;
+			case "--signature":
+				signatureGrid = parseInt("--signature", getValue(args, ++i), 1,
+						ImageProcessor.MAX_SIGNATURE_GRID);
+				break;
+			case "--help":
+				return false;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		if (imagePath == null)
+			throw new IllegalArgumentException("--image is required");
+		if (directory == null)
+			throw new IllegalArgumentException("--library is required");
+		if (!new File(imagePath).isFile())
+			throw new IllegalArgumentException(imagePath + " is not a file");
+		if (!new File(directory).isDirectory())
+			throw new IllegalArgumentException(directory + " is not a folder");
+		return true;
+	}
+
+	/**
+	 * This method returns the argument at the given index, which is the value of the option
+	 * preceding it.
+	 * 
+	 * @param args  the command-line arguments
+	 * @param index the index of the value
+	 * @return the value at the given index
+	 * @throws IllegalArgumentException if there is no argument at the given index
+	 */
+	private static String getValue(String[] args, int index) {
+		if (index >= args.length)
+			throw new IllegalArgumentException(args[index - 1] + " requires a value");
+		return args[index];
+	}
+
+	/**
+	 * This method parses an integer option and checks that it is within the given range.
+	 * 
+	 * @param option the name of the option
+	 * @param value  the value to parse
+	 * @param min    the minimum allowed value
+	 * @param max    the maximum allowed value
+	 * @return the parsed value
+	 * @throws IllegalArgumentException if the value is not an integer or is out of range
+	 */
+	private static int parseInt(String option, String value, int min, int max) {
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(option + " requires an integer value");
+		}
+		if ((result < min) || (result > max))
+			throw new IllegalArgumentException(
+					option + " must be between " + min + " and " + max);
+		return result;
+	}
+
+	/**
+	 * This method parses a numeric option and checks that it is finite and not negative.
+	 * 
+	 * @param option the name of the option
+	 * @param value  the value to parse
+	 * @return the parsed value
+	 * @throws IllegalArgumentException if the value is not a number or is out of range
+	 */
+	private static double parseDouble(String option, String value) {
+		double result;
+		try {
+			result = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(option + " requires a numeric value");
+		}
+		if (!(result >= 0) || Double.isInfinite(result))
+			throw new IllegalArgumentException(option + " must be a finite number of at least 0");
+		return result;
+	}
+
+	/**
+	 * This method returns the DistFunction with the given name.
+	 * 
+	 * @param name the name of the DistFunction
+	 * @return the DistFunction
+	 * @throws IllegalArgumentException if there is no DistFunction with the given name
+	 */
+	private static Octree.DistFunction parseMetric(String name) {
+		switch (name) {
+		case "euclidean":
+			return Octree.DistFunction.EUCLIDEAN;
+		case "weighted-rgb":
+			return Octree.DistFunction.WEIGHTED_RGB;
+		case "manhattan":
+			return Octree.DistFunction.MANHATTAN;
+		case "chebyshev":
+			return Octree.DistFunction.CHEBYSHEV;
+		default:
+			throw new IllegalArgumentException("unknown metric " + name);
+		}
+	}
+
+	/**
+	 * This method prints how many cells were matched from the cache of tiles already matched to
+	 * the same color.
+	 * 
+	 * @param hits   the number of cells whose tiles were found in the cache
+	 * @param misses the number of cells whose tiles were searched for
+	 */
+	private static void printMatchCacheStats(long hits, long misses) {
+		long cells = hits + misses;
+		System.out.printf("Matched %d cells, %d (%.1f%%) from the match cache%n", cells, hits,
+				(cells == 0) ? 0.0 : (100.0 * hits / cells));
+	}
+
+	/**
+	 * This method creates the photomosaic with the parsed options.
+	 * 
+	 * @return true if successful and false otherwise
+	 */
+	private boolean createPhotomosaic() {
+		ImageProcessor processor = new ImageProcessor();
+		processor.setThreadCount(threadCount);
+		processor.setDistFunction(distFunction);
+		processor.setEpsilon(epsilon);
+		processor.setLookupTableEnabled(lookupTableEnabled);
+		processor.setSplitVariance(splitVariance);
+		processor.setMinTileSize(minTileSize);
+		processor.setSignatureGrid(signatureGrid);
+		CacheManager.getInstance().setChecksumEnabled(checksumEnabled);
+		boolean result = processor.createPhotomosaic(tileWidth, tileHeight, transparencyPercent,
+				imagePath, directory, cacheEnabled, outputPath);
+		if (result && processor.isSignatureLimited())
+			System.err.println("Warning: more than " + ImageProcessor.MAX_SIGNATURE_TILES
+					+ " images of the library could be read, so cells were matched by average color"
+					+ " instead of --signature " + signatureGrid + ".");
+		if (!result)
+			System.err.println("Error: unable to create photomosaic from " + imagePath + " and "
+					+ directory + ".");
+		else if (processor.getMatchCacheHits() + processor.getMatchCacheMisses() > 0)
+			printMatchCacheStats(processor.getMatchCacheHits(), processor.getMatchCacheMisses());
+		else
+			System.out.printf("Matched %d cells%n", processor.getCellCount());
+		return result;
+	}
+}
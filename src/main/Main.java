@@ -8,6 +8,12 @@ import ui.UserInterface;
 
 public class Main {
 	public static void main(String[] args) {
+		// if any arguments were given, create the photomosaic from the command line without starting
+		// the user interface
+		if (args.length > 0) {
+			System.exit(CommandLine.run(args));
+		}
+
 		// if heap size is less than 1GB, restart in a new process with a larger heap and wait for
 		// that process to finish
 		if (Runtime.getRuntime().maxMemory() < 1_000_000_000) {
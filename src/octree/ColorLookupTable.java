@@ -0,0 +1,251 @@
+package octree;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lookup table which finds the value of the entry of a CompactOctree nearest to any point whose
+ * coordinates are integers between 0 and 255, such as a 24-bit RGB color. A ColorLookupTable is
+ * created with CompactOctree.createLookupTable() and is intended for matching very many colors
+ * against one fixed tree, since building it costs about as much as tens of thousands of nearest
+ * neighbor searches, but each lookup afterwards only reads a few array elements.
+ * 
+ * The 2^24 points are divided into a grid of cubic cells, from 32^3 cells of 8^3 points for trees of
+ * fewer than 2^15 entries to 128^3 cells of 2^3 points for trees of at least 2^18 entries, so that
+ * larger trees still have only a few entries near each cell. For each cell, the table stores the
+ * candidate entries which may be nearest to at least one point of the cell: an entry is a
+ * candidate unless its distance from the cell is greater than the largest distance between the
+ * cell and some other entry, since that entry is then nearer to every point of the cell. Most
+ * cells only have a few candidates, and a lookup compares the point to each candidate of its cell,
+ * so it gives the same results as CompactOctree.getNearestValue(), except that a different entry
+ * may be chosen if several are equally near. Only the first value of keys with several values is
+ * kept, as getNearestValue() only returns the first value.
+ * 
+ * The cells are filled in parallel by fork/join tasks, which run in the current ForkJoinPool if the
+ * table is created from one. This class is thread-safe, since it cannot be modified after it is
+ * created.
+ */
+public class ColorLookupTable<T> {
+	private static final int MIN_GRID_BITS = 5;
+	private static final int MAX_GRID_BITS = 7;
+	private static final int TASK_CELLS = 1 << 9;
+	private static final String OUT_OF_BOUNDS = "The coordinates must be between 0 and 255.";
+	private final Metric metric;
+
+	// the grid has 2^gridBits cells along each axis, and each cell is 2^cellBits points wide
+	private final int gridBits, cellBits, cellCount;
+
+	// the candidates of cell i are at indexes cellStart[i] to cellStart[i + 1] - 1
+	private final int[] cellStart;
+	private final double[] xs, ys, zs;
+	private final Object[] values;
+
+	/**
+	 * Constructs a ColorLookupTable for the given CompactOctree.
+	 * 
+	 * @param tree the CompactOctree
+	 */
+	ColorLookupTable(CompactOctree<T> tree) {
+		metric = tree.getMetric();
+		int sizeBits = 32 - Integer.numberOfLeadingZeros(tree.size());
+		gridBits = Math.max(MIN_GRID_BITS, Math.min(MAX_GRID_BITS, (sizeBits + 2) / 3));
+		cellBits = 8 - gridBits;
+		cellCount = 1 << (3 * gridBits);
+
+		// find the candidates of every cell in parallel, then copy them into one array
+		int[][] cells = new int[cellCount][];
+		new BuildTask(tree, cells, 0, cellCount).invoke();
+		cellStart = new int[cellCount + 1];
+		for (int i = 0; i < cellCount; i++) {
+			cellStart[i + 1] = cellStart[i] + cells[i].length;
+		}
+		int count = cellStart[cellCount];
+		xs = new double[count];
+		ys = new double[count];
+		zs = new double[count];
+		values = new Object[count];
+		for (int i = 0; i < cellCount; i++) {
+			int candidate = cellStart[i];
+			for (int index : cells[i]) {
+				xs[candidate] = tree.getX(index);
+				ys[candidate] = tree.getY(index);
+				zs[candidate] = tree.getZ(index);
+				values[candidate++] = tree.getValue(index);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified point, or null if the tree is empty.
+	 * 
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @param z the z coordinate of the point
+	 * @return the value of the entry nearest to the specified point
+	 * @throws IllegalArgumentException if a coordinate is not between 0 and 255
+	 */
+	@SuppressWarnings("unchecked")
+	public T getNearestValue(int x, int y, int z) {
+		if (((x | y | z) & ~0xFF) != 0)
+			throw new IllegalArgumentException(OUT_OF_BOUNDS);
+		int cell = ((x >> cellBits) << (2 * gridBits)) | ((y >> cellBits) << gridBits)
+				| (z >> cellBits);
+		int start = cellStart[cell];
+		int end = cellStart[cell + 1];
+		if (start == end)
+			return null;
+
+		// compare the point to every candidate of its cell, unless there is only one
+		int nearest = start;
+		if (end - start > 1) {
+			double nearestDist = metric.getDist(xs[start], ys[start], zs[start], x, y, z);
+			for (int i = start + 1; i < end; i++) {
+				double dist = metric.getDist(xs[i], ys[i], zs[i], x, y, z);
+				if (dist < nearestDist) {
+					nearest = i;
+					nearestDist = dist;
+				}
+			}
+		}
+		return (T) values[nearest];
+	}
+
+	/**
+	 * Returns the number of candidate entries stored for all cells. Each entry is usually a
+	 * candidate of several cells, so this can be more than the size of the tree.
+	 * 
+	 * @return the number of candidates
+	 */
+	public int getCandidateCount() {
+		return cellStart[cellCount];
+	}
+
+	/**
+	 * This method returns the largest distance between the given point and a point of the
+	 * specified cell.
+	 * 
+	 * @param cellXMin the minimum x coordinate of the cell
+	 * @param cellYMin the minimum y coordinate of the cell
+	 * @param cellZMin the minimum z coordinate of the cell
+	 * @param x        the x coordinate of the point
+	 * @param y        the y coordinate of the point
+	 * @param z        the z coordinate of the point
+	 * @return the largest distance from the point to the cell
+	 */
+	private double getMaxDist(int cellXMin, int cellYMin, int cellZMin, double x, double y,
+			double z) {
+		int size = (1 << cellBits) - 1;
+		double xDiff = Math.max(Math.abs(x - cellXMin), Math.abs(x - (cellXMin + size)));
+		double yDiff = Math.max(Math.abs(y - cellYMin), Math.abs(y - (cellYMin + size)));
+		double zDiff = Math.max(Math.abs(z - cellZMin), Math.abs(z - (cellZMin + size)));
+		return metric.getDist(xDiff, yDiff, zDiff);
+	}
+
+	/**
+	 * This method returns the smallest distance between the given point and a point of the
+	 * specified cell, which is 0 if the point is inside the cell.
+	 * 
+	 * @param cellXMin the minimum x coordinate of the cell
+	 * @param cellYMin the minimum y coordinate of the cell
+	 * @param cellZMin the minimum z coordinate of the cell
+	 * @param x        the x coordinate of the point
+	 * @param y        the y coordinate of the point
+	 * @param z        the z coordinate of the point
+	 * @return the smallest distance from the point to the cell
+	 */
+	private double getMinDist(int cellXMin, int cellYMin, int cellZMin, double x, double y,
+			double z) {
+		int size = (1 << cellBits) - 1;
+		return metric.getDist(cellXMin, cellXMin + size, cellYMin, cellYMin + size, cellZMin,
+				cellZMin + size, x, y, z);
+	}
+
+	/**
+	 * Fork/join task which finds the candidates of a range of cells. Ranges of more than TASK_CELLS
+	 * cells are split in half.
+	 */
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final CompactOctree<T> tree;
+		private final int[][] cells;
+		private final int start, end;
+
+		/**
+		 * Constructs a BuildTask for the specified range of cells.
+		 * 
+		 * @param tree  the CompactOctree
+		 * @param cells the array to store the indexes of the candidates of each cell in
+		 * @param start the first cell of the range
+		 * @param end   the cell after the last cell of the range
+		 */
+		public BuildTask(CompactOctree<T> tree, int[][] cells, int start, int end) {
+			this.tree = tree;
+			this.cells = cells;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// split large ranges in half
+			if (end - start > TASK_CELLS) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new BuildTask(tree, cells, start, mid),
+						new BuildTask(tree, cells, mid, end));
+				return;
+			}
+			for (int cell = start; cell < end; cell++) {
+				cells[cell] = getCandidates(cell);
+			}
+		}
+
+		/**
+		 * This method finds the indexes of the candidates of the specified cell. No point of the
+		 * cell is farther from the entry nearest to the center of the cell than the largest
+		 * distance between that entry and the cell, so only entries whose distance from the cell
+		 * is at most that distance are considered. The bound is then tightened to the smallest
+		 * largest distance of any of those entries.
+		 * 
+		 * @param cell the cell
+		 * @return the indexes of the candidates
+		 */
+		private int[] getCandidates(int cell) {
+			int cellXMin = (cell >> (2 * gridBits)) << cellBits;
+			int cellYMin = ((cell >> gridBits) & ((1 << gridBits) - 1)) << cellBits;
+			int cellZMin = (cell & ((1 << gridBits) - 1)) << cellBits;
+			double half = ((1 << cellBits) - 1) / 2.0;
+			int nearest = tree.findNearest(cellXMin + half, cellYMin + half, cellZMin + half);
+			if (nearest < 0)
+				return new int[0];
+
+			// find the entries near enough to the cell to be candidates
+			int size = (1 << cellBits) - 1;
+			double maxDist = getMaxDist(cellXMin, cellYMin, cellZMin, tree.getX(nearest),
+					tree.getY(nearest), tree.getZ(nearest));
+			int[] indexes = tree.getIndexes(
+					(xMin, xMax, yMin, yMax, zMin, zMax) -> metric.getDist(
+							Math.max(0, Math.max(xMin - (cellXMin + size), cellXMin - xMax)),
+							Math.max(0, Math.max(yMin - (cellYMin + size), cellYMin - yMax)),
+							Math.max(0, Math.max(zMin - (cellZMin + size), cellZMin - zMax)))
+							<= maxDist);
+			double bound = maxDist;
+			for (int index : indexes) {
+				bound = Math.min(bound, getMaxDist(cellXMin, cellYMin, cellZMin, tree.getX(index),
+						tree.getY(index), tree.getZ(index)));
+			}
+
+			// keep the entries which are still near enough, skipping the later values of a key,
+			// which are stored right after its first value
+			int count = 0;
+			for (int i = 0; i < indexes.length; i++) {
+				int index = indexes[i];
+				if ((i > 0) && tree.hasSameKey(index, indexes[i - 1]))
+					continue;
+				if (getMinDist(cellXMin, cellYMin, cellZMin, tree.getX(index), tree.getY(index),
+						tree.getZ(index)) <= bound)
+					indexes[count++] = index;
+			}
+			return Arrays.copyOf(indexes, count);
+		}
+	}
+}
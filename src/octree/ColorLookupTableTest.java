@@ -0,0 +1,166 @@
+package octree;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import javafx.geometry.Point3D;
+
+import org.junit.jupiter.api.Test;
+
+class ColorLookupTableTest {
+	static Random random = new Random();
+	static final int NUM_ENTRIES = 10_000;
+
+	/**
+	 * Tests the time to build a ColorLookupTable and to look up colors in it compared to searching
+	 * the CompactOctree it was created from, one color at a time and in batches. This test does not
+	 * include any assertions; results will be printed and can be compared manually. Note that this
+	 * is much slower than the other tests.
+	 */
+//	@Test
+	void testEfficiency() {
+		int[] librarySizes = { 100, 1_000, 10_000, 100_000 };
+		int numQueries = 4_000_000; // the number of colors to match
+
+		int[] queries = new int[numQueries];
+		for (int i = 0; i < numQueries; i++) {
+			queries[i] = random.nextInt(1 << 24);
+		}
+		double[] reds = new double[numQueries];
+		double[] greens = new double[numQueries];
+		double[] blues = new double[numQueries];
+		for (int i = 0; i < numQueries; i++) {
+			reds[i] = queries[i] >> 16;
+			greens[i] = (queries[i] >> 8) & 0xFF;
+			blues[i] = queries[i] & 0xFF;
+		}
+		Integer[] results = new Integer[numQueries];
+		for (int round = 0; round < 2; round++) {
+			for (int librarySize : librarySizes) {
+				Octree<Integer> octree = new Octree<>(0, 255);
+				for (int i = 0; i < librarySize; i++) {
+					octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+				}
+				CompactOctree<Integer> compact = octree.freeze();
+
+				long start = System.currentTimeMillis();
+				ColorLookupTable<Integer> table = compact.createLookupTable();
+				long buildTime = System.currentTimeMillis() - start;
+				start = System.currentTimeMillis();
+				for (int query : queries) {
+					table.getNearestValue(query >> 16, (query >> 8) & 0xFF, query & 0xFF);
+				}
+				long tableTime = System.currentTimeMillis() - start;
+				start = System.currentTimeMillis();
+				for (int i = 0; i < numQueries; i++) {
+					compact.getNearestValue(reds[i], greens[i], blues[i]);
+				}
+				long searchTime = System.currentTimeMillis() - start;
+				start = System.currentTimeMillis();
+				compact.getNearestValues(reds, greens, blues, results);
+				long batchTime = System.currentTimeMillis() - start;
+
+				// print the results
+				System.out.println(librarySize + " colors: built table with "
+						+ table.getCandidateCount() + " candidates in " + buildTime + "ms; "
+						+ numQueries + " lookups " + tableTime + "ms, searches " + searchTime
+						+ "ms, batch search " + batchTime + "ms");
+			}
+		}
+	}
+
+	/**
+	 * Tests that a ColorLookupTable finds entries as near as the CompactOctree it was created from
+	 * with each built-in DistFunction, for uniformly distributed and for clustered colors.
+	 */
+	@Test
+	void testGetNearestValue() {
+		Octree.DistFunction[] distFunctions = { Octree.DistFunction.EUCLIDEAN,
+				Octree.DistFunction.MANHATTAN, Octree.DistFunction.CHEBYSHEV,
+				Octree.DistFunction.WEIGHTED_RGB };
+		for (Octree.DistFunction distFunction : distFunctions) {
+			for (boolean clustered : new boolean[] { false, true }) {
+				// use a tree which maps each key to itself so the distance of each result can be
+				// checked
+				Octree<Point3D> octree = new Octree<>(0, 255, distFunction);
+				int size = clustered ? NUM_ENTRIES / 10 : NUM_ENTRIES;
+				for (int i = 0; i < size; i++) {
+					Point3D key = clustered
+							? new Point3D(64 + random.nextInt(32), 192 + random.nextInt(32),
+									random.nextInt(16))
+							: new Point3D(random.nextInt(256), random.nextInt(256),
+									random.nextInt(256));
+					octree.put(key, key);
+				}
+				CompactOctree<Point3D> compact = octree.freeze();
+				ColorLookupTable<Point3D> table = compact.createLookupTable();
+				for (int i = 0; i < 100_000; i++) {
+					int x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+					assertEquals(getDist(distFunction, x, y, z, compact.getNearestKey(x, y, z)),
+							getDist(distFunction, x, y, z, table.getNearestValue(x, y, z)));
+				}
+
+				// test every color of the corner cells
+				for (int x = 0; x < 16; x++) {
+					for (int y = 240; y < 256; y++) {
+						for (int z = 0; z < 16; z++) {
+							assertEquals(
+									getDist(distFunction, x, y, z, compact.getNearestKey(x, y, z)),
+									getDist(distFunction, x, y, z,
+											table.getNearestValue(x, y, z)));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that a ColorLookupTable returns the first value of a key with several values, null
+	 * for an empty tree, and throws exceptions for coordinates out of range.
+	 */
+	@Test
+	void testEdgeCases() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		octree.add(10, 20, 30, 1);
+		octree.add(10, 20, 30, 2);
+		octree.add(200, 200, 200, 3);
+		ColorLookupTable<Integer> table = octree.freeze().createLookupTable();
+		assertEquals(Integer.valueOf(1), table.getNearestValue(0, 0, 0));
+		assertEquals(Integer.valueOf(1), table.getNearestValue(10, 20, 30));
+		assertEquals(Integer.valueOf(3), table.getNearestValue(255, 255, 255));
+		assertEquals(Integer.valueOf(3), table.getNearestValue(106, 111, 116));
+		assertEquals(Integer.valueOf(1), table.getNearestValue(104, 110, 115));
+
+		// points outside the bounds of the tree can be keys too
+		Octree<Integer> unbounded = new Octree<>();
+		unbounded.put(-1000, 0, 0, 1);
+		unbounded.put(1000, 255, 255, 2);
+		table = unbounded.freeze().createLookupTable();
+		assertEquals(Integer.valueOf(1), table.getNearestValue(0, 0, 0));
+		assertEquals(Integer.valueOf(2), table.getNearestValue(255, 255, 255));
+
+		ColorLookupTable<Integer> empty = new Octree<Integer>(0, 255).freeze().createLookupTable();
+		assertNull(empty.getNearestValue(0, 0, 0));
+		assertEquals(0, empty.getCandidateCount());
+		assertThrows(IllegalArgumentException.class, () -> empty.getNearestValue(256, 0, 0));
+		assertThrows(IllegalArgumentException.class, () -> empty.getNearestValue(0, -1, 0));
+	}
+
+	/**
+	 * This method returns the distance of a key from a location.
+	 * 
+	 * @param distFunction the function used to calculate distances
+	 * @param x            the x coordinate of the location
+	 * @param y            the y coordinate of the location
+	 * @param z            the z coordinate of the location
+	 * @param key          the key
+	 * @return the distance of the key
+	 */
+	private static double getDist(Octree.DistFunction distFunction, double x, double y, double z,
+			Point3D key) {
+		return distFunction.getDist(Math.abs(key.getX() - x), Math.abs(key.getY() - y),
+				Math.abs(key.getZ() - z));
+	}
+}
@@ -0,0 +1,1267 @@
+package octree;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javafx.geometry.Point3D;
+
+/**
+ * Immutable, array-backed Octree which maps points in a region of 3-dimensional space to Objects of
+ * a specified type. A CompactOctree is created from an Octree with Octree.freeze() and is intended
+ * for trees which are built once and then queried many times, such as the image tiles of a
+ * photomosaic.
+ * 
+ * Instead of one object per node, the nodes are stored in parallel primitive arrays and refer to
+ * their children by int index. The children of each node are stored next to each other, so a node
+ * only needs the index of its first child and a bit mask of the octants which have children. Node
+ * bounds are not stored at all; they are derived while descending from the root, since every child
+ * covers exactly one octant of its parent. Keys are stored in three double arrays and values in a
+ * side array, ordered so the entries of every subtree are contiguous, and each leaf holds a small
+ * bucket of up to LEAF_SIZE entries instead of a single entry. This uses several times less memory
+ * per entry than an Octree and keeps the entries examined by a nearest neighbor search close
+ * together in memory.
+ * 
+ * Nodes are split in the same way as in an Octree: a point on the center plane of a node belongs
+ * to the lower octant. Nearest neighbor searches use the tree's DistFunction, and if several
+ * entries are equally near to the target, the entries stored first are returned, whichever entry
+ * the search started from, so an exact search always gives the same result. Searches given an
+ * epsilon are approximate, as in an Octree, and may return entries up to (1 + epsilon) times
+ * farther than the nearest ones.
+ * 
+ * If the Octree mapped a key to several values with Octree.add(), the CompactOctree contains one
+ * entry for each of them. Entries with the same key are never split among several nodes, so a
+ * leaf may hold more than LEAF_SIZE entries if they all have the same key.
+ * 
+ * This class is thread-safe, since it cannot be modified after it is created. Mutating operations
+ * throw UnsupportedOperationException.
+ */
+public class CompactOctree<T> extends AbstractMap<Point3D, T> {
+	private static final int LEAF_SIZE = 8;
+	private static final int MAX_DEPTH = 64;
+	private static final int MORTON_BITS = 10;
+	private static final int BATCH_THRESHOLD = 1 << 12;
+	private final double xMin, xMax, yMin, yMax, zMin, zMax;
+	private final Octree.DistFunction distFunction;
+	private final Metric metric;
+	private final int size;
+
+	// entries, ordered so the entries of each subtree are contiguous
+	private final double[] xs, ys, zs;
+	private final Object[] values;
+
+	// nodes; the root is node 0
+	private int nodeCount = 0;
+	private int[] firstChild, entryStart, entryEnd;
+	private byte[] childMask;
+
+	private final Set<Map.Entry<Point3D, T>> entrySet = new EntrySet();
+
+	/**
+	 * Constructs a CompactOctree with the specified bounds and entries. The arrays are reordered and
+	 * kept by the CompactOctree, so they must not be used by the caller afterwards.
+	 * 
+	 * @param xMin         the minimum x value
+	 * @param xMax         the maximum x value
+	 * @param yMin         the minimum y value
+	 * @param yMax         the maximum y value
+	 * @param zMin         the minimum z value
+	 * @param zMax         the maximum z value
+	 * @param distFunction the function used to calculate distances for nearest neighbor searches
+	 * @param xs           the x coordinates of the keys
+	 * @param ys           the y coordinates of the keys
+	 * @param zs           the z coordinates of the keys
+	 * @param values       the values, in the same order as the keys
+	 */
+	CompactOctree(double xMin, double xMax, double yMin, double yMax, double zMin, double zMax,
+			Octree.DistFunction distFunction, double[] xs, double[] ys, double[] zs,
+			Object[] values) {
+		this.xMin = xMin;
+		this.xMax = xMax;
+		this.yMin = yMin;
+		this.yMax = yMax;
+		this.zMin = zMin;
+		this.zMax = zMax;
+		this.distFunction = distFunction;
+		this.metric = new Metric(distFunction);
+		this.size = xs.length;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.values = values;
+
+		int capacity = Math.max(1, 2 * size / LEAF_SIZE);
+		firstChild = new int[capacity];
+		entryStart = new int[capacity];
+		entryEnd = new int[capacity];
+		childMask = new byte[capacity];
+		if (size == 0)
+			return;
+
+		// sort a permutation of the entries into the nodes, then reorder the entries to match it
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		allocateNodes(1);
+		build(0, 0, size, xMin, xMax, yMin, yMax, zMin, zMax, 0, order, new int[size],
+				new byte[size]);
+		reorder(order);
+		firstChild = Arrays.copyOf(firstChild, nodeCount);
+		entryStart = Arrays.copyOf(entryStart, nodeCount);
+		entryEnd = Arrays.copyOf(entryEnd, nodeCount);
+		childMask = Arrays.copyOf(childMask, nodeCount);
+	}
+
+	/**
+	 * This method reserves the specified number of consecutive nodes.
+	 * 
+	 * @param count the number of nodes to reserve
+	 * @return the index of the first reserved node
+	 */
+	private int allocateNodes(int count) {
+		int first = nodeCount;
+		nodeCount += count;
+		if (nodeCount > firstChild.length) {
+			int capacity = Math.max(nodeCount, 2 * firstChild.length);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			entryStart = Arrays.copyOf(entryStart, capacity);
+			entryEnd = Arrays.copyOf(entryEnd, capacity);
+			childMask = Arrays.copyOf(childMask, capacity);
+		}
+		return first;
+	}
+
+	/**
+	 * This method builds the specified node from the entries in the given range of the
+	 * permutation, partitioning them among the node's children if there are too many for a leaf.
+	 * 
+	 * @param node    the index of the node to build
+	 * @param start   the start of the node's range of the permutation
+	 * @param end     the end of the node's range of the permutation
+	 * @param xMin    the minimum x coordinate the node covers
+	 * @param xMax    the maximum x coordinate the node covers
+	 * @param yMin    the minimum y coordinate the node covers
+	 * @param yMax    the maximum y coordinate the node covers
+	 * @param zMin    the minimum z coordinate the node covers
+	 * @param zMax    the maximum z coordinate the node covers
+	 * @param depth   the depth of the node
+	 * @param order   the permutation of the entries
+	 * @param buffer  a scratch array at least as long as the permutation
+	 * @param octants a scratch array at least as long as the permutation
+	 */
+	private void build(int node, int start, int end, double xMin, double xMax, double yMin,
+			double yMax, double zMin, double zMax, int depth, int[] order, int[] buffer,
+			byte[] octants) {
+		entryStart[node] = start;
+		entryEnd[node] = end;
+		if ((end - start <= LEAF_SIZE) || (depth == MAX_DEPTH) || hasOneKey(start, end, order)) {
+			firstChild[node] = -1;
+			return;
+		}
+
+		// count the entries in each octant
+		double x = (xMin + xMax) / 2;
+		double y = (yMin + yMax) / 2;
+		double z = (zMin + zMax) / 2;
+		int[] counts = new int[9];
+		for (int i = start; i < end; i++) {
+			int entry = order[i];
+			int octant = getOctant(xs[entry], ys[entry], zs[entry], x, y, z);
+			octants[i] = (byte) octant;
+			counts[octant + 1]++;
+		}
+
+		// sort the entries by octant
+		int mask = 0;
+		int children = 0;
+		for (int octant = 0; octant < 8; octant++) {
+			if (counts[octant + 1] > 0) {
+				mask |= 1 << octant;
+				children++;
+			}
+			counts[octant + 1] += counts[octant];
+		}
+		// after this loop, counts[octant] is the end of the octant's range rather than its start
+		for (int i = start; i < end; i++) {
+			buffer[start + counts[octants[i]]++] = order[i];
+		}
+		System.arraycopy(buffer, start, order, start, end - start);
+
+		// build the children, which are stored next to each other in octant order
+		int first = allocateNodes(children);
+		firstChild[node] = first;
+		childMask[node] = (byte) mask;
+		int childStart = start;
+		for (int octant = 0, child = first; octant < 8; octant++) {
+			if ((mask & (1 << octant)) == 0)
+				continue;
+			boolean xGreater = (octant & 4) != 0;
+			boolean yGreater = (octant & 2) != 0;
+			boolean zGreater = (octant & 1) != 0;
+			int childEnd = start + counts[octant];
+			build(child++, childStart, childEnd, xGreater ? x : xMin, xGreater ? xMax : x,
+					yGreater ? y : yMin, yGreater ? yMax : y, zGreater ? z : zMin,
+					zGreater ? zMax : z, depth + 1, order, buffer, octants);
+			childStart = childEnd;
+		}
+	}
+
+	/**
+	 * This method checks whether all entries in the given range of the permutation have the same
+	 * key, in which case splitting them would never separate them.
+	 * 
+	 * @param start the start of the range
+	 * @param end   the end of the range
+	 * @param order the permutation of the entries
+	 * @return true if all entries in the range have the same key and false otherwise
+	 */
+	private boolean hasOneKey(int start, int end, int[] order) {
+		int first = order[start];
+		for (int i = start + 1; i < end; i++) {
+			int entry = order[i];
+			if ((xs[entry] != xs[first]) || (ys[entry] != ys[first]) || (zs[entry] != zs[first]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This method reorders the entries to match the given permutation.
+	 * 
+	 * @param order the permutation, where order[i] is the current index of the entry which should
+	 *              be moved to index i
+	 */
+	private void reorder(int[] order) {
+		double[] x = xs.clone();
+		double[] y = ys.clone();
+		double[] z = zs.clone();
+		Object[] v = values.clone();
+		for (int i = 0; i < size; i++) {
+			int entry = order[i];
+			xs[i] = x[entry];
+			ys[i] = y[entry];
+			zs[i] = z[entry];
+			values[i] = v[entry];
+		}
+	}
+
+	/**
+	 * This method returns the octant of a node containing the given point, numbered in the same
+	 * way as the children of an Octree node.
+	 * 
+	 * @param x       the x coordinate of the point
+	 * @param y       the y coordinate of the point
+	 * @param z       the z coordinate of the point
+	 * @param centerX the x coordinate of the center of the node
+	 * @param centerY the y coordinate of the center of the node
+	 * @param centerZ the z coordinate of the center of the node
+	 * @return the octant containing the point
+	 */
+	private static int getOctant(double x, double y, double z, double centerX, double centerY,
+			double centerZ) {
+		return ((x > centerX) ? 4 : 0) + ((y > centerY) ? 2 : 0) + ((z > centerZ) ? 1 : 0);
+	}
+
+	/**
+	 * This method returns the index of the child of a node in the specified octant.
+	 * 
+	 * @param node   the index of the node
+	 * @param octant the octant of the child
+	 * @return the index of the child, or -1 if the node has no child in that octant
+	 */
+	private int getChild(int node, int octant) {
+		int mask = childMask[node] & 0xFF;
+		if ((mask & (1 << octant)) == 0)
+			return -1;
+		return firstChild[node] + Integer.bitCount(mask & ((1 << octant) - 1));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<Point3D, T>> entrySet() {
+		return entrySet;
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or null if this map contains no
+	 * mapping for the key.
+	 * 
+	 * @param key the key whose associated value is to be returned
+	 * @return the value to which the specified key is mapped, or null if this map contains no
+	 *         mapping for the key
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public T get(Object key) {
+		Point3D point = toPoint(key);
+		return get(point.getX(), point.getY(), point.getZ());
+	}
+
+	/**
+	 * Returns the value to which the specified key is mapped, or null if this map contains no
+	 * mapping for the key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the value to which the specified key is mapped, or null if this map contains no
+	 *         mapping for the key
+	 */
+	public T get(double x, double y, double z) {
+		int index = find(x, y, z);
+		return (index < 0) ? null : getValue(index);
+	}
+
+	/**
+	 * Returns true if this map contains a mapping for the specified key.
+	 * 
+	 * @param key key whose presence in this map is to be tested
+	 * @return true if this map contains a mapping for the specified key
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		Point3D point = toPoint(key);
+		return containsKey(point.getX(), point.getY(), point.getZ());
+	}
+
+	/**
+	 * Returns true if this map contains a mapping for the specified key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return true if this map contains a mapping for the specified key
+	 */
+	public boolean containsKey(double x, double y, double z) {
+		return find(x, y, z) >= 0;
+	}
+
+	/**
+	 * This method converts a key passed to one of the Map methods to a Point3D.
+	 * 
+	 * @param key the key to convert
+	 * @return the key as a Point3D
+	 * @throws ClassCastException   if the key is not a Point3D
+	 * @throws NullPointerException if the key is null
+	 */
+	private static Point3D toPoint(Object key) {
+		if (key == null)
+			throw new NullPointerException("This map does not support null keys.");
+		if (!(key instanceof Point3D))
+			throw new ClassCastException("The key must be a Point3D.");
+		return (Point3D) key;
+	}
+
+	/**
+	 * This method finds the index of the entry with the specified key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the index of the entry, or -1 if there is no entry with the key
+	 */
+	private int find(double x, double y, double z) {
+		if ((size == 0) || (x < xMin) || (x > xMax) || (y < yMin) || (y > yMax) || (z < zMin)
+				|| (z > zMax))
+			return -1;
+		double nodeXMin = xMin, nodeXMax = xMax;
+		double nodeYMin = yMin, nodeYMax = yMax;
+		double nodeZMin = zMin, nodeZMax = zMax;
+		int node = 0;
+		while (firstChild[node] >= 0) {
+			double centerX = (nodeXMin + nodeXMax) / 2;
+			double centerY = (nodeYMin + nodeYMax) / 2;
+			double centerZ = (nodeZMin + nodeZMax) / 2;
+			int octant = getOctant(x, y, z, centerX, centerY, centerZ);
+			node = getChild(node, octant);
+			if (node < 0)
+				return -1;
+			if ((octant & 4) != 0)
+				nodeXMin = centerX;
+			else
+				nodeXMax = centerX;
+			if ((octant & 2) != 0)
+				nodeYMin = centerY;
+			else
+				nodeYMax = centerY;
+			if ((octant & 1) != 0)
+				nodeZMin = centerZ;
+			else
+				nodeZMax = centerZ;
+		}
+		for (int i = entryStart[node]; i < entryEnd[node]; i++) {
+			if ((xs[i] == x) && (ys[i] == y) && (zs[i] == z))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the key nearest to the specified location, or null if this map is empty.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the key nearest to the specified location
+	 */
+	public Point3D getNearestKey(double x, double y, double z) {
+		int index = findNearest(x, y, z);
+		return (index < 0) ? null : getKey(index);
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified location, or null if this map is
+	 * empty. Unlike getNearestEntry(), this method does not allocate any objects.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the value of the entry nearest to the specified location
+	 */
+	public T getNearestValue(double x, double y, double z) {
+		int index = findNearest(x, y, z);
+		return (index < 0) ? null : getValue(index);
+	}
+
+	/**
+	 * Returns the entry nearest to the specified location, or null if this map is empty.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the entry nearest to the specified location
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z) {
+		int index = findNearest(x, y, z);
+		return (index < 0) ? null : getEntry(index);
+	}
+
+	/**
+	 * Returns a list of the n keys nearest to the specified location, or all keys in the map if the
+	 * size of the map is less than n, sorted by distance from the specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of keys to get
+	 * @return the n keys nearest to the specified location
+	 */
+	public List<Point3D> getNearestKeys(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Point3D> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getKey(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a list of the values of the n entries nearest to the specified location, or all
+	 * values in the map if the size of the map is less than n, sorted by distance from the
+	 * specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of values to get
+	 * @return the values of the n entries nearest to the specified location
+	 */
+	public List<T> getNearestValues(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<T> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getValue(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a list of the n entries nearest to the specified location, or all entries in the map
+	 * if the size of the map is less than n, sorted by distance from the specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of entries to get
+	 * @return the n entries nearest to the specified location
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns the entry nearest to the specified location whose value satisfies the given
+	 * predicate, or null if there is no such entry. Entries whose values are rejected are skipped
+	 * without affecting which subtrees are searched, and the predicate is only tested on entries
+	 * near enough to be the result. The predicate may itself run other searches, of this tree or
+	 * of any other.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param accept the predicate the value of the entry must satisfy
+	 * @return the nearest entry whose value satisfies the predicate
+	 * @throws NullPointerException if the predicate is null
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z,
+			Predicate<? super T> accept) {
+		NearestHeap heap = findNearest(x, y, z, 1, Objects.requireNonNull(accept), 1);
+		Map.Entry<Point3D, T> entry = (heap.size() == 0) ? null : getEntry(heap.getIndex(0));
+		heap.clear();
+		return entry;
+	}
+
+	/**
+	 * Returns a list of the n entries nearest to the specified location whose values satisfy the
+	 * given predicate, or all such entries if there are fewer than n, sorted by distance from the
+	 * specified location. The predicate may itself run other searches, of this tree or of any
+	 * other.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param n      the number of entries to get
+	 * @param accept the predicate the values of the entries must satisfy
+	 * @return the n nearest entries whose values satisfy the predicate
+	 * @throws NullPointerException if the predicate is null
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n,
+			Predicate<? super T> accept) {
+		NearestHeap heap = findNearest(x, y, z, n, Objects.requireNonNull(accept), 1);
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns an entry whose distance from the specified location is at most (1 + epsilon) times
+	 * the distance of the nearest entry, or null if this map is empty. A larger epsilon lets the
+	 * search skip more of the tree, and an epsilon of 0 gives the same result as getNearestEntry().
+	 * 
+	 * @param x       the x coordinate of the location
+	 * @param y       the y coordinate of the location
+	 * @param z       the z coordinate of the location
+	 * @param epsilon the maximum relative error of the distance of the entry
+	 * @return an entry within (1 + epsilon) times the distance of the nearest entry
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z, double epsilon) {
+		NearestHeap heap = findNearest(x, y, z, 1, null, metric.getPruneFactor(epsilon));
+		Map.Entry<Point3D, T> entry = (heap.size() == 0) ? null : getEntry(heap.getIndex(0));
+		heap.clear();
+		return entry;
+	}
+
+	/**
+	 * Returns a list of n entries, or all entries in the map if the size of the map is less than
+	 * n, sorted by distance from the specified location, such that the distance of the ith entry
+	 * is at most (1 + epsilon) times the distance of the ith nearest entry. A larger epsilon lets
+	 * the search skip more of the tree, and an epsilon of 0 gives the same result as
+	 * getNearestEntries().
+	 * 
+	 * @param x       the x coordinate of the location
+	 * @param y       the y coordinate of the location
+	 * @param z       the z coordinate of the location
+	 * @param n       the number of entries to get
+	 * @param epsilon the maximum relative error of the distances of the entries
+	 * @return n entries within (1 + epsilon) times the distances of the n nearest entries
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n,
+			double epsilon) {
+		NearestHeap heap = findNearest(x, y, z, n, null, metric.getPruneFactor(epsilon));
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Finds the value of the entry nearest to each of the specified locations and stores it in the
+	 * results array at the same index, or stores null if this map is empty. This gives the same
+	 * results as calling getNearestValue() for each location, even if several entries are equally
+	 * near, but it is faster for large batches of locations which are near to each other, such as
+	 * the colors of neighboring cells of an image.
+	 * 
+	 * The locations are searched in the order of their Morton codes, so consecutive searches are
+	 * usually near to each other. Each search starts with the previous search's result as its
+	 * nearest candidate, which lets it skip most of the tree, and a location equal to the previous
+	 * one reuses its result. Batches of at least BATCH_THRESHOLD locations are split among
+	 * fork/join tasks, which run in the current ForkJoinPool if this method is called from one.
+	 * 
+	 * @param targetXs the x coordinates of the locations
+	 * @param targetYs the y coordinates of the locations
+	 * @param targetZs the z coordinates of the locations
+	 * @param results  the array to store the values in
+	 * @throws IllegalArgumentException if the arrays do not all have the same length
+	 */
+	public void getNearestValues(double[] targetXs, double[] targetYs, double[] targetZs,
+			T[] results) {
+		getNearestValues(targetXs, targetYs, targetZs, results, 0);
+	}
+
+	/**
+	 * Finds the value of an entry whose distance from each of the specified locations is at most
+	 * (1 + epsilon) times the distance of the nearest entry, and stores it in the results array at
+	 * the same index, or stores null if this map is empty. The locations are searched in the same
+	 * way as by getNearestValues() without an epsilon, and an epsilon of 0 gives the same
+	 * results.
+	 * 
+	 * @param targetXs the x coordinates of the locations
+	 * @param targetYs the y coordinates of the locations
+	 * @param targetZs the z coordinates of the locations
+	 * @param results  the array to store the values in
+	 * @param epsilon  the maximum relative error of the distances of the entries
+	 * @throws IllegalArgumentException if the arrays do not all have the same length, or if
+	 *                                  epsilon is negative or NaN
+	 */
+	public void getNearestValues(double[] targetXs, double[] targetYs, double[] targetZs,
+			T[] results, double epsilon) {
+		double pruneFactor = metric.getPruneFactor(epsilon);
+		int count = results.length;
+		if ((targetXs.length != count) || (targetYs.length != count)
+				|| (targetZs.length != count))
+			throw new IllegalArgumentException(
+					"The coordinate and result arrays must have the same length.");
+		if (size == 0) {
+			Arrays.fill(results, null);
+			return;
+		}
+
+		// sort the locations by Morton code, keeping each location's index in the low 32 bits
+		long[] queries = new long[count];
+		for (int i = 0; i < count; i++) {
+			queries[i] = (getMortonCode(targetXs[i], targetYs[i], targetZs[i]) << 32) | i;
+		}
+		if (count >= BATCH_THRESHOLD)
+			Arrays.parallelSort(queries);
+		else
+			Arrays.sort(queries);
+		new BatchTask(targetXs, targetYs, targetZs, results, pruneFactor, queries, 0, count)
+				.invoke();
+	}
+
+	/**
+	 * This method returns the Morton code of the specified location, which interleaves the bits of
+	 * its coordinates after scaling each of them to MORTON_BITS bits within the bounds of the tree.
+	 * Locations with close Morton codes are usually close to each other.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the Morton code of the location
+	 */
+	private long getMortonCode(double x, double y, double z) {
+		int cellX = getCell(x, xMin, xMax);
+		int cellY = getCell(y, yMin, yMax);
+		int cellZ = getCell(z, zMin, zMax);
+		long code = 0;
+		for (int bit = MORTON_BITS - 1; bit >= 0; bit--) {
+			code = (code << 3) | (((cellX >> bit) & 1) << 2) | (((cellY >> bit) & 1) << 1)
+					| ((cellZ >> bit) & 1);
+		}
+		return code;
+	}
+
+	/**
+	 * This method scales a coordinate to an integer between 0 and 2^MORTON_BITS - 1.
+	 * 
+	 * @param value the coordinate
+	 * @param min   the minimum value of the coordinate
+	 * @param max   the maximum value of the coordinate
+	 * @return the scaled coordinate
+	 */
+	private static int getCell(double value, double min, double max) {
+		if (!(max > min))
+			return 0;
+		double cell = (value - min) / (max - min) * (1 << MORTON_BITS);
+		return (int) Math.min((1 << MORTON_BITS) - 1, Math.max(0, cell));
+	}
+
+	/**
+	 * Returns a stream of the entries whose distance from the specified location is at most the
+	 * given radius, using this tree's DistFunction. The entries are found lazily as the stream is
+	 * consumed, and subtrees whose bounds are farther from the location than the radius are never
+	 * visited.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param radius the maximum distance of an entry from the location
+	 * @return a stream of the entries within the radius of the location
+	 * @throws IllegalArgumentException if the radius is negative or NaN
+	 */
+	public Stream<Map.Entry<Point3D, T>> entriesWithin(double x, double y, double z,
+			double radius) {
+		return getRange(RangeFilter.within(metric, x, y, z, radius));
+	}
+
+	/**
+	 * Returns a stream of the entries whose keys are inside the specified box, including its
+	 * boundary. The entries are found lazily as the stream is consumed, and subtrees which do not
+	 * overlap the box are never visited.
+	 * 
+	 * @param xMin the minimum x coordinate of the box
+	 * @param xMax the maximum x coordinate of the box
+	 * @param yMin the minimum y coordinate of the box
+	 * @param yMax the maximum y coordinate of the box
+	 * @param zMin the minimum z coordinate of the box
+	 * @param zMax the maximum z coordinate of the box
+	 * @return a stream of the entries inside the box
+	 * @throws IllegalArgumentException if xMin > xMax, yMin > yMax, or zMin > zMax
+	 */
+	public Stream<Map.Entry<Point3D, T>> entriesInBox(double xMin, double xMax, double yMin,
+			double yMax, double zMin, double zMax) {
+		return getRange(RangeFilter.inBox(xMin, xMax, yMin, yMax, zMin, zMax));
+	}
+
+	/**
+	 * This method returns the indexes of the entries accepted by the given filter, in the order in
+	 * which they are stored.
+	 * 
+	 * @param filter the filter for nodes and entries
+	 * @return the indexes of the entries accepted by the filter
+	 */
+	int[] getIndexes(RangeFilter filter) {
+		RangeIterator iterator = new RangeIterator(filter);
+		int[] indexes = new int[16];
+		int count = 0;
+		while (iterator.hasNext()) {
+			if (count == indexes.length)
+				indexes = Arrays.copyOf(indexes, 2 * count);
+			indexes[count++] = iterator.nextIndex();
+		}
+		return Arrays.copyOf(indexes, count);
+	}
+
+	/**
+	 * This method returns the Metric used by nearest neighbor searches.
+	 * 
+	 * @return the Metric
+	 */
+	Metric getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Returns a ColorLookupTable which finds the value of the entry nearest to any point with
+	 * integer coordinates between 0 and 255, such as a 24-bit RGB color, using this tree's
+	 * DistFunction. Building the table takes about as long as several tens of thousands of nearest
+	 * neighbor searches, after which each lookup only reads a few array elements, so it is faster
+	 * than searching the tree when matching very many colors. The table is built by fork/join
+	 * tasks, which run in the current ForkJoinPool if this method is called from one.
+	 * 
+	 * @return a ColorLookupTable for this tree
+	 */
+	public ColorLookupTable<T> createLookupTable() {
+		return new ColorLookupTable<>(this);
+	}
+
+	/**
+	 * This method returns a sequential stream of the entries accepted by the given filter.
+	 * 
+	 * @param filter the filter for nodes and entries
+	 * @return a stream of the entries accepted by the filter
+	 */
+	private Stream<Map.Entry<Point3D, T>> getRange(RangeFilter filter) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new RangeIterator(filter),
+				Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+	}
+
+	/**
+	 * This method finds the index of the entry nearest to the specified location without
+	 * allocating any objects.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the index of the nearest entry, or -1 if this map is empty
+	 */
+	int findNearest(double x, double y, double z) {
+		return findNearestFrom(-1, x, y, z, 1);
+	}
+
+	/**
+	 * This method finds the index of the entry nearest to the specified location, starting with
+	 * the given entry as the nearest candidate. The nearer the candidate is to the location, the
+	 * more of the tree the search can skip. With a prune factor greater than 1, the search is
+	 * approximate.
+	 * 
+	 * @param candidate   the index of the entry to start with, or -1 to start with no candidate
+	 * @param x           the x coordinate of the location
+	 * @param y           the y coordinate of the location
+	 * @param z           the z coordinate of the location
+	 * @param pruneFactor the prune factor of the heap, or 1 for an exact search
+	 * @return the index of the nearest entry, or -1 if this map is empty
+	 */
+	private int findNearestFrom(int candidate, double x, double y, double z, double pruneFactor) {
+		NearestHeap heap = NearestHeap.get(1, pruneFactor, true);
+		if (size > 0) {
+			if (candidate >= 0)
+				heap.add(metric.getDist(xs[candidate], ys[candidate], zs[candidate], x, y, z),
+						null, candidate);
+			findNearest(0, xMin, xMax, yMin, yMax, zMin, zMax, x, y, z, heap, null);
+		}
+		int index = (heap.size() == 0) ? -1 : heap.getIndex(0);
+		heap.clear();
+		return index;
+	}
+
+	/**
+	 * This method finds the indexes of the n entries nearest to the specified location. The
+	 * indexes are returned in the current thread's NearestHeap, sorted by distance from the
+	 * location, and the caller must clear the heap once it has read them.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of entries to find
+	 * @return the heap containing the indexes of the nearest entries
+	 */
+	private NearestHeap findNearest(double x, double y, double z, int n) {
+		return findNearest(x, y, z, n, null, 1);
+	}
+
+	/**
+	 * This method finds the indexes of the n entries nearest to the specified location whose
+	 * values satisfy the given predicate. The indexes are returned in the current thread's
+	 * NearestHeap, sorted by distance from the location, and the caller must clear the heap once
+	 * it has read them. With a prune factor greater than 1, the search is approximate.
+	 * 
+	 * @param x           the x coordinate of the location
+	 * @param y           the y coordinate of the location
+	 * @param z           the z coordinate of the location
+	 * @param n           the number of entries to find
+	 * @param accept      the predicate values must satisfy, or null to accept every value
+	 * @param pruneFactor the prune factor of the heap, or 1 for an exact search
+	 * @return the heap containing the indexes of the nearest entries
+	 */
+	private NearestHeap findNearest(double x, double y, double z, int n,
+			Predicate<? super T> accept, double pruneFactor) {
+		NearestHeap heap = NearestHeap.get(Math.max(n, 0), pruneFactor, true);
+		try {
+			if ((size > 0) && (n > 0)) {
+				findNearest(0, xMin, xMax, yMin, yMax, zMin, zMax, x, y, z, heap, accept);
+				heap.sort();
+			}
+		} catch (RuntimeException | Error e) {
+			// release the heap if the predicate throws
+			heap.clear();
+			throw e;
+		}
+		return heap;
+	}
+
+	/**
+	 * This method searches the specified node for entries nearer to the target than the farthest
+	 * entry in the heap. The child containing the target is searched first, and the other children
+	 * are only searched if the heap does not prune their bounds, so for an exact search children
+	 * as far as the farthest entry in the heap are searched too, since they may hold an entry at
+	 * the same distance with a lower index.
+	 * 
+	 * @param node    the index of the node to search
+	 * @param xMin    the minimum x coordinate the node covers
+	 * @param xMax    the maximum x coordinate the node covers
+	 * @param yMin    the minimum y coordinate the node covers
+	 * @param yMax    the maximum y coordinate the node covers
+	 * @param zMin    the minimum z coordinate the node covers
+	 * @param zMax    the maximum z coordinate the node covers
+	 * @param targetX the x coordinate of the target
+	 * @param targetY the y coordinate of the target
+	 * @param targetZ the z coordinate of the target
+	 * @param heap    the heap holding the nearest entries found so far
+	 * @param accept  the predicate values must satisfy to be added, or null to add every value
+	 */
+	private void findNearest(int node, double xMin, double xMax, double yMin, double yMax,
+			double zMin, double zMax, double targetX, double targetY, double targetZ,
+			NearestHeap heap, Predicate<? super T> accept) {
+		// search the entries of a leaf, only calculating the distance again when the key changes
+		// and only testing the values of entries near enough to be added
+		if (firstChild[node] < 0) {
+			double dist = 0;
+			for (int i = entryStart[node]; i < entryEnd[node]; i++) {
+				if ((i == entryStart[node]) || (xs[i] != xs[i - 1]) || (ys[i] != ys[i - 1])
+						|| (zs[i] != zs[i - 1]))
+					dist = metric.getDist(xs[i], ys[i], zs[i], targetX, targetY, targetZ);
+				if ((accept == null) || (heap.accepts(dist, i) && accept.test(getValue(i))))
+					heap.add(dist, null, i);
+			}
+			return;
+		}
+
+		// search the child containing the target first, then any other children which may contain
+		// a nearer entry
+		double x = (xMin + xMax) / 2;
+		double y = (yMin + yMax) / 2;
+		double z = (zMin + zMax) / 2;
+		int targetOctant = getOctant(targetX, targetY, targetZ, x, y, z);
+		int mask = childMask[node] & 0xFF;
+		for (int i = -1; i < 8; i++) {
+			int octant = (i < 0) ? targetOctant : i;
+			if (((mask & (1 << octant)) == 0) || ((i >= 0) && (octant == targetOctant)))
+				continue;
+			boolean xGreater = (octant & 4) != 0;
+			boolean yGreater = (octant & 2) != 0;
+			boolean zGreater = (octant & 1) != 0;
+			double childXMin = xGreater ? x : xMin;
+			double childXMax = xGreater ? xMax : x;
+			double childYMin = yGreater ? y : yMin;
+			double childYMax = yGreater ? yMax : y;
+			double childZMin = zGreater ? z : zMin;
+			double childZMax = zGreater ? zMax : z;
+			if ((i >= 0) && heap.isPruned(getDist(childXMin, childXMax, childYMin, childYMax,
+					childZMin, childZMax, targetX, targetY, targetZ)))
+				continue;
+			findNearest(getChild(node, octant), childXMin, childXMax, childYMin, childYMax,
+					childZMin, childZMax, targetX, targetY, targetZ, heap, accept);
+		}
+	}
+
+	/**
+	 * This method returns the distance between the boundary of the specified region and the given
+	 * point.
+	 * 
+	 * @param xMin the minimum x coordinate of the region
+	 * @param xMax the maximum x coordinate of the region
+	 * @param yMin the minimum y coordinate of the region
+	 * @param yMax the maximum y coordinate of the region
+	 * @param zMin the minimum z coordinate of the region
+	 * @param zMax the maximum z coordinate of the region
+	 * @param x    the x coordinate of the point
+	 * @param y    the y coordinate of the point
+	 * @param z    the z coordinate of the point
+	 * @return the distance between the boundary of the region and the given point
+	 */
+	private double getDist(double xMin, double xMax, double yMin, double yMax, double zMin,
+			double zMax, double x, double y, double z) {
+		return metric.getDist(xMin, xMax, yMin, yMax, zMin, zMax, x, y, z);
+	}
+
+
+	/**
+	 * This method returns the key of the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the key of the entry
+	 */
+	private Point3D getKey(int index) {
+		return new Point3D(xs[index], ys[index], zs[index]);
+	}
+
+	/**
+	 * This method returns the x coordinate of the key of the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the x coordinate of the key
+	 */
+	double getX(int index) {
+		return xs[index];
+	}
+
+	/**
+	 * This method returns the y coordinate of the key of the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the y coordinate of the key
+	 */
+	double getY(int index) {
+		return ys[index];
+	}
+
+	/**
+	 * This method returns the z coordinate of the key of the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the z coordinate of the key
+	 */
+	double getZ(int index) {
+		return zs[index];
+	}
+
+	/**
+	 * This method checks whether the entries at the specified indexes have the same key.
+	 * 
+	 * @param index1 the index of the first entry
+	 * @param index2 the index of the second entry
+	 * @return true if the entries have the same key and false otherwise
+	 */
+	boolean hasSameKey(int index1, int index2) {
+		return (xs[index1] == xs[index2]) && (ys[index1] == ys[index2])
+				&& (zs[index1] == zs[index2]);
+	}
+
+	/**
+	 * This method returns the value of the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the value of the entry
+	 */
+	@SuppressWarnings("unchecked")
+	T getValue(int index) {
+		return (T) values[index];
+	}
+
+	/**
+	 * This method returns the entry at the specified index.
+	 * 
+	 * @param index the index of the entry
+	 * @return the entry
+	 */
+	private Map.Entry<Point3D, T> getEntry(int index) {
+		return new AbstractMap.SimpleImmutableEntry<>(getKey(index), getValue(index));
+	}
+
+	/**
+	 * Fork/join task which finds the nearest entries for a range of the sorted locations passed to
+	 * getNearestValues(). Ranges with at least BATCH_THRESHOLD locations are split in half, and
+	 * smaller ranges are searched in order, each search starting from the previous result.
+	 */
+	private class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] targetXs, targetYs, targetZs;
+		private final T[] results;
+		private final double pruneFactor;
+		private final long[] queries;
+		private final int start, end;
+
+		/**
+		 * Constructs a BatchTask for the specified range of the sorted locations.
+		 * 
+		 * @param targetXs    the x coordinates of the locations
+		 * @param targetYs    the y coordinates of the locations
+		 * @param targetZs    the z coordinates of the locations
+		 * @param results     the array to store the values in
+		 * @param pruneFactor the prune factor of the searches, or 1 for exact searches
+		 * @param queries     the sorted locations, with each location's index in the low 32 bits
+		 * @param start       the start of the range
+		 * @param end         the end of the range
+		 */
+		public BatchTask(double[] targetXs, double[] targetYs, double[] targetZs, T[] results,
+				double pruneFactor, long[] queries, int start, int end) {
+			this.targetXs = targetXs;
+			this.targetYs = targetYs;
+			this.targetZs = targetZs;
+			this.results = results;
+			this.pruneFactor = pruneFactor;
+			this.queries = queries;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			// split large ranges in half
+			if (end - start >= BATCH_THRESHOLD) {
+				int mid = (start + end) >>> 1;
+				invokeAll(
+						new BatchTask(targetXs, targetYs, targetZs, results, pruneFactor, queries,
+								start, mid),
+						new BatchTask(targetXs, targetYs, targetZs, results, pruneFactor, queries,
+								mid, end));
+				return;
+			}
+
+			// search the locations in order, reusing the previous result for repeated locations
+			int previous = -1;
+			double previousX = 0, previousY = 0, previousZ = 0;
+			for (int i = start; i < end; i++) {
+				int query = (int) queries[i];
+				double x = targetXs[query];
+				double y = targetYs[query];
+				double z = targetZs[query];
+				if ((previous < 0) || (x != previousX) || (y != previousY) || (z != previousZ)) {
+					previous = findNearestFrom(previous, x, y, z, pruneFactor);
+					previousX = x;
+					previousY = y;
+					previousZ = z;
+				}
+				results[query] = getValue(previous);
+			}
+		}
+	}
+
+	/**
+	 * An iterator for the entries of a range query. The iterator explores the tree using DFS
+	 * starting at the root, skipping every node whose bounds do not overlap the filter's region,
+	 * and tests each entry of the leaves it reaches. The bounds of the nodes waiting to be visited
+	 * are kept on a primitive stack, since they are not stored in the tree.
+	 */
+	private class RangeIterator implements Iterator<Map.Entry<Point3D, T>> {
+		private final RangeFilter filter;
+		private int[] nodes = new int[16];
+		private double[] bounds = new double[6 * 16];
+		private int depth = 0;
+		private int next = 0, end = 0;
+
+		/**
+		 * Constructs a RangeIterator for the given filter.
+		 * 
+		 * @param filter the filter for nodes and entries
+		 */
+		public RangeIterator(RangeFilter filter) {
+			this.filter = filter;
+			if ((size > 0) && filter.overlaps(xMin, xMax, yMin, yMax, zMin, zMax))
+				push(0, xMin, xMax, yMin, yMax, zMin, zMax);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (true) {
+				// test the remaining entries of the current leaf
+				for (; next < end; next++) {
+					if (filter.overlaps(xs[next], xs[next], ys[next], ys[next], zs[next], zs[next]))
+						return true;
+				}
+				if (depth == 0)
+					return false;
+
+				// visit the next node, either starting on its entries if it is a leaf or adding
+				// its children which overlap the region to the stack
+				int node = nodes[--depth];
+				int b = 6 * depth;
+				double nodeXMin = bounds[b], nodeXMax = bounds[b + 1];
+				double nodeYMin = bounds[b + 2], nodeYMax = bounds[b + 3];
+				double nodeZMin = bounds[b + 4], nodeZMax = bounds[b + 5];
+				if (firstChild[node] < 0) {
+					next = entryStart[node];
+					end = entryEnd[node];
+					continue;
+				}
+				double x = (nodeXMin + nodeXMax) / 2;
+				double y = (nodeYMin + nodeYMax) / 2;
+				double z = (nodeZMin + nodeZMax) / 2;
+				// push the children in reverse order, so they are visited in the order in which
+				// their entries are stored
+				int mask = childMask[node] & 0xFF;
+				int child = firstChild[node] + Integer.bitCount(mask);
+				for (int octant = 7; octant >= 0; octant--) {
+					if ((mask & (1 << octant)) == 0)
+						continue;
+					child--;
+					boolean xGreater = (octant & 4) != 0;
+					boolean yGreater = (octant & 2) != 0;
+					boolean zGreater = (octant & 1) != 0;
+					double childXMin = xGreater ? x : nodeXMin;
+					double childXMax = xGreater ? nodeXMax : x;
+					double childYMin = yGreater ? y : nodeYMin;
+					double childYMax = yGreater ? nodeYMax : y;
+					double childZMin = zGreater ? z : nodeZMin;
+					double childZMax = zGreater ? nodeZMax : z;
+					if (filter.overlaps(childXMin, childXMax, childYMin, childYMax, childZMin,
+							childZMax))
+						push(child, childXMin, childXMax, childYMin, childYMax, childZMin,
+								childZMax);
+				}
+			}
+		}
+
+		@Override
+		public Map.Entry<Point3D, T> next() {
+			return getEntry(nextIndex());
+		}
+
+		/**
+		 * This method returns the index of the next entry without creating an entry object.
+		 * 
+		 * @return the index of the next entry
+		 * @throws NoSuchElementException if the iteration has no more elements
+		 */
+		public int nextIndex() {
+			if (!hasNext())
+				throw new NoSuchElementException("The iteration has no more elements.");
+			return next++;
+		}
+
+		/**
+		 * This method adds a node and its bounds to the stack of nodes to visit.
+		 * 
+		 * @param node the index of the node
+		 * @param xMin the minimum x coordinate the node covers
+		 * @param xMax the maximum x coordinate the node covers
+		 * @param yMin the minimum y coordinate the node covers
+		 * @param yMax the maximum y coordinate the node covers
+		 * @param zMin the minimum z coordinate the node covers
+		 * @param zMax the maximum z coordinate the node covers
+		 */
+		private void push(int node, double xMin, double xMax, double yMin, double yMax,
+				double zMin, double zMax) {
+			if (depth == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * depth);
+				bounds = Arrays.copyOf(bounds, 12 * depth);
+			}
+			int b = 6 * depth;
+			bounds[b] = xMin;
+			bounds[b + 1] = xMax;
+			bounds[b + 2] = yMin;
+			bounds[b + 3] = yMax;
+			bounds[b + 4] = zMin;
+			bounds[b + 5] = zMax;
+			nodes[depth++] = node;
+		}
+	}
+
+	/**
+	 * Unmodifiable set view of the mappings contained in this map. The entries are returned in the
+	 * order in which they are stored, so entries which are near to each other are usually returned
+	 * near to each other.
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<Point3D, T>> {
+		@Override
+		public Iterator<Map.Entry<Point3D, T>> iterator() {
+			return new Iterator<Map.Entry<Point3D, T>>() {
+				private int next = 0;
+
+				@Override
+				public boolean hasNext() {
+					return next < size;
+				}
+
+				@Override
+				public Map.Entry<Point3D, T> next() {
+					if (next >= size)
+						throw new NoSuchElementException("The iteration has no more elements.");
+					return getEntry(next++);
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,532 @@
+package octree;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javafx.geometry.Point3D;
+
+import org.junit.jupiter.api.Test;
+
+class CompactOctreeTest {
+	static Random random = new Random();
+	static final int NUM_ENTRIES = 100_000;
+
+	/**
+	 * Tests the memory use and nearest neighbor search speed of a CompactOctree compared to the
+	 * Octree it was created from. This test does not include any assertions; results will be
+	 * printed and can be compared manually. Note that this is much slower than the other tests.
+	 */
+//	@Test
+	void testEfficiency() {
+		int numPoints = 1_000_000; // the number of points to be used in the trees
+		int numQueries = 1_000_000; // the number of nearest neighbor searches
+
+		// create random points and queries
+		double[][] points = new double[numPoints][];
+		for (int i = 0; i < numPoints; i++) {
+			points[i] = new double[] { random.nextDouble() * 255, random.nextDouble() * 255,
+					random.nextDouble() * 255 };
+		}
+		double[][] queries = new double[numQueries][];
+		for (int i = 0; i < numQueries; i++) {
+			queries[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+
+		// measure the memory used by each tree
+		Runtime runtime = Runtime.getRuntime();
+		long before = getUsedMemory(runtime);
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < numPoints; i++) {
+			octree.put(points[i][0], points[i][1], points[i][2], i);
+		}
+		long octreeMemory = getUsedMemory(runtime) - before;
+		before = getUsedMemory(runtime);
+		long start = System.currentTimeMillis();
+		CompactOctree<Integer> compact = octree.freeze();
+		long freezeTime = System.currentTimeMillis() - start;
+		long compactMemory = getUsedMemory(runtime) - before;
+
+		// time nearest neighbor searches in each tree
+		start = System.currentTimeMillis();
+		for (double[] query : queries) {
+			octree.getNearestEntry(query[0], query[1], query[2]);
+		}
+		long octreeNearestTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for (double[] query : queries) {
+			compact.getNearestValue(query[0], query[1], query[2]);
+		}
+		long compactNearestTime = System.currentTimeMillis() - start;
+
+		// print the results
+		System.out.println("Number of elements: " + numPoints);
+		System.out.println("Octree memory: " + (octreeMemory / numPoints) + " bytes per entry");
+		System.out.println(
+				"CompactOctree memory: " + (compactMemory / numPoints) + " bytes per entry");
+		System.out.println("Time to freeze: " + freezeTime + "ms");
+		System.out.println("Octree time to get nearest entry for " + numQueries + " points: "
+				+ octreeNearestTime + "ms");
+		System.out.println("CompactOctree time to get nearest value for " + numQueries
+				+ " points: " + compactNearestTime + "ms");
+	}
+
+	/**
+	 * Tests the nearest neighbor search speed of a CompactOctree with each built-in DistFunction
+	 * compared to an equivalent custom DistFunction, which the tree calls through the interface.
+	 * This test does not include any assertions; results will be printed and can be compared
+	 * manually. Note that this is much slower than the other tests.
+	 */
+//	@Test
+	void testDistFunctionEfficiency() {
+		int numPoints = 200_000; // the number of points to be used in the trees
+		int numQueries = 2_000_000; // the number of nearest neighbor searches
+
+		// create random colors and queries
+		double[][] points = new double[numPoints][];
+		for (int i = 0; i < numPoints; i++) {
+			points[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+		double[][] queries = new double[numQueries][];
+		for (int i = 0; i < numQueries; i++) {
+			queries[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+
+		String[] names = { "EUCLIDEAN", "MANHATTAN", "CHEBYSHEV", "WEIGHTED_RGB" };
+		Octree.DistFunction[] builtIn = { Octree.DistFunction.EUCLIDEAN,
+				Octree.DistFunction.MANHATTAN, Octree.DistFunction.CHEBYSHEV,
+				Octree.DistFunction.WEIGHTED_RGB };
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < builtIn.length; i++) {
+				Octree.DistFunction distFunction = builtIn[i];
+				Octree.DistFunction custom = (xDiff, yDiff, zDiff) -> distFunction.getDist(xDiff,
+						yDiff, zDiff);
+				long[] times = new long[2];
+				for (int j = 0; j < 2; j++) {
+					Octree<Integer> octree = new Octree<>(0, 255, (j == 0) ? distFunction : custom);
+					for (int k = 0; k < numPoints; k++) {
+						octree.add(points[k][0], points[k][1], points[k][2], k);
+					}
+					CompactOctree<Integer> compact = octree.freeze();
+					long start = System.currentTimeMillis();
+					for (double[] query : queries) {
+						compact.getNearestValue(query[0], query[1], query[2]);
+					}
+					times[j] = System.currentTimeMillis() - start;
+				}
+
+				// print the results
+				System.out.println(names[i] + ": built-in " + times[0] + "ms, custom " + times[1]
+						+ "ms for " + numQueries + " nearest neighbor searches");
+			}
+		}
+	}
+
+	/**
+	 * Tests the speed and the color error of approximate nearest neighbor searches in a
+	 * CompactOctree for several values of epsilon, on synthetic libraries of uniformly distributed
+	 * colors and of colors clustered around a few hues, as the colors of real images usually are.
+	 * The error is the distance of the color found minus the distance of the nearest color. This
+	 * test does not include any assertions; results will be printed and can be compared manually.
+	 * Note that this is much slower than the other tests.
+	 */
+//	@Test
+	void testApproximateEfficiency() {
+		int[] librarySizes = { 1_000, 10_000, 100_000, 1_000_000 };
+		double[] epsilons = { 0, 0.05, 0.1, 0.25, 0.5, 1, 2 };
+		int numQueries = 1_000_000; // the number of nearest neighbor searches
+
+		double[][] queries = new double[numQueries][];
+		for (int i = 0; i < numQueries; i++) {
+			queries[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+		for (boolean clustered : new boolean[] { false, true }) {
+			for (int librarySize : librarySizes) {
+				// create a library of random colors, each mapped to itself
+				double[][] centers = new double[16][];
+				for (int i = 0; i < centers.length; i++) {
+					centers[i] = new double[] { random.nextInt(256), random.nextInt(256),
+							random.nextInt(256) };
+				}
+				Octree<Point3D> octree = new Octree<>(0, 255);
+				for (int i = 0; i < librarySize; i++) {
+					double[] center = centers[random.nextInt(centers.length)];
+					Point3D color = clustered
+							? new Point3D(getClusteredCoord(center[0]),
+									getClusteredCoord(center[1]), getClusteredCoord(center[2]))
+							: new Point3D(random.nextInt(256), random.nextInt(256),
+									random.nextInt(256));
+					octree.put(color, color);
+				}
+				CompactOctree<Point3D> compact = octree.freeze();
+
+				// find the exact distances, then time each epsilon twice and keep the faster time
+				double[] exact = new double[numQueries];
+				for (int i = 0; i < numQueries; i++) {
+					exact[i] = compact.getNearestKey(queries[i][0], queries[i][1], queries[i][2])
+							.distance(queries[i][0], queries[i][1], queries[i][2]);
+				}
+				for (double epsilon : epsilons) {
+					long time = Long.MAX_VALUE;
+					Point3D[] found = new Point3D[numQueries];
+					for (int round = 0; round < 2; round++) {
+						long start = System.nanoTime();
+						for (int i = 0; i < numQueries; i++) {
+							found[i] = compact.getNearestEntry(queries[i][0], queries[i][1],
+									queries[i][2], epsilon).getValue();
+						}
+						time = Math.min(time, System.nanoTime() - start);
+					}
+					double totalError = 0, maxError = 0;
+					int inexact = 0;
+					for (int i = 0; i < numQueries; i++) {
+						double error = found[i].distance(queries[i][0], queries[i][1],
+								queries[i][2]) - exact[i];
+						totalError += error;
+						maxError = Math.max(maxError, error);
+						if (error > 0)
+							inexact++;
+					}
+
+					// print the results
+					System.out.printf(
+							"%s library of %d colors, epsilon %.2f: %.3fus per search, "
+									+ "%.2f%% inexact, mean error %.3f, max error %.2f%n",
+							clustered ? "clustered" : "uniform", librarySize, epsilon,
+							time / 1000.0 / numQueries, 100.0 * inexact / numQueries,
+							totalError / numQueries, maxError);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method returns a random coordinate near the given coordinate of a cluster's center.
+	 * 
+	 * @param center the coordinate of the center
+	 * @return a random coordinate between 0 and 255
+	 */
+	private static double getClusteredCoord(double center) {
+		return Math.min(255, Math.max(0, Math.round(center + random.nextGaussian() * 20)));
+	}
+
+	/**
+	 * This method runs the garbage collector and returns the amount of memory in use.
+	 * 
+	 * @param runtime the current runtime
+	 * @return the amount of memory in use in bytes
+	 */
+	private static long getUsedMemory(Runtime runtime) {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Tests that freeze() copies all mappings, and that get(), containsKey(), and iteration
+	 * match the original Octree.
+	 */
+	@Test
+	void testFreeze() {
+		// test with an empty Octree
+		CompactOctree<Point3D> empty = new Octree<Point3D>().freeze();
+		assertTrue(empty.isEmpty());
+		assertNull(empty.get(0, 0, 0));
+		assertNull(empty.getNearestEntry(0, 0, 0));
+		assertNull(empty.getNearestValue(0, 0, 0));
+		assertFalse(empty.entrySet().iterator().hasNext());
+
+		// test with a non-empty Octree
+		Octree<Point3D> octree = new Octree<>();
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			Point3D point = new Point3D(random.nextLong(), random.nextLong(), random.nextLong());
+			octree.put(point, point);
+		}
+		octree.put(0, 0, 0, null);
+		CompactOctree<Point3D> compact = octree.freeze();
+		assertEquals(octree.size(), compact.size());
+		assertEquals(octree, compact);
+		assertEquals(compact, new HashMap<>(octree));
+		for (Map.Entry<Point3D, Point3D> entry : octree.entrySet()) {
+			Point3D key = entry.getKey();
+			assertTrue(compact.containsKey(key));
+			assertEquals(entry.getValue(), compact.get(key.getX(), key.getY(), key.getZ()));
+		}
+		assertTrue(compact.containsKey(0, 0, 0));
+		assertNull(compact.get(0, 0, 0));
+		assertFalse(compact.containsKey(1, 2, 3));
+		assertFalse(compact.containsKey(0, 0, Double.MAX_VALUE));
+
+		// later changes to the Octree are not reflected in the CompactOctree
+		octree.clear();
+		assertEquals(NUM_ENTRIES + 1, compact.size());
+
+		// verify that the CompactOctree cannot be modified
+		assertThrows(UnsupportedOperationException.class,
+				() -> compact.put(new Point3D(1, 2, 3), null));
+		assertThrows(UnsupportedOperationException.class,
+				() -> compact.entrySet().iterator().remove());
+		assertThrows(UnsupportedOperationException.class, () -> compact.entrySet().iterator()
+				.next().setValue(new Point3D(0, 0, 0)));
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(NullPointerException.class, () -> compact.get(null));
+		assertThrows(ClassCastException.class, () -> compact.get(new Object()));
+		assertThrows(NullPointerException.class, () -> compact.containsKey(null));
+		assertThrows(ClassCastException.class, () -> compact.containsKey(new Object()));
+	}
+
+	/**
+	 * Tests getNearestKey(), getNearestValue(), and getNearestEntry() against the Octree the
+	 * CompactOctree was created from.
+	 */
+	@Test
+	void testGetNearest() {
+		// use integer coordinates like the colors of a photomosaic, so there are ties and points on
+		// the center planes of nodes
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.put(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		CompactOctree<Integer> compact = octree.freeze();
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			double x = random.nextInt(256);
+			double y = random.nextInt(256);
+			double z = random.nextInt(256);
+			Point3D target = new Point3D(x, y, z);
+			Point3D expected = octree.getNearestKey(x, y, z);
+			Point3D actual = compact.getNearestKey(x, y, z);
+			assertEquals(target.distance(expected), target.distance(actual));
+			assertEquals(compact.get(actual), compact.getNearestValue(x, y, z));
+			assertEquals(new AbstractMap.SimpleEntry<>(actual, compact.get(actual)),
+					compact.getNearestEntry(x, y, z));
+		}
+
+		// test getNearestKeys(), getNearestValues(), and getNearestEntries()
+		for (int i = 0; i < NUM_ENTRIES / 100; i++) {
+			double x = random.nextInt(256);
+			double y = random.nextInt(256);
+			double z = random.nextInt(256);
+			Point3D target = new Point3D(x, y, z);
+			List<Point3D> expected = octree.getNearestKeys(x, y, z, 10);
+			List<Point3D> actual = compact.getNearestKeys(x, y, z, 10);
+			List<Integer> values = compact.getNearestValues(x, y, z, 10);
+			List<Map.Entry<Point3D, Integer>> entries = compact.getNearestEntries(x, y, z, 10);
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertEquals(target.distance(expected.get(j)), target.distance(actual.get(j)));
+				assertEquals(compact.get(actual.get(j)), values.get(j));
+				assertEquals(actual.get(j), entries.get(j).getKey());
+			}
+		}
+		assertEquals(compact.size(), compact.getNearestKeys(0, 0, 0, Integer.MAX_VALUE).size());
+		assertTrue(compact.getNearestValues(0, 0, 0, 0).isEmpty());
+
+		// test with a DistFunction
+		Octree.DistFunction distFunction = (x, y, z) -> x + y + z;
+		Octree<Integer> manhattan = new Octree<>(0, 10, distFunction);
+		manhattan.put(2, 0, 0, 17);
+		manhattan.put(1, 1, 1, 57);
+		assertEquals(17, manhattan.freeze().getNearestValue(0, 0, 0));
+
+		// test with many points in one small region
+		Octree<Integer> clustered = new Octree<>();
+		List<Point3D> points = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Point3D point = new Point3D(random.nextDouble(), random.nextDouble(),
+					random.nextDouble());
+			points.add(point);
+			clustered.put(point, i);
+		}
+		CompactOctree<Integer> compactClustered = clustered.freeze();
+		for (Point3D point : points) {
+			assertEquals(point, compactClustered.getNearestKey(point.getX(), point.getY(),
+					point.getZ()));
+		}
+	}
+
+	/**
+	 * Tests the batch version of getNearestValues() against getNearestKey().
+	 */
+	@Test
+	void testGetNearestBatch() {
+		// use a tree which maps each key to itself so the distance of each result can be checked
+		Octree<Point3D> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			Point3D point = new Point3D(random.nextInt(256), random.nextInt(256),
+					random.nextInt(256));
+			octree.put(point, point);
+		}
+		CompactOctree<Point3D> compact = octree.freeze();
+
+		// use a random walk so there are runs of similar and repeated locations, and a batch large
+		// enough to be split among several tasks
+		int count = NUM_ENTRIES;
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		double[] zs = new double[count];
+		double x = 128, y = 128, z = 128;
+		for (int i = 0; i < count; i++) {
+			x = Math.min(255, Math.max(0, x + random.nextInt(5) - 2));
+			y = Math.min(255, Math.max(0, y + random.nextInt(5) - 2));
+			z = Math.min(255, Math.max(0, z + random.nextInt(5) - 2));
+			xs[i] = x;
+			ys[i] = y;
+			zs[i] = z;
+		}
+		xs[count - 1] = -100;
+		Point3D[] results = new Point3D[count];
+		compact.getNearestValues(xs, ys, zs, results);
+		for (int i = 0; i < count; i++) {
+			Point3D target = new Point3D(xs[i], ys[i], zs[i]);
+			assertEquals(target.distance(compact.getNearestKey(xs[i], ys[i], zs[i])),
+					target.distance(results[i]));
+		}
+
+		// with keys on a coarse grid, many locations are equally near to several entries, and a
+		// batch must still find the same entries as single searches, whatever it starts from
+		Octree<Point3D> grid = new Octree<>(0, 255);
+		for (int i = 0; i < 256; i += 32) {
+			for (int j = 0; j < 256; j += 32) {
+				for (int k = 0; k < 256; k += 32) {
+					grid.put(new Point3D(i, j, k), new Point3D(i, j, k));
+				}
+			}
+		}
+		CompactOctree<Point3D> gridCompact = grid.freeze();
+		gridCompact.getNearestValues(xs, ys, zs, results);
+		for (int i = 0; i < count; i++) {
+			assertEquals(gridCompact.getNearestValue(xs[i], ys[i], zs[i]), results[i]);
+		}
+
+		// approximate batches find entries within (1 + epsilon) times the nearest distance
+		compact.getNearestValues(xs, ys, zs, results, 0.5);
+		for (int i = 0; i < count; i++) {
+			Point3D target = new Point3D(xs[i], ys[i], zs[i]);
+			assertTrue(target.distance(results[i]) <= 1.5
+					* target.distance(compact.getNearestKey(xs[i], ys[i], zs[i])) + 1e-9);
+		}
+
+		// test small and empty batches and an empty tree
+		compact.getNearestValues(new double[] { 1 }, new double[] { 2 }, new double[] { 3 },
+				results = new Point3D[1]);
+		assertEquals(compact.getNearestValue(1, 2, 3), results[0]);
+		compact.getNearestValues(new double[0], new double[0], new double[0], new Point3D[0]);
+		results = new Point3D[] { new Point3D(0, 0, 0) };
+		new Octree<Point3D>().freeze().getNearestValues(new double[1], new double[1],
+				new double[1], results);
+		assertNull(results[0]);
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(IllegalArgumentException.class, () -> compact
+				.getNearestValues(new double[1], new double[1], new double[2], new Point3D[1]));
+		assertThrows(NullPointerException.class,
+				() -> compact.getNearestValues(null, null, null, null));
+		assertThrows(IllegalArgumentException.class, () -> compact.getNearestValues(new double[1],
+				new double[1], new double[1], new Point3D[1], -0.5));
+	}
+
+	/**
+	 * Tests entriesWithin() and entriesInBox() against the same queries on the Octree the
+	 * CompactOctree was created from.
+	 */
+	@Test
+	void testRangeQueries() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		for (int i = 0; i < 100; i++) {
+			octree.add(128, 128, 128, -i);
+		}
+		CompactOctree<Integer> compact = octree.freeze();
+		for (int i = 0; i < 200; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			double radius = random.nextInt(40);
+			assertEquals(getSortedValues(octree.entriesWithin(x, y, z, radius)),
+					getSortedValues(compact.entriesWithin(x, y, z, radius)));
+			double xMax = Math.min(255, x + random.nextInt(40));
+			double yMax = Math.min(255, y + random.nextInt(40));
+			double zMax = Math.min(255, z + random.nextInt(40));
+			assertEquals(getSortedValues(octree.entriesInBox(x, xMax, y, yMax, z, zMax)),
+					getSortedValues(compact.entriesInBox(x, xMax, y, yMax, z, zMax)));
+		}
+		assertEquals(100, compact.entriesWithin(128, 128, 128, 0).count());
+		assertEquals(compact.size(), compact.entriesInBox(0, 255, 0, 255, 0, 255).count());
+		assertEquals(0, new Octree<Integer>().freeze().entriesInBox(0, 1, 0, 1, 0, 1).count());
+
+		// test with a DistFunction
+		Octree<Integer> manhattan = new Octree<>(0, 10, (x, y, z) -> x + y + z);
+		manhattan.put(2, 0, 0, 17);
+		manhattan.put(1, 1, 1, 57);
+		assertEquals(1, manhattan.freeze().entriesWithin(0, 0, 0, 2).count());
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(IllegalArgumentException.class, () -> compact.entriesWithin(0, 0, 0, -1));
+		assertThrows(IllegalArgumentException.class,
+				() -> compact.entriesInBox(0, 1, 1, 0, 0, 1));
+	}
+
+	/**
+	 * This method returns the values of a stream of entries in ascending order.
+	 * 
+	 * @param entries the stream of entries
+	 * @return the sorted values
+	 */
+	private static List<Integer> getSortedValues(Stream<Map.Entry<Point3D, Integer>> entries) {
+		return entries.map(Map.Entry::getValue).sorted().collect(Collectors.toList());
+	}
+
+	/**
+	 * Tests getNearestEntry() and getNearestEntries() with a predicate against the same searches
+	 * on the Octree the CompactOctree was created from.
+	 */
+	@Test
+	void testGetNearestFiltered() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		for (int i = 0; i < 100; i++) {
+			octree.add(128, 128, 128, -i);
+		}
+		CompactOctree<Integer> compact = octree.freeze();
+		for (int i = 0; i < 1000; i++) {
+			int divisor = 1 + random.nextInt(50);
+			Predicate<Integer> accept = value -> value % divisor == 0;
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			Point3D target = new Point3D(x, y, z);
+			Map.Entry<Point3D, Integer> expected = octree.getNearestEntry(x, y, z, accept);
+			Map.Entry<Point3D, Integer> actual = compact.getNearestEntry(x, y, z, accept);
+			assertTrue(accept.test(actual.getValue()));
+			assertEquals(target.distance(expected.getKey()), target.distance(actual.getKey()));
+			List<Map.Entry<Point3D, Integer>> expectedList = octree.getNearestEntries(x, y, z, 10,
+					accept);
+			List<Map.Entry<Point3D, Integer>> actualList = compact.getNearestEntries(x, y, z, 10,
+					accept);
+			assertEquals(expectedList.size(), actualList.size());
+			for (int j = 0; j < expectedList.size(); j++) {
+				assertTrue(accept.test(actualList.get(j).getValue()));
+				assertEquals(target.distance(expectedList.get(j).getKey()),
+						target.distance(actualList.get(j).getKey()));
+			}
+		}
+		assertEquals(Integer.valueOf(-57),
+				compact.getNearestEntry(128, 128, 128, value -> value == -57).getValue());
+		assertNull(compact.getNearestEntry(0, 0, 0, value -> false));
+		assertThrows(NullPointerException.class, () -> compact.getNearestEntries(0, 0, 0, 1, null));
+	}
+}
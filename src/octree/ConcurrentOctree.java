@@ -0,0 +1,1141 @@
+package octree;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javafx.geometry.Point3D;
+
+/**
+ * Thread-safe Octree which maps points in a region of 3-dimensional space to Objects of a specified
+ * type. Any number of threads can add entries while other threads query the tree, and reads never
+ * block. Like an Octree used with add(), a ConcurrentOctree is a multimap: the add method maps a
+ * key to another value while keeping the values it is already mapped to, while the put method
+ * replaces every value mapped to a key.
+ * 
+ * The tree consists of branches, which hold an array of 8 child slots updated with
+ * compare-and-set, and leaves, which are immutable buckets of up to LEAF_SIZE entries. Changing an
+ * entry copies its leaf and swaps the copy into the leaf's slot, and a leaf which would become too
+ * large is replaced by a new branch holding its entries and the new entry. If another thread
+ * changes the slot first, the operation tries again, so no locks are used. Readers see each leaf
+ * either before or after a change, never in between. A leaf may hold more than LEAF_SIZE entries
+ * if they all have the same key. Branches are never removed, so removing entries does not make the
+ * tree smaller.
+ * 
+ * Nodes are split in the same way as in an Octree: a point on the center plane of a node belongs
+ * to the lower octant. Nearest neighbor searches use the tree's DistFunction, and if several
+ * entries are equally near to the target, the entry found first is returned.
+ * 
+ * The size, entry set, and freeze method are weakly consistent: they reflect every change which
+ * completed before they were called and may or may not reflect changes made while they run. Once
+ * all entries have been added, freeze() should be used to create a CompactOctree for faster
+ * searches.
+ */
+public class ConcurrentOctree<T> extends AbstractMap<Point3D, T> {
+	private static final int LEAF_SIZE = 8;
+	private static final int MAX_DEPTH = 64;
+	private final double xMin, xMax, yMin, yMax, zMin, zMax;
+	private final Octree.DistFunction distFunction;
+	private final Metric metric;
+	private volatile Branch root = new Branch();
+	private final LongAdder size = new LongAdder();
+	private final Set<Map.Entry<Point3D, T>> entrySet = new EntrySet();
+
+	// error messages for exceptions thrown
+	private static final String OUT_OF_BOUNDS = "The specified location is out of bounds.";
+	private static final String NULL_KEY = "This map does not support null keys.";
+	private static final String CLASS_CAST = "The key must be a Point3D.";
+	private static final String INVALID_BOUNDS = "Invalid bounds. The minimum value of a coordinate cannot be greater than the maximum value.";
+
+	/**
+	 * Constructs an empty ConcurrentOctree where x, y, and z can be any double values between
+	 * Long.MIN_VALUE and Long.MAX_VALUE.
+	 */
+	public ConcurrentOctree() {
+		this(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructs an empty ConcurrentOctree with the specified minimum and maximum values for x, y,
+	 * and z.
+	 * 
+	 * @param min the minimum value for x, y, and z
+	 * @param max the maximum value for x, y, and z
+	 * @throws IllegalArgumentException if min > max
+	 */
+	public ConcurrentOctree(double min, double max) {
+		this(min, max, min, max, min, max);
+	}
+
+	/**
+	 * Constructs an empty ConcurrentOctree with the specified minimum and maximum values for x, y,
+	 * and z.
+	 * 
+	 * @param xMin the minimum x value
+	 * @param xMax the maximum x value
+	 * @param yMin the minimum y value
+	 * @param yMax the maximum y value
+	 * @param zMin the minimum z value
+	 * @param zMax the maximum z value
+	 * @throws IllegalArgumentException if xMin > xMax, yMin > yMax, or zMin > zMax
+	 */
+	public ConcurrentOctree(double xMin, double xMax, double yMin, double yMax, double zMin,
+			double zMax) {
+		this(xMin, xMax, yMin, yMax, zMin, zMax, Octree.DistFunction.EUCLIDEAN);
+	}
+
+	/**
+	 * Constructs an empty ConcurrentOctree where x, y, and z can be any double values between
+	 * Long.MIN_VALUE and Long.MAX_VALUE.
+	 * 
+	 * @param distFunction the function used to calculate distances for nearest neighbor searches
+	 */
+	public ConcurrentOctree(Octree.DistFunction distFunction) {
+		this(Long.MIN_VALUE, Long.MAX_VALUE, distFunction);
+	}
+
+	/**
+	 * Constructs an empty ConcurrentOctree with the specified minimum and maximum values for x, y,
+	 * and z.
+	 * 
+	 * @param min          the minimum value for x, y, and z
+	 * @param max          the maximum value for x, y, and z
+	 * @param distFunction the function used to calculate distances for nearest neighbor searches
+	 * @throws IllegalArgumentException if min > max
+	 */
+	public ConcurrentOctree(double min, double max, Octree.DistFunction distFunction) {
+		this(min, max, min, max, min, max, distFunction);
+	}
+
+	/**
+	 * Constructs an empty ConcurrentOctree with the specified minimum and maximum values for x, y,
+	 * and z.
+	 * 
+	 * @param xMin         the minimum x value
+	 * @param xMax         the maximum x value
+	 * @param yMin         the minimum y value
+	 * @param yMax         the maximum y value
+	 * @param zMin         the minimum z value
+	 * @param zMax         the maximum z value
+	 * @param distFunction the function used to calculate distances for nearest neighbor searches
+	 * @throws IllegalArgumentException if xMin > xMax, yMin > yMax, or zMin > zMax
+	 */
+	public ConcurrentOctree(double xMin, double xMax, double yMin, double yMax, double zMin,
+			double zMax, Octree.DistFunction distFunction) {
+		if ((xMin > xMax) || (yMin > yMax) || (zMin > zMax))
+			throw new IllegalArgumentException(INVALID_BOUNDS);
+		this.xMin = xMin;
+		this.xMax = xMax;
+		this.yMin = yMin;
+		this.yMax = yMax;
+		this.zMin = zMin;
+		this.zMax = zMax;
+		this.distFunction = distFunction;
+		this.metric = new Metric(distFunction);
+	}
+
+	/**
+	 * Removes all of the mappings from this map. Changes made by other threads while this method
+	 * runs may or may not be kept.
+	 */
+	@Override
+	public void clear() {
+		root = new Branch();
+		size.reset();
+	}
+
+	@Override
+	public Set<Map.Entry<Point3D, T>> entrySet() {
+		return entrySet;
+	}
+
+	/**
+	 * Returns the number of key-value mappings in this map. If the map contains more than
+	 * Integer.MAX_VALUE elements, returns Integer.MAX_VALUE. If other threads are changing the map,
+	 * the result may not reflect their changes.
+	 * 
+	 * @return the number of key-value mappings in this map
+	 */
+	@Override
+	public int size() {
+		long sum = size.sum();
+		return (sum > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) Math.max(sum, 0);
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map, replacing every value the
+	 * key was previously mapped to.
+	 * 
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 * @return the first value previously associated with key, or null if there was no mapping for
+	 *         key
+	 * @throws NullPointerException     if the specified key is null
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	@Override
+	public T put(Point3D key, T value) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return put(key.getX(), key.getY(), key.getZ(), value);
+	}
+
+	/**
+	 * Associates the specified value with the specified key in this map, replacing every value the
+	 * key was previously mapped to.
+	 * 
+	 * @param keyX  the x coordinate of the key
+	 * @param keyY  the y coordinate of the key
+	 * @param keyZ  the z coordinate of the key
+	 * @param value value to be associated with the specified key
+	 * @return the first value previously associated with key, or null if there was no mapping for
+	 *         key
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	public T put(double keyX, double keyY, double keyZ, T value) {
+		return insert(keyX, keyY, keyZ, value, true);
+	}
+
+	/**
+	 * Adds a mapping from the specified key to the specified value. Unlike put(), this method does
+	 * not replace the values the key is already mapped to, so the map may contain several mappings
+	 * with the same key afterwards.
+	 * 
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 * @throws NullPointerException     if the specified key is null
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	public void add(Point3D key, T value) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		add(key.getX(), key.getY(), key.getZ(), value);
+	}
+
+	/**
+	 * Adds a mapping from the specified key to the specified value. Unlike put(), this method does
+	 * not replace the values the key is already mapped to, so the map may contain several mappings
+	 * with the same key afterwards.
+	 * 
+	 * @param keyX  the x coordinate of the key
+	 * @param keyY  the y coordinate of the key
+	 * @param keyZ  the z coordinate of the key
+	 * @param value value to be associated with the specified key
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	public void add(double keyX, double keyY, double keyZ, T value) {
+		insert(keyX, keyY, keyZ, value, false);
+	}
+
+	/**
+	 * This method inserts a mapping into the tree, retrying until its change to a leaf's slot
+	 * succeeds.
+	 * 
+	 * @param x       the x coordinate of the key
+	 * @param y       the y coordinate of the key
+	 * @param z       the z coordinate of the key
+	 * @param value   the value to insert
+	 * @param replace true if the mapping should replace the existing mappings for the key
+	 * @return the first value previously associated with the key if replace is true, or null
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	private T insert(double x, double y, double z, T value, boolean replace) {
+		// throw exception if coordinates are out of bounds
+		if ((x < xMin) || (x > xMax) || (y < yMin) || (y > yMax) || (z < zMin) || (z > zMax))
+			throw new IllegalArgumentException(OUT_OF_BOUNDS);
+
+		Branch branch = root;
+		double nodeXMin = xMin, nodeXMax = xMax;
+		double nodeYMin = yMin, nodeYMax = yMax;
+		double nodeZMin = zMin, nodeZMax = zMax;
+		int depth = 0;
+		while (true) {
+			// find the slot for the key within the current branch
+			double centerX = (nodeXMin + nodeXMax) / 2;
+			double centerY = (nodeYMin + nodeYMax) / 2;
+			double centerZ = (nodeZMin + nodeZMax) / 2;
+			int octant = getOctant(x, y, z, centerX, centerY, centerZ);
+			double childXMin = ((octant & 4) != 0) ? centerX : nodeXMin;
+			double childXMax = ((octant & 4) != 0) ? nodeXMax : centerX;
+			double childYMin = ((octant & 2) != 0) ? centerY : nodeYMin;
+			double childYMax = ((octant & 2) != 0) ? nodeYMax : centerY;
+			double childZMin = ((octant & 1) != 0) ? centerZ : nodeZMin;
+			double childZMax = ((octant & 1) != 0) ? nodeZMax : centerZ;
+			Object child = branch.children.get(octant);
+
+			// descend into branches
+			if (child instanceof Branch) {
+				branch = (Branch) child;
+				nodeXMin = childXMin;
+				nodeXMax = childXMax;
+				nodeYMin = childYMin;
+				nodeYMax = childYMax;
+				nodeZMin = childZMin;
+				nodeZMax = childZMax;
+				depth++;
+				continue;
+			}
+
+			// otherwise create the replacement for the leaf in the slot
+			Leaf leaf = (Leaf) child;
+			Object replacement;
+			T previous = null;
+			int removed = 0;
+			int index = (leaf == null) ? -1 : leaf.indexOf(x, y, z);
+			if (leaf == null) {
+				replacement = new Leaf(x, y, z, value);
+			} else if (replace && (index >= 0)) {
+				previous = getValue(leaf, index);
+				Leaf rest = leaf.without(x, y, z, null, false);
+				removed = leaf.size() - ((rest == null) ? 0 : rest.size());
+				replacement = (rest == null) ? new Leaf(x, y, z, value) : rest.with(x, y, z, value);
+			} else if ((leaf.size() < LEAF_SIZE) || (depth + 1 >= MAX_DEPTH)
+					|| ((index >= 0) && leaf.hasOneKey())) {
+				replacement = leaf.with(x, y, z, value);
+			} else {
+				replacement = build(leaf.with(x, y, z, value), childXMin, childXMax, childYMin,
+						childYMax, childZMin, childZMax, depth + 1);
+			}
+
+			// swap in the replacement, or try again if another thread changed the slot first
+			if (branch.children.compareAndSet(octant, leaf, replacement)) {
+				size.add(1 - removed);
+				return previous;
+			}
+		}
+	}
+
+	/**
+	 * This method builds an unpublished subtree holding the entries of the given leaf, splitting
+	 * them among the children of a new branch if there are too many for a single leaf.
+	 * 
+	 * @param leaf  the leaf holding the entries
+	 * @param xMin  the minimum x coordinate the subtree covers
+	 * @param xMax  the maximum x coordinate the subtree covers
+	 * @param yMin  the minimum y coordinate the subtree covers
+	 * @param yMax  the maximum y coordinate the subtree covers
+	 * @param zMin  the minimum z coordinate the subtree covers
+	 * @param zMax  the maximum z coordinate the subtree covers
+	 * @param depth the depth of the subtree's root
+	 * @return the leaf or the root branch of the subtree
+	 */
+	private Object build(Leaf leaf, double xMin, double xMax, double yMin, double yMax,
+			double zMin, double zMax, int depth) {
+		if ((leaf.size() <= LEAF_SIZE) || (depth >= MAX_DEPTH) || leaf.hasOneKey())
+			return leaf;
+		double x = (xMin + xMax) / 2;
+		double y = (yMin + yMax) / 2;
+		double z = (zMin + zMax) / 2;
+		Branch branch = new Branch();
+		for (int octant = 0; octant < 8; octant++) {
+			Leaf part = leaf.inOctant(octant, x, y, z);
+			if (part == null)
+				continue;
+			boolean xGreater = (octant & 4) != 0;
+			boolean yGreater = (octant & 2) != 0;
+			boolean zGreater = (octant & 1) != 0;
+			branch.children.set(octant,
+					build(part, xGreater ? x : xMin, xGreater ? xMax : x, yGreater ? y : yMin,
+							yGreater ? yMax : y, zGreater ? z : zMin, zGreater ? zMax : z,
+							depth + 1));
+		}
+		return branch;
+	}
+
+	/**
+	 * Removes every mapping for a key from this map if it is present.
+	 * 
+	 * @param key key whose mappings are to be removed from the map
+	 * @return the first value previously associated with key, or null if there was no mapping for
+	 *         key
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public T remove(Object key) {
+		Point3D point = toPoint(key);
+		return remove(point.getX(), point.getY(), point.getZ());
+	}
+
+	/**
+	 * Removes every mapping for a location from this map if it is present.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the first value previously associated with the location, or null if there was no
+	 *         mapping for the location
+	 */
+	public T remove(double x, double y, double z) {
+		while (true) {
+			Slot slot = findSlot(x, y, z);
+			Leaf leaf = (slot == null) ? null : slot.leaf;
+			int index = (leaf == null) ? -1 : leaf.indexOf(x, y, z);
+			if (index < 0)
+				return null;
+			Leaf rest = leaf.without(x, y, z, null, false);
+			if (slot.branch.children.compareAndSet(slot.octant, leaf, rest)) {
+				size.add(((rest == null) ? 0 : rest.size()) - leaf.size());
+				return getValue(leaf, index);
+			}
+		}
+	}
+
+	/**
+	 * Removes one mapping from the specified key to the specified value if it is present.
+	 * 
+	 * @param key   key whose mapping is to be removed from the map
+	 * @param value value expected to be associated with the key
+	 * @return true if a mapping was removed
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public boolean remove(Object key, Object value) {
+		Point3D point = toPoint(key);
+		double x = point.getX(), y = point.getY(), z = point.getZ();
+		while (true) {
+			Slot slot = findSlot(x, y, z);
+			Leaf leaf = (slot == null) ? null : slot.leaf;
+			Leaf rest = (leaf == null) ? null : leaf.without(x, y, z, value, true);
+			if ((leaf == null) || (rest == leaf))
+				return false;
+			if (slot.branch.children.compareAndSet(slot.octant, leaf, rest)) {
+				size.decrement();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the first value to which the specified key is mapped, or null if this map contains
+	 * no mapping for the key.
+	 * 
+	 * @param key the key whose associated value is to be returned
+	 * @return the value to which the specified key is mapped, or null if this map contains no
+	 *         mapping for the key
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public T get(Object key) {
+		Point3D point = toPoint(key);
+		return get(point.getX(), point.getY(), point.getZ());
+	}
+
+	/**
+	 * Returns the first value to which the specified key is mapped, or null if this map contains
+	 * no mapping for the key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the value to which the specified key is mapped, or null if this map contains no
+	 *         mapping for the key
+	 */
+	public T get(double x, double y, double z) {
+		Leaf leaf = findLeaf(x, y, z);
+		int index = (leaf == null) ? -1 : leaf.indexOf(x, y, z);
+		return (index < 0) ? null : getValue(leaf, index);
+	}
+
+	/**
+	 * Returns a list of all values to which the specified key is mapped, in the order in which they
+	 * were added, or an empty list if this map contains no mapping for the key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the values to which the specified key is mapped
+	 */
+	public List<T> getAll(double x, double y, double z) {
+		Leaf leaf = findLeaf(x, y, z);
+		List<T> list = new ArrayList<>();
+		for (int i = 0; (leaf != null) && (i < leaf.size()); i++) {
+			if ((leaf.xs[i] == x) && (leaf.ys[i] == y) && (leaf.zs[i] == z))
+				list.add(getValue(leaf, i));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns true if this map contains a mapping for the specified key.
+	 * 
+	 * @param key key whose presence in this map is to be tested
+	 * @return true if this map contains a mapping for the specified key
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public boolean containsKey(Object key) {
+		Point3D point = toPoint(key);
+		return containsKey(point.getX(), point.getY(), point.getZ());
+	}
+
+	/**
+	 * Returns true if this map contains a mapping for the specified key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return true if this map contains a mapping for the specified key
+	 */
+	public boolean containsKey(double x, double y, double z) {
+		Leaf leaf = findLeaf(x, y, z);
+		return (leaf != null) && (leaf.indexOf(x, y, z) >= 0);
+	}
+
+	/**
+	 * This method converts a key passed to one of the Map methods to a Point3D.
+	 * 
+	 * @param key the key to convert
+	 * @return the key as a Point3D
+	 * @throws ClassCastException   if the key is not a Point3D
+	 * @throws NullPointerException if the key is null
+	 */
+	private static Point3D toPoint(Object key) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		if (!(key instanceof Point3D))
+			throw new ClassCastException(CLASS_CAST);
+		return (Point3D) key;
+	}
+
+	/**
+	 * This method returns the octant of a node containing the given point, numbered in the same
+	 * way as the children of an Octree node.
+	 * 
+	 * @param x       the x coordinate of the point
+	 * @param y       the y coordinate of the point
+	 * @param z       the z coordinate of the point
+	 * @param centerX the x coordinate of the center of the node
+	 * @param centerY the y coordinate of the center of the node
+	 * @param centerZ the z coordinate of the center of the node
+	 * @return the octant containing the point
+	 */
+	private static int getOctant(double x, double y, double z, double centerX, double centerY,
+			double centerZ) {
+		return ((x > centerX) ? 4 : 0) + ((y > centerY) ? 2 : 0) + ((z > centerZ) ? 1 : 0);
+	}
+
+	/**
+	 * This method finds the slot which holds or would hold the leaf containing the specified key,
+	 * reading each slot on the path once.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the slot for the key, or null if the key is out of bounds
+	 */
+	private Slot findSlot(double x, double y, double z) {
+		if ((x < xMin) || (x > xMax) || (y < yMin) || (y > yMax) || (z < zMin) || (z > zMax))
+			return null;
+		Branch branch = root;
+		double nodeXMin = xMin, nodeXMax = xMax;
+		double nodeYMin = yMin, nodeYMax = yMax;
+		double nodeZMin = zMin, nodeZMax = zMax;
+		while (true) {
+			double centerX = (nodeXMin + nodeXMax) / 2;
+			double centerY = (nodeYMin + nodeYMax) / 2;
+			double centerZ = (nodeZMin + nodeZMax) / 2;
+			int octant = getOctant(x, y, z, centerX, centerY, centerZ);
+			Object child = branch.children.get(octant);
+			if (!(child instanceof Branch))
+				return new Slot(branch, octant, (Leaf) child);
+			branch = (Branch) child;
+			if ((octant & 4) != 0)
+				nodeXMin = centerX;
+			else
+				nodeXMax = centerX;
+			if ((octant & 2) != 0)
+				nodeYMin = centerY;
+			else
+				nodeYMax = centerY;
+			if ((octant & 1) != 0)
+				nodeZMin = centerZ;
+			else
+				nodeZMax = centerZ;
+		}
+	}
+
+	/**
+	 * This method finds the leaf which contains the entries with the specified key, if any.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the leaf for the key, or null if there is none
+	 */
+	private Leaf findLeaf(double x, double y, double z) {
+		Slot slot = findSlot(x, y, z);
+		return (slot == null) ? null : slot.leaf;
+	}
+
+	/**
+	 * Returns the key nearest to the specified location, or null if this map is empty.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the key nearest to the specified location
+	 */
+	public Point3D getNearestKey(double x, double y, double z) {
+		NearestHeap heap = findNearest(x, y, z, 1);
+		Point3D key = (heap.size() == 0) ? null : getLeaf(heap, 0).getKey(heap.getIndex(0));
+		heap.clear();
+		return key;
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified location, or null if this map is
+	 * empty. Unlike getNearestEntry(), this method does not allocate any objects.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the value of the entry nearest to the specified location
+	 */
+	public T getNearestValue(double x, double y, double z) {
+		NearestHeap heap = findNearest(x, y, z, 1);
+		T value = (heap.size() == 0) ? null : getValue(getLeaf(heap, 0), heap.getIndex(0));
+		heap.clear();
+		return value;
+	}
+
+	/**
+	 * Returns the entry nearest to the specified location, or null if this map is empty.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the entry nearest to the specified location
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z) {
+		NearestHeap heap = findNearest(x, y, z, 1);
+		Map.Entry<Point3D, T> entry = (heap.size() == 0) ? null
+				: getEntry(getLeaf(heap, 0), heap.getIndex(0));
+		heap.clear();
+		return entry;
+	}
+
+	/**
+	 * Returns a list of the n keys nearest to the specified location, or all keys in the map if the
+	 * size of the map is less than n, sorted by distance from the specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of keys to get
+	 * @return the n keys nearest to the specified location
+	 */
+	public List<Point3D> getNearestKeys(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Point3D> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getLeaf(heap, i).getKey(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a list of the values of the n entries nearest to the specified location, or all
+	 * values in the map if the size of the map is less than n, sorted by distance from the
+	 * specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of values to get
+	 * @return the values of the n entries nearest to the specified location
+	 */
+	public List<T> getNearestValues(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<T> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getValue(getLeaf(heap, i), heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a list of the n entries nearest to the specified location, or all entries in the map
+	 * if the size of the map is less than n, sorted by distance from the specified location.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of entries to get
+	 * @return the n entries nearest to the specified location
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(getLeaf(heap, i), heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * This method finds the n entries nearest to the specified location. The leaves and indexes
+	 * of the entries are returned in the current thread's NearestHeap, sorted by distance from the
+	 * location, and the caller must clear the heap once it has read them.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of entries to find
+	 * @return the heap containing the nearest entries
+	 */
+	private NearestHeap findNearest(double x, double y, double z, int n) {
+		NearestHeap heap = NearestHeap.get(Math.max(n, 0));
+		if (n > 0) {
+			findNearest(root, xMin, xMax, yMin, yMax, zMin, zMax, x, y, z, heap);
+			heap.sort();
+		}
+		return heap;
+	}
+
+	/**
+	 * This method searches the specified branch for entries nearer to the target than the
+	 * farthest entry in the heap. The child containing the target is searched first, and the other
+	 * children are only searched if their bounds are nearer to the target than the heap's bound.
+	 * 
+	 * @param branch  the branch to search
+	 * @param xMin    the minimum x coordinate the branch covers
+	 * @param xMax    the maximum x coordinate the branch covers
+	 * @param yMin    the minimum y coordinate the branch covers
+	 * @param yMax    the maximum y coordinate the branch covers
+	 * @param zMin    the minimum z coordinate the branch covers
+	 * @param zMax    the maximum z coordinate the branch covers
+	 * @param targetX the x coordinate of the target
+	 * @param targetY the y coordinate of the target
+	 * @param targetZ the z coordinate of the target
+	 * @param heap    the heap holding the nearest entries found so far
+	 */
+	private void findNearest(Branch branch, double xMin, double xMax, double yMin, double yMax,
+			double zMin, double zMax, double targetX, double targetY, double targetZ,
+			NearestHeap heap) {
+		double x = (xMin + xMax) / 2;
+		double y = (yMin + yMax) / 2;
+		double z = (zMin + zMax) / 2;
+		int targetOctant = getOctant(targetX, targetY, targetZ, x, y, z);
+		for (int i = -1; i < 8; i++) {
+			int octant = (i < 0) ? targetOctant : i;
+			if ((i >= 0) && (octant == targetOctant))
+				continue;
+			Object child = branch.children.get(octant);
+			if (child == null)
+				continue;
+			boolean xGreater = (octant & 4) != 0;
+			boolean yGreater = (octant & 2) != 0;
+			boolean zGreater = (octant & 1) != 0;
+			double childXMin = xGreater ? x : xMin;
+			double childXMax = xGreater ? xMax : x;
+			double childYMin = yGreater ? y : yMin;
+			double childYMax = yGreater ? yMax : y;
+			double childZMin = zGreater ? z : zMin;
+			double childZMax = zGreater ? zMax : z;
+			if ((i >= 0) && (getDist(childXMin, childXMax, childYMin, childYMax, childZMin,
+					childZMax, targetX, targetY, targetZ) >= heap.getBound()))
+				continue;
+			if (child instanceof Branch) {
+				findNearest((Branch) child, childXMin, childXMax, childYMin, childYMax, childZMin,
+						childZMax, targetX, targetY, targetZ, heap);
+			} else {
+				Leaf leaf = (Leaf) child;
+				for (int j = 0; j < leaf.size(); j++) {
+					heap.add(metric.getDist(leaf.xs[j], leaf.ys[j], leaf.zs[j], targetX, targetY,
+							targetZ), leaf, j);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method returns the distance between the boundary of the specified region and the given
+	 * point.
+	 * 
+	 * @param xMin the minimum x coordinate of the region
+	 * @param xMax the maximum x coordinate of the region
+	 * @param yMin the minimum y coordinate of the region
+	 * @param yMax the maximum y coordinate of the region
+	 * @param zMin the minimum z coordinate of the region
+	 * @param zMax the maximum z coordinate of the region
+	 * @param x    the x coordinate of the point
+	 * @param y    the y coordinate of the point
+	 * @param z    the z coordinate of the point
+	 * @return the distance between the boundary of the region and the given point
+	 */
+	private double getDist(double xMin, double xMax, double yMin, double yMax, double zMin,
+			double zMax, double x, double y, double z) {
+		return metric.getDist(xMin, xMax, yMin, yMax, zMin, zMax, x, y, z);
+	}
+
+
+	/**
+	 * This method returns the leaf at the given position of a NearestHeap.
+	 * 
+	 * @param heap     the heap containing the leaf
+	 * @param position the position of the leaf in the heap
+	 * @return the leaf at the given position
+	 */
+	private static Leaf getLeaf(NearestHeap heap, int position) {
+		return (Leaf) heap.getItem(position);
+	}
+
+	/**
+	 * This method returns the value of the entry at the specified index of a leaf.
+	 * 
+	 * @param leaf  the leaf containing the entry
+	 * @param index the index of the entry
+	 * @return the value of the entry
+	 */
+	@SuppressWarnings("unchecked")
+	private T getValue(Leaf leaf, int index) {
+		return (T) leaf.values[index];
+	}
+
+	/**
+	 * This method returns the entry at the specified index of a leaf.
+	 * 
+	 * @param leaf  the leaf containing the entry
+	 * @param index the index of the entry
+	 * @return the entry
+	 */
+	private Map.Entry<Point3D, T> getEntry(Leaf leaf, int index) {
+		return new AbstractMap.SimpleImmutableEntry<>(leaf.getKey(index), getValue(leaf, index));
+	}
+
+	/**
+	 * Returns an immutable CompactOctree with the same bounds, DistFunction, and mappings as this
+	 * ConcurrentOctree. Mappings changed by other threads while this method runs may or may not be
+	 * included.
+	 * 
+	 * @return a CompactOctree containing the mappings in this ConcurrentOctree
+	 */
+	public CompactOctree<T> freeze() {
+		List<Leaf> leaves = getLeaves();
+		int count = 0;
+		for (Leaf leaf : leaves) {
+			count += leaf.size();
+		}
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		double[] zs = new double[count];
+		Object[] values = new Object[count];
+		int index = 0;
+		for (Leaf leaf : leaves) {
+			System.arraycopy(leaf.xs, 0, xs, index, leaf.size());
+			System.arraycopy(leaf.ys, 0, ys, index, leaf.size());
+			System.arraycopy(leaf.zs, 0, zs, index, leaf.size());
+			System.arraycopy(leaf.values, 0, values, index, leaf.size());
+			index += leaf.size();
+		}
+		return new CompactOctree<>(xMin, xMax, yMin, yMax, zMin, zMax, distFunction, xs, ys, zs,
+				values);
+	}
+
+	/**
+	 * This method returns every leaf in the tree, found using DFS starting at the root.
+	 * 
+	 * @return the leaves in the tree
+	 */
+	private List<Leaf> getLeaves() {
+		List<Leaf> leaves = new ArrayList<>();
+		List<Branch> stack = new ArrayList<>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			Branch branch = stack.remove(stack.size() - 1);
+			for (int octant = 0; octant < 8; octant++) {
+				Object child = branch.children.get(octant);
+				if (child instanceof Branch)
+					stack.add((Branch) child);
+				else if (child != null)
+					leaves.add((Leaf) child);
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	 * This class represents a branch of the tree, which holds a slot for each octant containing
+	 * either null, a Leaf, or another Branch.
+	 */
+	private static class Branch {
+		private final AtomicReferenceArray<Object> children = new AtomicReferenceArray<>(8);
+	}
+
+	/**
+	 * This class identifies one child slot of a branch and the leaf it held when it was found. The
+	 * slot may have been changed by another thread since then, so the leaf must only be replaced
+	 * using compare-and-set.
+	 */
+	private static class Slot {
+		private final Branch branch;
+		private final int octant;
+		private final Leaf leaf;
+
+		/**
+		 * Constructs a Slot for the given octant of the given branch.
+		 * 
+		 * @param branch the branch containing the slot
+		 * @param octant the octant of the slot
+		 * @param leaf   the leaf in the slot, or null if the slot was empty
+		 */
+		public Slot(Branch branch, int octant, Leaf leaf) {
+			this.branch = branch;
+			this.octant = octant;
+			this.leaf = leaf;
+		}
+	}
+
+	/**
+	 * This class represents an immutable leaf of the tree holding a small bucket of entries, in
+	 * the order in which they were added.
+	 */
+	private static class Leaf {
+		private final double[] xs, ys, zs;
+		private final Object[] values;
+
+		/**
+		 * Constructs a Leaf holding a single entry.
+		 * 
+		 * @param x     the x coordinate of the key
+		 * @param y     the y coordinate of the key
+		 * @param z     the z coordinate of the key
+		 * @param value the value
+		 */
+		public Leaf(double x, double y, double z, Object value) {
+			this(new double[] { x }, new double[] { y }, new double[] { z },
+					new Object[] { value });
+		}
+
+		/**
+		 * Constructs a Leaf holding the entries in the given arrays, which are kept by the leaf.
+		 * 
+		 * @param xs     the x coordinates of the keys
+		 * @param ys     the y coordinates of the keys
+		 * @param zs     the z coordinates of the keys
+		 * @param values the values
+		 */
+		public Leaf(double[] xs, double[] ys, double[] zs, Object[] values) {
+			this.xs = xs;
+			this.ys = ys;
+			this.zs = zs;
+			this.values = values;
+		}
+
+		/**
+		 * This method returns the number of entries in the leaf.
+		 * 
+		 * @return the number of entries
+		 */
+		private int size() {
+			return values.length;
+		}
+
+		/**
+		 * This method returns the key of the entry at the specified index.
+		 * 
+		 * @param index the index of the entry
+		 * @return the key of the entry
+		 */
+		private Point3D getKey(int index) {
+			return new Point3D(xs[index], ys[index], zs[index]);
+		}
+
+		/**
+		 * This method returns the index of the first entry with the specified key.
+		 * 
+		 * @param x the x coordinate of the key
+		 * @param y the y coordinate of the key
+		 * @param z the z coordinate of the key
+		 * @return the index of the entry, or -1 if there is no entry with the key
+		 */
+		private int indexOf(double x, double y, double z) {
+			for (int i = 0; i < values.length; i++) {
+				if ((xs[i] == x) && (ys[i] == y) && (zs[i] == z))
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * This method checks whether all entries in the leaf have the same key.
+		 * 
+		 * @return true if all entries have the same key and false otherwise
+		 */
+		private boolean hasOneKey() {
+			for (int i = 1; i < values.length; i++) {
+				if ((xs[i] != xs[0]) || (ys[i] != ys[0]) || (zs[i] != zs[0]))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * This method returns a copy of this leaf with the given entry appended.
+		 * 
+		 * @param x     the x coordinate of the key
+		 * @param y     the y coordinate of the key
+		 * @param z     the z coordinate of the key
+		 * @param value the value
+		 * @return the new leaf
+		 */
+		private Leaf with(double x, double y, double z, Object value) {
+			int size = values.length;
+			Leaf leaf = new Leaf(Arrays.copyOf(xs, size + 1), Arrays.copyOf(ys, size + 1),
+					Arrays.copyOf(zs, size + 1), Arrays.copyOf(values, size + 1));
+			leaf.xs[size] = x;
+			leaf.ys[size] = y;
+			leaf.zs[size] = z;
+			leaf.values[size] = value;
+			return leaf;
+		}
+
+		/**
+		 * This method returns a copy of this leaf without the entries with the specified key, or
+		 * only without the first of them whose value equals the given value.
+		 * 
+		 * @param x        the x coordinate of the key
+		 * @param y        the y coordinate of the key
+		 * @param z        the z coordinate of the key
+		 * @param value    the value to remove if matchOne is true
+		 * @param matchOne true to remove only the first entry with the key and value, and false to
+		 *                 remove every entry with the key
+		 * @return the new leaf, this leaf if no entry was removed, or null if no entries remain
+		 */
+		private Leaf without(double x, double y, double z, Object value, boolean matchOne) {
+			boolean[] removed = new boolean[values.length];
+			int count = 0;
+			for (int i = 0; i < values.length; i++) {
+				if ((xs[i] == x) && (ys[i] == y) && (zs[i] == z)
+						&& (!matchOne || Objects.equals(values[i], value))) {
+					removed[i] = true;
+					count++;
+					if (matchOne)
+						break;
+				}
+			}
+			if (count == 0)
+				return this;
+			if (count == values.length)
+				return null;
+			return filter(removed, false);
+		}
+
+		/**
+		 * This method returns a new leaf with the entries of this leaf which belong in the given
+		 * octant of a node.
+		 * 
+		 * @param octant  the octant
+		 * @param centerX the x coordinate of the center of the node
+		 * @param centerY the y coordinate of the center of the node
+		 * @param centerZ the z coordinate of the center of the node
+		 * @return the new leaf, or null if no entries belong in the octant
+		 */
+		private Leaf inOctant(int octant, double centerX, double centerY, double centerZ) {
+			boolean[] selected = new boolean[values.length];
+			boolean any = false;
+			for (int i = 0; i < values.length; i++) {
+				selected[i] = getOctant(xs[i], ys[i], zs[i], centerX, centerY, centerZ) == octant;
+				any |= selected[i];
+			}
+			return any ? filter(selected, true) : null;
+		}
+
+		/**
+		 * This method returns a new leaf with the entries of this leaf whose flag has the given
+		 * value.
+		 * 
+		 * @param flags the flag of each entry
+		 * @param keep  the value of the flags of the entries to keep
+		 * @return the new leaf
+		 */
+		private Leaf filter(boolean[] flags, boolean keep) {
+			int count = 0;
+			for (boolean flag : flags) {
+				if (flag == keep)
+					count++;
+			}
+			Leaf leaf = new Leaf(new double[count], new double[count], new double[count],
+					new Object[count]);
+			for (int i = 0, j = 0; i < values.length; i++) {
+				if (flags[i] == keep) {
+					leaf.xs[j] = xs[i];
+					leaf.ys[j] = ys[i];
+					leaf.zs[j] = zs[i];
+					leaf.values[j++] = values[i];
+				}
+			}
+			return leaf;
+		}
+	}
+
+	/**
+	 * Weakly consistent set view of the mappings contained in this map. The set is backed by the
+	 * map, so changes to the map are reflected in the set. Its iterator never throws
+	 * ConcurrentModificationException, and its remove operation removes the corresponding mapping
+	 * from the map.
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<Point3D, T>> {
+		@Override
+		public Iterator<Map.Entry<Point3D, T>> iterator() {
+			return new Iterator<Map.Entry<Point3D, T>>() {
+				private final Iterator<Leaf> leaves = getLeaves().iterator();
+				private Leaf leaf = null;
+				private int next = 0;
+				private Map.Entry<Point3D, T> lastReturned = null;
+
+				@Override
+				public boolean hasNext() {
+					while (((leaf == null) || (next >= leaf.size())) && leaves.hasNext()) {
+						leaf = leaves.next();
+						next = 0;
+					}
+					return (leaf != null) && (next < leaf.size());
+				}
+
+				@Override
+				public Map.Entry<Point3D, T> next() {
+					if (!hasNext())
+						throw new NoSuchElementException("The iteration has no more elements.");
+					lastReturned = getEntry(leaf, next++);
+					return lastReturned;
+				}
+
+				@Override
+				public void remove() {
+					if (lastReturned == null)
+						throw new IllegalStateException(
+								"The remove() method can only be called once after each call to next().");
+					ConcurrentOctree.this.remove(lastReturned.getKey(), lastReturned.getValue());
+					lastReturned = null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return ConcurrentOctree.this.size();
+		}
+
+		@Override
+		public void clear() {
+			ConcurrentOctree.this.clear();
+		}
+	}
+}
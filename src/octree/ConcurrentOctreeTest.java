@@ -0,0 +1,318 @@
+package octree;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.geometry.Point3D;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrentOctreeTest {
+	static Random random = new Random();
+	static final int NUM_ENTRIES = 100_000;
+
+	/**
+	 * Tests the throughput of a ConcurrentOctree with 1 to 32 threads, first with every thread
+	 * adding entries and then with half of the threads adding entries while the other half search
+	 * the tree. This test does not include any assertions; results will be printed and can be
+	 * compared manually. Note that this is much slower than the other tests.
+	 */
+//	@Test
+	void testEfficiency() throws InterruptedException {
+		int numPoints = 2_000_000; // the number of entries added in each run
+		int numQueries = 2_000_000; // the number of nearest neighbor searches in each mixed run
+
+		// create random integer colors, so there are many duplicate keys
+		double[][] points = new double[numPoints][];
+		for (int i = 0; i < numPoints; i++) {
+			points[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+
+		for (int threadCount = 1; threadCount <= 32; threadCount *= 2) {
+			int threads = threadCount;
+
+			// time adding all entries with every thread writing
+			ConcurrentOctree<Integer> tree = new ConcurrentOctree<>(0, 255);
+			long addTime = run(threads, thread -> {
+				for (int i = thread; i < numPoints; i += threads) {
+					tree.add(points[i][0], points[i][1], points[i][2], i);
+				}
+			});
+
+			// time adding entries while other threads search the tree
+			ConcurrentOctree<Integer> mixed = new ConcurrentOctree<>(0, 255);
+			int writers = Math.max(1, threads / 2);
+			int readers = threads - writers;
+			long mixedTime = run(threads, thread -> {
+				Random threadRandom = new Random(thread);
+				if (thread < writers) {
+					for (int i = thread; i < numPoints; i += writers) {
+						mixed.add(points[i][0], points[i][1], points[i][2], i);
+					}
+				} else {
+					for (int i = thread - writers; i < numQueries; i += readers) {
+						mixed.getNearestValue(threadRandom.nextInt(256), threadRandom.nextInt(256),
+								threadRandom.nextInt(256));
+					}
+				}
+			});
+
+			// print the results
+			System.out.println("Threads: " + threads);
+			System.out.println("Time to add " + numPoints + " entries: " + addTime + "ms ("
+					+ (numPoints / Math.max(addTime, 1)) + " per ms)");
+			System.out.println("Time to add " + numPoints + " entries with " + writers
+					+ " writers while " + readers + " readers search " + numQueries
+					+ " times: " + mixedTime + "ms");
+		}
+	}
+
+	/**
+	 * This method runs a task on the specified number of threads at once and returns the time
+	 * until all of them finished.
+	 * 
+	 * @param threads the number of threads
+	 * @param task    the task to run, which is passed the index of its thread
+	 * @return the time taken in milliseconds
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	private static long run(int threads, ThreadTask task) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		List<Thread> list = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			int thread = i;
+			list.add(new Thread(() -> {
+				try {
+					start.await();
+					task.run(thread);
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread thread : list) {
+			thread.start();
+		}
+		long startTime = System.currentTimeMillis();
+		start.countDown();
+		for (Thread thread : list) {
+			thread.join();
+		}
+		long time = System.currentTimeMillis() - startTime;
+		assertTrue(errors.isEmpty(), () -> errors.peek().toString());
+		return time;
+	}
+
+	/**
+	 * A task run by one of several threads.
+	 */
+	private interface ThreadTask {
+		/**
+		 * Runs the task.
+		 * 
+		 * @param thread the index of the thread running the task
+		 * @throws Exception if the task fails
+		 */
+		void run(int thread) throws Exception;
+	}
+
+	/**
+	 * Tests put(), add(), get(), getAll(), containsKey(), remove(), and iteration on a single
+	 * thread.
+	 */
+	@Test
+	void testPutGetContainsRemove() {
+		ConcurrentOctree<Integer> tree = new ConcurrentOctree<>(0, 255);
+		assertTrue(tree.isEmpty());
+		assertNull(tree.get(0, 0, 0));
+		assertNull(tree.getNearestValue(0, 0, 0));
+		assertNull(tree.put(1, 2, 3, 1));
+		assertEquals(1, tree.put(new Point3D(1, 2, 3), 2));
+		assertEquals(1, tree.size());
+		tree.add(1, 2, 3, 3);
+		tree.add(new Point3D(1, 2, 3), 4);
+		assertEquals(3, tree.size());
+		assertEquals(2, tree.get(1, 2, 3));
+		assertEquals(Arrays.asList(2, 3, 4), tree.getAll(1, 2, 3));
+		assertTrue(tree.containsKey(new Point3D(1, 2, 3)));
+		assertFalse(tree.containsKey(3, 2, 1));
+
+		// add enough entries to split leaves, including many with the same key
+		Octree<Integer> octree = new Octree<>(0, 255);
+		octree.add(1, 2, 3, 2);
+		octree.add(1, 2, 3, 3);
+		octree.add(1, 2, 3, 4);
+		for (int i = 5; i < NUM_ENTRIES; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			// keep the keys checked below free of random values
+			if ((x == 1 && y == 2 && z == 3) || (x == 7 && y == 7 && z == 7))
+				continue;
+			tree.add(x, y, z, i);
+			octree.add(x, y, z, i);
+		}
+		for (int i = 0; i < 100; i++) {
+			tree.add(7, 7, 7, -i);
+			octree.add(7, 7, 7, -i);
+		}
+		assertEquals(octree.size(), tree.size());
+		assertEquals(new HashSet<>(octree.getAll(7, 7, 7)), new HashSet<>(tree.getAll(7, 7, 7)));
+		List<Integer> values = new ArrayList<>();
+		for (Map.Entry<Point3D, Integer> entry : tree.entrySet()) {
+			values.add(entry.getValue());
+			assertTrue(octree.getAll(entry.getKey()).contains(entry.getValue()));
+		}
+		assertEquals(octree.size(), values.size());
+		assertEquals(octree.size(), new HashSet<>(values).size());
+
+		// put() replaces every value for the key
+		int before = tree.size();
+		int count = tree.getAll(7, 7, 7).size();
+		tree.put(7, 7, 7, 1000);
+		assertEquals(before - count + 1, tree.size());
+		assertEquals(Arrays.asList(1000), tree.getAll(7, 7, 7));
+
+		// test removal
+		assertTrue(tree.remove(new Point3D(1, 2, 3), 3));
+		assertFalse(tree.remove(new Point3D(1, 2, 3), 3));
+		assertEquals(Arrays.asList(2, 4), tree.getAll(1, 2, 3));
+		assertEquals(2, tree.remove(new Point3D(1, 2, 3)));
+		assertFalse(tree.containsKey(1, 2, 3));
+		assertNull(tree.remove(1, 2, 3));
+		assertEquals(before - count - 2, tree.size());
+		tree.entrySet().removeIf(entry -> entry.getValue() % 2 == 0);
+		for (Map.Entry<Point3D, Integer> entry : tree.entrySet()) {
+			assertNotEquals(0, entry.getValue() % 2);
+		}
+		assertEquals(tree.size(), tree.freeze().size());
+		tree.clear();
+		assertTrue(tree.isEmpty());
+		assertFalse(tree.entrySet().iterator().hasNext());
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(IllegalArgumentException.class, () -> new ConcurrentOctree<>(1, 0));
+		assertThrows(IllegalArgumentException.class, () -> tree.add(256, 0, 0, 0));
+		assertThrows(IllegalArgumentException.class, () -> tree.put(new Point3D(0, -1, 0), 0));
+		assertThrows(NullPointerException.class, () -> tree.put(null, 0));
+		assertThrows(NullPointerException.class, () -> tree.get(null));
+		assertThrows(ClassCastException.class, () -> tree.get(new Object()));
+		assertNull(tree.get(new Point3D(300, 0, 0)));
+	}
+
+	/**
+	 * Tests getNearestKey(), getNearestValue(), getNearestEntry(), and the methods which get
+	 * several entries against an Octree with the same entries.
+	 */
+	@Test
+	void testGetNearest() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		ConcurrentOctree<Integer> tree = new ConcurrentOctree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			octree.add(x, y, z, i);
+			tree.add(x, y, z, i);
+		}
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			Point3D target = new Point3D(x, y, z);
+			Point3D expected = octree.getNearestKey(x, y, z);
+			Point3D actual = tree.getNearestKey(x, y, z);
+			assertEquals(target.distance(expected), target.distance(actual));
+			assertTrue(tree.getAll(actual.getX(), actual.getY(), actual.getZ())
+					.contains(tree.getNearestValue(x, y, z)));
+			assertEquals(actual, tree.getNearestEntry(x, y, z).getKey());
+		}
+		for (int i = 0; i < NUM_ENTRIES / 100; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			Point3D target = new Point3D(x, y, z);
+			List<Point3D> expected = octree.getNearestKeys(x, y, z, 10);
+			List<Point3D> actual = tree.getNearestKeys(x, y, z, 10);
+			List<Map.Entry<Point3D, Integer>> entries = tree.getNearestEntries(x, y, z, 10);
+			List<Integer> values = tree.getNearestValues(x, y, z, 10);
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < expected.size(); j++) {
+				assertEquals(target.distance(expected.get(j)), target.distance(actual.get(j)));
+				assertEquals(target.distance(expected.get(j)),
+						target.distance(entries.get(j).getKey()));
+				assertEquals(entries.get(j).getValue(), values.get(j));
+			}
+		}
+		assertEquals(tree.size(), tree.getNearestKeys(0, 0, 0, Integer.MAX_VALUE).size());
+		assertTrue(tree.getNearestValues(0, 0, 0, 0).isEmpty());
+
+		// test with a DistFunction
+		ConcurrentOctree<Integer> manhattan = new ConcurrentOctree<>(0, 10,
+				(x, y, z) -> x + y + z);
+		manhattan.put(2, 0, 0, 17);
+		manhattan.put(1, 1, 1, 57);
+		assertEquals(17, manhattan.getNearestValue(0, 0, 0));
+	}
+
+	/**
+	 * Tests adding and removing entries on several threads while other threads search the tree.
+	 * Every search must return an entry which was actually added, and once the writers finish
+	 * the tree must contain exactly the entries which were added and not removed.
+	 */
+	@Test
+	void testConcurrentAccess() throws InterruptedException {
+		int writers = 8, readers = 4;
+		int perWriter = NUM_ENTRIES / writers;
+		double[][] points = new double[writers * perWriter][];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new double[] { random.nextInt(256), random.nextInt(256),
+					random.nextInt(256) };
+		}
+		ConcurrentOctree<Integer> tree = new ConcurrentOctree<>(0, 255);
+		AtomicInteger finished = new AtomicInteger();
+		run(writers + readers, thread -> {
+			if (thread < writers) {
+				// add this writer's entries, removing every tenth one again
+				try {
+					for (int i = thread * perWriter; i < (thread + 1) * perWriter; i++) {
+						Point3D key = new Point3D(points[i][0], points[i][1], points[i][2]);
+						tree.add(key, i);
+						if (i % 10 == 0)
+							assertTrue(tree.remove(key, i));
+					}
+				} finally {
+					finished.incrementAndGet();
+				}
+			} else {
+				// search until all writers have finished, checking that each result is consistent
+				Random threadRandom = new Random(thread);
+				do {
+					Map.Entry<Point3D, Integer> entry = tree.getNearestEntry(
+							threadRandom.nextInt(256), threadRandom.nextInt(256),
+							threadRandom.nextInt(256));
+					if (entry != null) {
+						double[] point = points[entry.getValue()];
+						assertEquals(new Point3D(point[0], point[1], point[2]), entry.getKey());
+					}
+				} while (finished.get() < writers);
+			}
+		});
+
+		// every entry which was not removed is present exactly once
+		int expected = points.length - (points.length + 9) / 10;
+		assertEquals(expected, tree.size());
+		CompactOctree<Integer> compact = tree.freeze();
+		assertEquals(expected, compact.size());
+		HashSet<Integer> values = new HashSet<>(compact.values());
+		assertEquals(expected, values.size());
+		for (int i = 0; i < points.length; i++) {
+			assertEquals(i % 10 != 0, values.contains(i));
+			if (i % 10 != 0)
+				assertTrue(tree.getAll(points[i][0], points[i][1], points[i][2]).contains(i));
+		}
+	}
+}
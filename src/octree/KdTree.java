@@ -0,0 +1,374 @@
+package octree;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable k-d tree which maps points in a space of any number of dimensions to Objects of a
+ * specified type, for nearest neighbor searches with more than the 3 dimensions of an Octree, such
+ * as the colors of several parts of an image tile.
+ * 
+ * The tree is balanced and stored implicitly in arrays: each node is the median of a contiguous
+ * range of entries along the dimension in which the range is most spread out, and the entries
+ * before and after it are its two subtrees, so no child references are stored at all. Ranges of up
+ * to LEAF_SIZE entries are leaves which are searched linearly. The coordinates of all entries are
+ * stored in a single double array in the same order, and distances are squared Euclidean
+ * distances, calculated directly without a DistFunction. A distance calculation stops as soon as
+ * it exceeds the distance of the nearest entry found so far, which skips most of the coordinates
+ * of distant entries when there are many dimensions.
+ * 
+ * A search keeps the distance from the target to the region of each subtree, which is updated
+ * from the target's distance to each splitting plane crossed on the way down, and skips subtrees
+ * whose regions are farther than the nearest entry found so far. This prunes far more subtrees
+ * than comparing only with the last splitting plane when there are many dimensions. Searches given
+ * an epsilon are approximate, as in an Octree, and may return entries up to (1 + epsilon) times
+ * farther than the nearest ones, which lets them skip most of the tree even for large trees.
+ * 
+ * If several entries are equally near to the target, the entry found first is returned. This
+ * class is thread-safe, since it cannot be modified after it is created.
+ */
+public final class KdTree<T> {
+	private static final int LEAF_SIZE = 8;
+	private final int dimensions, size;
+	private final double[] coords;
+	private final int[] axes;
+	private final Object[] values;
+
+	/**
+	 * Constructs a KdTree containing the given points, each mapped to the value at the same index.
+	 * The lists are not modified, and the points are copied.
+	 * 
+	 * @param dimensions the number of dimensions of the points
+	 * @param points     the points
+	 * @param values     the values
+	 * @throws IllegalArgumentException if dimensions is less than 1, if the lists do not have the
+	 *                                  same size, or if a point does not have dimensions
+	 *                                  coordinates
+	 * @throws NullPointerException     if a point is null
+	 */
+	public KdTree(int dimensions, List<double[]> points, List<? extends T> values) {
+		if (dimensions < 1)
+			throw new IllegalArgumentException("The number of dimensions must be at least 1.");
+		if (points.size() != values.size())
+			throw new IllegalArgumentException("There must be one value for each point.");
+		this.dimensions = dimensions;
+		size = points.size();
+		double[] source = new double[size * dimensions];
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			double[] point = Objects.requireNonNull(points.get(i));
+			if (point.length != dimensions)
+				throw new IllegalArgumentException(
+						"Every point must have " + dimensions + " coordinates.");
+			System.arraycopy(point, 0, source, i * dimensions, dimensions);
+			order[i] = i;
+		}
+		axes = new int[size];
+		build(source, order, 0, size);
+
+		// store the coordinates and values in the order of the tree
+		coords = new double[size * dimensions];
+		this.values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(source, order[i] * dimensions, coords, i * dimensions, dimensions);
+			this.values[i] = values.get(order[i]);
+		}
+	}
+
+	/**
+	 * This method arranges the specified range of the order array into a subtree. The median of
+	 * the range along the dimension in which it is most spread out is moved to the middle of the
+	 * range, with the entries below it before it and the entries above it after it, and the two
+	 * halves are arranged in the same way.
+	 * 
+	 * @param source the coordinates of the entries, in their original order
+	 * @param order  the original indexes of the entries, in the order of the tree
+	 * @param start  the first index of the range
+	 * @param end    the index after the last index of the range
+	 */
+	private void build(double[] source, int[] order, int start, int end) {
+		if (end - start <= LEAF_SIZE)
+			return;
+		int axis = getWidestAxis(source, order, start, end);
+		int mid = (start + end) >>> 1;
+		select(source, order, start, end - 1, mid, axis);
+		axes[mid] = axis;
+		build(source, order, start, mid);
+		build(source, order, mid + 1, end);
+	}
+
+	/**
+	 * This method returns the dimension in which the entries in the specified range of the order
+	 * array are most spread out.
+	 * 
+	 * @param source the coordinates of the entries, in their original order
+	 * @param order  the original indexes of the entries, in the order of the tree
+	 * @param start  the first index of the range
+	 * @param end    the index after the last index of the range
+	 * @return the dimension with the largest difference between the minimum and maximum
+	 *         coordinates
+	 */
+	private int getWidestAxis(double[] source, int[] order, int start, int end) {
+		double[] min = new double[dimensions];
+		double[] max = new double[dimensions];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int i = start; i < end; i++) {
+			int offset = order[i] * dimensions;
+			for (int axis = 0; axis < dimensions; axis++) {
+				double coord = source[offset + axis];
+				min[axis] = Math.min(min[axis], coord);
+				max[axis] = Math.max(max[axis], coord);
+			}
+		}
+		int widest = 0;
+		for (int axis = 1; axis < dimensions; axis++) {
+			if (max[axis] - min[axis] > max[widest] - min[widest])
+				widest = axis;
+		}
+		return widest;
+	}
+
+	/**
+	 * This method rearranges the specified range of the order array so that the entry at index k
+	 * is the one which would be there if the range were sorted by the given dimension, and the
+	 * entries before and after it are not greater and not less than it, respectively.
+	 * 
+	 * @param source the coordinates of the entries, in their original order
+	 * @param order  the original indexes of the entries, in the order of the tree
+	 * @param left   the first index of the range
+	 * @param right  the last index of the range
+	 * @param k      the index to select
+	 * @param axis   the dimension to compare
+	 */
+	private void select(double[] source, int[] order, int left, int right, int k, int axis) {
+		while (left < right) {
+			double pivot = source[order[(left + right) >>> 1] * dimensions + axis];
+			int i = left, j = right;
+			while (i <= j) {
+				while (source[order[i] * dimensions + axis] < pivot)
+					i++;
+				while (source[order[j] * dimensions + axis] > pivot)
+					j--;
+				if (i <= j) {
+					int temp = order[i];
+					order[i++] = order[j];
+					order[j--] = temp;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Get the number of entries in this tree.
+	 * 
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of dimensions of the points in this tree.
+	 * 
+	 * @return the number of dimensions
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified point, or null if this tree is
+	 * empty.
+	 * 
+	 * @param point the coordinates of the point
+	 * @return the value of the entry nearest to the specified point
+	 * @throws IllegalArgumentException if the point does not have the same number of dimensions as
+	 *                                  this tree
+	 */
+	public T getNearestValue(double... point) {
+		return getNearestValue(point, 0);
+	}
+
+	/**
+	 * Returns the value of an entry whose distance from the specified point is at most
+	 * (1 + epsilon) times the distance of the nearest entry, or null if this tree is empty. A
+	 * larger epsilon lets the search skip more of the tree, and an epsilon of 0 gives the same
+	 * result as getNearestValue().
+	 * 
+	 * @param point   the coordinates of the point
+	 * @param epsilon the maximum relative error of the distance of the entry
+	 * @return the value of an entry within (1 + epsilon) times the distance of the nearest entry
+	 * @throws IllegalArgumentException if the point does not have the same number of dimensions as
+	 *                                  this tree, or if epsilon is negative or NaN
+	 */
+	@SuppressWarnings("unchecked")
+	public T getNearestValue(double[] point, double epsilon) {
+		Nearest nearest = new Nearest(dimensions, epsilon);
+		if (point.length != dimensions)
+			throw new IllegalArgumentException(
+					"The point must have " + dimensions + " coordinates.");
+		if (size == 0)
+			return null;
+		search(point, 0, 0, size, 0, nearest);
+		return (nearest.index < 0) ? null : (T) values[nearest.index];
+	}
+
+	/**
+	 * Finds the value of the entry nearest to each of the specified points and stores it in the
+	 * results array at the same index, or stores null if this tree is empty. The coordinates of
+	 * the points are given one point after another in a single array. This is faster than
+	 * searching for each point separately when consecutive points are near to each other, such as
+	 * the signatures of neighboring cells of an image, since each search starts with the previous
+	 * search's result as its nearest candidate, which lets it skip most of the tree.
+	 * 
+	 * @param points  the coordinates of the points
+	 * @param results the array to store the values in
+	 * @throws IllegalArgumentException if points does not have dimensions coordinates for each
+	 *                                  element of results
+	 */
+	public void getNearestValues(double[] points, T[] results) {
+		getNearestValues(points, results, 0);
+	}
+
+	/**
+	 * Finds the value of an entry whose distance from each of the specified points is at most
+	 * (1 + epsilon) times the distance of the nearest entry, and stores it in the results array at
+	 * the same index, or stores null if this tree is empty. The points are searched in the same way
+	 * as by getNearestValues() without an epsilon, and an epsilon of 0 gives the same results.
+	 * 
+	 * @param points  the coordinates of the points
+	 * @param results the array to store the values in
+	 * @param epsilon the maximum relative error of the distances of the entries
+	 * @throws IllegalArgumentException if points does not have dimensions coordinates for each
+	 *                                  element of results, or if epsilon is negative or NaN
+	 */
+	@SuppressWarnings("unchecked")
+	public void getNearestValues(double[] points, T[] results, double epsilon) {
+		Nearest nearest = new Nearest(dimensions, epsilon);
+		if (points.length != (long) results.length * dimensions)
+			throw new IllegalArgumentException(
+					"There must be " + dimensions + " coordinates for each result.");
+		if (size == 0) {
+			Arrays.fill(results, null);
+			return;
+		}
+		for (int i = 0, offset = 0; i < results.length; i++, offset += dimensions) {
+			if (nearest.index >= 0)
+				nearest.dist = getDist(nearest.index, points, offset, Double.POSITIVE_INFINITY);
+			search(points, offset, 0, size, 0, nearest);
+			results[i] = (nearest.index < 0) ? null : (T) values[nearest.index];
+		}
+	}
+
+	/**
+	 * This method searches the subtree in the specified range for an entry nearer to the target
+	 * than the nearest entry found so far, and updates it if one is found. The half of the range
+	 * on the target's side of the median is searched first, and the other half is only searched
+	 * if its region, which only differs from the range's region by the splitting plane, is nearer
+	 * to the target than the nearest entry divided by the prune factor.
+	 * 
+	 * @param target     the array containing the coordinates of the target
+	 * @param offset     the index of the target's first coordinate in the array
+	 * @param start      the first index of the range
+	 * @param end        the index after the last index of the range
+	 * @param regionDist the squared distance from the target to the region of the range
+	 * @param nearest    the nearest entry found so far
+	 */
+	private void search(double[] target, int offset, int start, int end, double regionDist,
+			Nearest nearest) {
+		if (end - start <= LEAF_SIZE) {
+			for (int i = start; i < end; i++)
+				nearest.offer(i, getDist(i, target, offset, nearest.dist));
+			return;
+		}
+		int mid = (start + end) >>> 1;
+		int axis = axes[mid];
+		double diff = target[offset + axis] - coords[mid * dimensions + axis];
+		nearest.offer(mid, getDist(mid, target, offset, nearest.dist));
+		if (diff <= 0)
+			search(target, offset, start, mid, regionDist, nearest);
+		else
+			search(target, offset, mid + 1, end, regionDist, nearest);
+
+		// the other half is at least as far along the axis as the splitting plane
+		double previous = nearest.diffs[axis];
+		double dist = regionDist - previous * previous + diff * diff;
+		if (dist * nearest.pruneFactor < nearest.dist) {
+			nearest.diffs[axis] = diff;
+			if (diff <= 0)
+				search(target, offset, mid + 1, end, dist, nearest);
+			else
+				search(target, offset, start, mid, dist, nearest);
+			nearest.diffs[axis] = previous;
+		}
+	}
+
+	/**
+	 * This method returns the squared distance between the target and the entry at the given
+	 * index, or any value of at least bound if the distance is at least bound.
+	 * 
+	 * @param index  the index of the entry
+	 * @param target the array containing the coordinates of the target
+	 * @param offset the index of the target's first coordinate in the array
+	 * @param bound  the distance above which the exact distance is not needed
+	 * @return the squared distance, or a value of at least bound
+	 */
+	private double getDist(int index, double[] target, int offset, double bound) {
+		double dist = 0;
+		for (int i = index * dimensions, end = i + dimensions; i < end; i++, offset++) {
+			double diff = target[offset] - coords[i];
+			dist += diff * diff;
+			if (dist >= bound)
+				break;
+		}
+		return dist;
+	}
+
+	/**
+	 * The nearest entry found so far by a search and its squared distance from the target, with
+	 * the state of the search.
+	 */
+	private static final class Nearest {
+		private int index = -1;
+		private double dist = Double.POSITIVE_INFINITY;
+		private final double pruneFactor;
+		private final double[] diffs;
+
+		/**
+		 * Constructs a Nearest for searches with the given number of dimensions and epsilon.
+		 * 
+		 * @param dimensions the number of dimensions of the tree
+		 * @param epsilon    the maximum relative error of the distances of the entries found
+		 * @throws IllegalArgumentException if epsilon is negative or NaN
+		 */
+		private Nearest(int dimensions, double epsilon) {
+			if (!(epsilon >= 0))
+				throw new IllegalArgumentException("The epsilon must be at least 0.");
+			// distances are squared, so the factor is squared too
+			pruneFactor = (1 + epsilon) * (1 + epsilon);
+			// the distance from the target to the current region along each axis
+			diffs = new double[dimensions];
+		}
+
+		/**
+		 * This method replaces the nearest entry with the given entry if it is nearer.
+		 * 
+		 * @param index the index of the entry
+		 * @param dist  the squared distance of the entry
+		 */
+		private void offer(int index, double dist) {
+			if (dist < this.dist) {
+				this.index = index;
+				this.dist = dist;
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package octree;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class KdTreeTest {
+	static Random random = new Random();
+	static final int NUM_ENTRIES = 10_000;
+	static final double[] EPSILONS = { 0.1, 0.25, 0.5, 1 };
+
+	/**
+	 * Tests the nearest neighbor search speed of a KdTree with the 12 and 27 dimensions of 2x2 and
+	 * 3x3 color signatures compared to a CompactOctree with the 3 dimensions of average colors,
+	 * searching one point at a time, in batches, and in approximate batches with each of EPSILONS.
+	 * The signatures are transformed like those of
+	 * the photomosaic, so the average color comes first. This test does not include any
+	 * assertions; results will be printed and can be compared manually. Note that this is much
+	 * slower than the other tests.
+	 */
+//	@Test
+	void testEfficiency() {
+		int[] librarySizes = { 1_000, 10_000, 100_000 };
+		int[] dimensionCounts = { 3, 12, 27 };
+		int numQueries = 200_000; // the number of cells to match
+
+		for (int round = 0; round < 2; round++) {
+			for (int librarySize : librarySizes) {
+				StringBuilder line = new StringBuilder(librarySize + " entries:");
+				for (int dimensions : dimensionCounts) {
+					List<double[]> points = new ArrayList<>();
+					Octree<Integer> octree = new Octree<>();
+					for (int i = 0; i < librarySize; i++) {
+						double[] point = getTransformedSignature(dimensions);
+						points.add(point);
+						octree.add(point[0], point[1], point[2], i);
+					}
+					List<Integer> values = new ArrayList<>();
+					for (int i = 0; i < librarySize; i++) {
+						values.add(i);
+					}
+					long start = System.currentTimeMillis();
+					KdTree<Integer> tree = new KdTree<>(dimensions, points, values);
+					long buildTime = System.currentTimeMillis() - start;
+
+					double[] queries = new double[numQueries * dimensions];
+					for (int i = 0; i < numQueries; i++) {
+						System.arraycopy(getTransformedSignature(dimensions), 0, queries,
+								i * dimensions, dimensions);
+					}
+					double[] query = new double[dimensions];
+					start = System.currentTimeMillis();
+					for (int i = 0; i < numQueries; i++) {
+						System.arraycopy(queries, i * dimensions, query, 0, dimensions);
+						tree.getNearestValue(query);
+					}
+					long searchTime = System.currentTimeMillis() - start;
+					Integer[] results = new Integer[numQueries];
+					start = System.currentTimeMillis();
+					tree.getNearestValues(queries, results);
+					long batchTime = System.currentTimeMillis() - start;
+					line.append(" " + dimensions + "-D k-d tree built in " + buildTime
+							+ "ms, searches " + searchTime + "ms, batch " + batchTime + "ms");
+					for (double epsilon : EPSILONS) {
+						start = System.currentTimeMillis();
+						tree.getNearestValues(queries, results, epsilon);
+						line.append(", epsilon " + epsilon + " "
+								+ (System.currentTimeMillis() - start) + "ms");
+					}
+					line.append(";");
+
+					// compare with the octree for average colors
+					if (dimensions == 3) {
+						CompactOctree<Integer> compact = octree.freeze();
+						start = System.currentTimeMillis();
+						for (int i = 0; i < numQueries; i++) {
+							compact.getNearestValue(queries[3 * i], queries[3 * i + 1],
+									queries[3 * i + 2]);
+						}
+						line.append(" octree searches " + (System.currentTimeMillis() - start)
+								+ "ms;");
+					}
+				}
+				System.out.println(line);
+			}
+		}
+	}
+
+	/**
+	 * Tests that a KdTree finds entries as near as the nearest entries found by a linear search,
+	 * one point at a time and in batches, in several numbers of dimensions, for uniformly
+	 * distributed and for clustered points.
+	 */
+	@Test
+	void testGetNearestValue() {
+		for (int dimensions : new int[] { 1, 3, 12, 27 }) {
+			for (boolean clustered : new boolean[] { false, true }) {
+				List<double[]> points = new ArrayList<>();
+				for (int i = 0; i < NUM_ENTRIES; i++) {
+					points.add(clustered ? getSignature(dimensions) : getUniformPoint(dimensions));
+				}
+
+				// map each point to itself so the distance of each result can be checked
+				KdTree<double[]> tree = new KdTree<>(dimensions, points, points);
+				assertEquals(NUM_ENTRIES, tree.size());
+				assertEquals(dimensions, tree.getDimensions());
+				int numQueries = 1_000;
+				double[] queries = new double[numQueries * dimensions];
+				for (int i = 0; i < numQueries; i++) {
+					double[] query = clustered ? getSignature(dimensions)
+							: getUniformPoint(dimensions);
+					System.arraycopy(query, 0, queries, i * dimensions, dimensions);
+					double nearest = Double.POSITIVE_INFINITY;
+					for (double[] point : points) {
+						nearest = Math.min(nearest, getDist(query, point));
+					}
+					assertEquals(nearest, getDist(query, tree.getNearestValue(query)));
+				}
+				double[][] results = new double[numQueries][];
+				tree.getNearestValues(queries, results);
+				for (int i = 0; i < numQueries; i++) {
+					double[] query = Arrays.copyOfRange(queries, i * dimensions,
+							(i + 1) * dimensions);
+					assertEquals(getDist(query, tree.getNearestValue(query)),
+							getDist(query, results[i]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that approximate searches of a KdTree find entries within (1 + epsilon) times the
+	 * distances of the nearest entries, one point at a time and in batches, and that an epsilon of
+	 * 0 finds the nearest entries.
+	 */
+	@Test
+	void testGetNearestApproximate() {
+		for (int dimensions : new int[] { 3, 12 }) {
+			List<double[]> points = new ArrayList<>();
+			for (int i = 0; i < NUM_ENTRIES; i++) {
+				points.add(getTransformedSignature(dimensions));
+			}
+			KdTree<double[]> tree = new KdTree<>(dimensions, points, points);
+			int numQueries = 500;
+			double[] queries = new double[numQueries * dimensions];
+			double[] nearest = new double[numQueries];
+			for (int i = 0; i < numQueries; i++) {
+				double[] query = getTransformedSignature(dimensions);
+				System.arraycopy(query, 0, queries, i * dimensions, dimensions);
+				nearest[i] = getDist(query, tree.getNearestValue(query));
+			}
+			for (double epsilon : new double[] { 0, 0.1, 0.5, 2 }) {
+				// distances are squared, so they may be up to (1 + epsilon)^2 times as far
+				double factor = (1 + epsilon) * (1 + epsilon);
+				double[][] results = new double[numQueries][];
+				tree.getNearestValues(queries, results, epsilon);
+				for (int i = 0; i < numQueries; i++) {
+					double[] query = Arrays.copyOfRange(queries, i * dimensions,
+							(i + 1) * dimensions);
+					double dist = getDist(query, tree.getNearestValue(query, epsilon));
+					double batchDist = getDist(query, results[i]);
+					if (epsilon == 0) {
+						assertEquals(nearest[i], dist);
+						assertEquals(nearest[i], batchDist);
+					}
+					assertTrue(dist <= factor * nearest[i] + 1e-9);
+					assertTrue(batchDist <= factor * nearest[i] + 1e-9);
+				}
+			}
+		}
+		KdTree<Integer> tree = new KdTree<>(1, Collections.singletonList(new double[1]),
+				Collections.singletonList(0));
+		assertThrows(IllegalArgumentException.class,
+				() -> tree.getNearestValue(new double[1], -1));
+		assertThrows(IllegalArgumentException.class,
+				() -> tree.getNearestValues(new double[1], new Integer[1], Double.NaN));
+	}
+
+	/**
+	 * Tests that a KdTree handles duplicate points and empty trees, and throws exceptions for
+	 * invalid arguments.
+	 */
+	@Test
+	void testEdgeCases() {
+		// many equal points must not prevent the tree from being built or searched
+		List<double[]> points = new ArrayList<>();
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < 1_000; i++) {
+			points.add(new double[] { 5, 5 });
+			values.add(i);
+		}
+		points.add(new double[] { 100, 100 });
+		values.add(-1);
+		KdTree<Integer> tree = new KdTree<>(2, points, values);
+		assertEquals(Integer.valueOf(-1), tree.getNearestValue(90, 90));
+		assertTrue(tree.getNearestValue(0, 0) >= 0);
+		assertThrows(IllegalArgumentException.class, () -> tree.getNearestValue(0, 0, 0));
+		assertThrows(IllegalArgumentException.class,
+				() -> tree.getNearestValues(new double[3], new Integer[2]));
+
+		KdTree<Integer> empty = new KdTree<>(4, Collections.emptyList(), Collections.emptyList());
+		assertEquals(0, empty.size());
+		assertNull(empty.getNearestValue(1, 2, 3, 4));
+		Integer[] results = { 1, 2 };
+		empty.getNearestValues(new double[8], results);
+		assertArrayEquals(new Integer[2], results);
+
+		assertThrows(IllegalArgumentException.class,
+				() -> new KdTree<>(0, Collections.emptyList(), Collections.emptyList()));
+		assertThrows(IllegalArgumentException.class,
+				() -> new KdTree<>(2, points, Collections.emptyList()));
+		assertThrows(IllegalArgumentException.class, () -> new KdTree<>(2,
+				Collections.singletonList(new double[3]), Collections.singletonList(0)));
+		assertThrows(NullPointerException.class, () -> new KdTree<>(2,
+				Collections.singletonList(null), Collections.singletonList(0)));
+	}
+
+	/**
+	 * This method returns a point with the given number of dimensions whose coordinates are
+	 * uniformly distributed between 0 and 255.
+	 * 
+	 * @param dimensions the number of dimensions
+	 * @return the point
+	 */
+	private static double[] getUniformPoint(int dimensions) {
+		double[] point = new double[dimensions];
+		for (int i = 0; i < dimensions; i++) {
+			point[i] = random.nextInt(256);
+		}
+		return point;
+	}
+
+	/**
+	 * This method returns a point like the color signature of an image, with the given number of
+	 * dimensions: a random base color is repeated for each part of the signature, with normally
+	 * distributed noise added to each coordinate.
+	 * 
+	 * @param dimensions the number of dimensions
+	 * @return the point
+	 */
+	private static double[] getSignature(int dimensions) {
+		double[] point = new double[dimensions];
+		int[] base = { random.nextInt(256), random.nextInt(256), random.nextInt(256) };
+		for (int i = 0; i < dimensions; i++) {
+			point[i] = Math.min(255,
+					Math.max(0, Math.round(base[i % 3] + random.nextGaussian() * 20)));
+		}
+		return point;
+	}
+
+	/**
+	 * This method returns a point like the color signature of an image after an orthonormal
+	 * transform which puts its average color first, with the given number of dimensions. For a
+	 * signature of grid * grid blocks made of a random base color with normally distributed noise,
+	 * like the one returned by getSignature(), the first three coordinates are the base color
+	 * times the grid size plus the noise, and the others are only the noise.
+	 * 
+	 * @param dimensions the number of dimensions, which must be 3 times a square
+	 * @return the point
+	 */
+	private static double[] getTransformedSignature(int dimensions) {
+		double[] point = new double[dimensions];
+		double grid = Math.sqrt(dimensions / 3);
+		for (int i = 0; i < dimensions; i++) {
+			point[i] = ((i < 3) ? random.nextInt(256) * grid : 0) + random.nextGaussian() * 20;
+		}
+		return point;
+	}
+
+	/**
+	 * This method returns the squared Euclidean distance between two points.
+	 * 
+	 * @param a the first point
+	 * @param b the second point
+	 * @return the squared distance
+	 */
+	private static double getDist(double[] a, double[] b) {
+		double dist = 0;
+		for (int i = 0; i < a.length; i++) {
+			dist += (a[i] - b[i]) * (a[i] - b[i]);
+		}
+		return dist;
+	}
+}
@@ -0,0 +1,174 @@
+package octree;
+
+/**
+ * The distance used internally by nearest neighbor searches for a DistFunction. The built-in
+ * DistFunctions are recognized and calculated directly, without a call through the DistFunction
+ * interface, and Euclidean distances are compared without taking the square root, since only the
+ * order of distances matters to a search. Every other DistFunction is called as usual.
+ * 
+ * The distances returned by a Metric are only meant to be compared with each other. They are
+ * ordered in the same way as the distances of the DistFunction, but they are not necessarily
+ * equal to them.
+ */
+final class Metric {
+	private static final int CUSTOM = 0, SQUARED_EUCLIDEAN = 1, MANHATTAN = 2, CHEBYSHEV = 3,
+			WEIGHTED = 4;
+	private final Octree.DistFunction distFunction;
+	private final int kind;
+	private final double xWeight, yWeight, zWeight;
+	private final boolean squared;
+
+	/**
+	 * Constructs a Metric for the given DistFunction.
+	 * 
+	 * @param distFunction the DistFunction
+	 */
+	Metric(Octree.DistFunction distFunction) {
+		this.distFunction = distFunction;
+		if (distFunction instanceof Octree.WeightedEuclidean) {
+			Octree.WeightedEuclidean weighted = (Octree.WeightedEuclidean) distFunction;
+			kind = WEIGHTED;
+			xWeight = weighted.xWeight;
+			yWeight = weighted.yWeight;
+			zWeight = weighted.zWeight;
+			squared = true;
+		} else {
+			if ((distFunction == Octree.DistFunction.EUCLIDEAN)
+					|| (distFunction == Octree.DistFunction.SQUARED_EUCLIDEAN))
+				kind = SQUARED_EUCLIDEAN;
+			else if (distFunction == Octree.DistFunction.MANHATTAN)
+				kind = MANHATTAN;
+			else if (distFunction == Octree.DistFunction.CHEBYSHEV)
+				kind = CHEBYSHEV;
+			else
+				kind = CUSTOM;
+			xWeight = yWeight = zWeight = 1;
+			squared = (distFunction == Octree.DistFunction.EUCLIDEAN);
+		}
+	}
+
+	/**
+	 * Get the prune factor which lets an approximate search return entries up to (1 + epsilon)
+	 * times farther than the nearest entries. Squared distances are compared by this Metric, so
+	 * their factor is squared too.
+	 * 
+	 * @param epsilon the maximum relative error of the distances of the entries found
+	 * @return the prune factor
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	double getPruneFactor(double epsilon) {
+		if (!(epsilon >= 0))
+			throw new IllegalArgumentException("The epsilon must be at least 0.");
+		double factor = 1 + epsilon;
+		return ((kind == SQUARED_EUCLIDEAN) || (kind == WEIGHTED)) ? (factor * factor) : factor;
+	}
+
+	/**
+	 * Get the distance to compare for the given distance of the DistFunction, which is its square
+	 * if this Metric compares squared distances in place of the DistFunction's distances.
+	 * 
+	 * @param dist the distance of the DistFunction, which must be at least 0
+	 * @return the distance to compare
+	 */
+	double toMetricDist(double dist) {
+		return squared ? (dist * dist) : dist;
+	}
+
+	/**
+	 * Get the distance for the given differences between the coordinates of two points.
+	 * 
+	 * @param xDiff the absolute value of the difference between the x coordinates
+	 * @param yDiff the absolute value of the difference between the y coordinates
+	 * @param zDiff the absolute value of the difference between the z coordinates
+	 * @return the distance to compare
+	 */
+	double getDist(double xDiff, double yDiff, double zDiff) {
+		switch (kind) {
+		case SQUARED_EUCLIDEAN:
+			return (xDiff * xDiff) + (yDiff * yDiff) + (zDiff * zDiff);
+		case MANHATTAN:
+			return xDiff + yDiff + zDiff;
+		case CHEBYSHEV:
+			return Math.max(xDiff, Math.max(yDiff, zDiff));
+		case WEIGHTED:
+			return (xWeight * xDiff * xDiff) + (yWeight * yDiff * yDiff)
+					+ (zWeight * zDiff * zDiff);
+		default:
+			return distFunction.getDist(xDiff, yDiff, zDiff);
+		}
+	}
+
+	/**
+	 * Get the distance between two points. Squared distances do not need the absolute values of
+	 * the differences, so they are only taken for the other kinds of distance.
+	 * 
+	 * @param x1 the x coordinate of the first point
+	 * @param y1 the y coordinate of the first point
+	 * @param z1 the z coordinate of the first point
+	 * @param x2 the x coordinate of the second point
+	 * @param y2 the y coordinate of the second point
+	 * @param z2 the z coordinate of the second point
+	 * @return the distance to compare
+	 */
+	double getDist(double x1, double y1, double z1, double x2, double y2, double z2) {
+		double xDiff = x1 - x2;
+		double yDiff = y1 - y2;
+		double zDiff = z1 - z2;
+		switch (kind) {
+		case SQUARED_EUCLIDEAN:
+			return (xDiff * xDiff) + (yDiff * yDiff) + (zDiff * zDiff);
+		case WEIGHTED:
+			return (xWeight * xDiff * xDiff) + (yWeight * yDiff * yDiff)
+					+ (zWeight * zDiff * zDiff);
+		default:
+			return getDist(Math.abs(xDiff), Math.abs(yDiff), Math.abs(zDiff));
+		}
+	}
+
+	/**
+	 * Get the distance between the boundary of the specified region and the given point, which
+	 * is 0 if the point is inside the region.
+	 * 
+	 * @param xMin the minimum x coordinate of the region
+	 * @param xMax the maximum x coordinate of the region
+	 * @param yMin the minimum y coordinate of the region
+	 * @param yMax the maximum y coordinate of the region
+	 * @param zMin the minimum z coordinate of the region
+	 * @param zMax the maximum z coordinate of the region
+	 * @param x    the x coordinate of the point
+	 * @param y    the y coordinate of the point
+	 * @param z    the z coordinate of the point
+	 * @return the distance to compare
+	 */
+	double getDist(double xMin, double xMax, double yMin, double yMax, double zMin, double zMax,
+			double x, double y, double z) {
+		double xDiff = (x > xMax) ? (x - xMax) : ((x < xMin) ? (xMin - x) : 0);
+		double yDiff = (y > yMax) ? (y - yMax) : ((y < yMin) ? (yMin - y) : 0);
+		double zDiff = (z > zMax) ? (z - zMax) : ((z < zMin) ? (zMin - z) : 0);
+		return getDist(xDiff, yDiff, zDiff);
+	}
+
+	/**
+	 * Get the distance from the given point, which must be inside the specified region, to the
+	 * nearest point outside the region. No point outside the region is nearer to the given point
+	 * than this distance.
+	 * 
+	 * @param xMin the minimum x coordinate of the region
+	 * @param xMax the maximum x coordinate of the region
+	 * @param yMin the minimum y coordinate of the region
+	 * @param yMax the maximum y coordinate of the region
+	 * @param zMin the minimum z coordinate of the region
+	 * @param zMax the maximum z coordinate of the region
+	 * @param x    the x coordinate of the point
+	 * @param y    the y coordinate of the point
+	 * @param z    the z coordinate of the point
+	 * @return the distance to compare
+	 */
+	double getDistToOutside(double xMin, double xMax, double yMin, double yMax, double zMin,
+			double zMax, double x, double y, double z) {
+		double xDist = getDist(Math.min(x - xMin, xMax - x), 0, 0);
+		double yDist = getDist(0, Math.min(y - yMin, yMax - y), 0);
+		double zDist = getDist(0, 0, Math.min(z - zMin, zMax - z));
+		return Math.min(xDist, Math.min(yDist, zDist));
+	}
+}
@@ -0,0 +1,311 @@
+package octree;
+
+import java.util.Arrays;
+
+/**
+ * A bounded max-heap holding the nearest candidates found so far by a nearest neighbor search.
+ * Distances are kept in a primitive array alongside the candidates, which are either objects (such
+ * as Octree nodes) or int indexes (such as CompactOctree entries), so adding a candidate never
+ * allocates. Each thread has one heap which is reused by every search on that thread, and a search
+ * must call clear() when it has read its results, which releases the heap. A search started while
+ * the thread's heap is in use, such as by the predicate of a filtered search, gets a new heap of
+ * its own instead, so searches may be nested.
+ * 
+ * An approximate search gives the heap a prune factor greater than 1. Searches skip every region
+ * whose distance is not less than getPruneBound(), which is getBound() divided by the prune factor,
+ * so each candidate found is at most the prune factor times farther than the true candidate.
+ * 
+ * A heap which orders candidates by index keeps, of several equally near candidates, the ones with
+ * the lowest indexes, whatever order they are found in, and isPruned() then only lets an exact
+ * search skip regions farther than the farthest candidate, so the search finds the same
+ * candidates whichever candidate it starts with. Otherwise the candidates found first are kept.
+ */
+final class NearestHeap {
+	private static final ThreadLocal<NearestHeap> HEAPS = ThreadLocal.withInitial(NearestHeap::new);
+	private double[] dists = new double[16];
+	private Object[] items = new Object[16];
+	private int[] indexes = new int[16];
+	private int size = 0, capacity = 0;
+	private double pruneFactor = 1;
+	private boolean ordered = false;
+	private boolean inUse = false;
+
+	/**
+	 * This class should only be instantiated by get().
+	 */
+	private NearestHeap() {
+	}
+
+	/**
+	 * Get the current thread's heap, emptied and set to hold at most the specified number of
+	 * candidates.
+	 * 
+	 * @param capacity the maximum number of candidates to hold
+	 * @return the current thread's heap
+	 */
+	static NearestHeap get(int capacity) {
+		return get(capacity, 1);
+	}
+
+	/**
+	 * Get the current thread's heap, emptied and set to hold at most the specified number of
+	 * candidates and to use the specified prune factor.
+	 * 
+	 * @param capacity    the maximum number of candidates to hold
+	 * @param pruneFactor the factor getBound() is divided by to get getPruneBound(), which must be
+	 *                    at least 1
+	 * @return the current thread's heap
+	 */
+	static NearestHeap get(int capacity, double pruneFactor) {
+		return get(capacity, pruneFactor, false);
+	}
+
+	/**
+	 * Get the current thread's heap, emptied and set to hold at most the specified number of
+	 * candidates, to use the specified prune factor, and to order candidates at the same distance
+	 * by their indexes or not. If the current thread's heap is already in use by a search, a new
+	 * heap is returned instead.
+	 * 
+	 * @param capacity    the maximum number of candidates to hold
+	 * @param pruneFactor the factor getBound() is divided by to get getPruneBound(), which must be
+	 *                    at least 1
+	 * @param ordered     true to keep the candidates with the lowest indexes of several equally
+	 *                    near candidates, and false to keep the ones found first
+	 * @return the current thread's heap, or a new heap
+	 */
+	static NearestHeap get(int capacity, double pruneFactor, boolean ordered) {
+		NearestHeap heap = HEAPS.get();
+		if (heap.inUse)
+			heap = new NearestHeap();
+		heap.clear();
+		heap.inUse = true;
+		heap.capacity = capacity;
+		heap.pruneFactor = pruneFactor;
+		heap.ordered = ordered;
+		return heap;
+	}
+
+	/**
+	 * Remove all candidates, releasing references to them, and release the heap so the next
+	 * search on this thread can use it.
+	 */
+	void clear() {
+		Arrays.fill(items, 0, size, null);
+		size = 0;
+		inUse = false;
+	}
+
+	/**
+	 * Get the number of candidates in the heap.
+	 * 
+	 * @return the number of candidates
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Check whether the heap holds as many candidates as its capacity.
+	 * 
+	 * @return true if the heap is full and false otherwise
+	 */
+	boolean isFull() {
+		return size >= capacity;
+	}
+
+	/**
+	 * Get the distance a new candidate must be less than to be added to the heap. This is the
+	 * largest distance in the heap if the heap is full, or positive infinity otherwise.
+	 * 
+	 * @return the bound on the distance of new candidates
+	 */
+	double getBound() {
+		return (size < capacity) ? Double.POSITIVE_INFINITY : dists[0];
+	}
+
+	/**
+	 * Get the distance a region must be nearer than to be searched. This is getBound() for an
+	 * exact search, and getBound() divided by the prune factor for an approximate search.
+	 * 
+	 * @return the bound on the distance of regions to search
+	 */
+	double getPruneBound() {
+		return (pruneFactor == 1) ? getBound() : (getBound() / pruneFactor);
+	}
+
+	/**
+	 * Check whether a region at the given distance can be skipped by a search, which is the case
+	 * if the distance is not less than getPruneBound(). For an exact search with a heap ordered by
+	 * index, only regions farther than getBound() are skipped, so regions which may hold a
+	 * candidate at the same distance with a lower index are searched.
+	 * 
+	 * @param dist the distance of the region
+	 * @return true if the region can be skipped and false otherwise
+	 */
+	boolean isPruned(double dist) {
+		if (ordered && (pruneFactor == 1))
+			return dist > getBound();
+		return dist >= getPruneBound();
+	}
+
+	/**
+	 * Check whether add() would add a candidate with the given distance and index, which is true
+	 * if its distance is less than getBound(), or if it is as near as the farthest candidate of a
+	 * heap ordered by index and has a lower index.
+	 * 
+	 * @param dist  the distance of the candidate
+	 * @param index the candidate index, or 0
+	 * @return true if the candidate would be added and false otherwise
+	 */
+	boolean accepts(double dist, int index) {
+		if (size < capacity)
+			return dist < Double.POSITIVE_INFINITY;
+		return (capacity > 0) && isFarther(dists[0], indexes[0], dist, index);
+	}
+
+	/**
+	 * Add a candidate to the heap if accepts() is true for it, removing the farthest candidate if
+	 * the heap is full.
+	 * 
+	 * @param dist  the distance of the candidate
+	 * @param item  the candidate object, or null
+	 * @param index the candidate index, or 0
+	 */
+	void add(double dist, Object item, int index) {
+		if (!accepts(dist, index))
+			return;
+		if (size < capacity) {
+			if (size == dists.length)
+				grow();
+			siftUp(size++, dist, item, index);
+		} else {
+			siftDown(0, dist, item, index, size);
+		}
+	}
+
+	/**
+	 * This method doubles the length of the heap's arrays.
+	 */
+	private void grow() {
+		int length = Math.min(2 * dists.length, Math.max(capacity, dists.length));
+		dists = Arrays.copyOf(dists, length);
+		items = Arrays.copyOf(items, length);
+		indexes = Arrays.copyOf(indexes, length);
+	}
+
+	/**
+	 * This method places a candidate at the given position and moves it towards the root until
+	 * its parent is not nearer.
+	 * 
+	 * @param position the position to start at
+	 * @param dist     the distance of the candidate
+	 * @param item     the candidate object
+	 * @param index    the candidate index
+	 */
+	private void siftUp(int position, double dist, Object item, int index) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isFarther(dist, index, dists[parent], indexes[parent]))
+				break;
+			set(position, dists[parent], items[parent], indexes[parent]);
+			position = parent;
+		}
+		set(position, dist, item, index);
+	}
+
+	/**
+	 * This method places a candidate at the given position and moves it away from the root until
+	 * neither child is farther.
+	 * 
+	 * @param position the position to start at
+	 * @param dist     the distance of the candidate
+	 * @param item     the candidate object
+	 * @param index    the candidate index
+	 * @param end      the number of positions in use
+	 */
+	private void siftDown(int position, double dist, Object item, int index, int end) {
+		int child;
+		while ((child = 2 * position + 1) < end) {
+			if ((child + 1 < end) && isFarther(dists[child + 1], indexes[child + 1],
+					dists[child], indexes[child]))
+				child++;
+			if (!isFarther(dists[child], indexes[child], dist, index))
+				break;
+			set(position, dists[child], items[child], indexes[child]);
+			position = child;
+		}
+		set(position, dist, item, index);
+	}
+
+	/**
+	 * This method checks whether the first candidate comes after the second, which is the case if
+	 * it is farther, or as far with a higher index if the heap is ordered by index.
+	 * 
+	 * @param dist1  the distance of the first candidate
+	 * @param index1 the index of the first candidate
+	 * @param dist2  the distance of the second candidate
+	 * @param index2 the index of the second candidate
+	 * @return true if the first candidate comes after the second and false otherwise
+	 */
+	private boolean isFarther(double dist1, int index1, double dist2, int index2) {
+		return (dist1 > dist2) || (ordered && (dist1 == dist2) && (index1 > index2));
+	}
+
+	/**
+	 * This method stores a candidate at the given position.
+	 * 
+	 * @param position the position to store the candidate at
+	 * @param dist     the distance of the candidate
+	 * @param item     the candidate object
+	 * @param index    the candidate index
+	 */
+	private void set(int position, double dist, Object item, int index) {
+		dists[position] = dist;
+		items[position] = item;
+		indexes[position] = index;
+	}
+
+	/**
+	 * Sort the candidates in place from nearest to farthest. After this method returns, the heap
+	 * no longer satisfies the heap property, so no more candidates may be added.
+	 */
+	void sort() {
+		for (int end = size - 1; end > 0; end--) {
+			double dist = dists[end];
+			Object item = items[end];
+			int index = indexes[end];
+			set(end, dists[0], items[0], indexes[0]);
+			siftDown(0, dist, item, index, end);
+		}
+	}
+
+	/**
+	 * Get the distance of the candidate at the given position.
+	 * 
+	 * @param position the position of the candidate
+	 * @return the distance of the candidate
+	 */
+	double getDist(int position) {
+		return dists[position];
+	}
+
+	/**
+	 * Get the object of the candidate at the given position.
+	 * 
+	 * @param position the position of the candidate
+	 * @return the candidate object
+	 */
+	Object getItem(int position) {
+		return items[position];
+	}
+
+	/**
+	 * Get the index of the candidate at the given position.
+	 * 
+	 * @param position the position of the candidate
+	 * @return the candidate index
+	 */
+	int getIndex(int position) {
+		return indexes[position];
+	}
+}
@@ -3,14 +3,19 @@ package octree;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.TreeSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javafx.geometry.Point3D;
 
@@ -30,10 +35,26 @@ import javafx.geometry.Point3D;
  * This implementation provides all of the optional map operations and permits null values but not
  * the null key.
  * 
+ * An Octree can also be used as a multimap. The put method replaces every value mapped to a key, as
+ * required by the Map interface, but the add method maps a key to another value while keeping the
+ * values it is already mapped to. The values of a key are kept in a bucket in the key's node, in
+ * the order in which they were added. Every value counts as a separate mapping, so the size of the map,
+ * its entry set, and nearest neighbor searches for the n nearest entries include each value of a
+ * key separately, while get and getNearestValue return the first value of a key.
+ * 
  * The programmer may provide a DistFunction to the constructor to use in calculating distances for
  * nearest neighbor searches. If no DistFunction is provided, the standard Euclidean distance
  * formula will be used.
  * 
+ * The entriesWithin and entriesInBox methods perform range queries, returning lazy streams of the
+ * entries within a distance of a location or inside a box. Like nearest neighbor searches, they
+ * skip every subtree whose bounds cannot contain a matching entry.
+ * 
+ * Nearest neighbor searches can also be approximate. Given an epsilon, getNearestEntry and
+ * getNearestEntries may return entries up to (1 + epsilon) times farther from the location than
+ * the nearest entries, in exchange for skipping every subtree which could only contain entries
+ * nearer by less than that factor.
+ * 
  * This implementation provides expected log(n) time cost for the containsKey, get, getNearestKey,
  * getNearestValue, getNearestEntry, put, and remove operations, assuming points are reasonably well
  * distributed within the space.
@@ -44,12 +65,17 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	private long size = 0;
 	private Set<Map.Entry<Point3D, T>> entrySet = new EntrySet();
 	private DistFunction distFunction;
+	private Metric metric;
 
 	// error messages for exceptions thrown
 	private static final String OUT_OF_BOUNDS = "The specified location is out of bounds.";
 	private static final String NULL_KEY = "This map does not support null keys.";
 	private static final String CLASS_CAST = "The key must be a Point3D.";
 	private static final String INVALID_BOUNDS = "Invalid bounds. The minimum value of a coordinate cannot be greater than the maximum value.";
+	private static final String LENGTH_MISMATCH = "The coordinate and value arrays must have the same length.";
+
+	// the minimum number of entries for which bulkLoad() builds a subtree in a separate task
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
 
 	/**
 	 * Constructs an empty Octree where x, y, and z can be any double values between Long.MIN_VALUE
@@ -82,8 +108,7 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @throws IllegalArgumentException if xMin > xMax, yMin > yMax, or zMin > zMax
 	 */
 	public Octree(double xMin, double xMax, double yMin, double yMax, double zMin, double zMax) {
-		this(xMin, xMax, yMin, yMax, zMin, zMax, (xDiff, yDiff, zDiff) -> Math
-				.sqrt((xDiff * xDiff) + (yDiff * yDiff) + (zDiff * zDiff)));
+		this(xMin, xMax, yMin, yMax, zMin, zMax, DistFunction.EUCLIDEAN);
 	}
 
 	/**
@@ -173,6 +198,7 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		this.zMin = zMin;
 		this.zMax = zMax;
 		this.distFunction = distFunction;
+		this.metric = new Metric(distFunction);
 	}
 
 	/**
@@ -238,8 +264,9 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	/**
 	 * Removes the mapping for a key from this map if it is present. More formally, if this map
 	 * contains a mapping from key k to value v such that key.equals(k), that mapping is removed.
-	 * (The map can contain at most one such mapping.) Returns the value to which this map
-	 * previously associated the key, or null if the map contained no mapping for the key.
+	 * (The map can contain several such mappings if add() was used, in which case all of them are
+	 * removed.) Returns the value to which this map previously associated the key, or null if the
+	 * map contained no mapping for the key.
 	 * 
 	 * The map will not contain a mapping for the specified key once the call returns.
 	 * 
@@ -263,7 +290,8 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	/**
 	 * Removes the mapping for a location from this map if it is present. Returns the value to which
 	 * this map previously associated the location, or null if the map contained no mapping for the
-	 * location.
+	 * location. If the location was mapped to several values with add(), all of them are removed
+	 * and the first one is returned.
 	 * 
 	 * The map will not contain a mapping for the specified location once the call returns.
 	 * 
@@ -282,6 +310,64 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		return root.remove(x, y, z);
 	}
 
+	/**
+	 * Removes one mapping from the specified key to the specified value if it is present. If the
+	 * key is mapped to several values with add(), the other values remain mapped to the key.
+	 * 
+	 * @param key   key whose mapping is to be removed from the map
+	 * @param value value expected to be associated with the key
+	 * @return true if a mapping was removed
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public boolean remove(Object key, Object value) {
+		Node node = getNode(key);
+		int index = (node == null) ? -1 : node.indexOf(value);
+		if (index < 0)
+			return false;
+		node.removeValue(index);
+		return true;
+	}
+
+	/**
+	 * Replaces one mapping from the specified key to the specified old value with a mapping to the
+	 * new value if it is present. If the key is mapped to several values with add(), the other
+	 * values are not changed.
+	 * 
+	 * @param key      key with which the specified value is associated
+	 * @param oldValue value expected to be associated with the key
+	 * @param newValue value to be associated with the key
+	 * @return true if the value was replaced
+	 * @throws NullPointerException if the specified key is null
+	 */
+	@Override
+	public boolean replace(Point3D key, T oldValue, T newValue) {
+		Node node = getNode(key);
+		int index = (node == null) ? -1 : node.indexOf(oldValue);
+		if (index < 0)
+			return false;
+		node.setValue(index, newValue);
+		return true;
+	}
+
+	/**
+	 * This method returns the node containing the mappings for the specified key.
+	 * 
+	 * @param key the key whose node is to be found
+	 * @return the node containing the mappings for the key, or null if there are none
+	 * @throws ClassCastException   if the key is of an inappropriate type for this map
+	 * @throws NullPointerException if the specified key is null
+	 */
+	private Node getNode(Object key) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		if (!(key instanceof Point3D))
+			throw new ClassCastException(CLASS_CAST);
+		Point3D point = (Point3D) key;
+		return (root == null) ? null : root.getNode(point.getX(), point.getY(), point.getZ());
+	}
+
 	/**
 	 * Returns the number of key-value mappings in this map. If the map contains more than
 	 * Integer.MAX_VALUE elements, returns Integer.MAX_VALUE.
@@ -337,15 +423,106 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 			size++;
 			return null;
 		} else {
-			return root.insert(value, keyX, keyY, keyZ);
+			return root.insert(value, keyX, keyY, keyZ, true);
+		}
+	}
+
+	/**
+	 * Adds a mapping from the specified key to the specified value. Unlike put(), this method does
+	 * not replace the values the key is already mapped to, so the map may contain several mappings
+	 * with the same key afterwards.
+	 * 
+	 * @param key   key with which the specified value is to be associated
+	 * @param value value to be associated with the specified key
+	 * @throws NullPointerException     if the specified key is null
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	public void add(Point3D key, T value) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		add(key.getX(), key.getY(), key.getZ(), value);
+	}
+
+	/**
+	 * Adds a mapping from the specified key to the specified value. Unlike put(), this method does
+	 * not replace the values the key is already mapped to, so the map may contain several mappings
+	 * with the same key afterwards.
+	 * 
+	 * @param keyX  the x coordinate of the key
+	 * @param keyY  the y coordinate of the key
+	 * @param keyZ  the z coordinate of the key
+	 * @param value value to be associated with the specified key
+	 * @throws IllegalArgumentException if the key is out of bounds
+	 */
+	public void add(double keyX, double keyY, double keyZ, T value) {
+		// throw exception if coordinates are out of bounds
+		if ((keyX < xMin) || (keyX > xMax) || (keyY < yMin) || (keyY > yMax) || (keyZ < zMin)
+				|| (keyZ > zMax))
+			throw new IllegalArgumentException(OUT_OF_BOUNDS);
+
+		if (root == null) {
+			root = new Node(xMin, xMax, yMin, yMax, zMin, zMax, value, keyX, keyY, keyZ, null, 0);
+			size++;
+		} else {
+			root.insert(value, keyX, keyY, keyZ, false);
 		}
 	}
 
+	/**
+	 * Adds a mapping from each of the specified keys to the value at the same index, as if add()
+	 * were called for each of them. If this map is empty, the tree is built in one pass instead:
+	 * the entries are partitioned among the octants of each node with a counting sort, and large
+	 * subtrees are built in parallel using fork/join. This takes O(n log n) time and only allocates
+	 * the nodes themselves and a few arrays of the same length as the input, so it is much faster
+	 * than adding the entries one at a time. As with add(), each node holds a single key and all of
+	 * its values; a tree which will only be queried should be frozen afterwards, which puts the
+	 * entries into the bucketed leaves of a CompactOctree. Entries with the same key keep their
+	 * order in the arrays.
+	 * 
+	 * The arrays are not modified or kept by this Octree.
+	 * 
+	 * @param xs     the x coordinates of the keys
+	 * @param ys     the y coordinates of the keys
+	 * @param zs     the z coordinates of the keys
+	 * @param values the values to be associated with the keys
+	 * @throws IllegalArgumentException if the arrays do not all have the same length or any key is
+	 *                                  out of bounds
+	 */
+	public void bulkLoad(double[] xs, double[] ys, double[] zs, T[] values) {
+		int count = values.length;
+		if ((xs.length != count) || (ys.length != count) || (zs.length != count))
+			throw new IllegalArgumentException(LENGTH_MISMATCH);
+		for (int i = 0; i < count; i++) {
+			if ((xs[i] < xMin) || (xs[i] > xMax) || (ys[i] < yMin) || (ys[i] > yMax)
+					|| (zs[i] < zMin) || (zs[i] > zMax))
+				throw new IllegalArgumentException(OUT_OF_BOUNDS);
+		}
+
+		// if the map already has entries, add the new entries one at a time
+		if (root != null) {
+			for (int i = 0; i < count; i++) {
+				add(xs[i], ys[i], zs[i], values[i]);
+			}
+			return;
+		}
+		if (count == 0)
+			return;
+
+		// otherwise build the tree from a permutation of the entries
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		root = new BulkLoadTask(xs, ys, zs, values, order, new int[count], new byte[count], null,
+				0, xMin, xMax, yMin, yMax, zMin, zMax, 0, count).invoke();
+		size = count;
+	}
+
 	/**
 	 * Returns the value to which the specified key is mapped, or null if this map contains no
 	 * mapping for the key. More formally, if this map contains a mapping from a key k to a value v
-	 * such that key.equals(k)), then this method returns v; otherwise it returns null. (There can
-	 * be at most one such mapping.)
+	 * such that key.equals(k)), then this method returns v; otherwise it returns null. If the key
+	 * is mapped to several values with add(), the first of them is returned.
 	 * 
 	 * @param key the key whose associated value is to be returned
 	 * @return the value to which the specified key is mapped, or null if this map contains no
@@ -368,8 +545,8 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	/**
 	 * Returns the value to which the specified key is mapped, or null if this map contains no
 	 * mapping for the key. More formally, if this map contains a mapping from a key k to a value v
-	 * such that key.equals(k), then this method returns v; otherwise it returns null. (There can be
-	 * at most one such mapping.)
+	 * such that key.equals(k), then this method returns v; otherwise it returns null. If the key
+	 * is mapped to several values with add(), the first of them is returned.
 	 * 
 	 * @param x the x coordinate of the key
 	 * @param y the y coordinate of the key
@@ -386,6 +563,39 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		return root.get(x, y, z);
 	}
 
+	/**
+	 * Returns a list of all values to which the specified key is mapped, in the order in which they
+	 * were added, or an empty list if this map contains no mapping for the key.
+	 * 
+	 * @param key the key whose associated values are to be returned
+	 * @return the values to which the specified key is mapped
+	 * @throws NullPointerException if the specified key is null
+	 */
+	public List<T> getAll(Point3D key) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getAll(key.getX(), key.getY(), key.getZ());
+	}
+
+	/**
+	 * Returns a list of all values to which the specified key is mapped, in the order in which they
+	 * were added, or an empty list if this map contains no mapping for the key.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the values to which the specified key is mapped
+	 */
+	public List<T> getAll(double x, double y, double z) {
+		Node node = (root == null) ? null : root.getNode(x, y, z);
+		int count = (node == null) ? 0 : node.getValueCount();
+		List<T> list = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(node.getValue(i));
+		}
+		return list;
+	}
+
 	/**
 	 * Returns true if this map contains a mapping for the specified key. More formally, returns
 	 * true if and only if this map contains a mapping for a key k such that key.equals(k). (There
@@ -449,8 +659,36 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the key nearest to the specified location
 	 */
 	public Point3D getNearestKey(double x, double y, double z) {
-		List<Point3D> list = getNearestKeys(x, y, z, 1);
-		return list.isEmpty() ? null : list.get(0);
+		Node node = findNearest(x, y, z);
+		return (node == null) ? null : new Point3D(node.elemX, node.elemY, node.elemZ);
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified location, or null if this map is
+	 * empty.
+	 * 
+	 * @param key key whose nearest neighbor is being found
+	 * @return the value of the entry nearest to the specified location
+	 * @throws NullPointerException if the specified key is null
+	 */
+	public T getNearestValue(Point3D key) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestValue(key.getX(), key.getY(), key.getZ());
+	}
+
+	/**
+	 * Returns the value of the entry nearest to the specified location, or null if this map is
+	 * empty. Unlike getNearestEntry(), this method does not allocate any objects.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @return the value of the entry nearest to the specified location
+	 */
+	public T getNearestValue(double x, double y, double z) {
+		Node node = findNearest(x, y, z);
+		return (node == null) ? null : node.element.orElse(null);
 	}
 
 	/**
@@ -475,8 +713,8 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the entry nearest to the specified location
 	 */
 	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z) {
-		List<Map.Entry<Point3D, T>> list = getNearestEntries(x, y, z, 1);
-		return list.isEmpty() ? null : list.get(0);
+		Node node = findNearest(x, y, z);
+		return (node == null) ? null : getEntry(node, 0);
 	}
 
 	/**
@@ -505,9 +743,51 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the n keys nearest to the specified location
 	 */
 	public List<Point3D> getNearestKeys(double x, double y, double z, int n) {
-		if (root == null)
-			return new ArrayList<>();
-		return root.getNearestKeys(x, y, z, n);
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Point3D> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			Node node = getNode(heap, i);
+			list.add(new Point3D(node.elemX, node.elemY, node.elemZ));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a list of the values of the n entries nearest to the specified location, or all
+	 * values in the map if the size of the map is less than n, sorted by distance from the
+	 * specified location.
+	 * 
+	 * @param key key whose nearest neighbors are being found
+	 * @param n   the number of values to get
+	 * @return the values of the n entries nearest to the specified location
+	 * @throws NullPointerException if the specified key is null
+	 */
+	public List<T> getNearestValues(Point3D key, int n) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestValues(key.getX(), key.getY(), key.getZ(), n);
+	}
+
+	/**
+	 * Returns a list of the values of the n entries nearest to the specified location, or all
+	 * values in the map if the size of the map is less than n, sorted by distance from the
+	 * specified location.
+	 * 
+	 * @param x the x coordinate of the key
+	 * @param y the y coordinate of the key
+	 * @param z the z coordinate of the key
+	 * @param n the number of values to get
+	 * @return the values of the n entries nearest to the specified location
+	 */
+	public List<T> getNearestValues(double x, double y, double z, int n) {
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<T> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getNode(heap, i).getValue(heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
 	}
 
 	/**
@@ -536,13 +816,381 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the n entries nearest to the specified location
 	 */
 	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n) {
-		if (root == null)
-			return new ArrayList<>();
-		return root.getNearestEntries(x, y, z, n);
+		NearestHeap heap = findNearest(x, y, z, n);
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(getNode(heap, i), heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns the entry nearest to the specified location whose value satisfies the given
+	 * predicate, or null if there is no such entry. Entries whose values are rejected are skipped
+	 * without affecting which subtrees are searched, so the search only visits more of the tree
+	 * than getNearestEntry() if nearer entries are rejected. The predicate may itself run other
+	 * searches, of this tree or of any other.
+	 * 
+	 * @param key    the location
+	 * @param accept the predicate the value of the entry must satisfy
+	 * @return the nearest entry whose value satisfies the predicate
+	 * @throws NullPointerException if the specified location or predicate is null
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(Point3D key, Predicate<? super T> accept) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestEntry(key.getX(), key.getY(), key.getZ(), accept);
 	}
 
 	/**
-	 * This method returns the distance between two specified points.
+	 * Returns the entry nearest to the specified location whose value satisfies the given
+	 * predicate, or null if there is no such entry. Entries whose values are rejected are skipped
+	 * without affecting which subtrees are searched, so the search only visits more of the tree
+	 * than getNearestEntry() if nearer entries are rejected. The predicate may itself run other
+	 * searches, of this tree or of any other.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param accept the predicate the value of the entry must satisfy
+	 * @return the nearest entry whose value satisfies the predicate
+	 * @throws NullPointerException if the predicate is null
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z,
+			Predicate<? super T> accept) {
+		NearestHeap heap = findNearest(x, y, z, 1, Objects.requireNonNull(accept), 1);
+		Map.Entry<Point3D, T> entry = (heap.size() == 0) ? null
+				: getEntry(getNode(heap, 0), heap.getIndex(0));
+		heap.clear();
+		return entry;
+	}
+
+	/**
+	 * Returns a list of the n entries nearest to the specified location whose values satisfy the
+	 * given predicate, or all such entries if there are fewer than n, sorted by distance from the
+	 * specified location. The predicate may itself run other searches, of this tree or of any
+	 * other.
+	 * 
+	 * @param key    the location
+	 * @param n      the number of entries to get
+	 * @param accept the predicate the values of the entries must satisfy
+	 * @return the n nearest entries whose values satisfy the predicate
+	 * @throws NullPointerException if the specified location or predicate is null
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(Point3D key, int n,
+			Predicate<? super T> accept) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestEntries(key.getX(), key.getY(), key.getZ(), n, accept);
+	}
+
+	/**
+	 * Returns a list of the n entries nearest to the specified location whose values satisfy the
+	 * given predicate, or all such entries if there are fewer than n, sorted by distance from the
+	 * specified location. The predicate may itself run other searches, of this tree or of any
+	 * other.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param n      the number of entries to get
+	 * @param accept the predicate the values of the entries must satisfy
+	 * @return the n nearest entries whose values satisfy the predicate
+	 * @throws NullPointerException if the predicate is null
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n,
+			Predicate<? super T> accept) {
+		NearestHeap heap = findNearest(x, y, z, n, Objects.requireNonNull(accept), 1);
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(getNode(heap, i), heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns an entry whose distance from the specified location is at most (1 + epsilon) times
+	 * the distance of the nearest entry, or null if this map is empty. A larger epsilon lets the
+	 * search skip more of the tree, and an epsilon of 0 gives the same result as getNearestEntry().
+	 * For a DistFunction other than the built-in ones, the bound applies to the distances it
+	 * returns.
+	 * 
+	 * @param key     the location
+	 * @param epsilon the maximum relative error of the distance of the entry
+	 * @return an entry within (1 + epsilon) times the distance of the nearest entry
+	 * @throws NullPointerException     if the specified location is null
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(Point3D key, double epsilon) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestEntry(key.getX(), key.getY(), key.getZ(), epsilon);
+	}
+
+	/**
+	 * Returns an entry whose distance from the specified location is at most (1 + epsilon) times
+	 * the distance of the nearest entry, or null if this map is empty. A larger epsilon lets the
+	 * search skip more of the tree, and an epsilon of 0 gives the same result as getNearestEntry().
+	 * For a DistFunction other than the built-in ones, the bound applies to the distances it
+	 * returns.
+	 * 
+	 * @param x       the x coordinate of the location
+	 * @param y       the y coordinate of the location
+	 * @param z       the z coordinate of the location
+	 * @param epsilon the maximum relative error of the distance of the entry
+	 * @return an entry within (1 + epsilon) times the distance of the nearest entry
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public Map.Entry<Point3D, T> getNearestEntry(double x, double y, double z, double epsilon) {
+		NearestHeap heap = findNearest(x, y, z, 1, null, metric.getPruneFactor(epsilon));
+		Map.Entry<Point3D, T> entry = (heap.size() == 0) ? null
+				: getEntry(getNode(heap, 0), heap.getIndex(0));
+		heap.clear();
+		return entry;
+	}
+
+	/**
+	 * Returns a list of n entries, or all entries in the map if the size of the map is less than
+	 * n, sorted by distance from the specified location, such that the distance of the ith entry
+	 * is at most (1 + epsilon) times the distance of the ith nearest entry. A larger epsilon lets
+	 * the search skip more of the tree, and an epsilon of 0 gives the same result as
+	 * getNearestEntries().
+	 * 
+	 * @param key     the location
+	 * @param n       the number of entries to get
+	 * @param epsilon the maximum relative error of the distances of the entries
+	 * @return n entries within (1 + epsilon) times the distances of the n nearest entries
+	 * @throws NullPointerException     if the specified location is null
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(Point3D key, int n, double epsilon) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return getNearestEntries(key.getX(), key.getY(), key.getZ(), n, epsilon);
+	}
+
+	/**
+	 * Returns a list of n entries, or all entries in the map if the size of the map is less than
+	 * n, sorted by distance from the specified location, such that the distance of the ith entry
+	 * is at most (1 + epsilon) times the distance of the ith nearest entry. A larger epsilon lets
+	 * the search skip more of the tree, and an epsilon of 0 gives the same result as
+	 * getNearestEntries().
+	 * 
+	 * @param x       the x coordinate of the location
+	 * @param y       the y coordinate of the location
+	 * @param z       the z coordinate of the location
+	 * @param n       the number of entries to get
+	 * @param epsilon the maximum relative error of the distances of the entries
+	 * @return n entries within (1 + epsilon) times the distances of the n nearest entries
+	 * @throws IllegalArgumentException if epsilon is negative or NaN
+	 */
+	public List<Map.Entry<Point3D, T>> getNearestEntries(double x, double y, double z, int n,
+			double epsilon) {
+		NearestHeap heap = findNearest(x, y, z, n, null, metric.getPruneFactor(epsilon));
+		List<Map.Entry<Point3D, T>> list = new ArrayList<>(heap.size());
+		for (int i = 0; i < heap.size(); i++) {
+			list.add(getEntry(getNode(heap, i), heap.getIndex(i)));
+		}
+		heap.clear();
+		return list;
+	}
+
+	/**
+	 * Returns a stream of the entries whose distance from the specified location is at most the
+	 * given radius, using this Octree's DistFunction. The entries are found lazily as the stream
+	 * is consumed, and subtrees whose bounds are farther from the location than the radius are
+	 * never visited. The Octree must not be modified while the stream is being consumed.
+	 * 
+	 * @param key    the location
+	 * @param radius the maximum distance of an entry from the location
+	 * @return a stream of the entries within the radius of the location
+	 * @throws IllegalArgumentException if the radius is negative or NaN
+	 * @throws NullPointerException     if the specified location is null
+	 */
+	public Stream<Map.Entry<Point3D, T>> entriesWithin(Point3D key, double radius) {
+		if (key == null)
+			throw new NullPointerException(NULL_KEY);
+		return entriesWithin(key.getX(), key.getY(), key.getZ(), radius);
+	}
+
+	/**
+	 * Returns a stream of the entries whose distance from the specified location is at most the
+	 * given radius, using this Octree's DistFunction. The entries are found lazily as the stream
+	 * is consumed, and subtrees whose bounds are farther from the location than the radius are
+	 * never visited. The Octree must not be modified while the stream is being consumed.
+	 * 
+	 * @param x      the x coordinate of the location
+	 * @param y      the y coordinate of the location
+	 * @param z      the z coordinate of the location
+	 * @param radius the maximum distance of an entry from the location
+	 * @return a stream of the entries within the radius of the location
+	 * @throws IllegalArgumentException if the radius is negative or NaN
+	 */
+	public Stream<Map.Entry<Point3D, T>> entriesWithin(double x, double y, double z,
+			double radius) {
+		return getRange(RangeFilter.within(metric, x, y, z, radius));
+	}
+
+	/**
+	 * Returns a stream of the entries whose keys are inside the specified box, including its
+	 * boundary. The entries are found lazily as the stream is consumed, and subtrees which do not
+	 * overlap the box are never visited. The Octree must not be modified while the stream is being
+	 * consumed.
+	 * 
+	 * @param xMin the minimum x coordinate of the box
+	 * @param xMax the maximum x coordinate of the box
+	 * @param yMin the minimum y coordinate of the box
+	 * @param yMax the maximum y coordinate of the box
+	 * @param zMin the minimum z coordinate of the box
+	 * @param zMax the maximum z coordinate of the box
+	 * @return a stream of the entries inside the box
+	 * @throws IllegalArgumentException if xMin > xMax, yMin > yMax, or zMin > zMax
+	 */
+	public Stream<Map.Entry<Point3D, T>> entriesInBox(double xMin, double xMax, double yMin,
+			double yMax, double zMin, double zMax) {
+		return getRange(RangeFilter.inBox(xMin, xMax, yMin, yMax, zMin, zMax));
+	}
+
+	/**
+	 * This method returns a sequential stream of the entries accepted by the given filter.
+	 * 
+	 * @param filter the filter for nodes and entries
+	 * @return a stream of the entries accepted by the filter
+	 */
+	private Stream<Map.Entry<Point3D, T>> getRange(RangeFilter filter) {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(new RangeIterator(filter), Spliterator.NONNULL),
+				false);
+	}
+
+	/**
+	 * This method finds the node containing the entry nearest to the specified location without
+	 * allocating any objects.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @return the node containing the nearest entry, or null if this map is empty
+	 */
+	private Node findNearest(double x, double y, double z) {
+		NearestHeap heap = findNearest(x, y, z, 1);
+		Node node = (heap.size() == 0) ? null : getNode(heap, 0);
+		heap.clear();
+		return node;
+	}
+
+	/**
+	 * This method finds the nodes containing the n entries nearest to the specified location. The
+	 * nodes are returned in the current thread's NearestHeap, sorted by distance from the
+	 * location, and the caller must clear the heap once it has read them.
+	 * 
+	 * @param x the x coordinate of the location
+	 * @param y the y coordinate of the location
+	 * @param z the z coordinate of the location
+	 * @param n the number of entries to find
+	 * @return the heap containing the nearest nodes
+	 */
+	private NearestHeap findNearest(double x, double y, double z, int n) {
+		return findNearest(x, y, z, n, null, 1);
+	}
+
+	/**
+	 * This method finds the nodes containing the n entries nearest to the specified location
+	 * whose values satisfy the given predicate. The nodes are returned in the current thread's
+	 * NearestHeap, sorted by distance from the location, and the caller must clear the heap once
+	 * it has read them. With a prune factor greater than 1, the search is approximate.
+	 * 
+	 * @param x           the x coordinate of the location
+	 * @param y           the y coordinate of the location
+	 * @param z           the z coordinate of the location
+	 * @param n           the number of entries to find
+	 * @param accept      the predicate values must satisfy, or null to accept every value
+	 * @param pruneFactor the prune factor of the heap, or 1 for an exact search
+	 * @return the heap containing the nearest nodes
+	 */
+	private NearestHeap findNearest(double x, double y, double z, int n,
+			Predicate<? super T> accept, double pruneFactor) {
+		NearestHeap heap = NearestHeap.get(Math.max(n, 0), pruneFactor);
+		try {
+			if ((root != null) && (n > 0)) {
+				root.getNearest(x, y, z, heap, accept);
+				heap.sort();
+			}
+		} catch (RuntimeException | Error e) {
+			// release the heap if the predicate throws
+			heap.clear();
+			throw e;
+		}
+		return heap;
+	}
+
+	/**
+	 * This method returns the node at the given position of a NearestHeap.
+	 * 
+	 * @param heap     the heap containing the node
+	 * @param position the position of the node in the heap
+	 * @return the node at the given position
+	 */
+	@SuppressWarnings("unchecked")
+	private Node getNode(NearestHeap heap, int position) {
+		return (Node) heap.getItem(position);
+	}
+
+	/**
+	 * This method creates a map entry for one of the values of the given node.
+	 * 
+	 * @param node  the node containing the value
+	 * @param index the index of the value within the node's bucket
+	 * @return a map entry for the value
+	 */
+	private Map.Entry<Point3D, T> getEntry(Node node, int index) {
+		return new OctreeEntry(new Point3D(node.elemX, node.elemY, node.elemZ),
+				node.getValue(index));
+	}
+
+	/**
+	 * Returns an immutable CompactOctree with the same bounds, DistFunction, and mappings as this
+	 * Octree, including every value of keys with several values. The CompactOctree uses much less
+	 * memory and answers nearest neighbor searches faster, so it should be used when a tree is built
+	 * once and then only queried. Later changes to this Octree are not reflected in the
+	 * CompactOctree.
+	 * 
+	 * @return a CompactOctree containing the mappings in this Octree
+	 */
+	public CompactOctree<T> freeze() {
+		int count = size();
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		double[] zs = new double[count];
+		Object[] values = new Object[count];
+		int index = 0;
+		List<Node> stack = new ArrayList<>();
+		if (root != null)
+			stack.add(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			for (int i = 0; i < node.getValueCount(); i++) {
+				xs[index] = node.elemX;
+				ys[index] = node.elemY;
+				zs[index] = node.elemZ;
+				values[index++] = node.getValue(i);
+			}
+			if (node.children != null) {
+				for (Node child : node.children.getChildren()) {
+					if (child != null)
+						stack.add(child);
+				}
+			}
+		}
+		return new CompactOctree<>(xMin, xMax, yMin, yMax, zMin, zMax, distFunction, xs, ys, zs,
+				values);
+	}
+
+	/**
+	 * This method returns the distance between two specified points as compared by nearest
+	 * neighbor searches, which may differ from the DistFunction's distance but has the same order.
 	 * 
 	 * @param x1 the x coordinate of the first point
 	 * @param y1 the y coordinate of the first point
@@ -553,15 +1201,12 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the distance between the two points
 	 */
 	private double getDist(double x1, double y1, double z1, double x2, double y2, double z2) {
-		double xDiff = Math.abs(x1 - x2);
-		double yDiff = Math.abs(y1 - y2);
-		double zDiff = Math.abs(z1 - z2);
-		return distFunction.getDist(xDiff, yDiff, zDiff);
+		return metric.getDist(x1, y1, z1, x2, y2, z2);
 	}
 
 	/**
 	 * This method returns the distance between the boundary of the specified node and the given
-	 * point.
+	 * point as compared by nearest neighbor searches.
 	 * 
 	 * @param node the node to check
 	 * @param x    the x coordinate of the point
@@ -570,10 +1215,8 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	 * @return the distance between the boundary of the node and the given point
 	 */
 	private double getDist(Node node, double x, double y, double z) {
-		double xDiff = (x > node.xMax) ? (x - node.xMax) : ((x < node.xMin) ? (node.xMin - x) : 0);
-		double yDiff = (y > node.yMax) ? (y - node.yMax) : ((y < node.yMin) ? (node.yMin - y) : 0);
-		double zDiff = (z > node.zMax) ? (z - node.zMax) : ((z < node.zMin) ? (node.zMin - z) : 0);
-		return distFunction.getDist(xDiff, yDiff, zDiff);
+		return metric.getDist(node.xMin, node.xMax, node.yMin, node.yMax, node.zMin, node.zMax, x,
+				y, z);
 	}
 
 	/**
@@ -582,6 +1225,7 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 	private class Node {
 		private double xMin, x, xMax, yMin, y, yMax, zMin, z, zMax;
 		private Optional<T> element;
+		private List<T> bucket; // the values added after element with the same key, or null
 		private double elemX, elemY, elemZ;
 		private ChildNodes children;// = new ChildNodes();
 		private Node parent;
@@ -644,36 +1288,137 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 			return (children == null) ? null : children.getChild(xGreater, yGreater, zGreater);
 		}
 
+		/**
+		 * This method returns the number of values mapped to this node's key.
+		 * 
+		 * @return the number of values in this node
+		 */
+		private int getValueCount() {
+			if (element == null)
+				return 0;
+			return (bucket == null) ? 1 : 1 + bucket.size();
+		}
+
+		/**
+		 * This method returns the value at the given index within this node, where index 0 is the
+		 * element and the following indexes are the values in the bucket.
+		 * 
+		 * @param index the index of the value
+		 * @return the value at the given index
+		 */
+		private T getValue(int index) {
+			return (index == 0) ? element.orElse(null) : bucket.get(index - 1);
+		}
+
+		/**
+		 * This method replaces the value at the given index within this node.
+		 * 
+		 * @param index the index of the value
+		 * @param value the new value
+		 */
+		private void setValue(int index, T value) {
+			if (index == 0)
+				element = Optional.ofNullable(value);
+			else
+				bucket.set(index - 1, value);
+		}
+
+		/**
+		 * This method returns the index of the first value within this node which is equal to the
+		 * given value.
+		 * 
+		 * @param value the value to find
+		 * @return the index of the value, or -1 if this node does not contain the value
+		 */
+		private int indexOf(Object value) {
+			for (int i = 0; i < getValueCount(); i++) {
+				if (Objects.equals(getValue(i), value))
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * This method removes the value at the given index within this node, removing the node
+		 * from the tree if it no longer contains any values or children.
+		 * 
+		 * @param index the index of the value
+		 */
+		private void removeValue(int index) {
+			if (bucket == null) {
+				element = null;
+				size--;
+				removeEmptyNodes();
+				return;
+			}
+			T value = bucket.remove(index == 0 ? 0 : index - 1);
+			if (index == 0)
+				element = Optional.ofNullable(value);
+			if (bucket.isEmpty())
+				bucket = null;
+			size--;
+		}
+
+		/**
+		 * This method removes all values from this node and inserts them again starting at this
+		 * node, which moves them into a child node if they do not belong in this node.
+		 */
+		private void reinsertValues() {
+			Optional<T> origElement = element;
+			List<T> origBucket = bucket;
+			if (origElement == null)
+				return;
+			element = null;
+			bucket = null;
+			size -= (origBucket == null) ? 1 : 1 + origBucket.size();
+			insert(origElement.orElse(null), elemX, elemY, elemZ, true);
+			if (origBucket != null) {
+				for (T value : origBucket) {
+					insert(value, elemX, elemY, elemZ, false);
+				}
+			}
+		}
+
 		/**
 		 * This method inserts the given element into this node or one of its children at the given
-		 * coordinates. If the given element is null, or if another element with the same
-		 * coordinates is already in the Octree, this element is not inserted.
+		 * coordinates. If another element with the same coordinates is already in the Octree, the
+		 * new element either replaces it and every other value with those coordinates, or is added
+		 * to the bucket of values with those coordinates.
 		 * 
 		 * @param element the element to insert
 		 * @param elemX   the x coordinate of the element
 		 * @param elemY   the y coordinate of the element
 		 * @param elemZ   the z coordinate of the element
+		 * @param replace true if the element should replace existing values with the same
+		 *                coordinates and false if it should be added to them
 		 * @return the element that was replaced, or null if there was no element at this location
+		 *         or the element was added
 		 */
-		public T insert(T element, double elemX, double elemY, double elemZ) {
+		public T insert(T element, double elemX, double elemY, double elemZ, boolean replace) {
 			// if an element at the same coordinates exists in this node, replace it with the new
-			// element
+			// element or add the new element to the bucket
 			if ((this.element != null) && (this.elemX == elemX) && (this.elemY == elemY)
 					&& (this.elemZ == elemZ)) {
+				if (!replace) {
+					if (bucket == null)
+						bucket = new ArrayList<>(2);
+					bucket.add(element);
+					size++;
+					return null;
+				}
 				T retval = this.element.orElse(null);
 				this.element = Optional.ofNullable(element);
+				if (bucket != null) {
+					size -= bucket.size();
+					bucket = null;
+				}
 				return retval;
 			}
 
 			// if coordinates match center of this node, add element to this node, reinserting
 			// current element if necessary
 			if ((elemX == x) && (elemY == y) && (elemZ == z)) {
-				Optional<T> origElement = this.element;
-				if (origElement != null) {
-					this.element = null;
-					size--;
-					this.insert(origElement.orElse(null), this.elemX, this.elemY, this.elemZ);
-				}
+				reinsertValues();
 				this.element = Optional.ofNullable(element);
 				this.elemX = elemX;
 				this.elemY = elemY;
@@ -691,7 +1436,7 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 
 			// if child is not null, insert the element into the appropriate child
 			if (child != null) {
-				return child.insert(element, elemX, elemY, elemZ);
+				return child.insert(element, elemX, elemY, elemZ, replace);
 			}
 
 			// if child is null, create child node
@@ -717,12 +1462,7 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 			if (!hasChildren) {
 				// if the element belongs in a child node, remove it from this node then reinsert it
 				if ((this.elemX != this.x) || (this.elemY != this.y) || (this.elemZ != elemZ)) {
-					Optional<T> root = this.element;
-					if (root != null) {
-						this.element = null;
-						size--;
-						insert(root.orElse(null), this.elemX, this.elemY, this.elemZ);
-					}
+					reinsertValues();
 				}
 			}
 			return null;
@@ -749,10 +1489,12 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 			if (n == null)
 				return null;
 
-			// if there is an element at that location, remove and return it
+			// if there is an element at that location, remove it and any other values with the same
+			// location and return it
 			T result = n.element.orElse(null);
+			size -= n.getValueCount();
 			n.element = null;
-			size--;
+			n.bucket = null;
 			n.removeEmptyNodes();
 			return result;
 		}
@@ -848,185 +1590,310 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		}
 
 		/**
-		 * This method adds all elements in this node and its descendants to the given TreeSet (used
-		 * as a priority queue) if they are potentially close enough to be among the nearest n
-		 * points.
+		 * This method adds all elements in this node and its descendants to the given heap if they
+		 * are potentially close enough to be among the nearest points.
 		 * 
-		 * @param targetX  the x coordinate of the target point
-		 * @param targetY  the y coordinate of the target point
-		 * @param targetZ  the z coordinate of the target point
-		 * @param n        the number of entries needed
-		 * @param q        the priority queue to use
-		 * @param bestDist the nth smallest dist in the queue, or Double.MAX_VALUE if the queue
-		 *                 contains less than n elements
+		 * @param targetX        the x coordinate of the target point
+		 * @param targetY        the y coordinate of the target point
+		 * @param targetZ        the z coordinate of the target point
+		 * @param heap           the heap holding the nearest nodes found so far
+		 * @param accept         the predicate values must satisfy to be added, or null to add
+		 *                       every value
+		 * @param alreadyChecked the child node which has already been explored
 		 */
-		private void addToQueue(double targetX, double targetY, double targetZ, int n,
-				TreeSet<EntryDist> q, Dist bestDist, Node alreadyChecked) {
-			double thisDist;
-			if ((element != null) && ((thisDist = getDist(elemX, elemY, elemZ, targetX, targetY,
-					targetZ)) < bestDist.dist)) {
-				Map.Entry<Point3D, T> entry = new OctreeEntry(new Point3D(elemX, elemY, elemZ),
-						element.orElse(null));
-				q.add(new EntryDist(entry, thisDist));
-				if (q.size() > n)
-					q.pollLast();
-				if (q.size() == n)
-					bestDist.dist = q.last().dist;
+		private void addToHeap(double targetX, double targetY, double targetZ, NearestHeap heap,
+				Predicate<? super T> accept, Node alreadyChecked) {
+			if (element != null) {
+				double dist = getDist(elemX, elemY, elemZ, targetX, targetY, targetZ);
+				int count = getValueCount();
+				for (int i = 0; (i < count) && (dist < heap.getBound()); i++) {
+					if ((accept == null) || accept.test(getValue(i)))
+						heap.add(dist, this, i);
+				}
 			}
 			if (children != null) {
-				for (Node node : children.getChildren()) {
+				List<Node> nodes = children.getChildren();
+				for (int i = 0; i < 8; i++) {
+					Node node = nodes.get(i);
 					if ((node != null) && (node != alreadyChecked)
-							&& (getDist(node, targetX, targetY, targetZ) < bestDist.dist)) {
-						node.addToQueue(targetX, targetY, targetZ, n, q, bestDist, null);
+							&& (getDist(node, targetX, targetY, targetZ) < heap.getPruneBound())) {
+						node.addToHeap(targetX, targetY, targetZ, heap, accept, null);
 					}
 				}
 			}
 		}
 
 		/**
-		 * This method returns a TreeSet containing the nearest n entries to the target point.
-		 * 
-		 * @param targetX the x coordinate of the target point
-		 * @param targetY the y coordinate of the target point
-		 * @param targetZ the z coordinate of the target point
-		 * @param n       the number of entries to find
-		 * @return a TreeSet containing the nearest n entries to the target point
-		 */
-		private TreeSet<EntryDist> findNearestEntries(double targetX, double targetY,
-				double targetZ, int n) {
-			TreeSet<EntryDist> q = new TreeSet<>((a, b) -> (int) Math.signum(a.dist - b.dist));
-			return findNearestEntries(targetX, targetY, targetZ, n, q, new Dist(), null);
-		}
-
-		/**
-		 * This method returns a TreeSet containing the nearest n entries to the target point.
+		 * This method adds the nearest nodes to the target point in this node, its descendants, and
+		 * if necessary its ancestors to the given heap.
 		 * 
 		 * @param targetX        the x coordinate of the target point
 		 * @param targetY        the y coordinate of the target point
 		 * @param targetZ        the z coordinate of the target point
-		 * @param n              the number of entries to find
-		 * @param q              a TreeSet (acting as a priority queue) to hold the entries
-		 * @param bestDist       the best distance found so far
+		 * @param heap           the heap holding the nearest nodes found so far
+		 * @param accept         the predicate values must satisfy to be added, or null to add
+		 *                       every value
 		 * @param alreadyChecked the child node which has already been explored
-		 * @return a TreeSet containing the nearest n entries to the target point
 		 */
-		private TreeSet<EntryDist> findNearestEntries(double targetX, double targetY,
-				double targetZ, int n, TreeSet<EntryDist> q, Dist bestDist, Node alreadyChecked) {
-			// add entries in this node and children to queue
-			addToQueue(targetX, targetY, targetZ, n, q, bestDist, alreadyChecked);
+		private void findNearest(double targetX, double targetY, double targetZ, NearestHeap heap,
+				Predicate<? super T> accept, Node alreadyChecked) {
+			// add entries in this node and children to the heap
+			addToHeap(targetX, targetY, targetZ, heap, accept, alreadyChecked);
 
 			// if this is the root node, we are done
 			if (parent == null)
-				return q;
-
-			// if q has fewer than n elements, we need to check the parent
-			if (q.size() < n)
-				return parent.findNearestEntries(targetX, targetY, targetZ, n, q, bestDist, this);
-
-			// compare target's distance from nth closest element in queue to target's distance from
-			// the nearest boundary
-			List<Double> boundaryDists = new ArrayList<>(6);
-			boundaryDists.add(targetX - xMin);
-			boundaryDists.add(xMax - targetX);
-			boundaryDists.add(targetY - yMin);
-			boundaryDists.add(yMax - targetY);
-			boundaryDists.add(targetZ - zMin);
-			boundaryDists.add(zMax - targetZ);
-			double boundaryDist = Collections.min(boundaryDists);
-
-			// if bestDist.dist is smaller than boundaryDist, we have found the nearest elements
-			if (bestDist.dist <= boundaryDist)
-				return q;
+				return;
+
+			// if the heap is not full, we need to check the parent
+			if (!heap.isFull()) {
+				parent.findNearest(targetX, targetY, targetZ, heap, accept, this);
+				return;
+			}
+
+			// compare target's distance from nth closest element in the heap to target's distance
+			// from the nearest boundary
+			double boundaryDist = metric.getDistToOutside(xMin, xMax, yMin, yMax, zMin, zMax,
+					targetX, targetY, targetZ);
+
+			// if the nth closest element is nearer than the boundary, we have found the nearest
+			// elements
+			if (heap.getPruneBound() <= boundaryDist)
+				return;
 
 			// otherwise we have to check in the parent
-			return parent.findNearestEntries(targetX, targetY, targetZ, n, q, bestDist, this);
+			parent.findNearest(targetX, targetY, targetZ, heap, accept, this);
 		}
 
 		/**
-		 * This method finds and returns the n nearest entries to the target point in a TreeSet.
+		 * This method finds the nearest nodes to the target point and adds them to the given heap.
 		 * 
 		 * @param targetX the x coordinate of the target point
 		 * @param targetY the y coordinate of the target point
 		 * @param targetZ the z coordinate of the target point
-		 * @param n       the number of entries to get
-		 * @return a TreeSet containing the n nearest entries to the target point
+		 * @param heap    the heap to hold the nearest nodes
+		 * @param accept  the predicate values must satisfy to be added, or null to add every value
 		 */
-		public TreeSet<EntryDist> getNearest(double targetX, double targetY, double targetZ,
-				int n) {
-			TreeSet<EntryDist> q;
-
-			// if target coordinate is center of this node, search this node and its children
-			if ((targetX == x) && (targetY == y) && (targetZ == z)) {
-				q = findNearestEntries(targetX, targetY, targetZ, n);
+		public void getNearest(double targetX, double targetY, double targetZ, NearestHeap heap,
+				Predicate<? super T> accept) {
+			// find the deepest existing node whose region contains the target coordinate
+			Node node = this;
+			while ((targetX != node.x) || (targetY != node.y) || (targetZ != node.z)) {
+				Node child = node.getChild(targetX > node.x, targetY > node.y, targetZ > node.z);
+				if (child == null)
+					break;
+				node = child;
 			}
-			// if target coordinate is in a child, find matching child
-			else {
-				boolean xGreater = targetX > x;
-				boolean yGreater = targetY > y;
-				boolean zGreater = targetZ > z;
-				Node child = getChild(xGreater, yGreater, zGreater);
 
-				// if child is not null, search in the child
-				if (child != null)
-					return child.getNearest(targetX, targetY, targetZ, n);
+			// search that node, its children, and its ancestors as needed
+			node.findNearest(targetX, targetY, targetZ, heap, accept, null);
+		}
+	}
+
+	/**
+	 * Fork/join task which builds the subtree for a range of a permutation of the entries passed to
+	 * bulkLoad(). The tree has the same shape as if the entries had been added one at a time: a
+	 * node whose entries all have the same key holds them all, and otherwise the node holds the
+	 * entries at its center and the rest are partitioned among its children, with points on the
+	 * center planes belonging to the lower octants. Children with at least PARALLEL_THRESHOLD
+	 * entries are built in their own tasks and smaller ones are built recursively in this task.
+	 * Every task works on a disjoint range of the permutation and its scratch arrays.
+	 */
+	private class BulkLoadTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+		private final double[] xs, ys, zs;
+		private final T[] values;
+		private final int[] order, buffer;
+		private final byte[] octants;
+		private final Node parent;
+		private final int position;
+		private final double xMin, xMax, yMin, yMax, zMin, zMax;
+		private final int start, end;
+
+		/**
+		 * Constructs a BulkLoadTask which builds the subtree for the specified range of the
+		 * permutation.
+		 * 
+		 * @param xs       the x coordinates of the keys
+		 * @param ys       the y coordinates of the keys
+		 * @param zs       the z coordinates of the keys
+		 * @param values   the values
+		 * @param order    the permutation of the entries
+		 * @param buffer   a scratch array as long as the permutation
+		 * @param octants  a scratch array as long as the permutation
+		 * @param parent   the parent of the subtree's root, or null if it is the root of the tree
+		 * @param position the index of the subtree's root within its parent's ChildNodes object
+		 * @param xMin     the minimum x coordinate the subtree covers
+		 * @param xMax     the maximum x coordinate the subtree covers
+		 * @param yMin     the minimum y coordinate the subtree covers
+		 * @param yMax     the maximum y coordinate the subtree covers
+		 * @param zMin     the minimum z coordinate the subtree covers
+		 * @param zMax     the maximum z coordinate the subtree covers
+		 * @param start    the start of the subtree's range of the permutation
+		 * @param end      the end of the subtree's range of the permutation
+		 */
+		public BulkLoadTask(double[] xs, double[] ys, double[] zs, T[] values, int[] order,
+				int[] buffer, byte[] octants, Node parent, int position, double xMin, double xMax,
+				double yMin, double yMax, double zMin, double zMax, int start, int end) {
+			this.xs = xs;
+			this.ys = ys;
+			this.zs = zs;
+			this.values = values;
+			this.order = order;
+			this.buffer = buffer;
+			this.octants = octants;
+			this.parent = parent;
+			this.position = position;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			this.zMin = zMin;
+			this.zMax = zMax;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Node compute() {
+			return build(parent, position, xMin, xMax, yMin, yMax, zMin, zMax, start, end);
+		}
 
-				// if child is null, search in children
-				q = findNearestEntries(targetX, targetY, targetZ, n);
+		/**
+		 * This method builds the subtree for the specified range of the permutation.
+		 * 
+		 * @param parent   the parent of the subtree's root, or null if it is the root of the tree
+		 * @param position the index of the subtree's root within its parent's ChildNodes object
+		 * @param xMin     the minimum x coordinate the subtree covers
+		 * @param xMax     the maximum x coordinate the subtree covers
+		 * @param yMin     the minimum y coordinate the subtree covers
+		 * @param yMax     the maximum y coordinate the subtree covers
+		 * @param zMin     the minimum z coordinate the subtree covers
+		 * @param zMax     the maximum z coordinate the subtree covers
+		 * @param start    the start of the subtree's range of the permutation
+		 * @param end      the end of the subtree's range of the permutation
+		 * @return the root of the subtree
+		 */
+		private Node build(Node parent, int position, double xMin, double xMax, double yMin,
+				double yMax, double zMin, double zMax, int start, int end) {
+			// if all entries have the same key, they are all held by a single node
+			int first = order[start];
+			if (hasOneKey(start, end)) {
+				Node node = new Node(xMin, xMax, yMin, yMax, zMin, zMax, values[first], xs[first],
+						ys[first], zs[first], parent, position);
+				setBucket(node, start + 1, end);
+				return node;
 			}
 
-			// return the queue
-			return q;
+			// sort the entries so those at the center of the node come first, followed by the
+			// entries of each octant; after the second loop, counts[i] is the end of group i's range
+			double x = (xMin + xMax) / 2;
+			double y = (yMin + yMax) / 2;
+			double z = (zMin + zMax) / 2;
+			int[] counts = new int[10];
+			for (int i = start; i < end; i++) {
+				int entry = order[i];
+				int group = ((xs[entry] == x) && (ys[entry] == y) && (zs[entry] == z)) ? 0
+						: 1 + ((xs[entry] > x) ? 4 : 0) + ((ys[entry] > y) ? 2 : 0)
+								+ ((zs[entry] > z) ? 1 : 0);
+				octants[i] = (byte) group;
+				counts[group + 1]++;
+			}
+			for (int group = 0; group < 9; group++) {
+				counts[group + 1] += counts[group];
+			}
+			for (int i = start; i < end; i++) {
+				buffer[start + counts[octants[i]]++] = order[i];
+			}
+			System.arraycopy(buffer, start, order, start, end - start);
+
+			// the node holds the entries at its center, if any
+			Node node;
+			int centerEnd = start + counts[0];
+			if (centerEnd > start) {
+				int center = order[start];
+				node = new Node(xMin, xMax, yMin, yMax, zMin, zMax, values[center], x, y, z,
+						parent, position);
+				setBucket(node, start + 1, centerEnd);
+			} else {
+				node = new Node(xMin, xMax, yMin, yMax, zMin, zMax, null, x, y, z, parent,
+						position);
+				node.element = null;
+			}
+
+			// build the children, forking tasks for large ones
+			node.children = new ChildNodes();
+			List<BulkLoadTask> tasks = null;
+			int childStart = centerEnd;
+			for (int octant = 0; octant < 8; octant++) {
+				int childEnd = start + counts[octant + 1];
+				if (childEnd == childStart)
+					continue;
+				boolean xGreater = (octant & 4) != 0;
+				boolean yGreater = (octant & 2) != 0;
+				boolean zGreater = (octant & 1) != 0;
+				double childXMin = xGreater ? x : xMin;
+				double childXMax = xGreater ? xMax : x;
+				double childYMin = yGreater ? y : yMin;
+				double childYMax = yGreater ? yMax : y;
+				double childZMin = zGreater ? z : zMin;
+				double childZMax = zGreater ? zMax : z;
+				if (childEnd - childStart >= PARALLEL_THRESHOLD) {
+					BulkLoadTask task = new BulkLoadTask(xs, ys, zs, values, order, buffer,
+							octants, node, octant, childXMin, childXMax, childYMin, childYMax,
+							childZMin, childZMax, childStart, childEnd);
+					task.fork();
+					if (tasks == null)
+						tasks = new ArrayList<>();
+					tasks.add(task);
+				} else {
+					node.children.getChildren().set(octant, build(node, octant, childXMin,
+							childXMax, childYMin, childYMax, childZMin, childZMax, childStart,
+							childEnd));
+				}
+				childStart = childEnd;
+			}
+			if (tasks != null) {
+				for (BulkLoadTask task : tasks) {
+					node.children.getChildren().set(task.position, task.join());
+				}
+			}
+			return node;
 		}
 
 		/**
-		 * This method finds and returns the n nearest entries to the target point as a list, sorted
-		 * by distance from the target point.
+		 * This method checks whether all entries in the given range of the permutation have the
+		 * same key.
 		 * 
-		 * @param targetX the x coordinate of the target point
-		 * @param targetY the y coordinate of the target point
-		 * @param targetZ the z coordinate of the target point
-		 * @param n       the number of entries to get
-		 * @return a list containing the n nearest entries to the target point
+		 * @param start the start of the range
+		 * @param end   the end of the range
+		 * @return true if all entries in the range have the same key and false otherwise
 		 */
-		public List<Map.Entry<Point3D, T>> getNearestEntries(double targetX, double targetY,
-				double targetZ, int n) {
-			// get a TreeSet containing the n nearest entries
-			TreeSet<EntryDist> q = getNearest(targetX, targetY, targetZ, n);
-
-			// copy entries from queue to a list and return the list
-			List<Map.Entry<Point3D, T>> list = new ArrayList<>(Math.min(q.size(), n));
-			int count = 0;
-			for (EntryDist entryDist : q) {
-				list.add(entryDist.entry);
-				if (++count == n)
-					break;
+		private boolean hasOneKey(int start, int end) {
+			int first = order[start];
+			for (int i = start + 1; i < end; i++) {
+				int entry = order[i];
+				if ((xs[entry] != xs[first]) || (ys[entry] != ys[first])
+						|| (zs[entry] != zs[first]))
+					return false;
 			}
-			return list;
+			return true;
 		}
 
 		/**
-		 * This method finds and returns the n nearest keys to the target point as a list, sorted by
-		 * distance from the target point.
+		 * This method puts the values of the entries in the given range of the permutation in the
+		 * bucket of the given node.
 		 * 
-		 * @param targetX the x coordinate of the target point
-		 * @param targetY the y coordinate of the target point
-		 * @param targetZ the z coordinate of the target point
-		 * @param n       the number of keys to get
-		 * @return a list containing the n nearest keys to the target point
+		 * @param node  the node whose bucket to fill
+		 * @param start the start of the range
+		 * @param end   the end of the range
 		 */
-		public List<Point3D> getNearestKeys(double targetX, double targetY, double targetZ, int n) {
-			// get a TreeSet containing the n nearest entries
-			TreeSet<EntryDist> q = getNearest(targetX, targetY, targetZ, n);
-
-			// copy values from queue to a list and return the list
-			List<Point3D> list = new ArrayList<>(Math.min(q.size(), n));
-			int count = 0;
-			for (EntryDist entryDist : q) {
-				list.add(entryDist.entry.getKey());
-				if (++count == n)
-					break;
+		private void setBucket(Node node, int start, int end) {
+			if (end <= start)
+				return;
+			node.bucket = new ArrayList<>(end - start);
+			for (int i = start; i < end; i++) {
+				node.bucket.add(values[order[i]]);
 			}
-			return list;
 		}
 	}
 
@@ -1154,32 +2021,6 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		}
 	}
 
-	/**
-	 * This class is a mutable wrapper for a double.
-	 */
-	private class Dist {
-		double dist = Double.MAX_VALUE;
-	}
-
-	/**
-	 * This class is a mutable wrapper for a map entry and a double.
-	 */
-	private class EntryDist {
-		Map.Entry<Point3D, T> entry;
-		double dist;
-
-		/**
-		 * Constructs an EntryDist containing the specified entry and double value.
-		 * 
-		 * @param entry the map entry to wrap
-		 * @param dist  the double to wrap
-		 */
-		public EntryDist(Map.Entry<Point3D, T> entry, double dist) {
-			this.entry = entry;
-			this.dist = dist;
-		}
-	}
-
 	/**
 	 * Set view of the mappings contained in this map. The set is backed by the map, so changes to
 	 * the map are reflected in the set, and vice-versa. If the map is modified while an iteration
@@ -1210,21 +2051,17 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 
 			// check whether the given mapping exists in the Octree
 			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
-			Point3D key = (Point3D) entry.getKey();
-			Object value = entry.getValue();
-			T element = Octree.this.get(key);
-			return value.equals(element);
+			Node node = getNode(entry.getKey());
+			return (node != null) && (node.indexOf(entry.getValue()) >= 0);
 		}
 
 		@Override
 		public boolean remove(Object o) {
-			// if the Octree contains the object, remove it and return true
-			if (contains(o)) {
-				Octree.this.remove((Point3D) ((Map.Entry<?, ?>) o).getKey());
-				return true;
-			}
-			// otherwise return false
-			return false;
+			// if the Octree contains the object, remove that mapping and return true, otherwise
+			// return false
+			check(o);
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+			return Octree.this.remove(entry.getKey(), entry.getValue());
 		}
 
 		/**
@@ -1279,18 +2116,20 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 
 		@Override
 		public T setValue(T value) {
-			Octree.this.put(getKey(), value);
+			if (!Octree.this.replace(getKey(), getValue(), value))
+				Octree.this.put(getKey(), value);
 			return super.setValue(value);
 		}
 	}
 
 	/**
 	 * An iterator for an Octree's entry set. The iterator explores the Octree using DFS starting at
-	 * the root.
+	 * the root, returning one entry for each value in a node.
 	 */
 	private class OctreeIterator implements Iterator<Map.Entry<Point3D, T>> {
 		private Map.Entry<Point3D, T> lastReturned = null;
-		private Node nextNode;
+		private Node nextNode, lastNode;
+		private int nextIndex = 0, lastIndex;
 
 		/**
 		 * Constructs an OctreeIterator.
@@ -1318,13 +2157,16 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 			while (nextNode.element == null)
 				advance();
 
-			// once we have found an element, create an OctreeEntry for that element
+			// once we have found an element, create an OctreeEntry for the next value in its node
 			lastReturned = new OctreeEntry(
 					new Point3D(nextNode.elemX, nextNode.elemY, nextNode.elemZ),
-					nextNode.element.orElse(null));
+					nextNode.getValue(nextIndex));
+			lastNode = nextNode;
+			lastIndex = nextIndex;
 
-			// advance to the next unexplored node if it exists
-			advance();
+			// advance to the next value in the node, or to the next unexplored node if it exists
+			if (++nextIndex >= nextNode.getValueCount())
+				advance();
 
 			// return the OctreeEntry that was created
 			return lastReturned;
@@ -1363,6 +2205,8 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		 * sibling node.
 		 */
 		private void advance() {
+			nextIndex = 0;
+
 			// if the current node has any children, return its first child
 			Node nextChild = (nextNode.children == null) ? null : nextNode.children.getNext(null);
 			if (nextChild != null) {
@@ -1391,17 +2235,128 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 				throw new IllegalStateException(
 						"The remove() method can only be called once after each call to next().");
 
-			// remove the last returned element from the Octree and set lastReturned to null
-			Octree.this.remove(lastReturned.getKey());
+			// remove the last returned value from the Octree and set lastReturned to null, moving
+			// back one value if the next value is in the same node
+			lastNode.removeValue(lastIndex);
+			if ((nextNode == lastNode) && (nextIndex > lastIndex))
+				nextIndex--;
 			lastReturned = null;
 		}
 	}
 
 	/**
-	 * This functional interface is used to calculate distances between two points.
+	 * An iterator for the entries of a range query. The iterator explores the Octree using DFS
+	 * starting at the root, skipping every node whose bounds do not overlap the filter's region,
+	 * and returns one entry for each value of a node whose key is inside the region.
+	 */
+	private class RangeIterator implements Iterator<Map.Entry<Point3D, T>> {
+		private final RangeFilter filter;
+		private final List<Node> stack = new ArrayList<>();
+		private Node node = null;
+		private int index = 0;
+
+		/**
+		 * Constructs a RangeIterator for the given filter.
+		 * 
+		 * @param filter the filter for nodes and entries
+		 */
+		public RangeIterator(RangeFilter filter) {
+			this.filter = filter;
+			if ((root != null) && overlaps(root))
+				stack.add(root);
+		}
+
+		@Override
+		public boolean hasNext() {
+			// visit nodes until one has a value which has not been returned yet
+			while (((node == null) || (index >= node.getValueCount())) && !stack.isEmpty()) {
+				Node next = stack.remove(stack.size() - 1);
+				if (next.children != null) {
+					for (Node child : next.children.getChildren()) {
+						if ((child != null) && overlaps(child))
+							stack.add(child);
+					}
+				}
+				boolean accepted = (next.getValueCount() > 0) && filter.overlaps(next.elemX,
+						next.elemX, next.elemY, next.elemY, next.elemZ, next.elemZ);
+				node = accepted ? next : null;
+				index = 0;
+			}
+			return (node != null) && (index < node.getValueCount());
+		}
+
+		@Override
+		public Map.Entry<Point3D, T> next() {
+			if (!hasNext())
+				throw new NoSuchElementException("The iteration has no more elements.");
+			return getEntry(node, index++);
+		}
+
+		/**
+		 * This method checks whether the bounds of the given node overlap the filter's region.
+		 * 
+		 * @param node the node to check
+		 * @return true if the node may contain entries inside the region and false otherwise
+		 */
+		private boolean overlaps(Node node) {
+			return filter.overlaps(node.xMin, node.xMax, node.yMin, node.yMax, node.zMin,
+					node.zMax);
+		}
+	}
+
+	/**
+	 * This functional interface is used to calculate distances between two points. The constants
+	 * and the weightedEuclidean method provide common distances, which Octrees recognize and
+	 * calculate directly instead of calling getDist, so they are faster than equivalent custom
+	 * implementations.
 	 */
 	@FunctionalInterface
 	public static interface DistFunction {
+		/**
+		 * The standard Euclidean distance, used when no DistFunction is specified. Nearest
+		 * neighbor searches compare squared distances instead, which have the same order.
+		 */
+		DistFunction EUCLIDEAN = (xDiff, yDiff, zDiff) -> Math
+				.sqrt((xDiff * xDiff) + (yDiff * yDiff) + (zDiff * zDiff));
+
+		/**
+		 * The square of the Euclidean distance. This finds the same nearest neighbors as
+		 * EUCLIDEAN, but radius queries must use the square of the radius.
+		 */
+		DistFunction SQUARED_EUCLIDEAN = (xDiff, yDiff, zDiff) -> (xDiff * xDiff)
+				+ (yDiff * yDiff) + (zDiff * zDiff);
+
+		/**
+		 * The Manhattan (taxicab) distance, the sum of the differences.
+		 */
+		DistFunction MANHATTAN = (xDiff, yDiff, zDiff) -> xDiff + yDiff + zDiff;
+
+		/**
+		 * The Chebyshev distance, the largest of the differences.
+		 */
+		DistFunction CHEBYSHEV = (xDiff, yDiff, zDiff) -> Math.max(xDiff, Math.max(yDiff, zDiff));
+
+		/**
+		 * A weighted Euclidean distance between RGB colors, weighting red, green, and blue by 2, 4,
+		 * and 3, which approximates perceived color differences better than EUCLIDEAN without
+		 * converting to another color space.
+		 */
+		DistFunction WEIGHTED_RGB = weightedEuclidean(2, 4, 3);
+
+		/**
+		 * Get a weighted Euclidean distance, the square root of the sum of the squared
+		 * differences multiplied by their weights.
+		 * 
+		 * @param xWeight the weight of the x coordinate
+		 * @param yWeight the weight of the y coordinate
+		 * @param zWeight the weight of the z coordinate
+		 * @return the weighted Euclidean distance
+		 * @throws IllegalArgumentException if a weight is not positive
+		 */
+		static DistFunction weightedEuclidean(double xWeight, double yWeight, double zWeight) {
+			return new WeightedEuclidean(xWeight, yWeight, zWeight);
+		}
+
 		/**
 		 * This method is used to calculate the distance between two points. Any implementation
 		 * should ensure that the calculated distance never decreases when the differences increase;
@@ -1420,4 +2375,33 @@ public class Octree<T> extends AbstractMap<Point3D, T> {
 		 */
 		double getDist(double xDiff, double yDiff, double zDiff);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The DistFunction returned by DistFunction.weightedEuclidean().
+	 */
+	static final class WeightedEuclidean implements DistFunction {
+		final double xWeight, yWeight, zWeight;
+
+		/**
+		 * Constructs a WeightedEuclidean with the given weights.
+		 * 
+		 * @param xWeight the weight of the x coordinate
+		 * @param yWeight the weight of the y coordinate
+		 * @param zWeight the weight of the z coordinate
+		 * @throws IllegalArgumentException if a weight is not positive
+		 */
+		WeightedEuclidean(double xWeight, double yWeight, double zWeight) {
+			if (!(xWeight > 0) || !(yWeight > 0) || !(zWeight > 0))
+				throw new IllegalArgumentException("The weights must be positive.");
+			this.xWeight = xWeight;
+			this.yWeight = yWeight;
+			this.zWeight = zWeight;
+		}
+
+		@Override
+		public double getDist(double xDiff, double yDiff, double zDiff) {
+			return Math.sqrt((xWeight * xDiff * xDiff) + (yWeight * yDiff * yDiff)
+					+ (zWeight * zDiff * zDiff));
+		}
+	}
+}
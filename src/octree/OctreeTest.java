@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -15,6 +16,7 @@ import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Predicate;
 
 import javafx.geometry.Point3D;
 
@@ -169,6 +171,55 @@ class OctreeTest {
 		System.out.println("Time to remove all elements: " + hashmapRemoveTime + "ms");
 	}
 
+	/**
+	 * Tests the efficiency of bulkLoad() compared to put() at several sizes, along with the time to
+	 * freeze the bulk loaded tree into a CompactOctree, whose leaves hold buckets of entries. This
+	 * test does not include any assertions; results will be printed and can be compared manually.
+	 * Note that this is much slower than the other tests and needs a large heap for the largest
+	 * size.
+	 */
+//	@Test
+	void testBulkLoadEfficiency() {
+		for (int numPoints = 100_000; numPoints <= 10_000_000; numPoints *= 10) {
+			// create arrays of random points
+			double[] xs = new double[numPoints];
+			double[] ys = new double[numPoints];
+			double[] zs = new double[numPoints];
+			Integer[] values = new Integer[numPoints];
+			for (int i = 0; i < numPoints; i++) {
+				xs[i] = random.nextLong();
+				ys[i] = random.nextLong();
+				zs[i] = random.nextLong();
+				values[i] = i;
+			}
+
+			// time put(), bulkLoad(), and freeze()
+			Octree<Integer> octree = new Octree<>();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < numPoints; i++) {
+				octree.put(xs[i], ys[i], zs[i], values[i]);
+			}
+			long stop = System.currentTimeMillis();
+			long putTime = stop - start;
+			octree = new Octree<>();
+			start = System.currentTimeMillis();
+			octree.bulkLoad(xs, ys, zs, values);
+			stop = System.currentTimeMillis();
+			long bulkLoadTime = stop - start;
+			start = System.currentTimeMillis();
+			octree.freeze();
+			stop = System.currentTimeMillis();
+			long freezeTime = stop - start;
+
+			// print the results
+			System.out.println("Number of elements: " + numPoints);
+			System.out.println("Time to put all elements: " + putTime + "ms");
+			System.out.println("Time to bulk load all elements: " + bulkLoadTime + "ms");
+			System.out.println("Time to freeze the bulk loaded tree: " + freezeTime + "ms");
+			System.out.println();
+		}
+	}
+
 	/**
 	 * Tests the constructors.
 	 */
@@ -433,7 +484,8 @@ class OctreeTest {
 	}
 
 	/**
-	 * Tests getNearestKey(), getNearestEntry(), getNearestKeys(), and GetNearestEntries().
+	 * Tests getNearestKey(), getNearestValue(), getNearestEntry(), getNearestKeys(),
+	 * getNearestValues(), and GetNearestEntries().
 	 */
 	@Test
 	void testGetNearestEntries() {
@@ -441,8 +493,10 @@ class OctreeTest {
 		
 		// test with empty Octree
 		assertNull(octree.getNearestKey(0, 0, 0));
+		assertNull(octree.getNearestValue(0, 0, 0));
 		assertNull(octree.getNearestEntry(0, 0, 0));
 		assertTrue(octree.getNearestKeys(0, 0, 0, 10).isEmpty());
+		assertTrue(octree.getNearestValues(0, 0, 0, 10).isEmpty());
 		assertTrue(octree.getNearestEntries(0, 0, 0, 10).isEmpty());
 		
 		// test with non-empty Octree
@@ -454,6 +508,8 @@ class OctreeTest {
 		octree.put(0, 2, 0, 5);
 		octree.put(2, 0, 1, 6);
 		assertEquals(octree.getNearestKey(new Point3D(0, 0, 0)), new Point3D(0, 0, 0));
+		assertEquals(octree.getNearestValue(new Point3D(0.1, 0.1, 0.1)), 0);
+		assertEquals(octree.getNearestValue(1.9, 0, 0.9), 6);
 		assertEquals(octree.getNearestEntry(new Point3D(0, 0, 0)),
 				new AbstractMap.SimpleEntry<>(new Point3D(0, 0, 0), 0));
 		
@@ -461,12 +517,16 @@ class OctreeTest {
 		List<Point3D> keys = octree.getNearestKeys(new Point3D(0, 0, 0), 5);
 		List<Map.Entry<Point3D, Integer>> entries = octree.getNearestEntries(new Point3D(0, 0, 0),
 				5);
+		List<Integer> values = octree.getNearestValues(new Point3D(0, 0, 0), 5);
 		assertEquals(keys.size(), 5);
 		assertEquals(entries.size(), 5);
+		assertEquals(values.size(), 5);
 		for (int i = 0; i < 5; i++) {
 			assertEquals(i, entries.get(i).getValue());
+			assertEquals(i, values.get(i));
 			assertEquals(keys.get(i), entries.get(i).getKey());
 		}
+		assertTrue(octree.getNearestValues(0, 0, 0, 0).isEmpty());
 		
 		// test getNearestKeys() and getNearestEntries() with n > octree.size()
 		keys = octree.getNearestKeys(new Point3D(0, 0, 0), 50);
@@ -478,6 +538,15 @@ class OctreeTest {
 			assertEquals(keys.get(i), entries.get(i).getKey());
 		}
 		
+		// verify that entries at the same distance are all returned
+		octree.clear();
+		octree.put(1, 0, 0, 1);
+		octree.put(0, 1, 0, 2);
+		octree.put(0, 0, 1, 3);
+		octree.put(2, 2, 2, 4);
+		assertEquals(new HashSet<>(octree.getNearestValues(0, 0, 0, 3)),
+				new HashSet<>(Arrays.asList(1, 2, 3)));
+
 		// other tests to ensure code coverage
 		octree.clear();
 		octree.put(2, 2, 2, 2);
@@ -493,6 +562,8 @@ class OctreeTest {
 		
 		// verify that using null points results in NullPointerException
 		assertThrows(NullPointerException.class, () -> octree.getNearestKey(null));
+		assertThrows(NullPointerException.class, () -> octree.getNearestValue(null));
+		assertThrows(NullPointerException.class, () -> octree.getNearestValues(null, 5));
 		assertThrows(NullPointerException.class, () -> octree.getNearestEntry(null));
 		assertThrows(NullPointerException.class, () -> octree.getNearestKeys(null, 5));
 		assertThrows(NullPointerException.class, () -> octree.getNearestEntries(null, 5));
@@ -515,4 +586,474 @@ class OctreeTest {
 			assertEquals(point, octree.get(point));
 		}
 	}
+
+	/**
+	 * Tests the add() method and the other methods when a key is mapped to several values.
+	 */
+	@Test
+	void testAdd() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			octree.add(0, 0, 0, i);
+			expected.add(i);
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), -1);
+		}
+		octree.add(128, 128, 128, 5);
+		octree.add(128, 128, 128, 6);
+		assertEquals(2002, octree.size());
+		assertEquals(2002, octree.entrySet().size());
+		assertEquals(expected, octree.getAll(0, 0, 0));
+		assertEquals(Integer.valueOf(0), octree.get(0, 0, 0));
+		assertTrue(octree.getAll(1.5, 0, 0).isEmpty());
+
+		// every value counts in nearest neighbor searches, and the CompactOctree keeps them all
+		assertEquals(new HashSet<>(expected.subList(0, 10)),
+				new HashSet<>(octree.getNearestValues(0, 0, 0, 10)));
+		assertEquals(Integer.valueOf(0), octree.getNearestValue(0, 0, 0));
+		CompactOctree<Integer> compact = octree.freeze();
+		assertEquals(2002, compact.size());
+		assertEquals(new HashSet<>(expected.subList(0, 10)),
+				new HashSet<>(compact.getNearestValues(0, 0, 0, 10)));
+		assertEquals(new HashSet<>(Arrays.asList(5, 6)),
+				new HashSet<>(octree.getNearestValues(128, 128, 128.5, 2)));
+
+		// remove a single value with remove(key, value) and the entry set
+		assertTrue(octree.remove(new Point3D(0, 0, 0), 0));
+		assertFalse(octree.remove(new Point3D(0, 0, 0), 0));
+		assertTrue(octree.entrySet()
+				.remove(new AbstractMap.SimpleEntry<>(new Point3D(0, 0, 0), 500)));
+		expected.remove(Integer.valueOf(0));
+		expected.remove(Integer.valueOf(500));
+		assertEquals(expected, octree.getAll(0, 0, 0));
+		assertTrue(octree.entrySet()
+				.contains(new AbstractMap.SimpleEntry<>(new Point3D(0, 0, 0), 1)));
+		assertEquals(2000, octree.size());
+
+		// replace a single value
+		assertTrue(octree.replace(new Point3D(128, 128, 128), 6, 7));
+		assertEquals(Arrays.asList(5, 7), octree.getAll(128, 128, 128));
+
+		// remove values with the iterator, including the first value of a key
+		Iterator<Entry<Point3D, Integer>> iterator = octree.entrySet().iterator();
+		int count = 0;
+		while (iterator.hasNext()) {
+			Entry<Point3D, Integer> entry = iterator.next();
+			count++;
+			if ((entry.getValue() % 2 == 0) && entry.getKey().equals(new Point3D(0, 0, 0)))
+				iterator.remove();
+		}
+		assertEquals(2000, count);
+		expected.removeIf(value -> value % 2 == 0);
+		assertEquals(expected, octree.getAll(0, 0, 0));
+		assertEquals(1000 + expected.size() + 2, octree.size());
+
+		// setValue only changes the value of its own mapping
+		for (Entry<Point3D, Integer> entry : octree.entrySet()) {
+			if (entry.getValue() == 7)
+				entry.setValue(8);
+		}
+		assertEquals(Arrays.asList(5, 8), octree.getAll(128, 128, 128));
+
+		// put() and remove(key) replace and remove every value of a key
+		assertEquals(Integer.valueOf(5), octree.put(128, 128, 128, 9));
+		assertEquals(Arrays.asList(9), octree.getAll(128, 128, 128));
+		assertEquals(Integer.valueOf(1), octree.remove(0, 0, 0));
+		assertTrue(octree.getAll(0, 0, 0).isEmpty());
+		assertEquals(1001, octree.size());
+
+		// values of a key are moved together when a node splits
+		Octree<Integer> small = new Octree<>(0, 8);
+		small.add(1, 1, 1, 1);
+		small.add(1, 1, 1, 2);
+		small.add(4, 4, 4, 3);
+		small.add(7, 7, 7, 4);
+		assertEquals(Arrays.asList(1, 2), small.getAll(1, 1, 1));
+		assertEquals(4, small.size());
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(NullPointerException.class, () -> octree.add(null, 0));
+		assertThrows(IllegalArgumentException.class, () -> octree.add(0, 0, 256, 0));
+		assertThrows(NullPointerException.class, () -> octree.getAll(null));
+		assertThrows(NullPointerException.class, () -> octree.remove(null, 0));
+	}
+
+	/**
+	 * Tests the bulkLoad() method against an Octree built with add().
+	 */
+	@Test
+	void testBulkLoad() {
+		// use a small region so there are many duplicate keys and keys at node centers
+		double[] xs = new double[NUM_ENTRIES];
+		double[] ys = new double[NUM_ENTRIES];
+		double[] zs = new double[NUM_ENTRIES];
+		Integer[] values = new Integer[NUM_ENTRIES];
+		Octree<Integer> expected = new Octree<>(0, 64);
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			xs[i] = random.nextInt(65);
+			ys[i] = random.nextInt(65);
+			zs[i] = random.nextInt(65);
+			values[i] = (i == 0) ? null : i;
+			expected.add(xs[i], ys[i], zs[i], values[i]);
+		}
+		Octree<Integer> octree = new Octree<>(0, 64);
+		octree.bulkLoad(xs, ys, zs, values);
+		assertEquals(expected.size(), octree.size());
+		assertEquals(new HashSet<>(expected.entrySet()), new HashSet<>(octree.entrySet()));
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			assertEquals(expected.getAll(xs[i], ys[i], zs[i]), octree.getAll(xs[i], ys[i], zs[i]));
+		}
+		for (int i = 0; i < 1000; i++) {
+			double x = random.nextDouble() * 64;
+			double y = random.nextDouble() * 64;
+			double z = random.nextDouble() * 64;
+			assertEquals(expected.getNearestKey(x, y, z).distance(x, y, z),
+					octree.getNearestKey(x, y, z).distance(x, y, z));
+		}
+
+		// test with random keys spread over the whole region
+		Octree<Integer> spread = new Octree<>();
+		for (int i = 0; i < NUM_ENTRIES; i++) {
+			xs[i] = random.nextLong();
+			ys[i] = random.nextLong();
+			zs[i] = random.nextLong();
+		}
+		spread.bulkLoad(xs, ys, zs, values);
+		assertEquals(NUM_ENTRIES, spread.size());
+		for (int i = 1; i < NUM_ENTRIES; i++) {
+			assertEquals(values[i], spread.get(xs[i], ys[i], zs[i]));
+		}
+		assertEquals(NUM_ENTRIES, spread.freeze().size());
+
+		// bulk loading into a non-empty Octree adds the entries one at a time
+		spread.bulkLoad(new double[] { 0 }, new double[] { 0 }, new double[] { 0 },
+				new Integer[] { -1 });
+		assertEquals(NUM_ENTRIES + 1, spread.size());
+		assertEquals(Integer.valueOf(-1), spread.get(0, 0, 0));
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(IllegalArgumentException.class, () -> new Octree<Integer>(0, 1)
+				.bulkLoad(new double[] { 0 }, new double[] { 0 }, new double[] { 2 },
+						new Integer[] { 0 }));
+		assertThrows(IllegalArgumentException.class, () -> new Octree<Integer>().bulkLoad(
+				new double[] { 0 }, new double[0], new double[] { 0 }, new Integer[] { 0 }));
+		assertThrows(NullPointerException.class,
+				() -> new Octree<Integer>().bulkLoad(null, null, null, null));
+	}
+
+	/**
+	 * Tests entriesWithin() and entriesInBox() against filtering the entry set, including keys
+	 * with several values and keys on the boundary of the region.
+	 */
+	@Test
+	void testRangeQueries() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		octree.add(10, 20, 30, -1);
+		octree.add(10, 20, 30, -2);
+		octree.add(10, 20, 35, -3);
+		for (int i = 0; i < 200; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			double radius = random.nextInt(40);
+			Point3D center = new Point3D(x, y, z);
+			List<Integer> expected = new ArrayList<>();
+			for (Map.Entry<Point3D, Integer> entry : octree.entrySet()) {
+				if (center.distance(entry.getKey()) <= radius)
+					expected.add(entry.getValue());
+			}
+			List<Integer> actual = new ArrayList<>();
+			octree.entriesWithin(center, radius).forEach(entry -> {
+				assertTrue(center.distance(entry.getKey()) <= radius);
+				actual.add(entry.getValue());
+			});
+			expected.sort(null);
+			actual.sort(null);
+			assertEquals(expected, actual);
+
+			double xMax = Math.min(255, x + random.nextInt(40));
+			double yMax = Math.min(255, y + random.nextInt(40));
+			double zMax = Math.min(255, z + random.nextInt(40));
+			expected.clear();
+			for (Map.Entry<Point3D, Integer> entry : octree.entrySet()) {
+				Point3D key = entry.getKey();
+				if ((key.getX() >= x) && (key.getX() <= xMax) && (key.getY() >= y)
+						&& (key.getY() <= yMax) && (key.getZ() >= z) && (key.getZ() <= zMax))
+					expected.add(entry.getValue());
+			}
+			actual.clear();
+			octree.entriesInBox(x, xMax, y, yMax, z, zMax).map(Map.Entry::getValue)
+					.forEach(actual::add);
+			expected.sort(null);
+			actual.sort(null);
+			assertEquals(expected, actual);
+		}
+
+		// the boundary of the region is included, and every value of a key is returned
+		assertEquals(3, octree.entriesWithin(10, 20, 30, 5).filter(entry -> entry.getValue() < 0)
+				.count());
+		assertEquals(2, octree.entriesWithin(10, 20, 30, 4.9)
+				.filter(entry -> entry.getValue() < 0).count());
+		assertEquals(3, octree.entriesInBox(10, 10, 20, 20, 30, 35)
+				.filter(entry -> entry.getValue() < 0).count());
+		assertEquals(octree.size(), octree.entriesInBox(0, 255, 0, 255, 0, 255).count());
+		assertEquals(0, new Octree<Integer>().entriesWithin(0, 0, 0, 1).count());
+
+		// verify that invalid inputs throw exceptions
+		assertThrows(IllegalArgumentException.class, () -> octree.entriesWithin(0, 0, 0, -1));
+		assertThrows(IllegalArgumentException.class,
+				() -> octree.entriesWithin(0, 0, 0, Double.NaN));
+		assertThrows(IllegalArgumentException.class,
+				() -> octree.entriesInBox(1, 0, 0, 1, 0, 1));
+		assertThrows(NullPointerException.class, () -> octree.entriesWithin(null, 1));
+	}
+
+	/**
+	 * Tests entriesWithin() of an Octree and a CompactOctree with each built-in DistFunction and
+	 * a custom one against filtering the entry set with the DistFunction, using integer keys and
+	 * radii so that many keys are exactly on the boundary of the region.
+	 */
+	@Test
+	void testRangeQueriesDistFunctions() {
+		Octree.DistFunction[] distFunctions = { Octree.DistFunction.EUCLIDEAN,
+				Octree.DistFunction.SQUARED_EUCLIDEAN, Octree.DistFunction.MANHATTAN,
+				Octree.DistFunction.CHEBYSHEV, Octree.DistFunction.weightedEuclidean(2, 4, 1),
+				(xDiff, yDiff, zDiff) -> xDiff + 2 * Math.max(yDiff, zDiff) };
+		for (Octree.DistFunction distFunction : distFunctions) {
+			Octree<Integer> octree = new Octree<>(0, 63, distFunction);
+			for (int i = 0; i < 2000; i++) {
+				octree.add(random.nextInt(64), random.nextInt(64), random.nextInt(64), i);
+			}
+			CompactOctree<Integer> compact = octree.freeze();
+			for (int i = 0; i < 100; i++) {
+				int x = random.nextInt(64), y = random.nextInt(64), z = random.nextInt(64);
+				double radius = random.nextInt(20);
+				List<Integer> expected = new ArrayList<>();
+				for (Map.Entry<Point3D, Integer> entry : octree.entrySet()) {
+					Point3D key = entry.getKey();
+					if (distFunction.getDist(Math.abs(key.getX() - x), Math.abs(key.getY() - y),
+							Math.abs(key.getZ() - z)) <= radius)
+						expected.add(entry.getValue());
+				}
+				expected.sort(null);
+				List<Integer> actual = new ArrayList<>();
+				octree.entriesWithin(x, y, z, radius).map(Map.Entry::getValue)
+						.forEach(actual::add);
+				actual.sort(null);
+				assertEquals(expected, actual);
+				actual.clear();
+				compact.entriesWithin(x, y, z, radius).map(Map.Entry::getValue)
+						.forEach(actual::add);
+				actual.sort(null);
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * Tests getNearestEntry() and getNearestEntries() with a predicate against a linear search of
+	 * the accepted entries.
+	 */
+	@Test
+	void testGetNearestFiltered() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		for (int i = 0; i < 500; i++) {
+			int divisor = 1 + random.nextInt(50);
+			Predicate<Integer> accept = value -> value % divisor == 0;
+			Point3D target = new Point3D(random.nextInt(256), random.nextInt(256),
+					random.nextInt(256));
+			List<Double> expected = new ArrayList<>();
+			for (Map.Entry<Point3D, Integer> entry : octree.entrySet()) {
+				if (accept.test(entry.getValue()))
+					expected.add(target.distance(entry.getKey()));
+			}
+			expected.sort(null);
+			Map.Entry<Point3D, Integer> nearest = octree.getNearestEntry(target, accept);
+			assertTrue(accept.test(nearest.getValue()));
+			assertEquals(expected.get(0), target.distance(nearest.getKey()));
+			List<Map.Entry<Point3D, Integer>> entries = octree.getNearestEntries(target, 10,
+					accept);
+			assertEquals(Math.min(10, expected.size()), entries.size());
+			for (int j = 0; j < entries.size(); j++) {
+				assertTrue(accept.test(entries.get(j).getValue()));
+				assertEquals(expected.get(j), target.distance(entries.get(j).getKey()));
+			}
+		}
+
+		// values of a key with several values are tested separately
+		octree.add(0, 0, 0, -1);
+		octree.add(0, 0, 0, -2);
+		assertEquals(Integer.valueOf(-2),
+				octree.getNearestEntry(0, 0, 0, value -> value == -2).getValue());
+		assertEquals(2, octree.getNearestEntries(0, 0, 0, 5, value -> value < 0).size());
+
+		// if no value is accepted, nothing is found
+		assertNull(octree.getNearestEntry(0, 0, 0, value -> false));
+		assertTrue(octree.getNearestEntries(0, 0, 0, 5, value -> false).isEmpty());
+		assertNull(new Octree<Integer>().getNearestEntry(0, 0, 0, value -> true));
+		assertThrows(NullPointerException.class, () -> octree.getNearestEntry(0, 0, 0, null));
+	}
+
+	/**
+	 * Tests filtered searches of an Octree and a CompactOctree whose predicates run other nearest
+	 * neighbor searches of the same trees on the same thread, which must not change the results of
+	 * the outer searches, and that a search still works after a predicate threw an exception.
+	 */
+	@Test
+	void testNestedSearches() {
+		Octree<Integer> octree = new Octree<>(0, 255);
+		for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+			octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+		}
+		CompactOctree<Integer> compact = octree.freeze();
+		Predicate<Integer> even = value -> value % 2 == 0;
+		Predicate<Integer> nested = value -> {
+			// run unfiltered and filtered searches of both trees before answering
+			octree.getNearestEntries(value % 256, 0, 0, 5);
+			compact.getNearestEntry(0, value % 256, 0, other -> other % 3 == 0);
+			octree.getNearestEntry(0, 0, value % 256, other -> other % 5 == 0);
+			compact.getNearestValue(value % 256, value % 256, 0);
+			return even.test(value);
+		};
+		for (int i = 0; i < 200; i++) {
+			double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+			assertEquals(octree.getNearestEntry(x, y, z, even),
+					octree.getNearestEntry(x, y, z, nested));
+			assertEquals(octree.getNearestEntries(x, y, z, 10, even),
+					octree.getNearestEntries(x, y, z, 10, nested));
+			assertEquals(compact.getNearestEntry(x, y, z, even),
+					compact.getNearestEntry(x, y, z, nested));
+			assertEquals(compact.getNearestEntries(x, y, z, 10, even),
+					compact.getNearestEntries(x, y, z, 10, nested));
+		}
+
+		// a predicate which throws must not leave the heap in use
+		Predicate<Integer> failing = value -> {
+			throw new IllegalStateException();
+		};
+		assertThrows(IllegalStateException.class, () -> octree.getNearestEntry(0, 0, 0, failing));
+		assertThrows(IllegalStateException.class,
+				() -> compact.getNearestEntries(0, 0, 0, 3, failing));
+		assertEquals(octree.getNearestEntries(9, 9, 9, 3, even),
+				octree.getNearestEntries(9, 9, 9, 3, nested));
+		assertEquals(compact.getNearestEntry(9, 9, 9, even),
+				compact.getNearestEntry(9, 9, 9, nested));
+	}
+
+	/**
+	 * Tests that approximate nearest neighbor searches in an Octree and a CompactOctree find
+	 * entries within (1 + epsilon) times the distances of the nearest entries, for a squared and a
+	 * linear built-in DistFunction.
+	 */
+	@Test
+	void testGetNearestApproximate() {
+		Octree.DistFunction[] distFunctions = { Octree.DistFunction.EUCLIDEAN,
+				Octree.DistFunction.MANHATTAN };
+		double[] epsilons = { 0, 0.1, 0.5, 2 };
+		for (Octree.DistFunction distFunction : distFunctions) {
+			Octree<Integer> octree = new Octree<>(0, 255, distFunction);
+			for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+				octree.add(random.nextInt(256), random.nextInt(256), random.nextInt(256), i);
+			}
+			CompactOctree<Integer> compact = octree.freeze();
+			for (int i = 0; i < 1000; i++) {
+				double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+				List<Double> expected = getDists(distFunction, x, y, z,
+						octree.getNearestKeys(x, y, z, 5));
+				for (double epsilon : epsilons) {
+					List<List<Map.Entry<Point3D, Integer>>> results = Arrays.asList(
+							Arrays.asList(octree.getNearestEntry(x, y, z, epsilon)),
+							Arrays.asList(compact.getNearestEntry(x, y, z, epsilon)),
+							octree.getNearestEntries(x, y, z, 5, epsilon),
+							compact.getNearestEntries(x, y, z, 5, epsilon));
+					for (List<Map.Entry<Point3D, Integer>> entries : results) {
+						List<Point3D> keys = new ArrayList<>();
+						for (Map.Entry<Point3D, Integer> entry : entries) {
+							keys.add(entry.getKey());
+						}
+						List<Double> dists = getDists(distFunction, x, y, z, keys);
+						if (epsilon == 0)
+							assertEquals(expected.subList(0, dists.size()), dists);
+						for (int j = 0; j < dists.size(); j++) {
+							assertTrue(dists.get(j) <= (1 + epsilon) * expected.get(j) + 1e-9);
+						}
+					}
+				}
+			}
+		}
+
+		// test an empty tree and invalid epsilons
+		assertNull(new Octree<Integer>().getNearestEntry(0, 0, 0, 1.0));
+		assertTrue(new Octree<Integer>().getNearestEntries(0, 0, 0, 5, 1.0).isEmpty());
+		Octree<Integer> octree = new Octree<>();
+		assertThrows(IllegalArgumentException.class, () -> octree.getNearestEntry(0, 0, 0, -1.0));
+		assertThrows(IllegalArgumentException.class,
+				() -> octree.getNearestEntries(0, 0, 0, 5, Double.NaN));
+		assertThrows(NullPointerException.class, () -> octree.getNearestEntry(null, 1.0));
+	}
+
+	/**
+	 * Tests that the built-in DistFunctions find entries as near as equivalent custom
+	 * DistFunctions, which are not recognized by the tree, in an Octree and a CompactOctree.
+	 */
+	@Test
+	void testDistFunctions() {
+		Octree.DistFunction[] builtIn = { Octree.DistFunction.EUCLIDEAN,
+				Octree.DistFunction.SQUARED_EUCLIDEAN, Octree.DistFunction.MANHATTAN,
+				Octree.DistFunction.CHEBYSHEV, Octree.DistFunction.WEIGHTED_RGB,
+				Octree.DistFunction.weightedEuclidean(1, 5, 0.5) };
+		for (Octree.DistFunction distFunction : builtIn) {
+			Octree.DistFunction custom = (xDiff, yDiff, zDiff) -> distFunction.getDist(xDiff, yDiff,
+					zDiff);
+			Octree<Integer> expectedTree = new Octree<>(0, 255, custom);
+			Octree<Integer> actualTree = new Octree<>(0, 255, distFunction);
+			for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+				double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+				expectedTree.add(x, y, z, i);
+				actualTree.add(x, y, z, i);
+			}
+			CompactOctree<Integer> compact = actualTree.freeze();
+			for (int i = 0; i < 2000; i++) {
+				double x = random.nextInt(256), y = random.nextInt(256), z = random.nextInt(256);
+				List<Double> expected = getDists(custom, x, y, z,
+						expectedTree.getNearestKeys(x, y, z, 5));
+				assertEquals(expected,
+						getDists(custom, x, y, z, actualTree.getNearestKeys(x, y, z, 5)));
+				assertEquals(expected, getDists(custom, x, y, z, compact.getNearestKeys(x, y, z, 5)));
+				assertEquals(expected.get(0), getDists(custom, x, y, z,
+						Arrays.asList(compact.getNearestKey(x, y, z))).get(0));
+			}
+		}
+		assertEquals(5, Octree.DistFunction.EUCLIDEAN.getDist(3, 4, 0));
+		assertEquals(25, Octree.DistFunction.SQUARED_EUCLIDEAN.getDist(3, 4, 0));
+		assertEquals(7, Octree.DistFunction.MANHATTAN.getDist(3, 4, 0));
+		assertEquals(4, Octree.DistFunction.CHEBYSHEV.getDist(3, 4, 0));
+		assertEquals(Math.sqrt(18 + 64), Octree.DistFunction.WEIGHTED_RGB.getDist(3, 4, 0));
+		assertThrows(IllegalArgumentException.class,
+				() -> Octree.DistFunction.weightedEuclidean(1, 0, 1));
+	}
+
+	/**
+	 * This method returns the distances of the given keys from a location.
+	 * 
+	 * @param distFunction the function used to calculate distances
+	 * @param x            the x coordinate of the location
+	 * @param y            the y coordinate of the location
+	 * @param z            the z coordinate of the location
+	 * @param keys         the keys
+	 * @return the distances of the keys
+	 */
+	private static List<Double> getDists(Octree.DistFunction distFunction, double x, double y,
+			double z, List<Point3D> keys) {
+		List<Double> dists = new ArrayList<>();
+		for (Point3D key : keys) {
+			dists.add(distFunction.getDist(Math.abs(key.getX() - x), Math.abs(key.getY() - y),
+					Math.abs(key.getZ() - z)));
+		}
+		return dists;
+	}
 }
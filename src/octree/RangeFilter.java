@@ -0,0 +1,68 @@
+package octree;
+
+/**
+ * A region of space used by range queries to decide which nodes to descend into and which entries
+ * to return. A range query tests the bounds of each node and only explores the nodes which may
+ * overlap the region; an entry is tested by passing its key as bounds of zero size, so the same
+ * test decides both.
+ */
+@FunctionalInterface
+interface RangeFilter {
+	/**
+	 * Check whether the given bounds overlap the region. If the bounds have zero size, this checks
+	 * whether the region contains the point.
+	 * 
+	 * @param xMin the minimum x coordinate of the bounds
+	 * @param xMax the maximum x coordinate of the bounds
+	 * @param yMin the minimum y coordinate of the bounds
+	 * @param yMax the maximum y coordinate of the bounds
+	 * @param zMin the minimum z coordinate of the bounds
+	 * @param zMax the maximum z coordinate of the bounds
+	 * @return true if the bounds overlap the region and false otherwise
+	 */
+	boolean overlaps(double xMin, double xMax, double yMin, double yMax, double zMin, double zMax);
+
+	/**
+	 * Get a filter for the points whose distance from the given center is at most the given
+	 * radius. The distance from a node is the distance between its boundary and the center, which
+	 * is never more than the distance of any point in the node. Distances are calculated by the
+	 * Metric like those of nearest neighbor searches, so the radius is converted to the Metric's
+	 * distances once instead of taking a square root for every node and entry.
+	 * 
+	 * @param metric the Metric used to calculate distances
+	 * @param x      the x coordinate of the center
+	 * @param y      the y coordinate of the center
+	 * @param z      the z coordinate of the center
+	 * @param radius the radius, as a distance of the Metric's DistFunction
+	 * @return the filter
+	 * @throws IllegalArgumentException if the radius is negative or NaN
+	 */
+	static RangeFilter within(Metric metric, double x, double y, double z, double radius) {
+		if (!(radius >= 0))
+			throw new IllegalArgumentException("The radius must be at least 0.");
+		double bound = metric.toMetricDist(radius);
+		return (xMin, xMax, yMin, yMax, zMin, zMax) -> metric.getDist(xMin, xMax, yMin, yMax, zMin,
+				zMax, x, y, z) <= bound;
+	}
+
+	/**
+	 * Get a filter for the points inside the given box, including its boundary.
+	 * 
+	 * @param boxXMin the minimum x coordinate of the box
+	 * @param boxXMax the maximum x coordinate of the box
+	 * @param boxYMin the minimum y coordinate of the box
+	 * @param boxYMax the maximum y coordinate of the box
+	 * @param boxZMin the minimum z coordinate of the box
+	 * @param boxZMax the maximum z coordinate of the box
+	 * @return the filter
+	 * @throws IllegalArgumentException if the minimum of a coordinate is greater than its maximum
+	 */
+	static RangeFilter inBox(double boxXMin, double boxXMax, double boxYMin, double boxYMax,
+			double boxZMin, double boxZMax) {
+		if (!(boxXMin <= boxXMax) || !(boxYMin <= boxYMax) || !(boxZMin <= boxZMax))
+			throw new IllegalArgumentException(
+					"Invalid box. The minimum value of a coordinate cannot be greater than the maximum value.");
+		return (xMin, xMax, yMin, yMax, zMin, zMax) -> (xMin <= boxXMax) && (xMax >= boxXMin)
+				&& (yMin <= boxYMax) && (yMax >= boxYMin) && (zMin <= boxZMax) && (zMax >= boxZMin);
+	}
+}
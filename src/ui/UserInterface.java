@@ -3,6 +3,7 @@ package ui;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
@@ -39,7 +40,8 @@ public class UserInterface implements ActionListener, ChangeListener {
 	private JButton clearButton = new JButton(CLEAR_CACHE);
 	private FilePanel imagePanel, folderPanel;
 	private File image, folder;
-	private ImageProcessor processor = new ImageProcessor();
+	private ImageProcessor processor = new ImageProcessor(
+			value -> SwingUtilities.invokeLater(() -> ProgressWindow.getInstance().update(value)));
 	private int tileWidth = 50, tileHeight = 50, transparencyPercent = 100;
 	private boolean cacheEnabled = true;
 	private ProgressWindow progress = ProgressWindow.getInstance();
@@ -139,9 +141,19 @@ public class UserInterface implements ActionListener, ChangeListener {
 		// show the progress bar and create the photomosaic
 		progress.update(0);
 		progress.setVisible(true);
+		File output = new File(ImageProcessor.DEFAULT_OUTPUT);
 		boolean result = processor.createPhotomosaic(Math.max(tileWidth, 1),
 				Math.max(tileHeight, 1), transparencyPercent, image.getAbsolutePath(),
-				folder.getAbsolutePath(), cacheEnabled);
+				folder.getAbsolutePath(), cacheEnabled, output.getPath());
+
+		// open the photomosaic if it was created successfully
+		if (result) {
+			try {
+				Desktop.getDesktop().open(output);
+			} catch (IOException | UnsupportedOperationException e) {
+				result = false;
+			}
+		}
 
 		// after completion, hide the progess bar and enable the buttons
 		progress.setVisible(false);